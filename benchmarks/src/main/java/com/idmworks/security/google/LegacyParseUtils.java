@@ -0,0 +1,51 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.idmworks.security.google.GoogleApiUtils.*;
+
+/**
+ * The split/replaceAll based parser which {@link ParseUtils} used before {@link JsonReader}, kept as the baseline for
+ * {@link ParseBenchmark}.
+ *
+ * @author pdgreen
+ */
+final class LegacyParseUtils {
+
+  private LegacyParseUtils() {
+  }
+
+  static Map<String, String> parseSimpleJson(final String json) {
+    final String[] parts = json.substring(json.indexOf("{") + 1, json.lastIndexOf("}")).split(",");
+
+    final Map<String, String> values = new HashMap<String, String>();
+    for (final String part : parts) {
+      final String[] vparts = part.replaceAll("\"", "").split(":", 2);
+      values.put(vparts[0].trim(), vparts[1].trim());
+    }
+    return values;
+  }
+
+  static AccessTokenInfo parseAccessTokenJson(final String json) {
+    final Map<String, String> values = parseSimpleJson(json);
+
+    final int expiresIn = Integer.parseInt(values.get(TOKEN_API_EXPIRES_IN_PARAMETER));
+
+    return new AccessTokenInfo(values.get(TOKEN_API_ACCESS_TOKEN_PARAMETER), new Date(new Date().getTime() + expiresIn * 1000),
+            values.get(TOKEN_API_TOKEN_TYPE_PARAMETER));
+  }
+
+  static GoogleUserInfo parseGoogleUserInfoJson(final String json) {
+    final Map<String, String> values = parseSimpleJson(json);
+
+    return new GoogleUserInfo(values.get(USERINFO_API_ID_PARAMETER), values.get(USERINFO_API_EMAIL_PARAMETER),
+            values.containsKey(USERINFO_API_VERIFIED_EMAIL_PARAMETER) && Boolean.parseBoolean(values.get(USERINFO_API_VERIFIED_EMAIL_PARAMETER)),
+            values.get(USERINFO_API_NAME_PARAMETER), values.get(USERINFO_API_GIVEN_NAME_PARAMETER),
+            values.get(USERINFO_API_FAMILY_NAME_PARAMETER), values.get(USERINFO_API_GENDER_PARAMETER),
+            values.get(USERINFO_API_LINK_PARAMETER), values.get(USERINFO_API_PICTURE_PARAMETER),
+            values.get(USERINFO_API_LOCALE_PARAMETER));
+  }
+}
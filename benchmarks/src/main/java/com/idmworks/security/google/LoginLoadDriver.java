@@ -0,0 +1,298 @@
+package com.idmworks.security.google;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.security.auth.Subject;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.message.AuthException;
+import javax.security.auth.message.AuthStatus;
+import javax.servlet.http.Cookie;
+
+/**
+ * Pushes complete logins through {@link GoogleOAuthServerAuthModule} against a {@link FakeGoogleServer} and reports
+ * logins per second and latency percentiles. <br> Each cycle is what a browser does: request a protected page and get
+ * redirected to Google, follow the redirect to the (fake) authorization endpoint, return to the callback, which
+ * exchanges the code and looks up the user over HTTP, and request the protected page again with the session.
+ * <pre>
+ * java -cp target/benchmarks.jar com.idmworks.security.google.LoginLoadDriver threads=16 duration=30 latency=50 jitter=20 error_rate=0.01
+ * </pre> {@code threads}, {@code duration} and {@code warmup} (seconds) control the load, {@code latency}, {@code jitter}
+ * (milliseconds) and {@code error_rate} the fake Google. Any other {@code key=value} is passed to the module as an
+ * option, e.g. {@code state_mode=offheap}.
+ *
+ * @author pdgreen
+ */
+public final class LoginLoadDriver {
+
+  private static final String[] PHASES = {"redirect", "authorize", "callback", "authenticated", "login"};
+  private static final int REDIRECT = 0;
+  private static final int AUTHORIZE = 1;
+  private static final int CALLBACK = 2;
+  private static final int AUTHENTICATED = 3;
+  private static final int LOGIN = 4;
+  private final GoogleOAuthServerAuthModule module;
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicReference<Exception> firstFailure = new AtomicReference<Exception>();
+  private volatile boolean recording;
+  private volatile boolean stopped;
+
+  private LoginLoadDriver(final GoogleOAuthServerAuthModule module) {
+    this.module = module;
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final Map<String, String> arguments = new HashMap<String, String>();
+    for (final String arg : args) {
+      final int equals = arg.indexOf('=');
+      if (equals <= 0) {
+        throw new IllegalArgumentException("expected key=value: " + arg);
+      }
+      arguments.put(arg.substring(0, equals), arg.substring(equals + 1));
+    }
+    final int threads = Integer.parseInt(remove(arguments, "threads", "8"));
+    final int duration = Integer.parseInt(remove(arguments, "duration", "20"));
+    final int warmup = Integer.parseInt(remove(arguments, "warmup", "5"));
+    final FakeGoogleServer google = FakeGoogleServer.start()
+            .latency(Long.parseLong(remove(arguments, "latency", "0")), Long.parseLong(remove(arguments, "jitter", "0")))
+            .errorRate(Double.parseDouble(remove(arguments, "error_rate", "0")));
+    try {
+      Configuration.setConfiguration(new Configuration() {
+        @Override
+        public AppConfigurationEntry[] getAppConfigurationEntry(final String name) {
+          return null;
+        }
+      });
+      final Map<String, String> options = new HashMap<String, String>();
+      options.put("oauth.clientid", "load-client-id");
+      options.put("oauth.clientsecret", "load-client-secret");
+      options.put("ignore_missing_login_context", "true");
+      options.put("default_groups", "users");
+      //every login comes from the same address
+      options.put("rate_limit", "0");
+      options.put("jmx", "false");
+      options.putAll(google.endpointOptions());
+      options.putAll(arguments);
+      final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+      module.initialize(null, null, new StubContainerCallbackHandler(), options);
+
+      new LoginLoadDriver(module).run(threads, warmup, duration);
+      System.out.printf("fake Google: %d requests, %d injected errors%n", google.getRequestCount(), google.getErrorCount());
+    } finally {
+      google.stop();
+    }
+  }
+
+  private static String remove(final Map<String, String> arguments, final String key, final String defaultValue) {
+    final String value = arguments.remove(key);
+    return value == null ? defaultValue : value;
+  }
+
+  private void run(final int threads, final int warmup, final int duration) throws InterruptedException {
+    final List<Worker> workers = new ArrayList<Worker>();
+    for (int i = 0; i < threads; i++) {
+      final Worker worker = new Worker();
+      worker.setName("login-load-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+    System.out.printf("%d threads, %d s warmup, %d s measurement%n", threads, warmup, duration);
+    TimeUnit.SECONDS.sleep(warmup);
+    failures.set(0);
+    recording = true;
+    final long start = System.nanoTime();
+    TimeUnit.SECONDS.sleep(duration);
+    recording = false;
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    stopped = true;
+    for (final Worker worker : workers) {
+      worker.join();
+    }
+
+    final long[][] latencies = new long[PHASES.length][];
+    for (int phase = 0; phase < PHASES.length; phase++) {
+      final List<long[]> parts = new ArrayList<long[]>();
+      for (final Worker worker : workers) {
+        parts.add(worker.latencies[phase].toArray());
+      }
+      latencies[phase] = concat(parts);
+    }
+    final int logins = latencies[LOGIN].length;
+    System.out.printf("%d logins, %.1f logins/s, %d failed%n", logins, logins / seconds, failures.get());
+    if (firstFailure.get() != null) {
+      System.out.println("first failure: " + firstFailure.get());
+    }
+    System.out.printf("%-14s %10s %10s %10s %10s %10s%n", "ms", "mean", "p50", "p90", "p99", "max");
+    for (int phase = 0; phase < PHASES.length; phase++) {
+      final long[] values = latencies[phase];
+      Arrays.sort(values);
+      System.out.printf("%-14s %10.2f %10.2f %10.2f %10.2f %10.2f%n", PHASES[phase], mean(values),
+              percentile(values, 0.50), percentile(values, 0.90), percentile(values, 0.99), percentile(values, 1.0));
+    }
+  }
+
+  private static long[] concat(final List<long[]> parts) {
+    int length = 0;
+    for (final long[] part : parts) {
+      length += part.length;
+    }
+    final long[] all = new long[length];
+    int offset = 0;
+    for (final long[] part : parts) {
+      System.arraycopy(part, 0, all, offset, part.length);
+      offset += part.length;
+    }
+    return all;
+  }
+
+  private static double mean(final long[] sortedNanos) {
+    if (sortedNanos.length == 0) {
+      return 0;
+    }
+    double sum = 0;
+    for (final long nanos : sortedNanos) {
+      sum += nanos;
+    }
+    return sum / sortedNanos.length / 1e6;
+  }
+
+  private static double percentile(final long[] sortedNanos, final double fraction) {
+    if (sortedNanos.length == 0) {
+      return 0;
+    }
+    final int index = (int) Math.ceil(fraction * sortedNanos.length) - 1;
+    return sortedNanos[Math.max(0, index)] / 1e6;
+  }
+
+  /**
+   * @return the code from the callback location the authorization endpoint redirects to
+   */
+  private static String authorize(final String authorizationUri) throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection) new URL(authorizationUri).openConnection();
+    connection.setInstanceFollowRedirects(false);
+    final int status = connection.getResponseCode();
+    final String location = connection.getHeaderField("Location");
+    final InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if (body != null) {
+      while (body.read() >= 0) {
+        //drained so the connection is kept alive
+      }
+      body.close();
+    }
+    final int code = location == null ? -1 : location.indexOf("code=");
+    if (status != HttpURLConnection.HTTP_MOVED_TEMP || code < 0) {
+      throw new IllegalStateException("authorization endpoint answered " + status);
+    }
+    final int end = location.indexOf('&', code);
+    return URLDecoder.decode(location.substring(code + 5, end < 0 ? location.length() : end), "UTF-8");
+  }
+
+  private final class Worker extends Thread {
+
+    private final LongList[] latencies = new LongList[PHASES.length];
+
+    Worker() {
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i] = new LongList();
+      }
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        try {
+          login();
+        } catch (Exception ex) {
+          failures.incrementAndGet();
+          firstFailure.compareAndSet(null, ex);
+        }
+      }
+    }
+
+    private void record(final int phase, final long startNanos) {
+      if (recording) {
+        latencies[phase].add(System.nanoTime() - startNanos);
+      }
+    }
+
+    private void expect(final AuthStatus expected, final AuthStatus actual, final String phase) {
+      if (expected != actual) {
+        throw new IllegalStateException(phase + ": " + actual);
+      }
+    }
+
+    private void login() throws AuthException, IOException {
+      final Browser browser = new Browser();
+      final long loginStart = System.nanoTime();
+
+      long start = loginStart;
+      final StubHttpServletResponse redirect = new StubHttpServletResponse();
+      expect(AuthStatus.SEND_CONTINUE, browser.send(new StubHttpServletRequest("/app/secure/index.html"), redirect), "redirect");
+      record(REDIRECT, start);
+
+      start = System.nanoTime();
+      final String code = authorize(redirect.getRedirect());
+      record(AUTHORIZE, start);
+
+      start = System.nanoTime();
+      expect(AuthStatus.SEND_CONTINUE, browser.send(new StubHttpServletRequest("/app/j_oauth_callback").withParameter("code", code),
+              new StubHttpServletResponse()), "callback");
+      record(CALLBACK, start);
+
+      start = System.nanoTime();
+      expect(AuthStatus.SUCCESS, browser.send(new StubHttpServletRequest("/app/secure/index.html"), new StubHttpServletResponse()), "authenticated");
+      record(AUTHENTICATED, start);
+      record(LOGIN, loginStart);
+    }
+  }
+
+  /**
+   * Session and cookies of one user, so every state mode can be driven.
+   */
+  private final class Browser {
+
+    private final StubHttpSession session = new StubHttpSession();
+    private final Map<String, Cookie> cookies = new HashMap<String, Cookie>();
+
+    AuthStatus send(final StubHttpServletRequest request, final StubHttpServletResponse response) throws AuthException {
+      request.withSession(session).withCookies(cookies.values().toArray(new Cookie[cookies.size()]));
+      final AuthStatus status = module.validateRequest(new StubMessageInfo(request, response, true), new Subject(), null);
+      for (final Cookie cookie : response.getCookies()) {
+        if (cookie.getMaxAge() == 0) {
+          cookies.remove(cookie.getName());
+        } else {
+          cookies.put(cookie.getName(), cookie);
+        }
+      }
+      return status;
+    }
+  }
+
+  private static final class LongList {
+
+    private long[] values = new long[1024];
+    private int size;
+
+    void add(final long value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    long[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link ParseUtils} (streaming {@link JsonReader}) with the previous split/replaceAll parser.
+ *
+ * @author pdgreen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+  private final byte[] tokenBytes = StubGoogleHttps.TOKEN_RESPONSE;
+  private final byte[] userInfoBytes = StubGoogleHttps.USERINFO_RESPONSE;
+
+  @Benchmark
+  public AccessTokenInfo accessTokenLegacy() {
+    return LegacyParseUtils.parseAccessTokenJson(new String(tokenBytes, StandardCharsets.UTF_8));
+  }
+
+  @Benchmark
+  public AccessTokenInfo accessTokenStreaming() {
+    return ParseUtils.parseAccessTokenJson(new ByteArrayInputStream(tokenBytes));
+  }
+
+  @Benchmark
+  public GoogleUserInfo userInfoLegacy() {
+    return LegacyParseUtils.parseGoogleUserInfoJson(new String(userInfoBytes, StandardCharsets.UTF_8));
+  }
+
+  @Benchmark
+  public GoogleUserInfo userInfoStreaming() {
+    return ParseUtils.parseGoogleUserInfoJson(new ByteArrayInputStream(userInfoBytes));
+  }
+}
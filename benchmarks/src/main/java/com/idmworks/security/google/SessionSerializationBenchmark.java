@@ -0,0 +1,140 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares replicating the session state as it used to be stored (the authenticated subject with default serialized
+ * principals and the original request path as a URI) with the externalized {@link AuthenticationSnapshot}. Each
+ * benchmark serializes and deserializes the state once; the sizes are printed at setup.
+ *
+ * @author pdgreen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionSerializationBenchmark {
+
+  private static final GoogleUserInfo USER_INFO = new GoogleUserInfo("1074968992519869407200", "fake.name@gmail.com", true,
+          "Fake Name", "Fake", "Name", "other", "https://plus.google.com/1074968992519869407200",
+          "https://lh3.googleusercontent.com/photo.jpg", "en");
+  private static final List<String> GROUPS = Arrays.asList("users", "gmail.com", "admins");
+  private Subject subject;
+  private URI originalRequestUri;
+  private AuthenticationSnapshot snapshot;
+  private String originalRequestPath;
+
+  @Setup
+  public void setUp() throws IOException, ClassNotFoundException {
+    subject = new Subject();
+    subject.getPrincipals().add(new LegacyPrincipal(USER_INFO));
+    for (final String group : GROUPS) {
+      subject.getPrincipals().add(new LegacyPrincipal(group));
+    }
+    originalRequestUri = URI.create("/app/secure/index.html");
+    snapshot = new AuthenticationSnapshot(USER_INFO, GROUPS, subject);
+    originalRequestPath = "/app/secure/index.html";
+    System.out.println("\nsubject: " + serialize(subject, originalRequestUri).length
+            + " bytes, snapshot: " + serialize(snapshot, originalRequestPath).length + " bytes");
+  }
+
+  private static byte[] serialize(final Object state, final Object path) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+    final ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(state);
+    out.writeObject(path);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static Object roundTrip(final Object state, final Object path) throws IOException, ClassNotFoundException {
+    final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialize(state, path)));
+    final Object read = in.readObject();
+    in.readObject();
+    return read;
+  }
+
+  @Benchmark
+  public Object subjectRoundTrip() throws IOException, ClassNotFoundException {
+    return roundTrip(subject, originalRequestUri);
+  }
+
+  @Benchmark
+  public Object snapshotRoundTrip() throws IOException, ClassNotFoundException {
+    return roundTrip(snapshot, originalRequestPath);
+  }
+
+  /**
+   * Default serialized principal carrying the user info fields, as a container principal would.
+   */
+  static class LegacyPrincipal implements Principal, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final String id;
+    private final String email;
+    private final boolean verifiedEmail;
+    private final String name;
+    private final String givenName;
+    private final String familyName;
+    private final String gender;
+    private final String link;
+    private final String picture;
+    private final String locale;
+
+    LegacyPrincipal(final String group) {
+      this(new GoogleUserInfo(null, group, false, null, null, null, null, null, null, null));
+    }
+
+    LegacyPrincipal(final GoogleUserInfo userInfo) {
+      this.id = userInfo.getId();
+      this.email = userInfo.getEmail();
+      this.verifiedEmail = userInfo.isVerifiedEmail();
+      this.name = userInfo.getName();
+      this.givenName = userInfo.getGivenName();
+      this.familyName = userInfo.getFamilyName();
+      this.gender = userInfo.getGender();
+      this.link = userInfo.getLink();
+      this.picture = userInfo.getPicture();
+      this.locale = userInfo.getLocale();
+    }
+
+    @Override
+    public String getName() {
+      return email;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      return obj instanceof LegacyPrincipal && ((LegacyPrincipal) obj).email.equals(email);
+    }
+
+    @Override
+    public int hashCode() {
+      return email.hashCode();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package com.idmworks.security.google;
+
+import java.security.Principal;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.message.callback.CallerPrincipalCallback;
+import javax.security.auth.message.callback.GroupPrincipalCallback;
+
+/**
+ * Stands in for the container's {@link CallbackHandler}: adds caller and group principals to the client subject.
+ *
+ * @author pdgreen
+ */
+class StubContainerCallbackHandler implements CallbackHandler {
+
+  @Override
+  public void handle(final Callback[] callbacks) throws UnsupportedCallbackException {
+    for (final Callback callback : callbacks) {
+      if (callback instanceof CallerPrincipalCallback) {
+        final CallerPrincipalCallback cpc = (CallerPrincipalCallback) callback;
+        cpc.getSubject().getPrincipals().add(cpc.getPrincipal());
+      } else if (callback instanceof GroupPrincipalCallback) {
+        final GroupPrincipalCallback gpc = (GroupPrincipalCallback) callback;
+        for (final String group : gpc.getGroups()) {
+          gpc.getSubject().getPrincipals().add(new GroupPrincipal(group));
+        }
+      } else {
+        throw new UnsupportedCallbackException(callback);
+      }
+    }
+  }
+
+  static class GroupPrincipal implements Principal, java.io.Serializable {
+
+    private final String name;
+
+    GroupPrincipal(final String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      return obj instanceof GroupPrincipal && ((GroupPrincipal) obj).name.equals(name);
+    }
+
+    @Override
+    public int hashCode() {
+      return name.hashCode();
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.idmworks.security.google;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.URLStreamHandlerFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * Replaces the JVM wide "https" handler so that the Google token and userinfo APIs answer with canned responses
+ * instead of going over the network.
+ *
+ * @author pdgreen
+ */
+final class StubGoogleHttps {
+
+  static final byte[] TOKEN_RESPONSE = ("{\n"
+          + "\"access_token\":\"1/fFAGRNJru1FTz70BzhT3Zg\",\n"
+          + "\"expires_in\":3920,\n"
+          + "\"token_type\":\"Bearer\"\n"
+          + "}").getBytes(StandardCharsets.UTF_8);
+  static final byte[] USERINFO_RESPONSE = ("{\n"
+          + "\"id\": \"1074968992519869407200\",\n"
+          + "\"email\": \"fake.name@gmail.com\",\n"
+          + "\"verified_email\": true,\n"
+          + "\"name\": \"Fake Name\",\n"
+          + "\"given_name\": \"Fake\",\n"
+          + "\"family_name\": \"Name\",\n"
+          + "\"link\": \"https://plus.google.com/1074968992519869407200\",\n"
+          + "\"picture\": \"https://lh4.googleusercontent.com/path/to/photo.jpg\",\n"
+          + "\"gender\": \"other\",\n"
+          + "\"locale\": \"en-US\"\n"
+          + "}").getBytes(StandardCharsets.UTF_8);
+  private static boolean installed;
+
+  private StubGoogleHttps() {
+  }
+
+  static synchronized void install() {
+    if (installed) {
+      return;
+    }
+    URL.setURLStreamHandlerFactory(new URLStreamHandlerFactory() {
+      @Override
+      public URLStreamHandler createURLStreamHandler(final String protocol) {
+        if (!"https".equals(protocol)) {
+          return null;
+        }
+        return new URLStreamHandler() {
+          @Override
+          protected URLConnection openConnection(final URL url) {
+            return new StubConnection(url);
+          }
+        };
+      }
+    });
+    installed = true;
+  }
+
+  static class StubConnection extends HttpsURLConnection {
+
+    StubConnection(final URL url) {
+      super(url);
+    }
+
+    private byte[] body() {
+      return url.getPath().endsWith("/token") ? TOKEN_RESPONSE : USERINFO_RESPONSE;
+    }
+
+    @Override
+    public int getResponseCode() {
+      return HTTP_OK;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return new ByteArrayInputStream(body());
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+      };
+    }
+
+    @Override
+    public void connect() throws IOException {
+      connected = true;
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public boolean usingProxy() {
+      return false;
+    }
+
+    @Override
+    public String getCipherSuite() {
+      return "TLS_STUB";
+    }
+
+    @Override
+    public Certificate[] getLocalCertificates() {
+      return null;
+    }
+
+    @Override
+    public Certificate[] getServerCertificates() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package com.idmworks.security.google;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Minimal {@link HttpServletRequest} for benchmarks. Only the methods used by
+ * {@link GoogleOAuthServerAuthModule} are implemented; everything else fails fast.
+ *
+ * @author pdgreen
+ */
+class StubHttpServletRequest extends HttpServletRequestWrapper {
+
+  private final String requestUri;
+  private final Map<String, String> parameters = new HashMap<String, String>();
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+  private StubHttpSession session;
+  private Cookie[] cookies;
+
+  StubHttpServletRequest(final String requestUri) {
+    super(unsupported(HttpServletRequest.class));
+    this.requestUri = requestUri;
+  }
+
+  static <T> T unsupported(final Class<T> type) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        throw new UnsupportedOperationException(method.getName());
+      }
+    }));
+  }
+
+  StubHttpServletRequest withParameter(final String name, final String value) {
+    parameters.put(name, value);
+    return this;
+  }
+
+  StubHttpServletRequest withSession(final StubHttpSession session) {
+    this.session = session;
+    return this;
+  }
+
+  StubHttpServletRequest withCookies(final Cookie[] cookies) {
+    this.cookies = cookies.length == 0 ? null : cookies;
+    return this;
+  }
+
+  @Override
+  public String getRequestURI() {
+    return requestUri;
+  }
+
+  @Override
+  public String getContextPath() {
+    return "/app";
+  }
+
+  @Override
+  public String getScheme() {
+    return "https";
+  }
+
+  @Override
+  public boolean isSecure() {
+    return true;
+  }
+
+  @Override
+  public String getServerName() {
+    return "www.example.com";
+  }
+
+  @Override
+  public int getServerPort() {
+    return 443;
+  }
+
+  @Override
+  public String getParameter(final String name) {
+    return parameters.get(name);
+  }
+
+  @Override
+  public String getHeader(final String name) {
+    return null;
+  }
+
+  @Override
+  public Cookie[] getCookies() {
+    return cookies;
+  }
+
+  @Override
+  public String getRemoteAddr() {
+    return "127.0.0.1";
+  }
+
+  @Override
+  public Object getAttribute(final String name) {
+    return attributes.get(name);
+  }
+
+  @Override
+  public void setAttribute(final String name, final Object value) {
+    attributes.put(name, value);
+  }
+
+  @Override
+  public void removeAttribute(final String name) {
+    attributes.remove(name);
+  }
+
+  @Override
+  public HttpSession getSession() {
+    return getSession(true);
+  }
+
+  @Override
+  public HttpSession getSession(final boolean create) {
+    if (session == null && create) {
+      session = new StubHttpSession();
+    }
+    return session;
+  }
+}
@@ -0,0 +1,41 @@
+package com.idmworks.security.google;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Minimal {@link HttpServletResponse} for benchmarks which remembers the last redirect and the cookies
+ * added.
+ *
+ * @author pdgreen
+ */
+class StubHttpServletResponse extends HttpServletResponseWrapper {
+
+  private String redirect;
+  private final List<Cookie> cookies = new ArrayList<Cookie>();
+
+  StubHttpServletResponse() {
+    super(StubHttpServletRequest.unsupported(HttpServletResponse.class));
+  }
+
+  @Override
+  public void sendRedirect(final String location) {
+    this.redirect = location;
+  }
+
+  @Override
+  public void addCookie(final Cookie cookie) {
+    cookies.add(cookie);
+  }
+
+  String getRedirect() {
+    return redirect;
+  }
+
+  List<Cookie> getCookies() {
+    return cookies;
+  }
+}
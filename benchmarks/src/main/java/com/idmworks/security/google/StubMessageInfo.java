@@ -0,0 +1,49 @@
+package com.idmworks.security.google;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.security.auth.message.MessageInfo;
+
+/**
+ * Simple {@link MessageInfo} for benchmarks.
+ *
+ * @author pdgreen
+ */
+class StubMessageInfo implements MessageInfo {
+
+  private Object requestMessage;
+  private Object responseMessage;
+  private final Map map = new HashMap();
+
+  @SuppressWarnings("unchecked")
+  StubMessageInfo(final Object requestMessage, final Object responseMessage, final boolean mandatory) {
+    this.requestMessage = requestMessage;
+    this.responseMessage = responseMessage;
+    map.put("javax.security.auth.message.MessagePolicy.isMandatory", Boolean.toString(mandatory));
+  }
+
+  @Override
+  public Object getRequestMessage() {
+    return requestMessage;
+  }
+
+  @Override
+  public Object getResponseMessage() {
+    return responseMessage;
+  }
+
+  @Override
+  public void setRequestMessage(Object request) {
+    this.requestMessage = request;
+  }
+
+  @Override
+  public void setResponseMessage(Object response) {
+    this.responseMessage = response;
+  }
+
+  @Override
+  public Map getMap() {
+    return map;
+  }
+}
@@ -0,0 +1,141 @@
+package com.idmworks.security.google;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.message.AuthException;
+import javax.security.auth.message.AuthStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for {@link GoogleOAuthServerAuthModule#validateRequest}, one method per path through the module.
+ *
+ * @author pdgreen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValidateRequestBenchmark {
+
+  private GoogleOAuthServerAuthModule module;
+  private StubMessageInfo passThrough;
+  private StubMessageInfo savedSubject;
+  private StubMessageInfo redirect;
+  private StubHttpServletRequest callbackRequest;
+  private StubMessageInfo callback;
+  private int callbacks;
+  private Subject passThroughSubject;
+  private Subject reusedSubject;
+
+  @Setup
+  public void setup() throws AuthException {
+    StubGoogleHttps.install();
+    Configuration.setConfiguration(new Configuration() {
+      @Override
+      public AppConfigurationEntry[] getAppConfigurationEntry(final String name) {
+        return null;
+      }
+    });
+
+    final Map<String, String> options = new HashMap<String, String>();
+    options.put("oauth.clientid", "benchmark-client-id");
+    options.put("oauth.clientsecret", "benchmark-client-secret");
+    options.put("ignore_missing_login_context", "true");
+    options.put("add_domain_as_group", "true");
+    options.put("default_groups", "users,employees");
+    //every callback comes from the same address, with a rate limit all but the first burst would measure a 429
+    options.put("rate_limit", "0");
+    module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new StubContainerCallbackHandler(), options);
+
+    passThroughSubject = new Subject();
+    passThrough = new StubMessageInfo(new StubHttpServletRequest("/app/public/index.html"), new StubHttpServletResponse(), false);
+
+    // authenticate once through the callback so the session holds a real saved subject
+    final StubHttpSession session = new StubHttpSession();
+    final StubHttpServletRequest login = new StubHttpServletRequest("/app/j_oauth_callback")
+            .withParameter("code", "4/benchmark-code").withSession(session);
+    final AuthStatus loginStatus = module.validateRequest(new StubMessageInfo(login, new StubHttpServletResponse(), true), new Subject(), null);
+    if (loginStatus != AuthStatus.SEND_CONTINUE) {
+      throw new IllegalStateException("unable to establish saved subject: " + loginStatus);
+    }
+    savedSubject = new StubMessageInfo(new StubHttpServletRequest("/app/secure/index.html").withSession(session), new StubHttpServletResponse(), true);
+    reusedSubject = new Subject();
+
+    redirect = new StubMessageInfo(new StubHttpServletRequest("/app/secure/index.html"), new StubHttpServletResponse(), true);
+    callbackRequest = new StubHttpServletRequest("/app/j_oauth_callback");
+    callback = new StubMessageInfo(callbackRequest, new StubHttpServletResponse(), true);
+  }
+
+  /**
+   * Fails the run if a request was refused instead of taking the path it benchmarks.
+   */
+  @TearDown(Level.Iteration)
+  public void checkNotRefused() {
+    final AuthMetrics metrics = module.getMetrics();
+    if (metrics.getRateLimitedCount() != 0 || metrics.getRejectedCodeCount() != 0) {
+      throw new IllegalStateException("requests were refused: " + metrics.getRateLimitedCount() + " rate limited, "
+              + metrics.getRejectedCodeCount() + " rejected codes");
+    }
+  }
+
+  /**
+   * Unprotected resource: neither a callback nor mandatory.
+   */
+  @Benchmark
+  public AuthStatus nonMandatoryPassThrough() throws AuthException {
+    return module.validateRequest(passThrough, passThroughSubject, null);
+  }
+
+  /**
+   * Protected resource with an authenticated session: the saved subject is applied to a fresh client subject.
+   */
+  @Benchmark
+  public AuthStatus savedSubjectReapply() throws AuthException {
+    return module.validateRequest(savedSubject, new Subject(), null);
+  }
+
+  /**
+   * Same as {@link #savedSubjectReapply()} but into a subject that already holds the principals, so the Subject's own
+   * storage isn't counted and gc.alloc.rate.norm shows only what the module allocates.
+   */
+  @Benchmark
+  public AuthStatus savedSubjectReapplyReusedSubject() throws AuthException {
+    return module.validateRequest(savedSubject, reusedSubject, null);
+  }
+
+  /**
+   * Protected resource without a session: builds the redirect URI and OAuth URI and redirects to Google.
+   */
+  @Benchmark
+  public AuthStatus redirectToGoogle() throws AuthException {
+    return module.validateRequest(redirect, new Subject(), null);
+  }
+
+  /**
+   * OAuth callback: token exchange and userinfo against the stubbed HTTP layer, then authenticate. Every invocation
+   * brings a code of its own, as real callbacks do.
+   */
+  @Benchmark
+  public AuthStatus callback() throws AuthException {
+    callbackRequest.withParameter("code", "4/benchmark-code-" + callbacks++);
+    return module.validateRequest(callback, new Subject(), null);
+  }
+}
@@ -12,11 +12,23 @@ public class AccessTokenInfo {
   private final String accessToken;
   private final Date expiration;
   private final String type;
+  private final String idToken;
+  private final String refreshToken;
 
   public AccessTokenInfo(String accessToken, Date expiration, String type) {
+    this(accessToken, expiration, type, null);
+  }
+
+  public AccessTokenInfo(String accessToken, Date expiration, String type, String idToken) {
+    this(accessToken, expiration, type, idToken, null);
+  }
+
+  public AccessTokenInfo(String accessToken, Date expiration, String type, String idToken, String refreshToken) {
     this.accessToken = accessToken;
     this.expiration = expiration;
     this.type = type;
+    this.idToken = idToken;
+    this.refreshToken = refreshToken;
   }
 
   public String getAccessToken() {
@@ -31,6 +43,20 @@ public class AccessTokenInfo {
     return type;
   }
 
+  /**
+   * @return OpenID Connect id_token (a JWT) returned with the access token or null
+   */
+  public String getIdToken() {
+    return idToken;
+  }
+
+  /**
+   * @return refresh token, only returned when offline access was requested, or null
+   */
+  public String getRefreshToken() {
+    return refreshToken;
+  }
+
   @Override
   public String toString() {
     return getAccessToken();
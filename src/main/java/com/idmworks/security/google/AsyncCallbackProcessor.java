@@ -0,0 +1,182 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the OAuth callback (token exchange and userinfo lookup) on a dedicated executor while the callback request is
+ * suspended with a Servlet 3 {@link AsyncContext}. When the work is done a {@link Finisher} writes the response of the
+ * suspended request on the executor thread and the request is completed. Containers don't invoke the SAM again for
+ * async dispatches, so the callback is finished here rather than by dispatching it back. If the container times the
+ * callback out first, the finisher is given a {@link TimeoutException} instead and the late result is dropped; the
+ * response is written at most once.
+ *
+ * @author pdgreen
+ */
+class AsyncCallbackProcessor {
+
+  private static final Logger LOGGER = Logger.getLogger(AsyncCallbackProcessor.class.getName());
+  private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+  private final ThreadPoolExecutor executor;
+  private final long asyncTimeout;
+
+  /**
+   * @param threads number of threads doing outbound calls
+   * @param queueSize number of callbacks which may wait for a thread
+   * @param asyncTimeout milliseconds before the container times out a suspended callback
+   */
+  AsyncCallbackProcessor(final int threads, final int queueSize, final long asyncTimeout) {
+    this.asyncTimeout = asyncTimeout;
+    final int poolNumber = POOL_NUMBER.incrementAndGet();
+    this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, "google-oauth-callback-" + poolNumber + "-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Suspends the request and runs work on the executor. Once work finishes, finisher writes the response and the
+   * request is completed.
+   *
+   * @param request callback request, must support async
+   * @param response callback response
+   * @param work token exchange and userinfo lookup
+   * @param finisher writes the response for the outcome of work
+   */
+  void start(final HttpServletRequest request, final HttpServletResponse response, final Callable<GoogleUserInfo> work,
+          final Finisher finisher) {
+    final AsyncContext asyncContext = request.startAsync(request, response);
+    asyncContext.setTimeout(asyncTimeout);
+    //set once the response is being written or the container completed the request (timeout, error)
+    final AtomicBoolean finished = new AtomicBoolean();
+    asyncContext.addListener(new AsyncListener() {
+      @Override
+      public void onComplete(final AsyncEvent event) {
+        finished.set(true);
+      }
+
+      @Override
+      public void onTimeout(final AsyncEvent event) {
+        LOGGER.log(Level.WARNING, "Callback timed out after {0} ms waiting for Google", asyncTimeout);
+        finish(request, response, asyncContext, finished, finisher,
+                new Result(null, new TimeoutException("Callback timed out after " + asyncTimeout + " ms")));
+      }
+
+      @Override
+      public void onError(final AsyncEvent event) {
+        finished.set(true);
+      }
+
+      @Override
+      public void onStartAsync(final AsyncEvent event) {
+      }
+    });
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          Result result;
+          try {
+            result = new Result(work.call(), null);
+          } catch (Throwable ex) {
+            result = new Result(null, ex);
+          }
+          finish(request, response, asyncContext, finished, finisher, result);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      LOGGER.log(Level.WARNING, "Too many callbacks in progress, rejecting");
+      finish(request, response, asyncContext, finished, finisher, new Result(null, ex));
+    }
+  }
+
+  private static void finish(final HttpServletRequest request, final HttpServletResponse response,
+          final AsyncContext asyncContext, final AtomicBoolean finished, final Finisher finisher, final Result result) {
+    if (!finished.compareAndSet(false, true)) {
+      LOGGER.log(Level.FINE, "Callback already completed by the container, dropping result");
+      return;
+    }
+    try {
+      finisher.finish(request, response, result);
+    } catch (Throwable ex) {
+      LOGGER.log(Level.SEVERE, "Unable to finish callback", ex);
+      if (!response.isCommitted()) {
+        response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      }
+    } finally {
+      try {
+        asyncContext.complete();
+      } catch (IllegalStateException ex) {
+        //the container completed the request while the response was written
+        LOGGER.log(Level.FINE, "Unable to complete callback", ex);
+      }
+    }
+  }
+
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Writes the response of a suspended callback, on the executor thread or the container's when it timed out.
+   */
+  interface Finisher {
+
+    /**
+     * @param request suspended callback request
+     * @param response its response, the request is completed afterwards
+     * @param result outcome of the work, a {@link TimeoutException} if the container timed the callback out
+     * @throws Exception on failure, the response is then set to 500 if it isn't committed
+     */
+    void finish(HttpServletRequest request, HttpServletResponse response, Result result) throws Exception;
+  }
+
+  /**
+   * Outcome of the asynchronous work.
+   */
+  static class Result {
+
+    private final GoogleUserInfo googleUserInfo;
+    private final Throwable failure;
+
+    Result(final GoogleUserInfo googleUserInfo, final Throwable failure) {
+      this.googleUserInfo = googleUserInfo;
+      this.failure = failure;
+    }
+
+    /**
+     * @return googleUserInfo of the completed work, may be null
+     * @throws ExecutionException if the work failed
+     */
+    GoogleUserInfo get() throws ExecutionException {
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+      return googleUserInfo;
+    }
+  }
+}
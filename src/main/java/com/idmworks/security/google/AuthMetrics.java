@@ -0,0 +1,363 @@
+package com.idmworks.security.google;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.security.auth.message.AuthStatus;
+
+/**
+ * Instrumentation of a {@link GoogleOAuthServerAuthModule}: how often each {@link AuthStatus} is returned and how long
+ * the phases of a login take. Recording is lock free (striped counters), so it doesn't add contention to
+ * validateRequest. The optional parts of the module publish their own attributes when they are enabled, an attribute
+ * nobody published reads as 0 (or DISABLED). With the jmx option each module instance registers its own MBean, which
+ * stays registered until {@link #unregister()} or the server removes it.
+ *
+ * @author pdgreen
+ */
+public class AuthMetrics implements AuthMetricsMXBean {
+
+  private static final Logger LOGGER = Logger.getLogger(AuthMetrics.class.getName());
+  static final String OBJECT_NAME_PREFIX = "com.idmworks.security.google:type=" + GoogleOAuthServerAuthModule.class.getSimpleName() + ",name=";
+  private static final AtomicInteger INSTANCE_NUMBER = new AtomicInteger();
+  private static final int SUCCESS = 0;
+  private static final int FAILURE = 1;
+  private static final int SEND_SUCCESS = 2;
+  private static final int SEND_FAILURE = 3;
+  private static final int SEND_CONTINUE = 4;
+  private static final int EXCEPTION = 5;
+  private final StripedCounters outcomes = new StripedCounters(6);
+  final LatencyHistogram tokenExchange = new LatencyHistogram();
+  final LatencyHistogram userInfo = new LatencyHistogram();
+  final LatencyHistogram loginContext = new LatencyHistogram();
+  final LatencyHistogram sessionSave = new LatencyHistogram();
+  final LatencyHistogram tokenRefresh = new LatencyHistogram();
+  final LatencyHistogram bearerValidation = new LatencyHistogram();
+  private final ConcurrentMap<String, Attribute<?>> attributes = new ConcurrentHashMap<String, Attribute<?>>();
+  private volatile GroupInvalidation groupInvalidation;
+  private ObjectName objectName;
+
+  /**
+   * Value of an attribute published by one of the optional parts of the module.
+   *
+   * @param <T> Number or String
+   */
+  interface Attribute<T> {
+
+    T get();
+  }
+
+  /**
+   * Target of {@link #invalidateGroups(String)}.
+   */
+  interface GroupInvalidation {
+
+    void invalidate(String email);
+  }
+
+  void recordOutcome(final AuthStatus status) {
+    if (status == AuthStatus.SUCCESS) {
+      outcomes.increment(SUCCESS);
+    } else if (status == AuthStatus.SEND_CONTINUE) {
+      outcomes.increment(SEND_CONTINUE);
+    } else if (status == AuthStatus.SEND_FAILURE) {
+      outcomes.increment(SEND_FAILURE);
+    } else if (status == AuthStatus.SEND_SUCCESS) {
+      outcomes.increment(SEND_SUCCESS);
+    } else if (status == AuthStatus.FAILURE) {
+      outcomes.increment(FAILURE);
+    }
+  }
+
+  void recordException() {
+    outcomes.increment(EXCEPTION);
+  }
+
+  /**
+   * Publishes an attribute, replacing the one published under the same name before.
+   *
+   * @param name MXBean attribute name, e.g. {@code CallbackLimit} for {@link #getCallbackLimit()}
+   */
+  void publish(final String name, final Attribute<?> attribute) {
+    attributes.put(name, attribute);
+  }
+
+  void publishGroupInvalidation(final GroupInvalidation groupInvalidation) {
+    this.groupInvalidation = groupInvalidation;
+  }
+
+  /**
+   * Withdraws attributes, they read as disabled until published again.
+   */
+  void withdraw(final String... names) {
+    for (final String name : names) {
+      attributes.remove(name);
+    }
+  }
+
+  /**
+   * Withdraws all published attributes, they read as disabled until published again.
+   */
+  void withdrawAll() {
+    attributes.clear();
+    groupInvalidation = null;
+  }
+
+  private Object value(final String name) {
+    final Attribute<?> attribute = attributes.get(name);
+    return attribute == null ? null : attribute.get();
+  }
+
+  private long longValue(final String name) {
+    final Object value = value(name);
+    return value == null ? 0 : ((Number) value).longValue();
+  }
+
+  private int intValue(final String name) {
+    final Object value = value(name);
+    return value == null ? 0 : ((Number) value).intValue();
+  }
+
+  private double doubleValue(final String name) {
+    final Object value = value(name);
+    return value == null ? 0 : ((Number) value).doubleValue();
+  }
+
+  private String stringValue(final String name) {
+    final Object value = value(name);
+    return value == null ? "DISABLED" : value.toString();
+  }
+
+  /**
+   * Registers this with the platform MBean server. Failures are logged, metrics are still recorded.
+   *
+   * @param name name key of the ObjectName or null to number instances
+   */
+  synchronized void register(final String name) {
+    unregister();
+    try {
+      final ObjectName candidate = new ObjectName(OBJECT_NAME_PREFIX
+              + ObjectName.quote(name == null ? Integer.toString(INSTANCE_NUMBER.incrementAndGet()) : name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, candidate);
+      objectName = candidate;
+      LOGGER.log(Level.FINE, "Registered MBean {0}", candidate);
+    } catch (JMException ex) {
+      LOGGER.log(Level.WARNING, "Unable to register MBean", ex);
+    } catch (SecurityException ex) {
+      LOGGER.log(Level.WARNING, "Unable to register MBean", ex);
+    }
+  }
+
+  synchronized void unregister() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (JMException ex) {
+      LOGGER.log(Level.WARNING, "Unable to unregister MBean", ex);
+    }
+    objectName = null;
+  }
+
+  synchronized ObjectName getObjectName() {
+    return objectName;
+  }
+
+  @Override
+  public long getSuccessCount() {
+    return outcomes.sum(SUCCESS);
+  }
+
+  @Override
+  public long getFailureCount() {
+    return outcomes.sum(FAILURE);
+  }
+
+  @Override
+  public long getSendSuccessCount() {
+    return outcomes.sum(SEND_SUCCESS);
+  }
+
+  @Override
+  public long getSendFailureCount() {
+    return outcomes.sum(SEND_FAILURE);
+  }
+
+  @Override
+  public long getSendContinueCount() {
+    return outcomes.sum(SEND_CONTINUE);
+  }
+
+  @Override
+  public long getExceptionCount() {
+    return outcomes.sum(EXCEPTION);
+  }
+
+  @Override
+  public LatencySnapshot getTokenExchangeLatency() {
+    return tokenExchange.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getUserInfoLatency() {
+    return userInfo.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getLoginContextLatency() {
+    return loginContext.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getSessionSaveLatency() {
+    return sessionSave.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getBearerValidationLatency() {
+    return bearerValidation.snapshot();
+  }
+
+  @Override
+  public double getBearerCacheHitRate() {
+    return doubleValue("BearerCacheHitRate");
+  }
+
+  @Override
+  public LatencySnapshot getTokenRefreshLatency() {
+    return tokenRefresh.snapshot();
+  }
+
+  @Override
+  public int getTokenRefreshQueueDepth() {
+    return intValue("TokenRefreshQueueDepth");
+  }
+
+  @Override
+  public int getRefreshableCredentialCount() {
+    return intValue("RefreshableCredentialCount");
+  }
+
+  @Override
+  public long getTokenRefreshFailureCount() {
+    return longValue("TokenRefreshFailureCount");
+  }
+
+  @Override
+  public long getCoalescedCallbackCount() {
+    return longValue("CoalescedCallbackCount");
+  }
+
+  @Override
+  public long getRejectedCodeCount() {
+    return longValue("RejectedCodeCount");
+  }
+
+  @Override
+  public long getRateLimitedCount() {
+    return longValue("RateLimitedCount");
+  }
+
+  @Override
+  public int getCallbackLimit() {
+    return intValue("CallbackLimit");
+  }
+
+  @Override
+  public int getCallbacksInProgress() {
+    return intValue("CallbacksInProgress");
+  }
+
+  @Override
+  public int getCallbacksQueued() {
+    return intValue("CallbacksQueued");
+  }
+
+  @Override
+  public long getCallbacksRefusedCount() {
+    return longValue("CallbacksRefusedCount");
+  }
+
+  @Override
+  public long getParallelLookupCount() {
+    return longValue("ParallelLookupCount");
+  }
+
+  @Override
+  public long getParallelLookupRejectedCount() {
+    return longValue("ParallelLookupRejectedCount");
+  }
+
+  @Override
+  public String getCircuitBreakerState() {
+    return stringValue("CircuitBreakerState");
+  }
+
+  @Override
+  public long getCircuitBreakerRejectedCount() {
+    return longValue("CircuitBreakerRejectedCount");
+  }
+
+  @Override
+  public long getBulkheadRejectedCount() {
+    return longValue("BulkheadRejectedCount");
+  }
+
+  @Override
+  public double getGroupCacheHitRate() {
+    return doubleValue("GroupCacheHitRate");
+  }
+
+  @Override
+  public double getGroupCacheAverageLoadTimeMillis() {
+    return doubleValue("GroupCacheAverageLoadTimeMillis");
+  }
+
+  @Override
+  public int getGroupRuleCount() {
+    return intValue("GroupRuleCount");
+  }
+
+  @Override
+  public long getGroupRulesReloadCount() {
+    return longValue("GroupRulesReloadCount");
+  }
+
+  @Override
+  public String getWarmupState() {
+    return stringValue("WarmupState");
+  }
+
+  @Override
+  public long getWarmupMillis() {
+    return longValue("WarmupMillis");
+  }
+
+  @Override
+  public void invalidateGroups(final String email) {
+    final GroupInvalidation invalidation = groupInvalidation;
+    if (invalidation != null) {
+      invalidation.invalidate(email);
+    }
+  }
+
+  @Override
+  public void reset() {
+    outcomes.reset();
+    tokenExchange.reset();
+    userInfo.reset();
+    loginContext.reset();
+    sessionSave.reset();
+    tokenRefresh.reset();
+    bearerValidation.reset();
+  }
+}
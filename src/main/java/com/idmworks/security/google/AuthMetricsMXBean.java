@@ -0,0 +1,161 @@
+package com.idmworks.security.google;
+
+/**
+ * Management interface of {@link AuthMetrics}: outcome counters and per-phase latencies of a
+ * {@link GoogleOAuthServerAuthModule}.
+ *
+ * @author pdgreen
+ */
+public interface AuthMetricsMXBean {
+
+  long getSuccessCount();
+
+  long getFailureCount();
+
+  long getSendSuccessCount();
+
+  long getSendFailureCount();
+
+  long getSendContinueCount();
+
+  /**
+   * @return number of validateRequest calls which threw
+   */
+  long getExceptionCount();
+
+  LatencySnapshot getTokenExchangeLatency();
+
+  LatencySnapshot getUserInfoLatency();
+
+  LatencySnapshot getLoginContextLatency();
+
+  LatencySnapshot getSessionSaveLatency();
+
+  /**
+   * @return latency of validating bearer tokens with Google
+   */
+  LatencySnapshot getBearerValidationLatency();
+
+  /**
+   * @return share of bearer token requests answered from the validation cache
+   */
+  double getBearerCacheHitRate();
+
+  /**
+   * @return latency of refreshing offline access tokens
+   */
+  LatencySnapshot getTokenRefreshLatency();
+
+  /**
+   * @return offline access tokens due for a refresh which haven't been refreshed yet
+   */
+  int getTokenRefreshQueueDepth();
+
+  /**
+   * @return principals whose refresh token is kept
+   */
+  int getRefreshableCredentialCount();
+
+  /**
+   * @return refreshes which failed or found the refresh token revoked
+   */
+  long getTokenRefreshFailureCount();
+
+  /**
+   * @return callbacks which shared the token exchange of an earlier callback of the same client with the same
+   * authorization code
+   */
+  long getCoalescedCallbackCount();
+
+  /**
+   * @return callbacks rejected because Google recently refused their authorization code
+   */
+  long getRejectedCodeCount();
+
+  /**
+   * @return calls to Google refused because the client exceeded its rate limit
+   */
+  long getRateLimitedCount();
+
+  /**
+   * @return OAuth callbacks currently allowed in progress at once, adapted to Google's latency, or 0 if disabled
+   */
+  int getCallbackLimit();
+
+  /**
+   * @return OAuth callbacks waiting on Google in a container thread
+   */
+  int getCallbacksInProgress();
+
+  /**
+   * @return OAuth callbacks waiting for one of those in progress to finish
+   */
+  int getCallbacksQueued();
+
+  /**
+   * @return OAuth callbacks answered with 503 because too many were in progress
+   */
+  long getCallbacksRefusedCount();
+
+  /**
+   * @return callbacks which fetched userinfo and resolved groups at the same time
+   */
+  long getParallelLookupCount();
+
+  /**
+   * @return callbacks which fetched userinfo and resolved groups one after the other because no threads were free
+   */
+  long getParallelLookupRejectedCount();
+
+  /**
+   * @return CLOSED, OPEN or HALF_OPEN, or DISABLED
+   */
+  String getCircuitBreakerState();
+
+  /**
+   * @return calls to Google rejected because the circuit breaker was open
+   */
+  long getCircuitBreakerRejectedCount();
+
+  /**
+   * @return calls to Google rejected because too many were already running
+   */
+  long getBulkheadRejectedCount();
+
+  /**
+   * @return group cache hit rate or 0 if the group cache is disabled
+   */
+  double getGroupCacheHitRate();
+
+  /**
+   * @return group cache average load time or 0 if the group cache is disabled
+   */
+  double getGroupCacheAverageLoadTimeMillis();
+
+  /**
+   * @return number of group rules, default groups included
+   */
+  int getGroupRuleCount();
+
+  /**
+   * @return times a changed group rules file was loaded
+   */
+  long getGroupRulesReloadCount();
+
+  /**
+   * @return PENDING, RUNNING, READY or INCOMPLETE, or DISABLED if warm-up isn't enabled
+   */
+  String getWarmupState();
+
+  /**
+   * @return time the warm-up took or 0 if it isn't done
+   */
+  long getWarmupMillis();
+
+  /**
+   * Forgets the cached groups of a user, if the group cache is enabled.
+   */
+  void invalidateGroups(String email);
+
+  void reset();
+}
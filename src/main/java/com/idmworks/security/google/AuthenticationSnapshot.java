@@ -0,0 +1,225 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import javax.security.auth.Subject;
+
+/**
+ * Immutable summary of an authentication: who the user is, which groups they were given and until when it is valid.
+ * It has a compact, versioned binary form so it can be carried in a cookie. <br> A snapshot kept in the session also
+ * holds the principals and credentials the container put in the authenticated subject, copied into arrays once, so
+ * later requests can apply them to the client subject without copying the saved subject's sets. <br> When the session
+ * is serialized (replicated or passivated) only the user info, groups and expiration are written, in a compact
+ * versioned form; the principals and credentials are not, a deserialized snapshot has to derive them again (see
+ * {@link #holdsSubject()}).
+ *
+ * @author pdgreen
+ */
+public class AuthenticationSnapshot implements Externalizable {
+
+  private static final long serialVersionUID = 2L;
+  private static final byte VERSION = 1;
+  private static final byte EXTERNAL_VERSION = 1;
+  private static final Principal[] NO_PRINCIPALS = new Principal[0];
+  private static final Object[] NO_CREDENTIALS = new Object[0];
+  private GoogleUserInfo googleUserInfo;
+  private List<String> groups;
+  private long expiresAt;
+  private transient Principal[] principals;
+  private transient Object[] publicCredentials;
+  private transient Object[] privateCredentials;
+
+  /**
+   * For deserialization only.
+   */
+  public AuthenticationSnapshot() {
+  }
+
+  /**
+   * @param id Google account id
+   * @param email email of the user, the caller principal name
+   * @param verifiedEmail whether Google verified the email
+   * @param groups group names given to the user
+   * @param expiresAt expiration in milliseconds since the epoch
+   */
+  public AuthenticationSnapshot(final String id, final String email, final boolean verifiedEmail, final List<String> groups, final long expiresAt) {
+    this(new GoogleUserInfo(id, email, verifiedEmail, null, null, null, null, null, null, null), groups, expiresAt);
+  }
+
+  public AuthenticationSnapshot(final GoogleUserInfo googleUserInfo, final List<String> groups, final long expiresAt) {
+    this.googleUserInfo = googleUserInfo;
+    this.groups = Collections.unmodifiableList(new ArrayList<String>(groups));
+    this.expiresAt = expiresAt;
+    this.principals = NO_PRINCIPALS;
+    this.publicCredentials = NO_CREDENTIALS;
+    this.privateCredentials = NO_CREDENTIALS;
+  }
+
+  /**
+   * @param googleUserInfo authenticated user
+   * @param groups group names given to the user
+   * @param subject subject populated by the container's callback handler, its contents are copied
+   */
+  public AuthenticationSnapshot(final GoogleUserInfo googleUserInfo, final List<String> groups, final Subject subject) {
+    this.googleUserInfo = googleUserInfo;
+    this.groups = Collections.unmodifiableList(new ArrayList<String>(groups));
+    this.expiresAt = Long.MAX_VALUE;
+    this.principals = subject.getPrincipals().toArray(NO_PRINCIPALS);
+    this.publicCredentials = subject.getPublicCredentials().toArray();
+    this.privateCredentials = subject.getPrivateCredentials().toArray();
+  }
+
+  /**
+   * @return false if the principals and credentials of the authenticated subject are not held, because the snapshot
+   * was created without a subject or was deserialized
+   */
+  public boolean holdsSubject() {
+    return principals != null && principals.length > 0;
+  }
+
+  /**
+   * Adds the principals and credentials captured from the authenticated subject to destination.
+   */
+  public void applyTo(final Subject destination) {
+    if (principals == null) {
+      return;
+    }
+    addAll(destination.getPrincipals(), principals);
+    if (publicCredentials.length > 0) {
+      addAll(destination.getPublicCredentials(), publicCredentials);
+    }
+    if (privateCredentials.length > 0) {
+      addAll(destination.getPrivateCredentials(), privateCredentials);
+    }
+  }
+
+  private static <T> void addAll(final Set<? super T> destination, final T[] values) {
+    for (int i = 0; i < values.length; i++) {
+      destination.add(values[i]);
+    }
+  }
+
+  public String getId() {
+    return googleUserInfo.getId();
+  }
+
+  public String getEmail() {
+    return googleUserInfo.getEmail();
+  }
+
+  public boolean isVerifiedEmail() {
+    return googleUserInfo.isVerifiedEmail();
+  }
+
+  public List<String> getGroups() {
+    return groups;
+  }
+
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  public boolean isExpired(final long now) {
+    return now >= expiresAt;
+  }
+
+  /**
+   * @return user info kept in the snapshot; the profile fields are null for a snapshot read from a cookie
+   */
+  public GoogleUserInfo toGoogleUserInfo() {
+    return googleUserInfo;
+  }
+
+  byte[] toBytes() {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(VERSION);
+      out.writeUTF(getId() == null ? "" : getId());
+      out.writeUTF(getEmail());
+      out.writeBoolean(isVerifiedEmail());
+      out.writeLong(expiresAt);
+      writeGroups(out);
+      out.flush();
+    } catch (IOException ex) {
+      throw new IllegalStateException("Unable to write snapshot", ex);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @param data bytes written by {@link #toBytes()}
+   * @return snapshot or null if data is not a supported snapshot
+   */
+  static AuthenticationSnapshot fromBytes(final byte[] data) {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    try {
+      if (in.readByte() != VERSION) {
+        return null;
+      }
+      final String id = in.readUTF();
+      final String email = in.readUTF();
+      final boolean verifiedEmail = in.readBoolean();
+      final long expiresAt = in.readLong();
+      final int groupCount = in.readUnsignedShort();
+      final List<String> groups = new ArrayList<String>(groupCount);
+      for (int i = 0; i < groupCount; i++) {
+        groups.add(in.readUTF());
+      }
+      return new AuthenticationSnapshot(id.isEmpty() ? null : id, email, verifiedEmail, groups, expiresAt);
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  private void writeGroups(final DataOutput out) throws IOException {
+    out.writeShort(groups.size());
+    for (final String group : groups) {
+      out.writeUTF(group);
+    }
+  }
+
+  @Override
+  public void writeExternal(final ObjectOutput out) throws IOException {
+    out.writeByte(EXTERNAL_VERSION);
+    out.writeLong(expiresAt);
+    writeGroups(out);
+    googleUserInfo.writeCompact(out);
+  }
+
+  @Override
+  public void readExternal(final ObjectInput in) throws IOException {
+    final byte version = in.readByte();
+    if (version != EXTERNAL_VERSION) {
+      throw new InvalidObjectException("Unsupported " + AuthenticationSnapshot.class.getSimpleName() + " version " + version);
+    }
+    expiresAt = in.readLong();
+    final int groupCount = in.readUnsignedShort();
+    final List<String> readGroups = new ArrayList<String>(groupCount);
+    for (int i = 0; i < groupCount; i++) {
+      readGroups.add(in.readUTF());
+    }
+    groups = Collections.unmodifiableList(readGroups);
+    googleUserInfo = GoogleUserInfo.readCompact(in);
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().append("{").append(AuthenticationSnapshot.class.getSimpleName()).append(":").append(getEmail())
+            .append(groups).append("}").toString();
+  }
+}
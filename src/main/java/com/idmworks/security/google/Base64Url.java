@@ -0,0 +1,78 @@
+package com.idmworks.security.google;
+
+/**
+ * Base64url (RFC 4648 section 5) without padding, as used by JWTs and cookies. Java 6 has no public Base64 codec.
+ *
+ * @author pdgreen
+ */
+final class Base64Url {
+
+  private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+  private static final int[] DECODE = new int[128];
+
+  static {
+    java.util.Arrays.fill(DECODE, -1);
+    for (int i = 0; i < ALPHABET.length; i++) {
+      DECODE[ALPHABET[i]] = i;
+    }
+    //also accept the standard alphabet
+    DECODE['+'] = 62;
+    DECODE['/'] = 63;
+  }
+
+  private Base64Url() {
+  }
+
+  static String encode(final byte[] data) {
+    final StringBuilder sb = new StringBuilder((data.length * 4 + 2) / 3);
+    int i = 0;
+    for (; i + 2 < data.length; i += 3) {
+      final int b = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+      sb.append(ALPHABET[b >>> 18]).append(ALPHABET[(b >>> 12) & 0x3f]).append(ALPHABET[(b >>> 6) & 0x3f]).append(ALPHABET[b & 0x3f]);
+    }
+    final int remaining = data.length - i;
+    if (remaining == 1) {
+      final int b = (data[i] & 0xff) << 16;
+      sb.append(ALPHABET[b >>> 18]).append(ALPHABET[(b >>> 12) & 0x3f]);
+    } else if (remaining == 2) {
+      final int b = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8);
+      sb.append(ALPHABET[b >>> 18]).append(ALPHABET[(b >>> 12) & 0x3f]).append(ALPHABET[(b >>> 6) & 0x3f]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Decodes base64url (or standard base64), ignoring trailing padding.
+   *
+   * @param encoded encoded value
+   * @return decoded bytes
+   * @throws IllegalArgumentException if encoded is not valid
+   */
+  static byte[] decode(final String encoded) {
+    int length = encoded.length();
+    while (length > 0 && encoded.charAt(length - 1) == '=') {
+      length--;
+    }
+    if (length % 4 == 1) {
+      throw new IllegalArgumentException("Invalid base64 length");
+    }
+    final byte[] out = new byte[length * 3 / 4];
+    int buffer = 0;
+    int bits = 0;
+    int o = 0;
+    for (int i = 0; i < length; i++) {
+      final char c = encoded.charAt(i);
+      final int value = c < 128 ? DECODE[c] : -1;
+      if (value < 0) {
+        throw new IllegalArgumentException("Invalid base64 character");
+      }
+      buffer = (buffer << 6) | value;
+      bits += 6;
+      if (bits >= 8) {
+        bits -= 8;
+        out[o++] = (byte) (buffer >>> bits);
+      }
+    }
+    return out;
+  }
+}
@@ -0,0 +1,168 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.message.AuthException;
+
+/**
+ * Authenticates API clients presenting a Google access token as {@code Authorization: Bearer <token>}. <br> The token
+ * is validated with the tokeninfo API: it has to be issued to one of the accepted client ids, unexpired and carry an
+ * email. The resulting user and LoginContext groups are cached until the token expires, so a client sending many requests with the
+ * same token costs one call to Google. Rejected tokens are remembered as well, so a client repeating one is turned
+ * away without calling Google.
+ *
+ * @author pdgreen
+ */
+class BearerAuthenticator {
+
+  private static final Logger LOGGER = Logger.getLogger(BearerAuthenticator.class.getName());
+  static final String AUTHORIZATION_HEADER = "Authorization";
+  static final String BEARER_PREFIX = "Bearer ";
+  /**
+   * longest time a validation is cached, Google access tokens live an hour
+   */
+  private static final long MAX_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final AuthenticationSnapshot INVALID = new AuthenticationSnapshot(null, "", false, Collections.<String>emptyList(), 0);
+  private final URI tokenInfoUri;
+  private final Set<String> audiences;
+  private final GroupCache.GroupLoader groupLoader;
+  private final ExpiringCache<String, AuthenticationSnapshot> validations;
+  private final long invalidTtlMillis;
+  private final LatencyHistogram latency;
+  private volatile HttpClient httpClient;
+
+  /**
+   * @param tokenInfoUri tokeninfo API uri
+   * @param audiences client ids tokens may be issued to
+   * @param cacheSize maximum number of tokens cached
+   * @param invalidTtlMillis how long a rejected token is remembered, 0 to not remember it
+   * @param groupLoader resolves the LoginContext groups of a validated user, the caller applies the group rules
+   * @param latency records how long validating a token with Google takes
+   */
+  BearerAuthenticator(final HttpClient httpClient, final URI tokenInfoUri, final Set<String> audiences, final int cacheSize,
+          final long invalidTtlMillis, final GroupCache.GroupLoader groupLoader, final LatencyHistogram latency) {
+    this.httpClient = httpClient;
+    this.tokenInfoUri = tokenInfoUri;
+    this.audiences = audiences;
+    this.invalidTtlMillis = invalidTtlMillis;
+    this.groupLoader = groupLoader;
+    this.latency = latency;
+    this.validations = new ExpiringCache<String, AuthenticationSnapshot>(cacheSize, MAX_TTL_MILLIS, TimeUnit.MILLISECONDS) {
+      @Override
+      long currentTimeNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(currentTimeMillis());
+      }
+    };
+  }
+
+  /**
+   * @return current time in milliseconds, overridable for tests
+   */
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  void setHttpClient(final HttpClient httpClient) {
+    this.httpClient = httpClient;
+  }
+
+  /**
+   * @param authorization value of the Authorization header, may be null
+   * @return bearer token or null if authorization isn't a bearer token
+   */
+  static String extractToken(final String authorization) {
+    if (authorization == null || !authorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+      return null;
+    }
+    final String token = authorization.substring(BEARER_PREFIX.length()).trim();
+    return token.isEmpty() ? null : token;
+  }
+
+  /**
+   * @param token access token presented by the client
+   * @return cached result of validating token (see {@link #isInvalid}) or null if it has to be validated
+   */
+  AuthenticationSnapshot cached(final String token) {
+    return validations.get(token);
+  }
+
+  /**
+   * @return true if snapshot is the result of validating a token which is not valid
+   */
+  static boolean isInvalid(final AuthenticationSnapshot snapshot) {
+    return snapshot == null || snapshot == INVALID;
+  }
+
+  /**
+   * Validates the token with Google and caches the result.
+   *
+   * @param token access token presented by the client
+   * @return user and LoginContext groups, see {@link #isInvalid}
+   * @throws AuthException if the groups could not be resolved
+   */
+  AuthenticationSnapshot validate(final String token) throws AuthException {
+    final long start = System.nanoTime();
+    final TokenInfo tokenInfo;
+    try {
+      tokenInfo = GoogleApiUtils.retrieveTokenInfo(httpClient, tokenInfoUri, token);
+    } finally {
+      latency.recordSince(start);
+    }
+    final long now = currentTimeMillis();
+    if (!isValid(tokenInfo, now)) {
+      if (invalidTtlMillis > 0) {
+        validations.put(token, INVALID, invalidTtlMillis, TimeUnit.MILLISECONDS);
+      }
+      return INVALID;
+    }
+    final GoogleUserInfo googleUserInfo = new GoogleUserInfo(tokenInfo.getSubject(), tokenInfo.getEmail(),
+            tokenInfo.isVerifiedEmail(), null, null, null, null, null, null, null);
+    final List<String> groups = groupLoader.load(googleUserInfo);
+    final long expiresAt = tokenInfo.getExpiration().getTime();
+    final AuthenticationSnapshot snapshot = new AuthenticationSnapshot(googleUserInfo, groups, expiresAt);
+    validations.put(token, snapshot, Math.min(expiresAt - now, MAX_TTL_MILLIS), TimeUnit.MILLISECONDS);
+    return snapshot;
+  }
+
+  private boolean isValid(final TokenInfo tokenInfo, final long now) {
+    if (tokenInfo == null) {
+      LOGGER.log(Level.FINE, "Rejecting bearer token: not valid");
+      return false;
+    } else if (!audiences.contains(tokenInfo.getAudience())) {
+      //a token issued to another application must not authenticate here
+      LOGGER.log(Level.WARNING, "Rejecting bearer token of {0}: audience {1}", new Object[]{tokenInfo.getEmail(), tokenInfo.getAudience()});
+      return false;
+    } else if (tokenInfo.getExpiration() == null || tokenInfo.getExpiration().getTime() <= now) {
+      LOGGER.log(Level.FINE, "Rejecting bearer token of {0}: expired", tokenInfo.getEmail());
+      return false;
+    } else if (tokenInfo.getEmail() == null) {
+      LOGGER.log(Level.WARNING, "Rejecting bearer token without email scope, audience {0}", tokenInfo.getAudience());
+      return false;
+    }
+    return true;
+  }
+
+  ExpiringCache<String, AuthenticationSnapshot> getValidations() {
+    return validations;
+  }
+
+  /**
+   * Publishes the hit rate of the validation cache.
+   */
+  void publishMetrics(final AuthMetrics metrics) {
+    metrics.publish("BearerCacheHitRate", new AuthMetrics.Attribute<Double>() {
+      @Override
+      public Double get() {
+        final long hits = validations.getHitCount();
+        final long lookups = hits + validations.getMissCount();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+      }
+    });
+  }
+}
@@ -0,0 +1,205 @@
+package com.idmworks.security.google;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Admission control for OAuth callbacks, so a login storm can't take every container thread. <br> At most
+ * {@link #getLimit()} callbacks are in progress at once; a few more wait, for a short time, in a bounded queue and the
+ * rest are refused immediately. The limit adapts to Google's token exchange latency (additive increase, multiplicative
+ * decrease): it grows by one for every limit's worth of exchanges faster than the target and shrinks by
+ * {@value #BACKOFF} when an exchange is slower or fails, at most once per limit's worth of exchanges so that the calls
+ * already in flight when Google slowed down don't shrink it repeatedly.
+ *
+ * @author pdgreen
+ */
+class CallbackAdmission {
+
+  private static final Logger LOGGER = Logger.getLogger(CallbackAdmission.class.getName());
+  static final double BACKOFF = 0.9;
+  private final int minLimit;
+  private final int maxLimit;
+  private final int maxQueued;
+  private final long queueTimeoutNanos;
+  private final long latencyTargetNanos;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+  private final AtomicLong rejected = new AtomicLong();
+  private double limit;
+  private int inProgress;
+  private int queued;
+  private long exchanges;
+  /**
+   * no decrease before this many exchanges
+   */
+  private long nextDecrease;
+
+  /**
+   * @param minLimit lowest the limit shrinks to
+   * @param maxLimit initial and highest limit
+   * @param maxQueued callbacks which may wait for a free slot
+   * @param queueTimeout milliseconds a callback waits for a free slot
+   * @param latencyTarget token exchanges slower than this many milliseconds shrink the limit
+   */
+  CallbackAdmission(final int minLimit, final int maxLimit, final int maxQueued, final long queueTimeout, final long latencyTarget) {
+    if (minLimit <= 0 || maxLimit < minLimit || maxQueued < 0 || queueTimeout < 0 || latencyTarget <= 0) {
+      throw new IllegalArgumentException("limits and latency target must be positive, queue and timeout not negative");
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+    this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTarget);
+    this.limit = maxLimit;
+  }
+
+  /**
+   * Takes a slot, waiting in the queue if all are taken and the queue isn't full. Every successful call has to be
+   * followed by {@link #release()}.
+   *
+   * @return false if the callback is refused
+   */
+  boolean acquire() {
+    lock.lock();
+    try {
+      //callbacks already waiting go first
+      if (queued == 0 && inProgress < (int) limit) {
+        inProgress++;
+        return true;
+      }
+      if (queued >= maxQueued) {
+        rejected.incrementAndGet();
+        return false;
+      }
+      queued++;
+      try {
+        long nanos = queueTimeoutNanos;
+        while (inProgress >= (int) limit) {
+          if (nanos <= 0) {
+            rejected.incrementAndGet();
+            return false;
+          }
+          nanos = available.awaitNanos(nanos);
+        }
+        inProgress++;
+        return true;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        rejected.incrementAndGet();
+        return false;
+      } finally {
+        queued--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void release() {
+    lock.lock();
+    try {
+      inProgress--;
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adapts the limit to a token exchange.
+   *
+   * @param nanos how long the exchange took
+   * @param completed false if the exchange failed, e.g. timed out or was rejected by the circuit breaker
+   */
+  void recordExchange(final long nanos, final boolean completed) {
+    lock.lock();
+    try {
+      exchanges++;
+      if (completed && nanos <= latencyTargetNanos) {
+        final int before = (int) limit;
+        limit = Math.min(maxLimit, limit + 1.0 / limit);
+        if ((int) limit > before) {
+          available.signal();
+        }
+      } else if (exchanges >= nextDecrease && limit > minLimit) {
+        limit = Math.max(minLimit, limit * BACKOFF);
+        nextDecrease = exchanges + (int) limit;
+        LOGGER.log(Level.FINE, "Token exchange {0} after {1}ms, callback limit lowered to {2}",
+                new Object[]{completed ? "completed" : "failed", TimeUnit.NANOSECONDS.toMillis(nanos), (int) limit});
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return callbacks allowed in progress at once
+   */
+  int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getInProgress() {
+    lock.lock();
+    try {
+      return inProgress;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getQueued() {
+    lock.lock();
+    try {
+      return queued;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return callbacks refused because the queue was full or they waited too long
+   */
+  long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * Publishes the limit and the callbacks in progress, queued and refused.
+   */
+  void publishMetrics(final AuthMetrics metrics) {
+    metrics.publish("CallbackLimit", new AuthMetrics.Attribute<Integer>() {
+      @Override
+      public Integer get() {
+        return getLimit();
+      }
+    });
+    metrics.publish("CallbacksInProgress", new AuthMetrics.Attribute<Integer>() {
+      @Override
+      public Integer get() {
+        return getInProgress();
+      }
+    });
+    metrics.publish("CallbacksQueued", new AuthMetrics.Attribute<Integer>() {
+      @Override
+      public Integer get() {
+        return getQueued();
+      }
+    });
+    metrics.publish("CallbacksRefusedCount", new AuthMetrics.Attribute<Long>() {
+      @Override
+      public Long get() {
+        return getRejectedCount();
+      }
+    });
+  }
+}
@@ -0,0 +1,172 @@
+package com.idmworks.security.google;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Count based circuit breaker. <br> While closed, the outcome of the last {@code windowSize} calls is kept; once at
+ * least {@code minimumCalls} are recorded and the share of failed or slow calls reaches its threshold, the breaker
+ * opens and calls are rejected for {@code openDuration}. Then it is half open: a few probe calls are let through, if
+ * they all succeed the breaker closes again, if one fails it opens again.
+ *
+ * @author pdgreen
+ */
+class CircuitBreaker {
+
+  private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+  enum State {
+
+    CLOSED, OPEN, HALF_OPEN
+  }
+  private static final byte FAILED = 1;
+  private static final byte SLOW = 2;
+  private final String name;
+  private final int minimumCalls;
+  private final int failureRateThreshold;
+  private final int slowCallRateThreshold;
+  private final long slowCallNanos;
+  private final long openNanos;
+  private final int halfOpenCalls;
+  private final byte[] window;
+  private int position;
+  private int recorded;
+  private int failures;
+  private int slowCalls;
+  private volatile State state = State.CLOSED;
+  private long openedAt;
+  private int halfOpenPermits;
+  private int halfOpenSuccesses;
+  private long rejected;
+
+  /**
+   * @param name used in log messages
+   * @param windowSize number of recent calls considered
+   * @param minimumCalls calls needed before the rates are evaluated
+   * @param failureRateThreshold percent of failed calls which opens the breaker
+   * @param slowCallRateThreshold percent of slow calls which opens the breaker
+   * @param slowCallMillis calls taking at least this long are slow
+   * @param openSeconds how long the breaker stays open before probing
+   * @param halfOpenCalls number of probe calls while half open
+   * @throws IllegalArgumentException if a threshold isn't a percentage from 1 to 100, minimumCalls is larger than
+   * windowSize or any other value isn't positive; such a breaker would open on the first call or never
+   */
+  CircuitBreaker(final String name, final int windowSize, final int minimumCalls, final int failureRateThreshold,
+          final int slowCallRateThreshold, final long slowCallMillis, final long openSeconds, final int halfOpenCalls) {
+    if (windowSize <= 0 || halfOpenCalls <= 0 || slowCallMillis <= 0 || openSeconds <= 0) {
+      throw new IllegalArgumentException("windowSize, halfOpenCalls, slowCallMillis and openSeconds must be positive");
+    }
+    if (minimumCalls <= 0 || minimumCalls > windowSize) {
+      throw new IllegalArgumentException("minimumCalls must be from 1 to windowSize: " + minimumCalls);
+    }
+    if (failureRateThreshold <= 0 || failureRateThreshold > 100 || slowCallRateThreshold <= 0 || slowCallRateThreshold > 100) {
+      throw new IllegalArgumentException("failureRateThreshold and slowCallRateThreshold must be from 1 to 100");
+    }
+    this.name = name;
+    this.window = new byte[windowSize];
+    this.minimumCalls = minimumCalls;
+    this.failureRateThreshold = failureRateThreshold;
+    this.slowCallRateThreshold = slowCallRateThreshold;
+    this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+    this.openNanos = TimeUnit.SECONDS.toNanos(openSeconds);
+    this.halfOpenCalls = halfOpenCalls;
+  }
+
+  /**
+   * @return current time in nanoseconds, overridable for tests
+   */
+  long currentTimeNanos() {
+    return System.nanoTime();
+  }
+
+  /**
+   * @return true if a call may be made, its outcome must then be passed to {@link #record}
+   */
+  boolean tryAcquirePermission() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    synchronized (this) {
+      if (state == State.OPEN && currentTimeNanos() - openedAt >= openNanos) {
+        transition(State.HALF_OPEN);
+        halfOpenPermits = halfOpenCalls;
+        halfOpenSuccesses = 0;
+      }
+      if (state == State.CLOSED) {
+        return true;
+      } else if (state == State.HALF_OPEN && halfOpenPermits > 0) {
+        halfOpenPermits--;
+        return true;
+      }
+      rejected++;
+      return false;
+    }
+  }
+
+  /**
+   * @param failed whether the call failed
+   * @param nanos how long the call took
+   */
+  synchronized void record(final boolean failed, final long nanos) {
+    final boolean slow = nanos >= slowCallNanos;
+    if (state == State.HALF_OPEN) {
+      if (failed || slow) {
+        open();
+      } else if (++halfOpenSuccesses >= halfOpenCalls) {
+        transition(State.CLOSED);
+        resetWindow();
+      }
+      return;
+    } else if (state == State.OPEN) {
+      //started before the breaker opened
+      return;
+    }
+
+    final byte outcome = (byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0));
+    if (recorded == window.length) {
+      final byte oldest = window[position];
+      failures -= oldest & FAILED;
+      slowCalls -= (oldest & SLOW) >> 1;
+    } else {
+      recorded++;
+    }
+    window[position] = outcome;
+    position = (position + 1) % window.length;
+    failures += outcome & FAILED;
+    slowCalls += (outcome & SLOW) >> 1;
+
+    if (recorded >= minimumCalls
+            && (failures * 100 >= failureRateThreshold * recorded || slowCalls * 100 >= slowCallRateThreshold * recorded)) {
+      open();
+    }
+  }
+
+  private void open() {
+    transition(State.OPEN);
+    openedAt = currentTimeNanos();
+    resetWindow();
+  }
+
+  private void resetWindow() {
+    position = 0;
+    recorded = 0;
+    failures = 0;
+    slowCalls = 0;
+  }
+
+  private void transition(final State next) {
+    if (state != next) {
+      LOGGER.log(next == State.OPEN ? Level.WARNING : Level.INFO, "Circuit breaker {0}: {1} -> {2}", new Object[]{name, state, next});
+      state = next;
+    }
+  }
+
+  State getState() {
+    return state;
+  }
+
+  synchronized long getRejectedCount() {
+    return rejected;
+  }
+}
@@ -0,0 +1,144 @@
+package com.idmworks.security.google;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Token bucket rate limiter keyed by client (IP address). <br> Each client may make {@code burst} calls at once and
+ * then {@code rate} calls per second. At most {@code maxClients} buckets are tracked: when more are needed, buckets
+ * which have refilled completely are dropped, which loses nothing since a new bucket starts full. If every tracked
+ * client is still limited, new clients are refused until some refill.
+ *
+ * @author pdgreen
+ */
+class ClientRateLimiter {
+
+  private static final Logger LOGGER = Logger.getLogger(ClientRateLimiter.class.getName());
+  private static final long PURGE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+  private final double tokensPerNano;
+  private final double burst;
+  private final int maxClients;
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong lastPurge = new AtomicLong();
+
+  /**
+   * @param rate calls per second per client
+   * @param burst calls a client may make at once
+   * @param maxClients maximum number of clients tracked
+   */
+  ClientRateLimiter(final double rate, final int burst, final int maxClients) {
+    if (rate <= 0 || burst <= 0 || maxClients <= 0) {
+      throw new IllegalArgumentException("rate, burst and maxClients must be positive");
+    }
+    this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+    this.burst = burst;
+    this.maxClients = maxClients;
+    this.lastPurge.set(currentTimeNanos() - PURGE_INTERVAL_NANOS);
+  }
+
+  /**
+   * @return current time in nanoseconds, overridable for tests
+   */
+  long currentTimeNanos() {
+    return System.nanoTime();
+  }
+
+  /**
+   * @param client key of the client, e.g. its IP address
+   * @return 0 if the call is allowed, otherwise the number of seconds until it would be
+   */
+  long tryAcquire(final String client) {
+    final long now = currentTimeNanos();
+    Bucket bucket = buckets.get(client);
+    if (bucket == null) {
+      if (buckets.size() >= maxClients && !purge(now)) {
+        rejected.incrementAndGet();
+        LOGGER.log(Level.FINE, "Rate limiter tracking {0} clients, refusing {1}", new Object[]{buckets.size(), client});
+        return 1;
+      }
+      final Bucket created = new Bucket(burst, now);
+      bucket = buckets.putIfAbsent(client, created);
+      if (bucket == null) {
+        bucket = created;
+      }
+    }
+    final long wait = bucket.tryAcquire(now, tokensPerNano, burst);
+    if (wait > 0) {
+      rejected.incrementAndGet();
+    }
+    return wait;
+  }
+
+  /**
+   * Drops the buckets which have refilled, at most once per second.
+   *
+   * @return true if there is room for another client
+   */
+  private boolean purge(final long now) {
+    final long last = lastPurge.get();
+    if (now - last >= PURGE_INTERVAL_NANOS && lastPurge.compareAndSet(last, now)) {
+      for (final Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();) {
+        if (it.next().isFull(now, tokensPerNano, burst)) {
+          it.remove();
+        }
+      }
+    }
+    return buckets.size() < maxClients;
+  }
+
+  long getRejectedCount() {
+    return rejected.get();
+  }
+
+  int getClientCount() {
+    return buckets.size();
+  }
+
+  /**
+   * Publishes the number of rate limited calls.
+   */
+  void publishMetrics(final AuthMetrics metrics) {
+    metrics.publish("RateLimitedCount", new AuthMetrics.Attribute<Long>() {
+      @Override
+      public Long get() {
+        return getRejectedCount();
+      }
+    });
+  }
+
+  private static final class Bucket {
+
+    private double tokens;
+    private long updatedAt;
+
+    Bucket(final double tokens, final long updatedAt) {
+      this.tokens = tokens;
+      this.updatedAt = updatedAt;
+    }
+
+    synchronized long tryAcquire(final long now, final double tokensPerNano, final double burst) {
+      refill(now, tokensPerNano, burst);
+      if (tokens >= 1) {
+        tokens -= 1;
+        return 0;
+      }
+      return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano / TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    synchronized boolean isFull(final long now, final double tokensPerNano, final double burst) {
+      refill(now, tokensPerNano, burst);
+      return tokens >= burst;
+    }
+
+    private void refill(final long now, final double tokensPerNano, final double burst) {
+      tokens = Math.min(burst, tokens + (now - updatedAt) * tokensPerNano);
+      updatedAt = now;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package com.idmworks.security.google;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.SecureRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Provides methods for saving and retrieving state in signed cookies instead of the {@link javax.servlet.http.HttpSession}
+ * (see {@link StateHelper}), so that any node of a cluster can authenticate a request without session replication.
+ *
+ * @author pdgreen
+ */
+public class CookieStateHelper {
+
+  private static final Logger LOGGER = Logger.getLogger(GoogleOAuthServerAuthModule.class.getName());
+  static final String ORIGINAL_REQUEST_PATH_SUFFIX = "_PATH";
+  /**
+   * original request paths start with '/', this marks one preceded by a nonce
+   */
+  private static final byte PATH_WITH_NONCE = 0;
+  private static final int NONCE_LENGTH = 16;
+  private static final SecureRandom RANDOM = new SecureRandom();
+  private final HttpServletRequest request;
+  private final HttpServletResponse response;
+  private final SignedCookieCodec codec;
+  private final String cookieName;
+  private final int maxAge;
+
+  /**
+   * @param request current request
+   * @param response current response, cookies are added to it
+   * @param codec signs and verifies the cookie values
+   * @param cookieName name of the authentication cookie
+   * @param maxAge seconds an authentication is valid
+   */
+  CookieStateHelper(final HttpServletRequest request, final HttpServletResponse response, final SignedCookieCodec codec, final String cookieName, final int maxAge) {
+    this.request = request;
+    this.response = response;
+    this.codec = codec;
+    this.cookieName = cookieName;
+    this.maxAge = maxAge;
+  }
+
+  private String findCookie(final String name) {
+    final Cookie[] cookies = request.getCookies();
+    if (cookies != null) {
+      for (final Cookie cookie : cookies) {
+        if (name.equals(cookie.getName())) {
+          return cookie.getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  private void addCookie(final String name, final String value, final int cookieMaxAge) {
+    final Cookie cookie = new Cookie(name, value);
+    final String contextPath = request.getContextPath();
+    cookie.setPath(contextPath == null || contextPath.isEmpty() ? "/" : contextPath);
+    cookie.setHttpOnly(true);
+    cookie.setSecure(request.isSecure());
+    cookie.setMaxAge(cookieMaxAge);
+    response.addCookie(cookie);
+  }
+
+  /**
+   * @return expiration, in milliseconds since the epoch, for a snapshot saved now
+   */
+  long newExpiration() {
+    return System.currentTimeMillis() + maxAge * 1000L;
+  }
+
+  public void saveSnapshot(final AuthenticationSnapshot snapshot) {
+    addCookie(cookieName, codec.encode(cookieName, snapshot.toBytes()), maxAge);
+    LOGGER.log(Level.FINE, "Saved snapshot {0}", snapshot);
+  }
+
+  /**
+   * Expires the authentication cookie in the browser. The cookie is self-contained: a copy captured before stays valid
+   * until it expires.
+   */
+  public void removeSnapshot() {
+    addCookie(cookieName, "", 0);
+    LOGGER.log(Level.FINE, "Removed snapshot");
+  }
+
+  /**
+   * @return verified, unexpired snapshot or null
+   */
+  public AuthenticationSnapshot retrieveSnapshot() {
+    final String value = findCookie(cookieName);
+    final byte[] payload = codec.decode(cookieName, value);
+    if (payload == null) {
+      if (value != null) {
+        LOGGER.log(Level.FINE, "Ignoring invalid authentication cookie");
+      }
+      return null;
+    }
+    final AuthenticationSnapshot snapshot = AuthenticationSnapshot.fromBytes(payload);
+    if (snapshot == null || snapshot.isExpired(System.currentTimeMillis())) {
+      return null;
+    }
+    if (codec.isSignedWithOldKey(value)) {
+      //re-sign with the current key so old keys can be retired
+      addCookie(cookieName, codec.encode(cookieName, payload), (int) ((snapshot.getExpiresAt() - System.currentTimeMillis()) / 1000L));
+    }
+    return snapshot;
+  }
+
+  /**
+   * Saves the path in a cookie which also identifies this login, a random nonce makes each value unique.
+   */
+  public void saveOriginalRequestPath() {
+    final byte[] path = request.getRequestURI().getBytes(HttpClient.UTF8);
+    final byte[] payload = new byte[1 + NONCE_LENGTH + path.length];
+    payload[0] = PATH_WITH_NONCE;
+    final byte[] nonce = new byte[NONCE_LENGTH];
+    RANDOM.nextBytes(nonce);
+    System.arraycopy(nonce, 0, payload, 1, NONCE_LENGTH);
+    System.arraycopy(path, 0, payload, 1 + NONCE_LENGTH, path.length);
+    addCookie(cookieName + ORIGINAL_REQUEST_PATH_SUFFIX, codec.encode(cookieName + ORIGINAL_REQUEST_PATH_SUFFIX, payload), -1);
+  }
+
+  /**
+   * @return value of the original request path cookie, unique to the login in progress, or null
+   */
+  String findLoginId() {
+    return findCookie(cookieName + ORIGINAL_REQUEST_PATH_SUFFIX);
+  }
+
+  public URI extractOriginalRequestPath() {
+    final String value = findCookie(cookieName + ORIGINAL_REQUEST_PATH_SUFFIX);
+    if (value == null) {
+      return null;
+    }
+    addCookie(cookieName + ORIGINAL_REQUEST_PATH_SUFFIX, "", 0);
+    final byte[] payload = codec.decode(cookieName + ORIGINAL_REQUEST_PATH_SUFFIX, value);
+    if (payload == null) {
+      return null;
+    }
+    //cookies set by earlier versions hold the path only
+    final int offset = payload.length > NONCE_LENGTH && payload[0] == PATH_WITH_NONCE ? 1 + NONCE_LENGTH : 0;
+    try {
+      return new URI(new String(payload, offset, payload.length - offset, HttpClient.UTF8));
+    } catch (URISyntaxException ex) {
+      LOGGER.log(Level.WARNING, "Unable to restore original request path", ex);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package com.idmworks.security.google;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread safe cache whose entries expire after a time to live. <br> The cache is split into segments, each
+ * an access ordered {@link LinkedHashMap} guarded by its own lock, so threads working on different keys rarely
+ * contend. When a segment is full its least recently used entry is evicted.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ * @author pdgreen
+ */
+public class ExpiringCache<K, V> {
+
+  private static final int MAX_SEGMENTS = 16;
+  private final Segment<K, V>[] segments;
+  private final long ttlNanos;
+  private final int maxSize;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxSize maximum number of entries
+   * @param ttl time to live of an entry
+   * @param unit unit of ttl
+   */
+  @SuppressWarnings("unchecked")
+  public ExpiringCache(final int maxSize, final long ttl, final TimeUnit unit) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive");
+    }
+    this.maxSize = maxSize;
+    this.ttlNanos = unit.toNanos(ttl);
+    int segmentCount = 1;
+    while (segmentCount < MAX_SEGMENTS && segmentCount * 16 <= maxSize) {
+      segmentCount <<= 1;
+    }
+    this.segments = newSegments(segmentCount);
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = new Segment<K, V>(maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> Segment<K, V>[] newSegments(final int count) {
+    return (Segment<K, V>[]) new Segment<?, ?>[count];
+  }
+
+  /**
+   * @return current time in nanoseconds, overridable for tests
+   */
+  long currentTimeNanos() {
+    return System.nanoTime();
+  }
+
+  private Segment<K, V> segmentFor(final Object key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[h & (segments.length - 1)];
+  }
+
+  /**
+   * @param key key to look up
+   * @return value or null if missing or expired
+   */
+  public V get(final K key) {
+    final Segment<K, V> segment = segmentFor(key);
+    final long now = currentTimeNanos();
+    synchronized (segment) {
+      final CacheEntry<V> entry = segment.get(key);
+      if (entry != null) {
+        if (entry.expiresAt - now > 0) {
+          hits.incrementAndGet();
+          return entry.value;
+        }
+        segment.remove(key);
+        evictions.incrementAndGet();
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  public void put(final K key, final V value) {
+    put(key, value, ttlNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Adds a value with its own time to live, which is capped by the cache's time to live.
+   */
+  public void put(final K key, final V value, final long ttl, final TimeUnit unit) {
+    final long expiresAt = currentTimeNanos() + Math.min(ttlNanos, unit.toNanos(ttl));
+    final Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.put(key, new CacheEntry<V>(value, expiresAt));
+      evictions.addAndGet(segment.evictExpiredOrEldest(currentTimeNanos()));
+    }
+  }
+
+  public void invalidate(final K key) {
+    final Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.remove(key);
+    }
+  }
+
+  public void invalidateAll() {
+    for (final Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (final Segment<K, V> segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of entries removed because they expired or the cache was full
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  private static class CacheEntry<V> {
+
+    private final V value;
+    private final long expiresAt;
+
+    CacheEntry(final V value, final long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private static class Segment<K, V> extends LinkedHashMap<K, CacheEntry<V>> {
+
+    private static final long serialVersionUID = 1L;
+    private final int capacity;
+
+    Segment(final int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    /**
+     * Removes expired entries from the least recently used end and, if still over capacity, the eldest entries.
+     *
+     * @return number of entries removed
+     */
+    int evictExpiredOrEldest(final long now) {
+      int removed = 0;
+      final Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entrySet().iterator();
+      while (iterator.hasNext()) {
+        final CacheEntry<V> eldest = iterator.next().getValue();
+        if (size() > capacity || eldest.expiresAt - now <= 0) {
+          iterator.remove();
+          removed++;
+        } else {
+          break;
+        }
+      }
+      return removed;
+    }
+  }
+}
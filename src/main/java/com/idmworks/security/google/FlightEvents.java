@@ -0,0 +1,95 @@
+package com.idmworks.security.google;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Events of the authentication phases for the JDK Flight Recorder, so a slow login in a recording can be lined up with
+ * GC pauses, lock contention and I/O of the same thread. <br> The events themselves are in {@code src/main/jfr}, built
+ * by the {@code jfr} profile on JDK 11 and later, and loaded when the Flight Recorder is available; otherwise, and
+ * whenever an event is disabled in the recording settings, {@link #begin} returns null and nothing is recorded. Events
+ * carry durations, HTTP status and outcome, never codes, tokens or secrets.
+ *
+ * @author pdgreen
+ */
+abstract class FlightEvents {
+
+  private static final Logger LOGGER = Logger.getLogger(FlightEvents.class.getName());
+  private static final String JFR_EVENTS_CLASS = "com.idmworks.security.google.JfrFlightEvents";
+  /*
+   * Phases
+   */
+  static final int REDIRECT = 0;
+  static final int TOKEN_EXCHANGE = 1;
+  static final int USERINFO = 2;
+  static final int LOGIN_CONTEXT = 3;
+  static final int SESSION_SAVE = 4;
+  /*
+   * Outcomes
+   */
+  static final String SUCCESS = "success";
+  /**
+   * Google refused the request, e.g. an invalid code or token
+   */
+  static final String REFUSED = "refused";
+  /**
+   * Google couldn't be reached or answered with a server error
+   */
+  static final String ERROR = "error";
+  static final String FAILURE = "failure";
+  static final FlightEvents INSTANCE = load();
+
+  private static FlightEvents load() {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder");
+    } catch (ClassNotFoundException ex) {
+      return new Disabled();
+    }
+    try {
+      return (FlightEvents) Class.forName(JFR_EVENTS_CLASS).newInstance();
+    } catch (Exception ex) {
+      LOGGER.log(Level.FINE, "Flight recorder events not available: {0}", ex.toString());
+    } catch (LinkageError ex) {
+      LOGGER.log(Level.FINE, "Flight recorder events not available: {0}", ex.toString());
+    }
+    return new Disabled();
+  }
+
+  /**
+   * Starts timing a phase.
+   *
+   * @param phase one of the phase constants
+   * @return event to pass to {@link #end} or null if the phase isn't recorded
+   */
+  abstract Object begin(int phase);
+
+  /**
+   * Records the phase started by {@link #begin}, does nothing if event is null.
+   *
+   * @param httpStatus status of Google's response or 0 if there is none
+   * @param outcome one of the outcome constants
+   */
+  abstract void end(Object event, int httpStatus, String outcome);
+
+  /**
+   * @return true if the Flight Recorder events are loaded
+   */
+  abstract boolean isAvailable();
+
+  private static final class Disabled extends FlightEvents {
+
+    @Override
+    Object begin(final int phase) {
+      return null;
+    }
+
+    @Override
+    void end(final Object event, final int httpStatus, final String outcome) {
+    }
+
+    @Override
+    boolean isAvailable() {
+      return false;
+    }
+  }
+}
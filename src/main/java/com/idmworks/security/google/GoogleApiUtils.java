@@ -1,15 +1,14 @@
 package com.idmworks.security.google;
 
 import com.idmworks.security.google.api.GoogleUserInfo;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.security.PublicKey;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.net.ssl.HttpsURLConnection;
 
 /**
  * Methods of this class connect to Google APIs. <br> Instead of including an external library to handle Google APIs,
@@ -39,6 +38,17 @@ public class GoogleApiUtils {
   public static final String USERINFO_API_LINK_PARAMETER = "link";
   public static final String USERINFO_API_PICTURE_PARAMETER = "picture";
   public static final String USERINFO_API_LOCALE_PARAMETER = "locale";
+  /*
+   * Token Info API
+   */
+  public static final String TOKENINFO_API_URI = "https://www.googleapis.com/oauth2/v3/tokeninfo";
+  public static final String TOKENINFO_API_AUDIENCE_PARAMETER = "aud";
+  public static final String TOKENINFO_API_AUTHORIZED_PARTY_PARAMETER = "azp";
+  public static final String TOKENINFO_API_SUBJECT_PARAMETER = "sub";
+  public static final String TOKENINFO_API_EMAIL_PARAMETER = "email";
+  public static final String TOKENINFO_API_EMAIL_VERIFIED_PARAMETER = "email_verified";
+  public static final String TOKENINFO_API_EXPIRATION_PARAMETER = "exp";
+  public static final String TOKENINFO_API_SCOPE_PARAMETER = "scope";
   /*
    * User Token API
    */
@@ -56,7 +66,9 @@ public class GoogleApiUtils {
   public static final String TOKEN_API_ERROR_PARAMETER = "error";
   public static final String TOKEN_API_EXPIRES_IN_PARAMETER = "expires_in";
   public static final String TOKEN_API_GRANT_TYPE_PARAMETER = "grant_type";
+  public static final String TOKEN_API_ID_TOKEN_PARAMETER = "id_token";
   public static final String TOKEN_API_REDIRECT_URI_PARAMETER = "redirect_uri";
+  public static final String TOKEN_API_REFRESH_TOKEN_PARAMETER = "refresh_token";
   public static final String TOKEN_API_RESPONSE_TYPE_PARAMETER = "response_type";
   public static final String TOKEN_API_SCOPE_PARAMETER = "scope";
   public static final String TOKEN_API_STATE_PARAMETER = "state";
@@ -65,155 +77,279 @@ public class GoogleApiUtils {
    * values
    */
   public static final String TOKEN_API_AUTHORIZATION_CODE_VALUE = "authorization_code";
+  public static final String TOKEN_API_REFRESH_TOKEN_VALUE = "refresh_token";
+  public static final String TOKEN_API_OFFLINE_ACCESS_TYPE_VALUE = "offline";
+  public static final String TOKEN_API_FORCE_APPROVAL_PROMPT_VALUE = "force";
+  public static final String TOKEN_API_OPENID_SCOPE_VALUE = "openid";
+  public static final String TOKEN_API_DEFAULT_SCOPE_VALUE = USERINFO_API_PERMISSION_EMAIL + " " + USERINFO_API_PERMISSION_PROFILE;
+  /*
+   * id_token claims
+   */
+  public static final String ID_TOKEN_SUBJECT_CLAIM = "sub";
+  public static final String ID_TOKEN_ISSUER_CLAIM = "iss";
+  public static final String ID_TOKEN_AUDIENCE_CLAIM = "aud";
+  public static final String ID_TOKEN_EXPIRATION_CLAIM = "exp";
+  public static final String ID_TOKEN_EMAIL_CLAIM = "email";
+  public static final String ID_TOKEN_EMAIL_VERIFIED_CLAIM = "email_verified";
+  public static final String ID_TOKEN_ISSUER_VALUE = "accounts.google.com";
+  public static final String ID_TOKEN_HTTPS_ISSUER_VALUE = "https://accounts.google.com";
+  public static final String ID_TOKEN_KEYS_URI = "https://www.googleapis.com/oauth2/v3/certs";
+  /*
+   * JWT/JWK
+   */
+  public static final String JWT_ALG_PARAMETER = "alg";
+  public static final String JWT_ALG_RS256_VALUE = "RS256";
+  public static final String JWK_SET_KEYS_PARAMETER = "keys";
+  public static final String JWK_KID_PARAMETER = "kid";
+  public static final String JWK_KTY_PARAMETER = "kty";
+  public static final String JWK_KTY_RSA_VALUE = "RSA";
+  public static final String JWK_ALG_PARAMETER = "alg";
+  public static final String JWK_MODULUS_PARAMETER = "n";
+  public static final String JWK_EXPONENT_PARAMETER = "e";
   private static final Logger LOGGER = Logger.getLogger(GoogleApiUtils.class.getName());
+  private static final HttpClient DEFAULT_HTTP_CLIENT = new PooledHttpClient();
+  private static final URI TOKEN_API = URI.create(TOKEN_API_URI);
+  private static final URI USERINFO_API = URI.create(USERINFO_API_URI);
 
   public static URI buildOauthUri(final String redirectUri, final URI endpoint, final String clientid) {
-
-    final StringBuilder querySb = new StringBuilder();
-    querySb.append(TOKEN_API_SCOPE_PARAMETER).append("=").append(USERINFO_API_PERMISSION_EMAIL).append(" ").append(USERINFO_API_PERMISSION_PROFILE);
-    querySb.append("&");
-    querySb.append(TOKEN_API_REDIRECT_URI_PARAMETER).append("=").append(redirectUri);
-    querySb.append("&");
-    querySb.append(TOKEN_API_RESPONSE_TYPE_PARAMETER).append("=").append(TOKEN_API_CODE_PARAMETER);
-    querySb.append("&");
-    querySb.append(TOKEN_API_CLIENT_ID_PARAMETER).append("=").append(clientid);
-
-    final String totalQuery = endpoint.getQuery() == null ? querySb.toString() : endpoint.getQuery() + "&" + querySb.toString();
-    try {
-      return new URI(endpoint.getScheme(), endpoint.getUserInfo(), endpoint.getHost(), endpoint.getPort(), endpoint.getPath(), totalQuery, endpoint.getFragment());
-    } catch (URISyntaxException ex) {
-      throw new IllegalArgumentException("Unable to build Oauth Uri", ex);
-    }
+    return buildOauthUri(redirectUri, endpoint, clientid, TOKEN_API_DEFAULT_SCOPE_VALUE);
   }
 
-  static Response sendRequest(final String method, final URI destination, final String body) {
-    if (LOGGER.isLoggable(Level.FINER)) {
-      LOGGER.log(Level.FINER, "sendRequest({0},{1},{2})", new Object[]{method, destination, "hasBody?" + body != null});
-    }
+  public static URI buildOauthUri(final String redirectUri, final URI endpoint, final String clientid, final String scope) {
+    return URI.create(buildOauthUriString(redirectUri, endpoint, clientid, scope));
+  }
 
-    HttpsURLConnection httpsURLConnection;
+  /**
+   * Builds the authorization request uri, keeping any query of endpoint.
+   */
+  static String buildOauthUriString(final String redirectUri, final URI endpoint, final String clientid, final String scope) {
+    return buildOauthUriString(redirectUri, endpoint, clientid, scope, null, null);
+  }
 
-    try {
-      httpsURLConnection = (HttpsURLConnection) destination.toURL().openConnection();
-      httpsURLConnection.setRequestMethod(method);
-      if (body != null) {
-        httpsURLConnection.setDoOutput(true);
-      }
-      httpsURLConnection.connect();
-    } catch (IOException ex) {
-      throw new IllegalStateException("Unable to create connection", ex);
+  /**
+   * Builds the authorization request uri, keeping any query of endpoint.
+   *
+   * @param accessType access_type parameter or null to leave it out
+   * @param approvalPrompt approval_prompt parameter or null to leave it out
+   */
+  static String buildOauthUriString(final String redirectUri, final URI endpoint, final String clientid, final String scope,
+          final String accessType, final String approvalPrompt) {
+    final String endpointString = endpoint.toString();
+    final int fragment = endpointString.indexOf('#');
+    final StringBuilder uriSb = new StringBuilder(fragment < 0 ? endpointString : endpointString.substring(0, fragment));
+    uriSb.append(endpoint.getRawQuery() == null ? "?" : "&");
+    uriSb.append(TOKEN_API_SCOPE_PARAMETER).append("=").append(formEncode(scope));
+    uriSb.append("&");
+    uriSb.append(TOKEN_API_REDIRECT_URI_PARAMETER).append("=").append(formEncode(redirectUri));
+    uriSb.append("&");
+    uriSb.append(TOKEN_API_RESPONSE_TYPE_PARAMETER).append("=").append(TOKEN_API_CODE_PARAMETER);
+    uriSb.append("&");
+    uriSb.append(TOKEN_API_CLIENT_ID_PARAMETER).append("=").append(formEncode(clientid));
+    if (accessType != null) {
+      uriSb.append("&");
+      uriSb.append(TOKEN_API_ACCESS_TYPE_PARAMETER).append("=").append(formEncode(accessType));
     }
-    if (body
-            != null) {
-      try {
-        final OutputStream out = httpsURLConnection.getOutputStream();
-        LOGGER.log(Level.FINER, "body: {0}", new Object[]{body});
-        out.write(body.getBytes());
-        out.flush();
-        out.close();
-      } catch (IOException ex) {
-        throw new IllegalStateException("Unable to write body", ex);
-      }
+    if (approvalPrompt != null) {
+      uriSb.append("&");
+      uriSb.append(TOKEN_API_APPROVAL_PROMPT_PARAMETER).append("=").append(formEncode(approvalPrompt));
     }
+    return uriSb.toString();
+  }
 
+  /**
+   * Builds the part of the token request body after the authorization code, it is the same for every request with
+   * the same redirectUri.
+   *
+   * @return body suffix, starting with &amp;
+   */
+  static String buildTokenRequestBodySuffix(final String redirectUri, final String clientid, final String clientSecret) {
+    final StringBuilder bodySb = new StringBuilder();
+    bodySb.append("&");
+    bodySb.append(TOKEN_API_CLIENT_ID_PARAMETER).append("=").append(formEncode(clientid));
+    bodySb.append("&");
+    bodySb.append(TOKEN_API_CLIENT_SECRET_PARAMETER).append("=").append(formEncode(clientSecret));
+    bodySb.append("&");
+    bodySb.append(TOKEN_API_REDIRECT_URI_PARAMETER).append("=").append(formEncode(redirectUri));
+    bodySb.append("&");
+    bodySb.append(TOKEN_API_GRANT_TYPE_PARAMETER).append("=").append(TOKEN_API_AUTHORIZATION_CODE_VALUE);
+    return bodySb.toString();
+  }
+
+  /**
+   * @param authorizationCode code from the OAuth callback
+   * @param bodySuffix from {@link #buildTokenRequestBodySuffix}
+   * @return application/x-www-form-urlencoded token request body
+   */
+  static String buildTokenRequestBody(final String authorizationCode, final String bodySuffix) {
+    return TOKEN_API_CODE_PARAMETER + "=" + formEncode(authorizationCode) + bodySuffix;
+  }
 
+  static String formEncode(final String value) {
     try {
-      final int status = httpsURLConnection.getResponseCode();
-      LOGGER.log(Level.FINER, "response code: {0}", new Object[]{status});
-
-      final String responseBody;
-      if (status < 400) {
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(httpsURLConnection.getInputStream()));
-        final StringBuilder stringBuilder = new StringBuilder();
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-          stringBuilder.append(line).append("\n");
-        }
-        reader.close();
-        responseBody = stringBuilder.toString();
-      } else {
-        responseBody = null;
-      }
-
-      return new Response(status, responseBody);
-    } catch (IOException ex) {
-      throw new IllegalStateException("Unable to read response", ex);
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException("UTF-8 not supported", ex);
     }
   }
 
-  static class Response {
+  public static AccessTokenInfo lookupAccessTokenInfo(String redirectUri, String authorizationCode, String clientid, String clientSecret) {
+    return lookupAccessTokenInfo(DEFAULT_HTTP_CLIENT, redirectUri, authorizationCode, clientid, clientSecret);
+  }
 
-    private final int status;
-    private final String body;
+  public static AccessTokenInfo lookupAccessTokenInfo(HttpClient httpClient, String redirectUri, String authorizationCode, String clientid, String clientSecret) {
+    return lookupAccessTokenInfo(httpClient, TOKEN_API, buildTokenRequestBody(authorizationCode, buildTokenRequestBodySuffix(redirectUri, clientid, clientSecret)));
+  }
 
-    public Response(int status, String body) {
-      this.status = status;
-      this.body = body;
+  /**
+   * @param tokenUri token API uri, usually {@link #TOKEN_API_URI}
+   * @param requestBody from {@link #buildTokenRequestBody}
+   * @return access token or null if Google refused the authorization code
+   * @throws IllegalStateException if Google answered with a server error, the code may still be valid
+   */
+  static AccessTokenInfo lookupAccessTokenInfo(HttpClient httpClient, URI tokenUri, String requestBody) {
+    LOGGER.log(Level.FINE, "Lookup Access Token body: {0}", requestBody);
+
+    final Object event = FlightEvents.INSTANCE.begin(FlightEvents.TOKEN_EXCHANGE);
+    final HttpClient.Response response;
+    try {
+      response = httpClient.POST(tokenUri, requestBody);
+    } catch (RuntimeException ex) {
+      FlightEvents.INSTANCE.end(event, 0, FlightEvents.ERROR);
+      throw ex;
     }
 
-    public String getBody() {
-      return body;
+    if (response.getStatus() == 200) {
+      FlightEvents.INSTANCE.end(event, 200, FlightEvents.SUCCESS);
+      return ParseUtils.parseAccessTokenJson(response.getBodyStream());
+    } else if (response.getStatus() >= 500) {
+      FlightEvents.INSTANCE.end(event, response.getStatus(), FlightEvents.ERROR);
+      throw new IllegalStateException("Unable to exchange authorization code: " + response.getStatus());
+    } else {
+      FlightEvents.INSTANCE.end(event, response.getStatus(), FlightEvents.REFUSED);
+      return null;
     }
+  }
+
+  /**
+   * @return part of the refresh request body after the refresh token, starting with &amp;
+   */
+  static String buildRefreshRequestBodySuffix(final String clientid, final String clientSecret) {
+    final StringBuilder bodySb = new StringBuilder();
+    bodySb.append("&");
+    bodySb.append(TOKEN_API_CLIENT_ID_PARAMETER).append("=").append(formEncode(clientid));
+    bodySb.append("&");
+    bodySb.append(TOKEN_API_CLIENT_SECRET_PARAMETER).append("=").append(formEncode(clientSecret));
+    bodySb.append("&");
+    bodySb.append(TOKEN_API_GRANT_TYPE_PARAMETER).append("=").append(TOKEN_API_REFRESH_TOKEN_VALUE);
+    return bodySb.toString();
+  }
+
+  /**
+   * Uses a refresh token to get a new access token.
+   *
+   * @param tokenUri token API uri, usually {@link #TOKEN_API_URI}
+   * @param bodySuffix from {@link #buildRefreshRequestBodySuffix}
+   * @return new access token or null if the refresh token was revoked or expired
+   * @throws IllegalStateException if Google could not be reached or answered with an unexpected status
+   */
+  static AccessTokenInfo refreshAccessToken(HttpClient httpClient, URI tokenUri, String refreshToken, String bodySuffix) {
+    final HttpClient.Response response = httpClient.POST(tokenUri,
+            TOKEN_API_REFRESH_TOKEN_PARAMETER + "=" + formEncode(refreshToken) + bodySuffix);
 
-    public int getStatus() {
-      return status;
+    if (response.getStatus() == 200) {
+      return ParseUtils.parseAccessTokenJson(response.getBodyStream());
+    } else if (response.getStatus() == 400 || response.getStatus() == 401) {
+      //invalid_grant
+      return null;
+    } else {
+      throw new IllegalStateException("Unable to refresh access token: " + response.getStatus());
     }
   }
 
-  static Response GET(final URI destination) {
-    return sendRequest("GET", destination, null);
+  public static GoogleUserInfo retrieveGoogleUserInfo(AccessTokenInfo accessTokenInfo) {
+    return retrieveGoogleUserInfo(DEFAULT_HTTP_CLIENT, accessTokenInfo);
   }
 
-  static Response POST(final URI destination, final String body) {
-    return sendRequest("POST", destination, body);
+  public static GoogleUserInfo retrieveGoogleUserInfo(HttpClient httpClient, AccessTokenInfo accessTokenInfo) {
+    return retrieveGoogleUserInfo(httpClient, USERINFO_API, accessTokenInfo);
   }
 
-  public static AccessTokenInfo lookupAccessTokenInfo(String redirectUri, String authorizationCode, String clientid, String clientSecret) {
-    //FIXME cache URI
+  /**
+   * @param userInfoUri userinfo API uri, usually {@link #USERINFO_API_URI}
+   */
+  public static GoogleUserInfo retrieveGoogleUserInfo(HttpClient httpClient, URI userInfoUri, AccessTokenInfo accessTokenInfo) {
+
+    final StringBuilder uriSb = new StringBuilder(userInfoUri.toString());
+    uriSb.append(userInfoUri.getRawQuery() == null ? "?" : "&");
+    uriSb.append(TOKEN_API_ACCESS_TOKEN_PARAMETER).append("=").append(accessTokenInfo.getAccessToken());
     final URI apiUri;
     try {
-      apiUri = new URI(TOKEN_API_URI);
+      apiUri = new URI(uriSb.toString());
     } catch (URISyntaxException ex) {
-      throw new IllegalStateException("unable to create uri for " + TOKEN_API_URI, ex);
+      throw new IllegalStateException("unable to create uri for " + userInfoUri, ex);
     }
 
-    final StringBuilder bodySb = new StringBuilder();
-    bodySb.append(TOKEN_API_CODE_PARAMETER).append("=").append(authorizationCode);
-    bodySb.append("&");
-    bodySb.append(TOKEN_API_CLIENT_ID_PARAMETER).append("=").append(clientid);
-    bodySb.append("&");
-    bodySb.append(TOKEN_API_CLIENT_SECRET_PARAMETER).append("=").append(clientSecret);
-    bodySb.append("&");
-    bodySb.append(TOKEN_API_REDIRECT_URI_PARAMETER).append("=").append(redirectUri);
-    bodySb.append("&");
-    bodySb.append(TOKEN_API_GRANT_TYPE_PARAMETER).append("=").append(TOKEN_API_AUTHORIZATION_CODE_VALUE);
-    LOGGER.log(Level.FINE, "Lookup Access Token body: {0}", bodySb);
-
-    final Response response = POST(apiUri, bodySb.toString());
+    final Object event = FlightEvents.INSTANCE.begin(FlightEvents.USERINFO);
+    final HttpClient.Response response;
+    try {
+      response = httpClient.GET(apiUri);
+    } catch (RuntimeException ex) {
+      FlightEvents.INSTANCE.end(event, 0, FlightEvents.ERROR);
+      throw ex;
+    }
 
     if (response.getStatus() == 200) {
-      return ParseUtils.parseAccessTokenJson(response.getBody());
+      FlightEvents.INSTANCE.end(event, 200, FlightEvents.SUCCESS);
+      return ParseUtils.parseGoogleUserInfoJson(response.getBodyStream());
     } else {
+      FlightEvents.INSTANCE.end(event, response.getStatus(), response.getStatus() >= 500 ? FlightEvents.ERROR : FlightEvents.REFUSED);
       return null;//FIXME handle this better
     }
-  }
 
-  public static GoogleUserInfo retrieveGoogleUserInfo(AccessTokenInfo accessTokenInfo) {
+  }
 
+  /**
+   * Asks Google about an access token presented by a client.
+   *
+   * @param tokenInfoUri tokeninfo API uri, usually {@link #TOKENINFO_API_URI}
+   * @return token info or null if Google doesn't consider the token valid
+   * @throws IllegalStateException if Google could not be reached or answered with an unexpected status
+   */
+  public static TokenInfo retrieveTokenInfo(HttpClient httpClient, URI tokenInfoUri, String accessToken) {
+    final StringBuilder uriSb = new StringBuilder(tokenInfoUri.toString());
+    uriSb.append(tokenInfoUri.getRawQuery() == null ? "?" : "&");
+    uriSb.append(TOKEN_API_ACCESS_TOKEN_PARAMETER).append("=").append(formEncode(accessToken));
     final URI apiUri;
     try {
-      apiUri = new URI(new StringBuilder(USERINFO_API_URI).append("?").append(TOKEN_API_ACCESS_TOKEN_PARAMETER).append("=").append(accessTokenInfo.getAccessToken()).toString());
+      apiUri = new URI(uriSb.toString());
     } catch (URISyntaxException ex) {
-      throw new IllegalStateException("unable to create uri for " + USERINFO_API_URI, ex);
+      throw new IllegalStateException("unable to create uri for " + tokenInfoUri, ex);
     }
 
-    final Response response = GET(apiUri);
+    final HttpClient.Response response = httpClient.GET(apiUri);
 
     if (response.getStatus() == 200) {
-      return ParseUtils.parseGoogleUserInfoJson(response.getBody());
+      return ParseUtils.parseTokenInfoJson(response.getBodyStream());
+    } else if (response.getStatus() == 400 || response.getStatus() == 401) {
+      //invalid_token
+      return null;
     } else {
-      return null;//FIXME handle this better
+      throw new IllegalStateException("Unable to retrieve token info: " + response.getStatus());
     }
+  }
 
+  /**
+   * @param keysUri JWK set uri, usually {@link #ID_TOKEN_KEYS_URI}
+   * @return id_token signing keys by kid or null if they could not be retrieved
+   */
+  public static Map<String, PublicKey> retrieveIdTokenKeys(HttpClient httpClient, URI keysUri) {
+    final HttpClient.Response response = httpClient.GET(keysUri);
+
+    if (response.getStatus() == 200) {
+      return ParseUtils.parseJwkSet(response.getBodyStream());
+    } else {
+      LOGGER.log(Level.WARNING, "Unable to retrieve id_token keys from {0}: {1}", new Object[]{keysUri, response.getStatus()});
+      return null;
+    }
   }
 }
@@ -0,0 +1,80 @@
+package com.idmworks.security.google;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Google access token of an authenticated user, added to the private credentials of the subject when offline access is
+ * enabled. The module refreshes the access token in the background before it expires, so the application always reads
+ * a current token from the same object.
+ *
+ * @author pdgreen
+ */
+public class GoogleCredential implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+  private final String name;
+  private volatile String accessToken;
+  private volatile long expiresAt;
+  private volatile String refreshToken;
+  private volatile long authenticatedAt;
+
+  GoogleCredential(final String name, final String accessToken, final long expiresAt, final String refreshToken, final long authenticatedAt) {
+    this.name = name;
+    this.accessToken = accessToken;
+    this.expiresAt = expiresAt;
+    this.refreshToken = refreshToken;
+    this.authenticatedAt = authenticatedAt;
+  }
+
+  /**
+   * @return name of the principal (email) the token belongs to
+   */
+  public String getName() {
+    return name;
+  }
+
+  public String getAccessToken() {
+    return accessToken;
+  }
+
+  public Date getExpiration() {
+    return new Date(expiresAt);
+  }
+
+  public boolean isExpired() {
+    return System.currentTimeMillis() >= expiresAt;
+  }
+
+  long getExpiresAt() {
+    return expiresAt;
+  }
+
+  String getRefreshToken() {
+    return refreshToken;
+  }
+
+  long getAuthenticatedAt() {
+    return authenticatedAt;
+  }
+
+  /**
+   * @param refreshToken new refresh token or null to keep the current one
+   */
+  void update(final String accessToken, final long expiresAt, final String refreshToken) {
+    this.accessToken = accessToken;
+    this.expiresAt = expiresAt;
+    if (refreshToken != null) {
+      this.refreshToken = refreshToken;
+    }
+  }
+
+  void authenticated(final long authenticatedAt) {
+    this.authenticatedAt = authenticatedAt;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().append("{").append(GoogleCredential.class.getSimpleName()).append(":").append(name).append("}").toString();
+  }
+}
@@ -2,14 +2,26 @@ package com.idmworks.security.google;
 
 import com.idmworks.security.google.api.GoogleOAuthPrincipal;
 import com.idmworks.security.google.api.GoogleUserInfo;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.security.auth.Subject;
@@ -26,6 +38,7 @@ import javax.security.auth.message.callback.GroupPrincipalCallback;
 import javax.security.auth.message.module.ServerAuthModule;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 /**
  * SAM ({@link ServerAuthModule}) for Google OAuth.
@@ -55,6 +68,135 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
   private static final String IGNORE_MISSING_LOGIN_CONTEXT = "ignore_missing_login_context";
   private static final String ADD_DOMAIN_AS_GROUP = "add_domain_as_group";
   private static final String DEFAULT_GROUPS_PROPERTY_NAME = "default_groups";
+  private static final String GROUP_RULES_PROPERTY_NAME = "group_rules";
+  private static final String GROUP_RULES_RELOAD_PROPERTY_NAME = "group_rules_reload";
+  private static final String CONNECT_TIMEOUT_PROPERTY_NAME = "oauth.connect_timeout";
+  private static final String READ_TIMEOUT_PROPERTY_NAME = "oauth.read_timeout";
+  private static final String TOTAL_TIMEOUT_PROPERTY_NAME = "oauth.total_timeout";
+  private static final String MAX_CONNECTIONS_PROPERTY_NAME = "oauth.max_connections";
+  private static final String ASYNC_CALLBACK_PROPERTY_NAME = "async_callback";
+  private static final String ASYNC_CALLBACK_THREADS_PROPERTY_NAME = "async_callback_threads";
+  private static final String ASYNC_CALLBACK_QUEUE_PROPERTY_NAME = "async_callback_queue";
+  private static final String CALLBACK_COALESCE_PROPERTY_NAME = "callback_coalesce";
+  private static final String CALLBACK_COALESCE_WINDOW_PROPERTY_NAME = "callback_coalesce_window";
+  private static final String CALLBACK_LIMIT_PROPERTY_NAME = "callback_limit";
+  private static final String CALLBACK_MIN_LIMIT_PROPERTY_NAME = "callback_min_limit";
+  private static final String CALLBACK_QUEUE_PROPERTY_NAME = "callback_queue";
+  private static final String CALLBACK_QUEUE_TIMEOUT_PROPERTY_NAME = "callback_queue_timeout";
+  private static final String CALLBACK_LATENCY_TARGET_PROPERTY_NAME = "callback_latency_target";
+  private static final String CALLBACK_RETRY_AFTER_PROPERTY_NAME = "callback_retry_after";
+  private static final String NEGATIVE_CACHE_SIZE_PROPERTY_NAME = "negative_cache_size";
+  private static final String NEGATIVE_CACHE_TTL_PROPERTY_NAME = "negative_cache_ttl";
+  private static final String RATE_LIMIT_PROPERTY_NAME = "rate_limit";
+  private static final String RATE_LIMIT_BURST_PROPERTY_NAME = "rate_limit_burst";
+  private static final String RATE_LIMIT_CLIENTS_PROPERTY_NAME = "rate_limit_clients";
+  private static final String RATE_LIMIT_HEADER_PROPERTY_NAME = "rate_limit_header";
+  private static final String RATE_LIMIT_TRUSTED_PROXIES_PROPERTY_NAME = "rate_limit_trusted_proxies";
+  private static final String BEARER_TOKENS_PROPERTY_NAME = "bearer_tokens";
+  private static final String BEARER_AUDIENCES_PROPERTY_NAME = "bearer_audiences";
+  private static final String BEARER_CACHE_SIZE_PROPERTY_NAME = "bearer_cache_size";
+  private static final String TOKENINFO_URI_PROPERTY_NAME = "tokeninfo_uri";
+  private static final String TOKEN_URI_PROPERTY_NAME = "token_uri";
+  private static final String USERINFO_URI_PROPERTY_NAME = "userinfo_uri";
+  private static final String OFFLINE_ACCESS_PROPERTY_NAME = "offline_access";
+  private static final String OFFLINE_ACCESS_APPROVAL_PROMPT_PROPERTY_NAME = "offline_access_approval_prompt";
+  private static final String TOKEN_REFRESH_INTERVAL_PROPERTY_NAME = "token_refresh_interval";
+  private static final String TOKEN_REFRESH_AHEAD_PROPERTY_NAME = "token_refresh_ahead";
+  private static final String TOKEN_REFRESH_BATCH_PROPERTY_NAME = "token_refresh_batch";
+  private static final String TOKEN_REFRESH_RETENTION_PROPERTY_NAME = "token_refresh_retention";
+  private static final String USERINFO_CACHE_SIZE_PROPERTY_NAME = "userinfo_cache_size";
+  private static final String USERINFO_CACHE_TTL_PROPERTY_NAME = "userinfo_cache_ttl";
+  private static final int DEFAULT_USERINFO_CACHE_TTL = 300;
+  private static final String GROUP_CACHE_SIZE_PROPERTY_NAME = "group_cache_size";
+  private static final String GROUP_CACHE_TTL_PROPERTY_NAME = "group_cache_ttl";
+  private static final String GROUP_CACHE_REFRESH_PROPERTY_NAME = "group_cache_refresh";
+  private static final String PARALLEL_GROUPS_PROPERTY_NAME = "parallel_groups";
+  private static final String PARALLEL_GROUPS_THREADS_PROPERTY_NAME = "parallel_groups_threads";
+  private static final int DEFAULT_PARALLEL_GROUPS_THREADS = 20;
+  /**
+   * groups resolved while userinfo was fetched, for authenticate
+   */
+  private static final String RESOLVED_GROUPS_ATTRIBUTE = GoogleOAuthServerAuthModule.class.getName() + ".groups";
+  /**
+   * marks a callback suspended for the asynchronous token exchange
+   */
+  private static final String ASYNC_CALLBACK_ATTRIBUTE = GoogleOAuthServerAuthModule.class.getName() + ".async";
+  private static final int DEFAULT_GROUP_CACHE_TTL = 3600;
+  private static final int DEFAULT_GROUP_RULES_RELOAD = 60;
+  private static final int DEFAULT_WARMUP_ITERATIONS = 5000;
+  /*
+   * Synthetic Google responses the warm-up parses
+   */
+  private static final String WARMUP_TOKEN_JSON = "{\"access_token\":\"ya29.warmup\",\"expires_in\":3600,"
+          + "\"token_type\":\"Bearer\",\"refresh_token\":\"1/warmup\"}";
+  private static final String WARMUP_USERINFO_JSON = "{\"id\":\"100000000000000000000\",\"email\":\"warmup@example.com\","
+          + "\"verified_email\":true,\"name\":\"Warm Up\",\"given_name\":\"Warm\",\"family_name\":\"Up\"}";
+  private static final String ID_TOKEN_VERIFICATION_PROPERTY_NAME = "id_token_verification";
+  private static final String ID_TOKEN_KEYS_URI_PROPERTY_NAME = "id_token_keys_uri";
+  private static final String ID_TOKEN_KEYS_REFRESH_PROPERTY_NAME = "id_token_keys_refresh";
+  private static final int DEFAULT_ID_TOKEN_KEYS_REFRESH = 3600;
+  private static final String CIRCUIT_BREAKER_PROPERTY_NAME = "circuit_breaker";
+  private static final String CIRCUIT_BREAKER_WINDOW_PROPERTY_NAME = "circuit_breaker_window";
+  private static final String CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY_NAME = "circuit_breaker_minimum_calls";
+  private static final String CIRCUIT_BREAKER_FAILURE_RATE_PROPERTY_NAME = "circuit_breaker_failure_rate";
+  private static final String CIRCUIT_BREAKER_SLOW_CALL_RATE_PROPERTY_NAME = "circuit_breaker_slow_call_rate";
+  private static final String CIRCUIT_BREAKER_SLOW_CALL_DURATION_PROPERTY_NAME = "circuit_breaker_slow_call_duration";
+  private static final String CIRCUIT_BREAKER_OPEN_DURATION_PROPERTY_NAME = "circuit_breaker_open_duration";
+  private static final String CIRCUIT_BREAKER_HALF_OPEN_CALLS_PROPERTY_NAME = "circuit_breaker_half_open_calls";
+  private static final String BULKHEAD_MAX_CALLS_PROPERTY_NAME = "bulkhead_max_calls";
+  private static final int DEFAULT_CIRCUIT_BREAKER_WINDOW = 20;
+  private static final int DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS = 10;
+  private static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 50;
+  private static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE = 80;
+  private static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION = 5000;
+  private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 30;
+  private static final int DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_CALLS = 3;
+  private static final String WARMUP_PROPERTY_NAME = "warmup";
+  private static final String WARMUP_ITERATIONS_PROPERTY_NAME = "warmup_iterations";
+  private static final String JMX_PROPERTY_NAME = "jmx";
+  private static final String JMX_NAME_PROPERTY_NAME = "jmx_name";
+  private static final String STATE_MODE_PROPERTY_NAME = "state_mode";
+  private static final String COOKIE_NAME_PROPERTY_NAME = "cookie_name";
+  private static final String COOKIE_KEYS_PROPERTY_NAME = "cookie_keys";
+  private static final String COOKIE_ENCRYPT_PROPERTY_NAME = "cookie_encrypt";
+  private static final String COOKIE_MAX_AGE_PROPERTY_NAME = "cookie_max_age";
+  private static final String STATE_STORE_CLASS_PROPERTY_NAME = "state_store_class";
+  private static final String OFFHEAP_CAPACITY_PROPERTY_NAME = "offheap_capacity";
+  private static final String OFFHEAP_RECORD_SIZE_PROPERTY_NAME = "offheap_record_size";
+  private static final String STATE_MODE_SESSION = "session";
+  private static final String STATE_MODE_COOKIE = "cookie";
+  private static final String STATE_MODE_OFFHEAP = "offheap";
+  private static final int DEFAULT_OFFHEAP_CAPACITY = 100000;
+  private static final int DEFAULT_OFFHEAP_RECORD_SIZE = 512;
+  private static final String DEFAULT_COOKIE_NAME = "GOOGLE_OAUTH";
+  private static final int DEFAULT_COOKIE_MAX_AGE = 3600;
+  /**
+   * Bounds the templates kept when the application is reached through many host names, the Host header is client
+   * controlled.
+   */
+  private static final int MAX_TEMPLATES = 64;
+  /**
+   * not defined by the servlet api
+   */
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  private static final int DEFAULT_ASYNC_CALLBACK_THREADS = 10;
+  private static final int DEFAULT_ASYNC_CALLBACK_QUEUE = 100;
+  private static final int DEFAULT_CALLBACK_COALESCE_WINDOW = 10;
+  private static final int DEFAULT_CALLBACK_MIN_LIMIT = 1;
+  private static final int DEFAULT_CALLBACK_QUEUE = 50;
+  private static final int DEFAULT_CALLBACK_QUEUE_TIMEOUT = 500;
+  private static final int DEFAULT_CALLBACK_LATENCY_TARGET = 2000;
+  private static final int DEFAULT_CALLBACK_RETRY_AFTER = 2;
+  private static final int DEFAULT_NEGATIVE_CACHE_SIZE = 10000;
+  private static final int DEFAULT_NEGATIVE_CACHE_TTL = 600;
+  private static final int DEFAULT_RATE_LIMIT = 0;
+  private static final int DEFAULT_RATE_LIMIT_BURST = 20;
+  private static final int DEFAULT_RATE_LIMIT_CLIENTS = 10000;
+  private static final int DEFAULT_BEARER_CACHE_SIZE = 10000;
+  private static final int DEFAULT_TOKEN_REFRESH_INTERVAL = 60;
+  private static final int DEFAULT_TOKEN_REFRESH_AHEAD = 300;
+  private static final int DEFAULT_TOKEN_REFRESH_BATCH = 100;
+  private static final int DEFAULT_TOKEN_REFRESH_RETENTION = 86400;
   private static Logger LOGGER = Logger.getLogger(GoogleOAuthServerAuthModule.class.getName());
   protected static final Class[] SUPPORTED_MESSAGE_TYPES = new Class[]{
     javax.servlet.http.HttpServletRequest.class,
@@ -64,12 +206,49 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
   private String clientid;
   private String clientSecret;
   private URI endpoint;
+  private URI tokenUri;
+  private URI userInfoUri;
   private String oauthAuthenticationCallbackUri;
   private boolean ignoreMissingLoginContext;
-  private boolean addDomainAsGroup;
-  private String defaultGroups;
-  private GoogleOAuthCallbackHandler googleOAuthCallbackHandler;
-  private LoginContextWrapper loginContextWrapper;
+  private GroupMapper groupMapper;
+  private String loginContextName;
+  private boolean loginContextConfigured;
+  private HttpClient httpClient;
+  /**
+   * httpClient behind the circuit breaker and bulkhead, used for the token and userinfo calls
+   */
+  private HttpClient googleClient;
+  private CircuitBreaker circuitBreaker;
+  private int bulkheadMaxCalls;
+  private AsyncCallbackProcessor asyncCallbackProcessor;
+  private CallbackAdmission callbackAdmission;
+  private int callbackRetryAfter;
+  /**
+   * shares one token exchange between callbacks carrying the same authorization code
+   */
+  private SingleFlight<String, GoogleUserInfo> codeExchanges;
+  private ExpiringCache<String, Boolean> rejectedCodes;
+  private ClientRateLimiter rateLimiter;
+  private String rateLimitHeader;
+  private Set<String> rateLimitTrustedProxies;
+  private String scope;
+  private String accessType;
+  private String approvalPrompt;
+  private TokenRefresher tokenRefresher;
+  private BearerAuthenticator bearerAuthenticator;
+  private ExpiringCache<String, GoogleUserInfo> userInfoCache;
+  private IdTokenVerifier idTokenVerifier;
+  private GroupCache groupCache;
+  private ParallelLookup parallelLookup;
+  private Warmup warmup;
+  private volatile CallbackPath callbackPath;
+  private final AuthMetrics metrics = new AuthMetrics();
+  private volatile OAuthTemplates lastTemplates;
+  private final ConcurrentHashMap<String, OAuthTemplates> templates = new ConcurrentHashMap<String, OAuthTemplates>();
+  private SignedCookieCodec cookieCodec;
+  private StateStore stateStore;
+  private String cookieName;
+  private int cookieMaxAge;
 
   String retrieveOptionalProperty(final Map<String, String> properties, final String name, final String defaultValue) {
     LOGGER.log(Level.FINER, "retrieveOptionalProperty(_,{0},_)", name);
@@ -91,10 +270,44 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
     }
   }
 
+  int retrieveOptionalIntProperty(final Map<String, String> properties, final String name, final int defaultValue) throws AuthException {
+    final String value = retrieveOptionalProperty(properties, name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException ex) {
+      throw invalidPropertyException(name, ex);
+    }
+  }
+
+  /**
+   * @return value of the property, if set, otherwise defaultValue
+   * @throws AuthException naming the property if the value isn't an integer from min to max
+   */
+  int retrieveOptionalIntProperty(final Map<String, String> properties, final String name, final int defaultValue,
+          final int min, final int max) throws AuthException {
+    final int value = retrieveOptionalIntProperty(properties, name, defaultValue);
+    if (value < min || value > max) {
+      throw invalidPropertyException(name, new IllegalArgumentException(String.format("%d is not from %d to %d", value, min, max)));
+    }
+    return value;
+  }
+
+  static AuthException invalidPropertyException(final String name, final Exception cause) {
+    final String message = String.format("Invalid field '%s'", name);
+    LOGGER.log(Level.SEVERE, message, cause);
+    final AuthException aex = new AuthException(message);
+    aex.initCause(cause);
+    return aex;
+  }
+
   @Override
   public void initialize(MessagePolicy requestPolicy, MessagePolicy responsePolicy, CallbackHandler handler, Map options) throws AuthException {
     LOGGER.log(Level.FINER, "initialize()");
     this.handler = handler;
+    metrics.withdrawAll();
     //properties
     this.clientid = retrieveRequiredProperty(options, CLIENTID_PROPERTY_NAME);
     this.clientSecret = retrieveRequiredProperty(options, CLIENTSECRET_PROPERTY_NAME);
@@ -107,17 +320,384 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
       aex.initCause(ex);
       throw aex;
     }
+    try {
+      this.tokenUri = new URI(retrieveOptionalProperty(options, TOKEN_URI_PROPERTY_NAME, GoogleApiUtils.TOKEN_API_URI));
+    } catch (URISyntaxException ex) {
+      throw invalidPropertyException(TOKEN_URI_PROPERTY_NAME, ex);
+    }
+    try {
+      this.userInfoUri = new URI(retrieveOptionalProperty(options, USERINFO_URI_PROPERTY_NAME, GoogleApiUtils.USERINFO_API_URI));
+    } catch (URISyntaxException ex) {
+      throw invalidPropertyException(USERINFO_URI_PROPERTY_NAME, ex);
+    }
     this.oauthAuthenticationCallbackUri = retrieveOptionalProperty(options, CALLBACK_URI_PROPERTY_NAME, DEFAULT_OAUTH_CALLBACK_PATH);
+    this.callbackPath = null;
+    this.lastTemplates = null;
+    this.templates.clear();
     this.ignoreMissingLoginContext = Boolean.parseBoolean(retrieveOptionalProperty(options, IGNORE_MISSING_LOGIN_CONTEXT, Boolean.toString(false)));
-    this.addDomainAsGroup = Boolean.parseBoolean(retrieveOptionalProperty(options, ADD_DOMAIN_AS_GROUP, Boolean.toString(false)));
-    this.defaultGroups = retrieveOptionalProperty(options, DEFAULT_GROUPS_PROPERTY_NAME, "");
-    final String learningContextName = retrieveOptionalProperty(options, LEARNING_CONTEXT_KEY, GoogleOAuthServerAuthModule.class.getName());
-    this.googleOAuthCallbackHandler = new GoogleOAuthCallbackHandler();
-    this.loginContextWrapper = new LoginContextWrapper(createLoginContext(learningContextName, googleOAuthCallbackHandler));
+    if (groupMapper != null) {
+      groupMapper.stopBackgroundReload();
+    }
+    final String groupRules = retrieveOptionalProperty(options, GROUP_RULES_PROPERTY_NAME, null);
+    try {
+      this.groupMapper = new GroupMapper(retrieveOptionalProperty(options, DEFAULT_GROUPS_PROPERTY_NAME, ""),
+              Boolean.parseBoolean(retrieveOptionalProperty(options, ADD_DOMAIN_AS_GROUP, Boolean.toString(false))),
+              groupRules == null ? null : new File(groupRules));
+    } catch (IOException ex) {
+      throw invalidPropertyException(GROUP_RULES_PROPERTY_NAME, ex);
+    } catch (IllegalArgumentException ex) {
+      throw invalidPropertyException(GROUP_RULES_PROPERTY_NAME, ex);
+    }
+    final int groupRulesReload = retrieveOptionalIntProperty(options, GROUP_RULES_RELOAD_PROPERTY_NAME, DEFAULT_GROUP_RULES_RELOAD);
+    if (groupRules != null && groupRulesReload > 0) {
+      groupMapper.startBackgroundReload(groupRulesReload);
+    }
+    if (groupMapper != null) {
+      groupMapper.publishMetrics(metrics);
+    }
+    final int totalTimeout = retrieveOptionalIntProperty(options, TOTAL_TIMEOUT_PROPERTY_NAME, PooledHttpClient.DEFAULT_TOTAL_TIMEOUT,
+            1, Integer.MAX_VALUE);
+    final int maxConnections = retrieveOptionalIntProperty(options, MAX_CONNECTIONS_PROPERTY_NAME, PooledHttpClient.DEFAULT_MAX_CONNECTIONS,
+            1, Integer.MAX_VALUE);
+    if (Boolean.parseBoolean(retrieveOptionalProperty(options, CIRCUIT_BREAKER_PROPERTY_NAME, Boolean.toString(false)))) {
+      final int circuitBreakerWindow = retrieveOptionalIntProperty(options, CIRCUIT_BREAKER_WINDOW_PROPERTY_NAME, DEFAULT_CIRCUIT_BREAKER_WINDOW,
+              1, Integer.MAX_VALUE);
+      this.circuitBreaker = new CircuitBreaker(endpoint.getHost(),
+              circuitBreakerWindow,
+              retrieveOptionalIntProperty(options, CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY_NAME,
+                      Math.min(DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS, circuitBreakerWindow), 1, circuitBreakerWindow),
+              retrieveOptionalIntProperty(options, CIRCUIT_BREAKER_FAILURE_RATE_PROPERTY_NAME, DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE, 1, 100),
+              retrieveOptionalIntProperty(options, CIRCUIT_BREAKER_SLOW_CALL_RATE_PROPERTY_NAME, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE, 1, 100),
+              retrieveOptionalIntProperty(options, CIRCUIT_BREAKER_SLOW_CALL_DURATION_PROPERTY_NAME, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION,
+                      1, Integer.MAX_VALUE),
+              retrieveOptionalIntProperty(options, CIRCUIT_BREAKER_OPEN_DURATION_PROPERTY_NAME, DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION,
+                      1, Integer.MAX_VALUE),
+              retrieveOptionalIntProperty(options, CIRCUIT_BREAKER_HALF_OPEN_CALLS_PROPERTY_NAME, DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_CALLS,
+                      1, Integer.MAX_VALUE));
+      this.bulkheadMaxCalls = retrieveOptionalIntProperty(options, BULKHEAD_MAX_CALLS_PROPERTY_NAME, maxConnections);
+    } else {
+      this.circuitBreaker = null;
+    }
+    setHttpClient(new PooledHttpClient(
+            retrieveOptionalIntProperty(options, CONNECT_TIMEOUT_PROPERTY_NAME, PooledHttpClient.DEFAULT_CONNECT_TIMEOUT,
+                    1, Integer.MAX_VALUE),
+            retrieveOptionalIntProperty(options, READ_TIMEOUT_PROPERTY_NAME, PooledHttpClient.DEFAULT_READ_TIMEOUT,
+                    1, Integer.MAX_VALUE),
+            totalTimeout,
+            maxConnections));
+    if (asyncCallbackProcessor != null) {
+      asyncCallbackProcessor.shutdown();
+      asyncCallbackProcessor = null;
+    }
+    if (Boolean.parseBoolean(retrieveOptionalProperty(options, ASYNC_CALLBACK_PROPERTY_NAME, Boolean.toString(false)))) {
+      //token exchange and userinfo are two calls, each bounded by the total timeout
+      this.asyncCallbackProcessor = new AsyncCallbackProcessor(
+              retrieveOptionalIntProperty(options, ASYNC_CALLBACK_THREADS_PROPERTY_NAME, DEFAULT_ASYNC_CALLBACK_THREADS),
+              retrieveOptionalIntProperty(options, ASYNC_CALLBACK_QUEUE_PROPERTY_NAME, DEFAULT_ASYNC_CALLBACK_QUEUE),
+              2L * totalTimeout + 1000L);
+    }
+    final int callbackLimit = retrieveOptionalIntProperty(options, CALLBACK_LIMIT_PROPERTY_NAME, 0);
+    if (callbackLimit > 0) {
+      try {
+        this.callbackAdmission = new CallbackAdmission(
+                Math.min(callbackLimit, retrieveOptionalIntProperty(options, CALLBACK_MIN_LIMIT_PROPERTY_NAME, DEFAULT_CALLBACK_MIN_LIMIT)),
+                callbackLimit,
+                retrieveOptionalIntProperty(options, CALLBACK_QUEUE_PROPERTY_NAME, DEFAULT_CALLBACK_QUEUE),
+                retrieveOptionalIntProperty(options, CALLBACK_QUEUE_TIMEOUT_PROPERTY_NAME, DEFAULT_CALLBACK_QUEUE_TIMEOUT),
+                retrieveOptionalIntProperty(options, CALLBACK_LATENCY_TARGET_PROPERTY_NAME, DEFAULT_CALLBACK_LATENCY_TARGET));
+      } catch (IllegalArgumentException ex) {
+        throw invalidPropertyException(CALLBACK_LIMIT_PROPERTY_NAME, ex);
+      }
+    } else {
+      this.callbackAdmission = null;
+    }
+    this.callbackRetryAfter = retrieveOptionalIntProperty(options, CALLBACK_RETRY_AFTER_PROPERTY_NAME, DEFAULT_CALLBACK_RETRY_AFTER);
+    if (callbackAdmission != null) {
+      callbackAdmission.publishMetrics(metrics);
+    }
+    if (Boolean.parseBoolean(retrieveOptionalProperty(options, CALLBACK_COALESCE_PROPERTY_NAME, Boolean.toString(true)))) {
+      this.codeExchanges = new SingleFlight<String, GoogleUserInfo>(Math.max(0,
+              retrieveOptionalIntProperty(options, CALLBACK_COALESCE_WINDOW_PROPERTY_NAME, DEFAULT_CALLBACK_COALESCE_WINDOW)), TimeUnit.SECONDS);
+    } else {
+      this.codeExchanges = null;
+    }
+    if (codeExchanges != null) {
+      final SingleFlight<String, GoogleUserInfo> exchanges = codeExchanges;
+      metrics.publish("CoalescedCallbackCount", new AuthMetrics.Attribute<Long>() {
+        @Override
+        public Long get() {
+          return exchanges.getCoalescedCount();
+        }
+      });
+    }
+    final int negativeCacheSize = retrieveOptionalIntProperty(options, NEGATIVE_CACHE_SIZE_PROPERTY_NAME, DEFAULT_NEGATIVE_CACHE_SIZE);
+    final int negativeCacheTtl = retrieveOptionalIntProperty(options, NEGATIVE_CACHE_TTL_PROPERTY_NAME, DEFAULT_NEGATIVE_CACHE_TTL);
+    this.rejectedCodes = negativeCacheSize <= 0 || negativeCacheTtl <= 0 ? null
+            : new ExpiringCache<String, Boolean>(negativeCacheSize, negativeCacheTtl, TimeUnit.SECONDS);
+    if (rejectedCodes != null) {
+      final ExpiringCache<String, Boolean> rejected = rejectedCodes;
+      metrics.publish("RejectedCodeCount", new AuthMetrics.Attribute<Long>() {
+        @Override
+        public Long get() {
+          return rejected.getHitCount();
+        }
+      });
+    }
+    final int rateLimit = retrieveOptionalIntProperty(options, RATE_LIMIT_PROPERTY_NAME, DEFAULT_RATE_LIMIT);
+    this.rateLimiter = rateLimit <= 0 ? null : new ClientRateLimiter(rateLimit,
+            Math.max(1, retrieveOptionalIntProperty(options, RATE_LIMIT_BURST_PROPERTY_NAME, DEFAULT_RATE_LIMIT_BURST)),
+            Math.max(1, retrieveOptionalIntProperty(options, RATE_LIMIT_CLIENTS_PROPERTY_NAME, DEFAULT_RATE_LIMIT_CLIENTS)));
+    this.rateLimitHeader = retrieveOptionalProperty(options, RATE_LIMIT_HEADER_PROPERTY_NAME, null);
+    this.rateLimitTrustedProxies = new HashSet<String>();
+    for (final String proxy : retrieveOptionalProperty(options, RATE_LIMIT_TRUSTED_PROXIES_PROPERTY_NAME, "").split(",")) {
+      if (!proxy.trim().isEmpty()) {
+        rateLimitTrustedProxies.add(proxy.trim());
+      }
+    }
+    if (rateLimiter != null) {
+      rateLimiter.publishMetrics(metrics);
+    }
+    final int userInfoCacheSize = retrieveOptionalIntProperty(options, USERINFO_CACHE_SIZE_PROPERTY_NAME, 0);
+    if (userInfoCacheSize > 0) {
+      this.userInfoCache = new ExpiringCache<String, GoogleUserInfo>(userInfoCacheSize,
+              retrieveOptionalIntProperty(options, USERINFO_CACHE_TTL_PROPERTY_NAME, DEFAULT_USERINFO_CACHE_TTL), TimeUnit.SECONDS);
+    } else {
+      this.userInfoCache = null;
+    }
+    if (groupCache != null) {
+      groupCache.shutdown();
+      groupCache = null;
+    }
+    final int groupCacheSize = retrieveOptionalIntProperty(options, GROUP_CACHE_SIZE_PROPERTY_NAME, 0);
+    if (groupCacheSize > 0) {
+      final int groupCacheTtl = retrieveOptionalIntProperty(options, GROUP_CACHE_TTL_PROPERTY_NAME, DEFAULT_GROUP_CACHE_TTL);
+      this.groupCache = new GroupCache(groupCacheSize, groupCacheTtl,
+              retrieveOptionalIntProperty(options, GROUP_CACHE_REFRESH_PROPERTY_NAME, groupCacheTtl / 2),
+              new GroupCache.GroupLoader() {
+        @Override
+        public List<String> load(final GoogleUserInfo googleUserInfo) throws AuthException {
+          return resolveLoginContextGroups(googleUserInfo);
+        }
+      });
+    }
+    if (parallelLookup != null) {
+      parallelLookup.shutdown();
+      parallelLookup = null;
+    }
+    if (Boolean.parseBoolean(retrieveOptionalProperty(options, PARALLEL_GROUPS_PROPERTY_NAME, Boolean.toString(false)))) {
+      try {
+        this.parallelLookup = new ParallelLookup(
+                retrieveOptionalIntProperty(options, PARALLEL_GROUPS_THREADS_PROPERTY_NAME, DEFAULT_PARALLEL_GROUPS_THREADS));
+      } catch (IllegalArgumentException ex) {
+        throw invalidPropertyException(PARALLEL_GROUPS_THREADS_PROPERTY_NAME, ex);
+      }
+    }
+    if (parallelLookup != null) {
+      parallelLookup.publishMetrics(metrics);
+    }
+    if (idTokenVerifier != null) {
+      idTokenVerifier.stopBackgroundRefresh();
+      idTokenVerifier = null;
+    }
+    if (Boolean.parseBoolean(retrieveOptionalProperty(options, ID_TOKEN_VERIFICATION_PROPERTY_NAME, Boolean.toString(false)))) {
+      final URI keysUri;
+      try {
+        keysUri = new URI(retrieveOptionalProperty(options, ID_TOKEN_KEYS_URI_PROPERTY_NAME, GoogleApiUtils.ID_TOKEN_KEYS_URI));
+      } catch (URISyntaxException ex) {
+        throw invalidPropertyException(ID_TOKEN_KEYS_URI_PROPERTY_NAME, ex);
+      }
+      this.idTokenVerifier = new IdTokenVerifier(httpClient, keysUri, clientid);
+      final int keysRefresh = retrieveOptionalIntProperty(options, ID_TOKEN_KEYS_REFRESH_PROPERTY_NAME, DEFAULT_ID_TOKEN_KEYS_REFRESH);
+      if (keysRefresh > 0) {
+        idTokenVerifier.startBackgroundRefresh(keysRefresh);
+      }
+    }
+    if (userInfoCache != null || idTokenVerifier != null || parallelLookup != null) {
+      //the id_token identifies the user before userinfo is called
+      this.scope = GoogleApiUtils.TOKEN_API_OPENID_SCOPE_VALUE + " " + GoogleApiUtils.TOKEN_API_DEFAULT_SCOPE_VALUE;
+    } else {
+      this.scope = GoogleApiUtils.TOKEN_API_DEFAULT_SCOPE_VALUE;
+    }
+    if (Boolean.parseBoolean(retrieveOptionalProperty(options, BEARER_TOKENS_PROPERTY_NAME, Boolean.toString(false)))) {
+      final URI tokenInfoUri;
+      try {
+        tokenInfoUri = new URI(retrieveOptionalProperty(options, TOKENINFO_URI_PROPERTY_NAME, GoogleApiUtils.TOKENINFO_API_URI));
+      } catch (URISyntaxException ex) {
+        throw invalidPropertyException(TOKENINFO_URI_PROPERTY_NAME, ex);
+      }
+      final Set<String> audiences = new HashSet<String>();
+      audiences.add(clientid);
+      for (final String audience : retrieveOptionalProperty(options, BEARER_AUDIENCES_PROPERTY_NAME, "").split(",")) {
+        if (!audience.trim().isEmpty()) {
+          audiences.add(audience.trim());
+        }
+      }
+      this.bearerAuthenticator = new BearerAuthenticator(googleClient, tokenInfoUri, audiences,
+              retrieveOptionalIntProperty(options, BEARER_CACHE_SIZE_PROPERTY_NAME, DEFAULT_BEARER_CACHE_SIZE),
+              TimeUnit.SECONDS.toMillis(Math.max(0, negativeCacheTtl)),
+              new GroupCache.GroupLoader() {
+        @Override
+        public List<String> load(final GoogleUserInfo googleUserInfo) throws AuthException {
+          //the group rules are applied per request, see handleBearerRequest
+          return loginContextGroupsOf(googleUserInfo);
+        }
+      }, metrics.bearerValidation);
+    } else {
+      this.bearerAuthenticator = null;
+    }
+    if (bearerAuthenticator != null) {
+      bearerAuthenticator.publishMetrics(metrics);
+    }
+    if (tokenRefresher != null) {
+      tokenRefresher.shutdown();
+      tokenRefresher = null;
+    }
+    if (Boolean.parseBoolean(retrieveOptionalProperty(options, OFFLINE_ACCESS_PROPERTY_NAME, Boolean.toString(false)))) {
+      this.accessType = GoogleApiUtils.TOKEN_API_OFFLINE_ACCESS_TYPE_VALUE;
+      this.approvalPrompt = retrieveOptionalProperty(options, OFFLINE_ACCESS_APPROVAL_PROMPT_PROPERTY_NAME, null);
+      try {
+        this.tokenRefresher = new TokenRefresher(googleClient, tokenUri, clientid, clientSecret,
+                retrieveOptionalIntProperty(options, TOKEN_REFRESH_AHEAD_PROPERTY_NAME, DEFAULT_TOKEN_REFRESH_AHEAD),
+                retrieveOptionalIntProperty(options, TOKEN_REFRESH_BATCH_PROPERTY_NAME, DEFAULT_TOKEN_REFRESH_BATCH),
+                retrieveOptionalIntProperty(options, TOKEN_REFRESH_RETENTION_PROPERTY_NAME, DEFAULT_TOKEN_REFRESH_RETENTION),
+                metrics.tokenRefresh);
+      } catch (IllegalArgumentException ex) {
+        throw invalidPropertyException(TOKEN_REFRESH_BATCH_PROPERTY_NAME, ex);
+      }
+      final int refreshInterval = retrieveOptionalIntProperty(options, TOKEN_REFRESH_INTERVAL_PROPERTY_NAME, DEFAULT_TOKEN_REFRESH_INTERVAL);
+      if (refreshInterval > 0) {
+        tokenRefresher.start(refreshInterval);
+      }
+    } else {
+      this.accessType = null;
+      this.approvalPrompt = null;
+    }
+    if (tokenRefresher != null) {
+      tokenRefresher.publishMetrics(metrics);
+    }
+    final String stateMode = retrieveOptionalProperty(options, STATE_MODE_PROPERTY_NAME, STATE_MODE_SESSION);
+    if (STATE_MODE_COOKIE.equals(stateMode)) {
+      try {
+        this.cookieCodec = new SignedCookieCodec(retrieveRequiredProperty(options, COOKIE_KEYS_PROPERTY_NAME),
+                Boolean.parseBoolean(retrieveOptionalProperty(options, COOKIE_ENCRYPT_PROPERTY_NAME, Boolean.toString(false))));
+      } catch (IllegalArgumentException ex) {
+        throw invalidPropertyException(COOKIE_KEYS_PROPERTY_NAME, ex);
+      }
+      this.cookieName = retrieveOptionalProperty(options, COOKIE_NAME_PROPERTY_NAME, DEFAULT_COOKIE_NAME);
+      this.cookieMaxAge = retrieveOptionalIntProperty(options, COOKIE_MAX_AGE_PROPERTY_NAME, DEFAULT_COOKIE_MAX_AGE);
+      this.stateStore = null;
+    } else if (STATE_MODE_OFFHEAP.equals(stateMode)) {
+      this.cookieCodec = null;
+      try {
+        this.stateStore = new OffHeapStateStore(
+                retrieveOptionalIntProperty(options, OFFHEAP_CAPACITY_PROPERTY_NAME, DEFAULT_OFFHEAP_CAPACITY),
+                retrieveOptionalIntProperty(options, OFFHEAP_RECORD_SIZE_PROPERTY_NAME, DEFAULT_OFFHEAP_RECORD_SIZE),
+                retrieveOptionalProperty(options, COOKIE_NAME_PROPERTY_NAME, DEFAULT_COOKIE_NAME),
+                retrieveOptionalIntProperty(options, COOKIE_MAX_AGE_PROPERTY_NAME, DEFAULT_COOKIE_MAX_AGE));
+      } catch (IllegalArgumentException ex) {
+        throw invalidPropertyException(OFFHEAP_CAPACITY_PROPERTY_NAME, ex);
+      } catch (OutOfMemoryError ex) {
+        //-XX:MaxDirectMemorySize is too small
+        throw invalidPropertyException(OFFHEAP_CAPACITY_PROPERTY_NAME, new IllegalArgumentException("Unable to allocate direct memory", ex));
+      }
+    } else if (STATE_MODE_SESSION.equals(stateMode)) {
+      this.cookieCodec = null;
+      this.stateStore = createStateStore(retrieveOptionalProperty(options, STATE_STORE_CLASS_PROPERTY_NAME, null));
+    } else {
+      throw invalidPropertyException(STATE_MODE_PROPERTY_NAME, new IllegalArgumentException(stateMode));
+    }
+    this.loginContextName = retrieveOptionalProperty(options, LEARNING_CONTEXT_KEY, GoogleOAuthServerAuthModule.class.getName());
+    //fail fast on a bad configuration; a new LoginContext is created for each authentication
+    this.loginContextConfigured = createLoginContext(loginContextName, new GoogleOAuthCallbackHandler()) != null;
+
+    if (groupCache != null) {
+      groupCache.publishMetrics(metrics);
+    }
+    //JASPIC has no destroy hook, a registered MBean pins the module (and the webapp classloader) until unregistered
+    if (Boolean.parseBoolean(retrieveOptionalProperty(options, JMX_PROPERTY_NAME, Boolean.toString(false)))) {
+      metrics.register(retrieveOptionalProperty(options, JMX_NAME_PROPERTY_NAME, null));
+    } else {
+      metrics.unregister();
+    }
+
+    if (warmup != null) {
+      warmup.stop();
+    }
+    if (Boolean.parseBoolean(retrieveOptionalProperty(options, WARMUP_PROPERTY_NAME, Boolean.toString(false)))) {
+      this.warmup = new Warmup(Arrays.asList(endpoint, tokenUri, userInfoUri),
+              retrieveOptionalIntProperty(options, WARMUP_ITERATIONS_PROPERTY_NAME, DEFAULT_WARMUP_ITERATIONS), new Warmup.Target() {
+        @Override
+        public HttpClient httpClient() {
+          return httpClient;
+        }
+
+        @Override
+        public void prime(final int iteration) {
+          primeLogin(iteration);
+        }
+      });
+      warmup.start();
+    } else {
+      this.warmup = null;
+    }
+    if (warmup != null) {
+      warmup.publishMetrics(metrics);
+    }
 
     LOGGER.log(Level.FINE, "{0} initialized", new Object[]{GoogleOAuthServerAuthModule.class.getSimpleName()});
   }
 
+  /**
+   * Runs what a login does apart from calling Google and the LoginContext, with synthetic input and without touching
+   * any state, so the JIT compiles it before the first users arrive.
+   */
+  void primeLogin(final int iteration) {
+    //a host of its own, the templates of the application aren't cached
+    final OAuthTemplates oauthTemplates = new OAuthTemplates("https", "warmup" + (iteration & 7) + ".invalid", 443, "/app",
+            oauthAuthenticationCallbackUri, endpoint, clientid, clientSecret, scope, accessType, approvalPrompt);
+    oauthTemplates.buildTokenRequestBody("4/warmup" + iteration);
+    ParseUtils.parseAccessTokenJson(WARMUP_TOKEN_JSON);
+    final GoogleUserInfo googleUserInfo = ParseUtils.parseGoogleUserInfoJson(WARMUP_USERINFO_JSON);
+    final List<String> groups = buildGroupNames(googleUserInfo, Collections.<Principal>emptyList());
+    final byte[] state = new AuthenticationSnapshot(googleUserInfo, groups, System.currentTimeMillis()).toBytes();
+    AuthenticationSnapshot.fromBytes(cookieCodec == null ? state : cookieCodec.decode(cookieName, cookieCodec.encode(cookieName, state)));
+  }
+
+  /**
+   * @return admission control of OAuth callbacks or null if disabled
+   */
+  CallbackAdmission getCallbackAdmission() {
+    return callbackAdmission;
+  }
+
+  /**
+   * @return warm-up started by initialize or null if disabled
+   */
+  Warmup getWarmup() {
+    return warmup;
+  }
+
+  void setHttpClient(final HttpClient httpClient) {
+    this.httpClient = httpClient;
+    if (circuitBreaker != null) {
+      final GuardedHttpClient guardedHttpClient = new GuardedHttpClient(httpClient, circuitBreaker, bulkheadMaxCalls);
+      this.googleClient = guardedHttpClient;
+      guardedHttpClient.publishMetrics(metrics);
+    } else {
+      this.googleClient = httpClient;
+      metrics.withdraw("CircuitBreakerState", "CircuitBreakerRejectedCount", "BulkheadRejectedCount");
+    }
+    if (idTokenVerifier != null) {
+      idTokenVerifier.setHttpClient(httpClient);
+    }
+    if (tokenRefresher != null) {
+      tokenRefresher.setHttpClient(googleClient);
+    }
+    if (bearerAuthenticator != null) {
+      bearerAuthenticator.setHttpClient(googleClient);
+    }
+  }
+
   static AuthException wrapException(final String message, final LoginException loginException) {
     LOGGER.log(Level.FINE, "wrapException({0},{1})", new Object[]{message, loginException});
     final AuthException authException = new AuthException(message);
@@ -134,9 +714,24 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
    * @throws AuthException thrown when LoginException is thrown during LoginContext creation
    */
   LoginContext createLoginContext(final String loginContextName, final GoogleOAuthCallbackHandler googleOAuthCallbackHandler) throws AuthException {
+    return createLoginContext(loginContextName, null, googleOAuthCallbackHandler);
+  }
+
+  /**
+   * Creates a LoginContext for an existing subject. If No LoginModules configured for loginContextName, null is
+   * returned.
+   *
+   * @param loginContextName name of the LoginContext to use
+   * @param subject subject to use, if null a new subject will be created by the LoginContext
+   * @param googleOAuthCallbackHandler handler to pass to loginContext
+   * @return LoginContext for loginContextName or null
+   * @throws AuthException thrown when LoginException is thrown during LoginContext creation
+   */
+  LoginContext createLoginContext(final String loginContextName, final Subject subject, final GoogleOAuthCallbackHandler googleOAuthCallbackHandler) throws AuthException {
     try {
-      final LoginContext createdLoginContext =
-              new LoginContext(loginContextName, googleOAuthCallbackHandler);
+      final LoginContext createdLoginContext = subject == null
+              ? new LoginContext(loginContextName, googleOAuthCallbackHandler)
+              : new LoginContext(loginContextName, subject, googleOAuthCallbackHandler);
       return createdLoginContext;
     } catch (LoginException ex) {
       if (ignoreMissingLoginContext && ex.getMessage().contains("No LoginModules configured")) {
@@ -159,14 +754,41 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
 
   @Override
   public AuthStatus validateRequest(MessageInfo messageInfo, Subject clientSubject, Subject serviceSubject) throws AuthException {
-    LOGGER.log(Level.FINER, "validateRequest({0}, {1}, {2})", new Object[]{messageInfo, clientSubject, serviceSubject});
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.log(Level.FINER, "validateRequest({0}, {1}, {2})", new Object[]{messageInfo, clientSubject, serviceSubject});
+    }
 
     final HttpServletRequest request = (HttpServletRequest) messageInfo.getRequestMessage();
     final HttpServletResponse response = (HttpServletResponse) messageInfo.getResponseMessage();
 
+    final AuthStatus status;
+    try {
+      status = dispatchRequest(messageInfo, request, response, clientSubject);
+    } catch (AuthException ex) {
+      metrics.recordException();
+      throw ex;
+    } catch (RuntimeException ex) {
+      metrics.recordException();
+      throw ex;
+    }
+    if (status != AuthStatus.SEND_CONTINUE || request.getAttribute(ASYNC_CALLBACK_ATTRIBUTE) == null) {
+      metrics.recordOutcome(status);
+    }
+    //else suspended, the outcome is recorded once the callback is finished
+    return status;
+  }
+
+  AuthStatus dispatchRequest(final MessageInfo messageInfo, final HttpServletRequest request, final HttpServletResponse response, final Subject clientSubject) throws AuthException {
     if (isOauthResponse(request)) {
       return handleOauthResponse(messageInfo, request, response, clientSubject);
-    } else if (isMandatory(messageInfo)) {
+    }
+    if (bearerAuthenticator != null) {
+      final String bearerToken = BearerAuthenticator.extractToken(request.getHeader(BearerAuthenticator.AUTHORIZATION_HEADER));
+      if (bearerToken != null) {
+        return handleBearerRequest(messageInfo, request, response, clientSubject, bearerToken);
+      }
+    }
+    if (isMandatory(messageInfo)) {
       return handleMandatoryRequest(messageInfo, request, response, clientSubject);
     } else {
       return AuthStatus.SUCCESS;
@@ -181,11 +803,55 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
       //FIXME add an error page configuration  and return SEND_FAILURE (how do you use FAILURE?  it returns blank page)
       return AuthStatus.FAILURE;
     } else {
-      final String redirectUri = buildRedirectUri(request);
-      final AccessTokenInfo accessTokenInfo = GoogleApiUtils.lookupAccessTokenInfo(redirectUri, authorizationCode, clientid, clientSecret);
-      LOGGER.log(Level.FINE, "Access Token: {0}", new Object[]{accessTokenInfo});
+      final GoogleUserInfo googleUserInfo;
+      if (isRejectedCode(authorizationCode) || isRateLimited(request, response)) {
+        //checked before the callback is suspended, the exchange would be wasted
+        return AuthStatus.SEND_FAILURE;
+      } else if (!admitCallback(response)) {
+        return AuthStatus.SEND_FAILURE;
+      } else if (asyncCallbackProcessor != null && request.isAsyncSupported()) {
+        final OAuthTemplates oauthTemplates = templatesFor(request);
+        //released by whichever of the exchange and the finisher is done first, the finisher may run without the other
+        final AtomicBoolean admitted = new AtomicBoolean(true);
+        LOGGER.log(Level.FINE, "suspending callback for asynchronous token exchange");
+        request.setAttribute(ASYNC_CALLBACK_ATTRIBUTE, Boolean.TRUE);
+        asyncCallbackProcessor.start(request, response, new Callable<GoogleUserInfo>() {
+          @Override
+          public GoogleUserInfo call() {
+            try {
+              return exchangeAuthorizationCode(oauthTemplates, authorizationCode, request);
+            } finally {
+              releaseCallback(admitted);
+            }
+          }
+        }, new AsyncCallbackProcessor.Finisher() {
+          @Override
+          public void finish(final HttpServletRequest callback, final HttpServletResponse callbackResponse,
+                  final AsyncCallbackProcessor.Result result) throws AuthException {
+            releaseCallback(admitted);
+            finishAsyncCallback(messageInfo, callback, callbackResponse, clientSubject, result);
+          }
+        });
+        return AuthStatus.SEND_CONTINUE;
+      } else {
+        try {
+          googleUserInfo = exchangeAuthorizationCode(templatesFor(request), authorizationCode, request);
+        } catch (RejectedExecutionException ex) {
+          return googleUnavailable(response, ex);
+        } catch (IllegalStateException ex) {
+          return googleUnavailable(response, ex);
+        } catch (IllegalArgumentException ex) {
+          LOGGER.log(Level.WARNING, "Unable to parse response from Google: {0}", ex.toString());
+          return AuthStatus.SEND_FAILURE;
+        } catch (GroupResolutionException ex) {
+          throw ex.getAuthException();
+        } finally {
+          if (callbackAdmission != null) {
+            callbackAdmission.release();
+          }
+        }
+      }
 
-      final GoogleUserInfo googleUserInfo = GoogleApiUtils.retrieveGoogleUserInfo(accessTokenInfo);
       if (googleUserInfo == null) {
         //FIXME handle failure better
         return AuthStatus.SEND_FAILURE;
@@ -196,22 +862,432 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
     }
   }
 
-  void authenticate(final MessageInfo messageInfo, final HttpServletRequest request, final HttpServletResponse response, final Subject subject, final GoogleUserInfo googleUserInfo) throws AuthException {
-    final StateHelper stateHelper = new StateHelper(request);
+  /**
+   * Finishes a callback suspended for the asynchronous token exchange, on the thread which did the exchange. The user
+   * is authenticated like a synchronous callback: the caller and group principals are handed to the container's
+   * callback handler for clientSubject, the snapshot is saved and the user redirected to the original request path,
+   * which is then authenticated from the saved snapshot.
+   */
+  void finishAsyncCallback(final MessageInfo messageInfo, final HttpServletRequest request, final HttpServletResponse response,
+          final Subject clientSubject, final AsyncCallbackProcessor.Result result) throws AuthException {
+    final GoogleUserInfo googleUserInfo;
+    try {
+      googleUserInfo = result.get();
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof RejectedExecutionException || ex.getCause() instanceof IllegalStateException
+              || ex.getCause() instanceof TimeoutException) {
+        metrics.recordOutcome(googleUnavailable(response, (Exception) ex.getCause()));
+        return;
+      } else if (ex.getCause() instanceof IllegalArgumentException) {
+        LOGGER.log(Level.WARNING, "Unable to parse response from Google: {0}", ex.getCause().toString());
+        metrics.recordOutcome(AuthStatus.SEND_FAILURE);
+        response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+        return;
+      }
+      metrics.recordException();
+      if (ex.getCause() instanceof GroupResolutionException) {
+        throw ((GroupResolutionException) ex.getCause()).getAuthException();
+      } else if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      } else if (ex.getCause() instanceof Error) {
+        throw (Error) ex.getCause();
+      } else {
+        throw new IllegalStateException("Unable to process OAuth callback", ex.getCause());
+      }
+    }
 
-    googleOAuthCallbackHandler.setGoogleUserInfo(googleUserInfo);
+    if (googleUserInfo == null) {
+      metrics.recordOutcome(AuthStatus.SEND_FAILURE);
+      response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+    } else {
+      try {
+        authenticate(messageInfo, request, response, clientSubject, googleUserInfo);
+      } catch (AuthException ex) {
+        metrics.recordException();
+        throw ex;
+      } catch (RuntimeException ex) {
+        metrics.recordException();
+        throw ex;
+      }
+      metrics.recordOutcome(AuthStatus.SEND_CONTINUE);
+    }
+  }
 
-    final Subject lcSubject = loginWithLoginContext();
+  /**
+   * The call to Google was rejected (circuit breaker open, bulkhead or callback queue full), failed or timed out. Answered with
+   * 503 and Retry-After, like a callback refused by {@link #admitCallback}.
+   */
+  private AuthStatus googleUnavailable(final HttpServletResponse response, final Exception ex) {
+    LOGGER.log(Level.WARNING, "Unable to complete call to Google: {0}", ex.toString());
+    response.setHeader("Retry-After", Integer.toString(callbackRetryAfter));
+    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    return AuthStatus.SEND_FAILURE;
+  }
 
-    LOGGER.log(Level.FINE, "Subject from Login Context: {0}", lcSubject);
+  /**
+   * Takes a slot for a callback waiting on Google in the container thread. A callback over the limit is answered with
+   * 503 and Retry-After at once, instead of holding a thread other requests need.
+   *
+   * @return true if the callback may go on, it then has to release the slot
+   */
+  private boolean admitCallback(final HttpServletResponse response) {
+    if (callbackAdmission == null || callbackAdmission.acquire()) {
+      return true;
+    }
+    LOGGER.log(Level.FINE, "Refusing callback, {0} in progress", callbackAdmission.getInProgress());
+    response.setHeader("Retry-After", Integer.toString(callbackRetryAfter));
+    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    return false;
+  }
+
+  /**
+   * Gives back the slot of an asynchronous callback, once.
+   */
+  private void releaseCallback(final AtomicBoolean admitted) {
+    if (callbackAdmission != null && admitted.compareAndSet(true, false)) {
+      callbackAdmission.release();
+    }
+  }
+
+  /**
+   * @return true if the code is missing or was recently rejected by Google, it won't be accepted now either
+   */
+  private boolean isRejectedCode(final String authorizationCode) {
+    if (authorizationCode == null || authorizationCode.isEmpty()) {
+      LOGGER.log(Level.FINE, "Ignoring callback without an authorization code");
+      return true;
+    } else if (rejectedCodes == null || rejectedCodes.get(authorizationCode) == null) {
+      return false;
+    }
+    LOGGER.log(Level.FINE, "Ignoring callback with a rejected authorization code");
+    return true;
+  }
 
-    final List<String> groups = buildGroupNames(googleUserInfo, lcSubject.getPrincipals());
+  /**
+   * Charges a call to Google to the client of request. A client over its rate is answered with 429 and
+   * Retry-After.
+   *
+   * @return true if the client is over its rate
+   */
+  private boolean isRateLimited(final HttpServletRequest request, final HttpServletResponse response) {
+    if (rateLimiter == null) {
+      return false;
+    }
+    final String client = clientAddress(request);
+    final long retryAfter = rateLimiter.tryAcquire(client);
+    if (retryAfter == 0) {
+      return false;
+    }
+    LOGGER.log(Level.FINE, "Rate limiting {0}", client);
+    response.setHeader("Retry-After", Long.toString(retryAfter));
+    response.setStatus(SC_TOO_MANY_REQUESTS);
+    return true;
+  }
+
+  /**
+   * Proxies append the address they received the request from, so only the right-most entries of the
+   * rate_limit_header are trustworthy; anything to the left of them may have been sent by the client.
+   *
+   * @return right-most address of the rate_limit_header which isn't a trusted proxy (the left-most if all of them
+   * are) if configured and present, otherwise the remote address
+   */
+  private String clientAddress(final HttpServletRequest request) {
+    if (rateLimitHeader != null) {
+      final String forwarded = request.getHeader(rateLimitHeader);
+      if (forwarded != null) {
+        String client = null;
+        final String[] addresses = forwarded.split(",");
+        for (int i = addresses.length - 1; i >= 0; i--) {
+          final String address = addresses[i].trim();
+          if (!address.isEmpty()) {
+            client = address;
+            if (!rateLimitTrustedProxies.contains(address)) {
+              break;
+            }
+          }
+        }
+        if (client != null) {
+          return client;
+        }
+      }
+    }
+    return String.valueOf(request.getRemoteAddr());
+  }
+
+  /**
+   * Authenticates an API client by its bearer token. Requests with an invalid token are answered with 401, whether
+   * or not the resource is protected, as RFC 6750 asks. Only tokens which have to be validated with Google count
+   * against the rate limit of the client.
+   */
+  AuthStatus handleBearerRequest(final MessageInfo messageInfo, final HttpServletRequest request, final HttpServletResponse response,
+          final Subject clientSubject, final String bearerToken) throws AuthException {
+    AuthenticationSnapshot snapshot = bearerAuthenticator.cached(bearerToken);
+    if (snapshot == null) {
+      if (isRateLimited(request, response)) {
+        return AuthStatus.SEND_FAILURE;
+      }
+      try {
+        snapshot = bearerAuthenticator.validate(bearerToken);
+      } catch (RejectedExecutionException ex) {
+        return googleUnavailable(response, ex);
+      } catch (IllegalStateException ex) {
+        return googleUnavailable(response, ex);
+      }
+    }
+    if (BearerAuthenticator.isInvalid(snapshot)) {
+      response.setHeader("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+      response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+      return AuthStatus.SEND_FAILURE;
+    }
+    //no GoogleCredential: the browser login's token may carry scopes the client of this token wasn't granted
+    final GoogleUserInfo googleUserInfo = snapshot.toGoogleUserInfo();
+    setCallerPrincipal(clientSubject, googleUserInfo, applyGroupRules(googleUserInfo, snapshot.getGroups()));
+    messageInfo.getMap().put(AUTH_TYPE_INFO_KEY, AUTH_TYPE_GOOGLE_OAUTH_KEY);
+    return AuthStatus.SUCCESS;
+  }
+
+  /**
+   * Exchanges the authorization code for an access token and uses it to look up the user.
+   *
+   * @param oauthTemplates templates for where the callback was received
+   * @param authorizationCode code from the OAuth callback
+   * @return user info or null if either call was not successful
+   */
+  GoogleUserInfo exchangeAuthorizationCode(final OAuthTemplates oauthTemplates, final String authorizationCode) {
+    return exchangeAuthorizationCode(oauthTemplates, authorizationCode, null);
+  }
+
+  /**
+   * Exchanges the authorization code for an access token and uses it to look up the user. With parallel_groups, the
+   * groups of the user may be resolved at the same time; they are then left in request for
+   * {@link #authenticate}.
+   *
+   * @param oauthTemplates templates for where the callback was received
+   * @param authorizationCode code from the OAuth callback
+   * @param request callback request or null to only look up the user
+   * @return user info or null if either call was not successful
+   * @throws GroupResolutionException if the groups resolved in parallel couldn't be
+   * @throws IllegalArgumentException if a response of Google couldn't be parsed
+   */
+  GoogleUserInfo exchangeAuthorizationCode(final OAuthTemplates oauthTemplates, final String authorizationCode, final HttpServletRequest request) {
+    final String flightKey = codeExchanges == null || authorizationCode == null ? null : flightKey(request, authorizationCode);
+    if (flightKey == null) {
+      return exchangeAuthorizationCodeOnce(oauthTemplates, authorizationCode, request);
+    }
+    //a code can only be redeemed once, a reloaded or prefetched callback has to share the first exchange
+    return codeExchanges.execute(flightKey, new Callable<GoogleUserInfo>() {
+      @Override
+      public GoogleUserInfo call() {
+        return exchangeAuthorizationCodeOnce(oauthTemplates, authorizationCode, request);
+      }
+    });
+  }
+
+  /**
+   * Only callbacks of the client which started the login share an exchange, a callback URL leaked to someone else
+   * mustn't hand them the user.
+   *
+   * @return key of the exchange or null if the callback has nothing to tie it to the client
+   */
+  private String flightKey(final HttpServletRequest request, final String authorizationCode) {
+    final String loginId = request == null ? null : loginId(request);
+    return loginId == null ? null : loginId + ' ' + authorizationCode;
+  }
+
+  /**
+   * @return what the client was given when it was sent to Google: the original request path cookie in cookie mode
+   * (it carries a nonce), the state cookie in offheap mode, otherwise the session id; null if there is none
+   */
+  private String loginId(final HttpServletRequest request) {
+    if (cookieCodec != null) {
+      return createCookieStateHelper(request, null).findLoginId();
+    }
+    if (stateStore instanceof OffHeapStateStore) {
+      final String clientId = ((OffHeapStateStore) stateStore).findClientId(request);
+      if (clientId != null) {
+        return clientId;
+      }
+    }
+    final HttpSession session = request.getSession(false);
+    return session == null ? null : session.getId();
+  }
+
+  /**
+   * Remembers a code the token endpoint refused, a callback repeating it is rejected without calling Google. Codes
+   * are only remembered when refused: after a failure further on (userinfo, a server error) the code may still be
+   * valid.
+   */
+  private void rejectCode(final String authorizationCode) {
+    if (authorizationCode != null && rejectedCodes != null) {
+      rejectedCodes.put(authorizationCode, Boolean.TRUE);
+    }
+  }
+
+  private GoogleUserInfo exchangeAuthorizationCodeOnce(final OAuthTemplates oauthTemplates, final String authorizationCode,
+          final HttpServletRequest request) {
+    final long tokenStart = System.nanoTime();
+    final AccessTokenInfo accessTokenInfo;
+    boolean completed = false;
+    try {
+      accessTokenInfo = GoogleApiUtils.lookupAccessTokenInfo(googleClient, tokenUri, oauthTemplates.buildTokenRequestBody(authorizationCode));
+      completed = true;
+    } finally {
+      //failed and timed out exchanges are the slow ones, they are recorded too
+      metrics.tokenExchange.recordSince(tokenStart);
+      if (callbackAdmission != null) {
+        callbackAdmission.recordExchange(System.nanoTime() - tokenStart, completed);
+      }
+    }
+    LOGGER.log(Level.FINE, "Access Token: {0}", new Object[]{accessTokenInfo});
+    if (accessTokenInfo == null) {
+      rejectCode(authorizationCode);
+      return null;
+    }
+    final GoogleUserInfo googleUserInfo = identifyUser(accessTokenInfo, request);
+    if (tokenRefresher != null && googleUserInfo != null && googleUserInfo.getEmail() != null) {
+      tokenRefresher.register(googleUserInfo.getEmail(), accessTokenInfo);
+    }
+    return googleUserInfo;
+  }
+
+  private GoogleUserInfo identifyUser(final AccessTokenInfo accessTokenInfo, final HttpServletRequest request) {
+    if (idTokenVerifier != null && accessTokenInfo.getIdToken() != null) {
+      if (idTokenVerifier.hasKeys()) {
+        //the verified claims identify the user, no need to call userinfo
+        return idTokenVerifier.verify(accessTokenInfo.getIdToken());
+      }
+      LOGGER.log(Level.WARNING, "No id_token keys available, identifying user with userinfo");
+    }
+    if (userInfoCache == null) {
+      return retrieveGoogleUserInfo(accessTokenInfo, request);
+    }
+
+    final String googleId = ParseUtils.parseIdTokenSubject(accessTokenInfo.getIdToken());
+    if (googleId != null) {
+      final GoogleUserInfo cached = userInfoCache.get(googleId);
+      if (cached != null) {
+        LOGGER.log(Level.FINE, "Using cached user info for {0}", googleId);
+        return cached;
+      }
+    }
+    final GoogleUserInfo googleUserInfo = retrieveGoogleUserInfo(accessTokenInfo, request);
+    if (googleUserInfo != null && googleUserInfo.getId() != null) {
+      userInfoCache.put(googleUserInfo.getId(), googleUserInfo);
+    }
+    return googleUserInfo;
+  }
+
+  /**
+   * Fetches the user info, resolving the groups of the user at the same time if parallel_groups is enabled and the
+   * id_token identifies the user.
+   */
+  private GoogleUserInfo retrieveGoogleUserInfo(final AccessTokenInfo accessTokenInfo, final HttpServletRequest request) {
+    final GoogleUserInfo identified = parallelLookup == null || request == null ? null
+            : ParseUtils.parseIdTokenUserInfo(accessTokenInfo.getIdToken());
+    if (identified == null) {
+      return retrieveGoogleUserInfo(accessTokenInfo);
+    }
+    final ParallelLookup.Result result;
+    try {
+      result = parallelLookup.lookup(new Callable<GoogleUserInfo>() {
+        @Override
+        public GoogleUserInfo call() {
+          return retrieveGoogleUserInfo(accessTokenInfo);
+        }
+      }, new Callable<List<String>>() {
+        @Override
+        public List<String> call() throws AuthException {
+          return groupsOf(identified);
+        }
+      });
+    } catch (AuthException ex) {
+      throw new GroupResolutionException(ex);
+    }
+    if (result == null) {
+      //no free threads, the groups are resolved after
+      return retrieveGoogleUserInfo(accessTokenInfo);
+    }
+    final GoogleUserInfo googleUserInfo = result.getGoogleUserInfo();
+    if (googleUserInfo != null) {
+      if (identified.getEmail().equalsIgnoreCase(googleUserInfo.getEmail())) {
+        request.setAttribute(RESOLVED_GROUPS_ATTRIBUTE, result);
+      } else {
+        LOGGER.log(Level.WARNING, "id_token email {0} differs from userinfo email {1}, resolving groups again",
+                new Object[]{identified.getEmail(), googleUserInfo.getEmail()});
+      }
+    }
+    return googleUserInfo;
+  }
+
+  private GoogleUserInfo retrieveGoogleUserInfo(final AccessTokenInfo accessTokenInfo) {
+    final long start = System.nanoTime();
+    try {
+      return GoogleApiUtils.retrieveGoogleUserInfo(googleClient, userInfoUri, accessTokenInfo);
+    } finally {
+      metrics.userInfo.recordSince(start);
+    }
+  }
+
+  /**
+   * @return metrics of this module, also registered as an MBean if jmx is true
+   */
+  public AuthMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return cache of user info by Google account id or null if disabled
+   */
+  ExpiringCache<String, GoogleUserInfo> getUserInfoCache() {
+    return userInfoCache;
+  }
+
+  void authenticate(final MessageInfo messageInfo, final HttpServletRequest request, final HttpServletResponse response, final Subject subject, final GoogleUserInfo googleUserInfo) throws AuthException {
+    final List<String> groups = resolvedGroupsOf(request, googleUserInfo);
 
     setCallerPrincipal(subject, googleUserInfo, groups);
+    addGoogleCredential(subject, googleUserInfo.getEmail());
     messageInfo.getMap().put(AUTH_TYPE_INFO_KEY, AUTH_TYPE_GOOGLE_OAUTH_KEY);
-    stateHelper.saveSubject(subject);
 
-    final URI orignalRequestUri = stateHelper.extractOriginalRequestPath();
+    saveAuthentication(request, response, googleUserInfo, groups, subject);
+  }
+
+  /**
+   * @return groups resolved in parallel with the token exchange if any, otherwise the groups of the user
+   */
+  private List<String> resolvedGroupsOf(final HttpServletRequest request, final GoogleUserInfo googleUserInfo) throws AuthException {
+    final Object resolved = request.getAttribute(RESOLVED_GROUPS_ATTRIBUTE);
+    if (resolved != null) {
+      request.removeAttribute(RESOLVED_GROUPS_ATTRIBUTE);
+      return ((ParallelLookup.Result) resolved).getGroups();
+    } else {
+      return groupsOf(googleUserInfo);
+    }
+  }
+
+  /**
+   * Saves the snapshot of the authenticated user and redirects to the original request path.
+   *
+   * @param subject subject populated by the container's callback handler, null if there is none
+   */
+  private void saveAuthentication(final HttpServletRequest request, final HttpServletResponse response,
+          final GoogleUserInfo googleUserInfo, final List<String> groups, final Subject subject) {
+    final URI orignalRequestUri;
+    final long saveStart = System.nanoTime();
+    final Object saveEvent = FlightEvents.INSTANCE.begin(FlightEvents.SESSION_SAVE);
+    if (cookieCodec != null) {
+      final CookieStateHelper cookieStateHelper = createCookieStateHelper(request, response);
+      cookieStateHelper.saveSnapshot(new AuthenticationSnapshot(googleUserInfo, groups, cookieStateHelper.newExpiration()));
+      orignalRequestUri = cookieStateHelper.extractOriginalRequestPath();
+    } else {
+      final StateHelper stateHelper = new StateHelper(request, response, stateStore);
+      stateHelper.saveSnapshot(subject == null
+              ? new AuthenticationSnapshot(googleUserInfo, groups, Long.MAX_VALUE)
+              : new AuthenticationSnapshot(googleUserInfo, groups, subject));
+      orignalRequestUri = stateHelper.extractOriginalRequestPath();
+    }
+    metrics.sessionSave.recordSince(saveStart);
+    FlightEvents.INSTANCE.end(saveEvent, 0, FlightEvents.SUCCESS);
     if (orignalRequestUri != null) {
       try {
         LOGGER.log(Level.FINE, "redirecting to original request path: {0}", orignalRequestUri);
@@ -224,13 +1300,88 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
   }
 
   /**
-   * Calls login with the loginContext and the retrieves the subject.
+   * Logs in with the LoginContext.
    *
+   * @return names of the principals of the resulting subject
+   */
+  List<String> resolveLoginContextGroups(final GoogleUserInfo googleUserInfo) throws AuthException {
+    final Subject lcSubject = loginWithLoginContext(googleUserInfo);
+
+    LOGGER.log(Level.FINE, "Subject from Login Context: {0}", lcSubject);
+
+    final List<String> groups = new ArrayList<String>();
+    for (final Principal principal : lcSubject.getPrincipals()) {
+      groups.add(principal.getName());
+    }
+    return groups;
+  }
+
+  /**
+   * @return groups of the user, the group rules applied to the LoginContext groups
+   */
+  private List<String> groupsOf(final GoogleUserInfo googleUserInfo) throws AuthException {
+    return applyGroupRules(googleUserInfo, loginContextGroupsOf(googleUserInfo));
+  }
+
+  /**
+   * Only the LoginContext groups are cached, so a reload of the group rules applies to the next login of every user.
+   *
+   * @return LoginContext groups of the user, from the group cache if enabled
+   */
+  private List<String> loginContextGroupsOf(final GoogleUserInfo googleUserInfo) throws AuthException {
+    return groupCache != null ? groupCache.get(googleUserInfo) : resolveLoginContextGroups(googleUserInfo);
+  }
+
+  /**
+   * Carries an AuthException of groups resolved in parallel through the token exchange, which only throws runtime
+   * exceptions, to validateRequest.
+   */
+  static class GroupResolutionException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    GroupResolutionException(final AuthException cause) {
+      super(cause);
+    }
+
+    AuthException getAuthException() {
+      return (AuthException) getCause();
+    }
+  }
+
+  /**
+   * @return cache of group names by email or null if disabled
+   */
+  GroupCache getGroupCache() {
+    return groupCache;
+  }
+
+  /**
+   * Creates a LoginContext for googleUserInfo, calls login with it and the retrieves the subject. Each call uses its
+   * own LoginContext and callback handler, so concurrent logins do not share any state.
+   *
+   * @param googleUserInfo user being authenticated
    * @return subject of a loginContext after login
    * @throws AuthException wrapped LoginException from loginContext.login()
    */
-  Subject loginWithLoginContext() throws AuthException {
+  Subject loginWithLoginContext(final GoogleUserInfo googleUserInfo) throws AuthException {
+    final long start = System.nanoTime();
+    final Object event = FlightEvents.INSTANCE.begin(FlightEvents.LOGIN_CONTEXT);
+    String outcome = FlightEvents.FAILURE;
+    try {
+      final Subject subject = loginWithNewLoginContext(googleUserInfo);
+      outcome = FlightEvents.SUCCESS;
+      return subject;
+    } finally {
+      metrics.loginContext.recordSince(start);
+      FlightEvents.INSTANCE.end(event, 0, outcome);
+    }
+  }
 
+  private Subject loginWithNewLoginContext(final GoogleUserInfo googleUserInfo) throws AuthException {
+    final LoginContextWrapper loginContextWrapper = new LoginContextWrapper(loginContextConfigured
+            ? createLoginContext(loginContextName, new GoogleOAuthCallbackHandler(googleUserInfo))
+            : null);
     try {
       loginContextWrapper.login();
       return loginContextWrapper.getSubject();
@@ -239,74 +1390,200 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
     }
   }
 
+  /**
+   * @param className StateStore implementation with a public no argument constructor, null for the session
+   */
+  private static StateStore createStateStore(final String className) throws AuthException {
+    if (className == null) {
+      return new SessionStateStore();
+    }
+    try {
+      final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+      final Class<?> storeClass = Class.forName(className, true, classLoader != null ? classLoader : GoogleOAuthServerAuthModule.class.getClassLoader());
+      return storeClass.asSubclass(StateStore.class).newInstance();
+    } catch (ClassNotFoundException ex) {
+      throw invalidPropertyException(STATE_STORE_CLASS_PROPERTY_NAME, ex);
+    } catch (ClassCastException ex) {
+      throw invalidPropertyException(STATE_STORE_CLASS_PROPERTY_NAME, ex);
+    } catch (InstantiationException ex) {
+      throw invalidPropertyException(STATE_STORE_CLASS_PROPERTY_NAME, ex);
+    } catch (IllegalAccessException ex) {
+      throw invalidPropertyException(STATE_STORE_CLASS_PROPERTY_NAME, ex);
+    }
+  }
+
+  /**
+   * @return where session and offheap mode keep the authentication state, null in cookie mode
+   */
+  StateStore getStateStore() {
+    return stateStore;
+  }
+
+  CookieStateHelper createCookieStateHelper(final HttpServletRequest request, final HttpServletResponse response) {
+    return new CookieStateHelper(request, response, cookieCodec, cookieName, cookieMaxAge);
+  }
+
   AuthStatus handleMandatoryRequest(final MessageInfo messageInfo, final HttpServletRequest request, final HttpServletResponse response, final Subject clientSubject) throws AuthException {
-    final StateHelper stateHelper = new StateHelper(request);
+    if (cookieCodec != null) {
+      final CookieStateHelper cookieStateHelper = createCookieStateHelper(request, response);
+      final AuthenticationSnapshot snapshot = cookieStateHelper.retrieveSnapshot();
+      if (snapshot != null) {
+        LOGGER.log(Level.FINE, "Applying snapshot from cookie: {0}", snapshot);
+        setCallerPrincipal(clientSubject, snapshot.toGoogleUserInfo(), snapshot.getGroups());
+        addGoogleCredential(clientSubject, snapshot.getEmail());
+        messageInfo.getMap().put(AUTH_TYPE_INFO_KEY, AUTH_TYPE_GOOGLE_OAUTH_KEY);
+        return AuthStatus.SUCCESS;
+      }
+      cookieStateHelper.saveOriginalRequestPath();
+      return redirectToOauth(request, response);
+    }
+
+    final StateHelper stateHelper = new StateHelper(request, response, stateStore);
 
-    final Subject savedSubject = stateHelper.retrieveSavedSubject();
-    if (savedSubject != null) {
-      LOGGER.log(Level.FINE, "Applying saved subject: {0}", savedSubject);
-      applySubject(savedSubject, clientSubject);
+    final AuthenticationSnapshot snapshot = stateHelper.retrieveSnapshot();
+    if (snapshot != null) {
+      LOGGER.log(Level.FINE, "Applying saved snapshot: {0}", snapshot);
+      if (snapshot.holdsSubject()) {
+        snapshot.applyTo(clientSubject);
+      } else {
+        //the session was replicated or passivated, or the store serializes, which drops the principals; derive them
+        final GoogleUserInfo googleUserInfo = snapshot.toGoogleUserInfo();
+        setCallerPrincipal(clientSubject, googleUserInfo, snapshot.getGroups());
+        addGoogleCredential(clientSubject, snapshot.getEmail());
+        if (stateHelper.keepsSubject()) {
+          //once
+          stateHelper.saveSnapshot(new AuthenticationSnapshot(googleUserInfo, snapshot.getGroups(), clientSubject));
+        }
+      }
       return AuthStatus.SUCCESS;
     } else {
       stateHelper.saveOriginalRequestPath();
-      final String redirectUri = buildRedirectUri(request);
-      final URI oauthUri = GoogleApiUtils.buildOauthUri(redirectUri, endpoint, clientid);
-      try {
-        LOGGER.log(Level.FINE, "redirecting to {0} for OAuth", new Object[]{oauthUri});
-        response.sendRedirect(oauthUri.toString());
-      } catch (IOException ex) {
-        throw new IllegalStateException("Unable to redirect to " + oauthUri, ex);
-      }
-      return AuthStatus.SEND_CONTINUE;
+      return redirectToOauth(request, response);
+    }
+  }
+
+  AuthStatus redirectToOauth(final HttpServletRequest request, final HttpServletResponse response) {
+    final Object event = FlightEvents.INSTANCE.begin(FlightEvents.REDIRECT);
+    final String oauthUri = templatesFor(request).getAuthorizationUri();
+    try {
+      LOGGER.log(Level.FINE, "redirecting to {0} for OAuth", oauthUri);
+      response.sendRedirect(oauthUri);
+    } catch (IOException ex) {
+      FlightEvents.INSTANCE.end(event, 0, FlightEvents.ERROR);
+      throw new IllegalStateException("Unable to redirect to " + oauthUri, ex);
     }
+    FlightEvents.INSTANCE.end(event, 0, FlightEvents.SUCCESS);
+    return AuthStatus.SEND_CONTINUE;
   }
 
   /**
-   * Builds a list of group names which contain any groups from defaultGroups and any principals from LoginContext
+   * Builds a list of group names which contain the groups the group rules (default groups, domain and rules file) map
+   * the user to and any principals from LoginContext
    *
-   * @param googleUserInfo user being authenticate, the domain of the email may be used for a group
+   * @param googleUserInfo user being authenticate, the email is mapped to groups
    * @param principals principals from LoginContext
-   * @return list of groupNames for the user
+   * @return list of groupNames for the user, without duplicates
    */
   List<String> buildGroupNames(final GoogleUserInfo googleUserInfo, final Iterable<Principal> principals) {
-    final List<String> groups = new ArrayList<String>();
-
-    // add default groups if defined
-    if (!defaultGroups.isEmpty()) {
-      groups.addAll(Arrays.asList(defaultGroups.split(",")));
+    final List<String> loginContextGroups = new ArrayList<String>();
+    for (final Principal principal : principals) {
+      loginContextGroups.add(principal.getName());
     }
+    return applyGroupRules(googleUserInfo, loginContextGroups);
+  }
 
-    // add domain of email as group
-    if (addDomainAsGroup && googleUserInfo.getEmail().contains("@")) {
-      final String domain = googleUserInfo.getEmail().split("@", 2)[1];
-      groups.add(domain);
+  /**
+   * Builds a list of group names which contain the groups the group rules (default groups, domain and rules file) map
+   * the user to and the groups from LoginContext
+   *
+   * @param googleUserInfo user being authenticate, the email is mapped to groups
+   * @param loginContextGroups names of the principals from LoginContext
+   * @return list of groupNames for the user, without duplicates
+   */
+  List<String> applyGroupRules(final GoogleUserInfo googleUserInfo, final List<String> loginContextGroups) {
+    final Set<String> groups = new LinkedHashSet<String>();
+
+    if (googleUserInfo.getEmail() != null) {
+      groupMapper.addGroups(googleUserInfo.getEmail(), groups);
     }
 
     //add each principal as a group
-    for (final Principal principal : principals) {
-      groups.add(principal.getName());
-    }
+    groups.addAll(loginContextGroups);
 
-    return groups;
+    return new ArrayList<String>(groups);
   }
 
+  /**
+   * @return mapping of users to groups
+   */
+  GroupMapper getGroupMapper() {
+    return groupMapper;
+  }
+
+  /**
+   * @return true if the request is for the callback uri in this context, path parameters (;jsessionid) are allowed
+   */
   boolean isOauthResponse(final HttpServletRequest request) {
-    return request.getRequestURI().contains(oauthAuthenticationCallbackUri);//FIXME needs better check
+    final String requestUri = request.getRequestURI();
+    if (requestUri == null) {
+      return false;
+    }
+    final String callbackPath = callbackPath(request.getContextPath());
+    return requestUri.startsWith(callbackPath)
+            && (requestUri.length() == callbackPath.length() || requestUri.charAt(callbackPath.length()) == ';');
   }
 
-  String buildRedirectUri(final HttpServletRequest request) {
-    final String serverScheme = request.getScheme();
-    final String serverUserInfo = null;
-    final String serverHost = request.getServerName();
-    final int serverPort = request.getServerPort();
-    final String path = request.getContextPath() + oauthAuthenticationCallbackUri;
-    final String query = null;
-    final String serverFragment = null;
-    try {
-      return new URI(serverScheme, serverUserInfo, serverHost, serverPort, path, query, serverFragment).toString();
-    } catch (URISyntaxException ex) {
-      throw new IllegalStateException("Unable to build redirectUri", ex);
+  /**
+   * The context path doesn't change, so the full callback path is built once and reused.
+   */
+  private String callbackPath(final String contextPath) {
+    final String currentContextPath = contextPath == null ? "" : contextPath;
+    CallbackPath cached = callbackPath;
+    if (cached == null || !cached.contextPath.equals(currentContextPath)) {
+      cached = new CallbackPath(currentContextPath, currentContextPath + oauthAuthenticationCallbackUri);
+      callbackPath = cached;
     }
+    return cached.path;
+  }
+
+  private static class CallbackPath {
+
+    final String contextPath;
+    final String path;
+
+    CallbackPath(final String contextPath, final String path) {
+      this.contextPath = contextPath;
+      this.path = path;
+    }
+  }
+
+  OAuthTemplates templatesFor(final HttpServletRequest request) {
+    final String contextPath = request.getContextPath();
+    return templatesFor(request.getScheme(), request.getServerName(), request.getServerPort(), contextPath == null ? "" : contextPath);
+  }
+
+  /**
+   * The last used templates are checked first, in the common case of one host name this is all that's needed.
+   */
+  OAuthTemplates templatesFor(final String scheme, final String serverName, final int serverPort, final String contextPath) {
+    final OAuthTemplates last = lastTemplates;
+    if (last != null && last.matches(scheme, serverName, serverPort, contextPath)) {
+      return last;
+    }
+    final String key = OAuthTemplates.key(scheme, serverName, serverPort, contextPath);
+    OAuthTemplates found = templates.get(key);
+    if (found == null) {
+      found = new OAuthTemplates(scheme, serverName, serverPort, contextPath,
+              oauthAuthenticationCallbackUri, endpoint, clientid, clientSecret, scope, accessType, approvalPrompt);
+      if (templates.size() < MAX_TEMPLATES) {
+        final OAuthTemplates existing = templates.putIfAbsent(key, found);
+        if (existing != null) {
+          found = existing;
+        }
+      }
+    }
+    lastTemplates = found;
+    return found;
   }
 
   boolean setCallerPrincipal(Subject clientSubject, GoogleUserInfo googleUserInfo, List<String> groups) {
@@ -331,15 +1608,29 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
     return true;
   }
 
-  static void applySubject(final Subject source, Subject destination) {
-    destination.getPrincipals().addAll(
-            source.getPrincipals());
-    destination.getPublicCredentials().addAll(source.getPublicCredentials());
-    destination.getPrivateCredentials().addAll(source.getPrivateCredentials());
+  /**
+   * Adds the refreshed access token of name, if offline access is enabled and there is one, to the private
+   * credentials of subject.
+   */
+  private void addGoogleCredential(final Subject subject, final String name) {
+    if (tokenRefresher == null || name == null) {
+      return;
+    }
+    final GoogleCredential credential = tokenRefresher.getCredential(name);
+    if (credential != null) {
+      subject.getPrivateCredentials().add(credential);
+    }
+  }
+
+  /**
+   * @return refresher of offline access tokens or null if offline access is disabled
+   */
+  TokenRefresher getTokenRefresher() {
+    return tokenRefresher;
   }
 
   static boolean isMandatory(MessageInfo messageInfo) {
-    return Boolean.valueOf((String) messageInfo.getMap().get(IS_MANDATORY_INFO_KEY));
+    return Boolean.parseBoolean((String) messageInfo.getMap().get(IS_MANDATORY_INFO_KEY));
   }
 
   @Override
@@ -354,6 +1645,22 @@ public class GoogleOAuthServerAuthModule implements ServerAuthModule {
     subject.getPublicCredentials().clear();
     subject.getPrivateCredentials().clear();
 
+    if (messageInfo != null && messageInfo.getRequestMessage() instanceof HttpServletRequest) {
+      final HttpServletRequest request = (HttpServletRequest) messageInfo.getRequestMessage();
+      final HttpServletResponse response = (HttpServletResponse) messageInfo.getResponseMessage();
+      if (cookieCodec != null) {
+        if (response != null) {
+          createCookieStateHelper(request, response).removeSnapshot();
+        }
+      } else if (stateStore != null) {
+        //the session may outlive the logout, and in offheap mode the cookie would still authenticate
+        new StateHelper(request, response, stateStore).removeSnapshot();
+      }
+    }
+
+    final LoginContextWrapper loginContextWrapper = new LoginContextWrapper(loginContextConfigured
+            ? createLoginContext(loginContextName, subject, new GoogleOAuthCallbackHandler())
+            : null);
     try {
       loginContextWrapper.logout();
     } catch (LoginException ex) {
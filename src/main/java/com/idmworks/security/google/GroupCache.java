@@ -0,0 +1,287 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.message.AuthException;
+
+/**
+ * Caches the group names the LoginContext resolved for a user (by email) so the LoginContext, and the directory behind
+ * it, isn't consulted on every login. The group rules are cheap and applied to the cached groups on every login, so a
+ * reload of the rules takes effect at once. <br> Entries expire after the ttl. Once an entry is older than the refresh time, the
+ * cached groups are still returned but a reload is started on a background thread, so users who log in regularly
+ * never wait on the directory. Concurrent misses for the same user share one load.
+ *
+ * @author pdgreen
+ */
+class GroupCache {
+
+  private static final Logger LOGGER = Logger.getLogger(GroupCache.class.getName());
+  private static final int REFRESH_QUEUE_SIZE = 100;
+  private final ExpiringCache<String, Entry> cache;
+  private final SingleFlight<String, Entry> misses = new SingleFlight<String, Entry>(0, TimeUnit.SECONDS);
+  private final GroupLoader loader;
+  private final long refreshNanos;
+  private final ThreadPoolExecutor refresher;
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong loadFailures = new AtomicLong();
+  private final AtomicLong loadTimeNanos = new AtomicLong();
+  private final AtomicLong refreshes = new AtomicLong();
+
+  /**
+   * Resolves the LoginContext group names of a user.
+   */
+  interface GroupLoader {
+
+    List<String> load(GoogleUserInfo googleUserInfo) throws AuthException;
+  }
+
+  /**
+   * Carries the AuthException of a shared load through {@link SingleFlight}.
+   */
+  private static final class LoadFailure extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    LoadFailure(final AuthException cause) {
+      super(cause);
+    }
+
+    AuthException getAuthException() {
+      return (AuthException) getCause();
+    }
+  }
+
+  private static class Entry {
+
+    final List<String> groups;
+    final long loadedAt;
+    final AtomicBoolean refreshing = new AtomicBoolean();
+
+    Entry(final List<String> groups, final long loadedAt) {
+      this.groups = groups;
+      this.loadedAt = loadedAt;
+    }
+  }
+
+  /**
+   * @param maxSize maximum number of users cached
+   * @param ttl seconds groups are cached
+   * @param refresh seconds after which a cached entry is reloaded in the background
+   * @param loader resolves groups on a miss or refresh
+   */
+  GroupCache(final int maxSize, final int ttl, final int refresh, final GroupLoader loader) {
+    this.cache = new ExpiringCache<String, Entry>(maxSize, ttl, TimeUnit.SECONDS) {
+      @Override
+      long currentTimeNanos() {
+        return GroupCache.this.currentTimeNanos();
+      }
+    };
+    this.loader = loader;
+    this.refreshNanos = TimeUnit.SECONDS.toNanos(refresh);
+    this.refresher = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE), new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, "google-oauth-group-refresh");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.refresher.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return current time in nanoseconds, overridable for tests
+   */
+  long currentTimeNanos() {
+    return System.nanoTime();
+  }
+
+  /**
+   * @param googleUserInfo user to resolve groups for
+   * @return cached groups, or groups loaded now if the user isn't cached
+   * @throws AuthException if groups had to be loaded and that failed
+   */
+  List<String> get(final GoogleUserInfo googleUserInfo) throws AuthException {
+    final String key = googleUserInfo.getEmail();
+    final Entry entry = cache.get(key);
+    if (entry == null) {
+      return loadShared(googleUserInfo).groups;
+    }
+    if (currentTimeNanos() - entry.loadedAt > refreshNanos && entry.refreshing.compareAndSet(false, true)) {
+      try {
+        refresher.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              load(googleUserInfo);
+              refreshes.incrementAndGet();
+            } catch (AuthException ex) {
+              //keep the cached groups until they expire
+              entry.refreshing.set(false);
+              LOGGER.log(Level.WARNING, "Unable to refresh groups for " + key, ex);
+            } catch (RuntimeException ex) {
+              entry.refreshing.set(false);
+              LOGGER.log(Level.WARNING, "Unable to refresh groups for " + key, ex);
+            }
+          }
+        });
+      } catch (RejectedExecutionException ex) {
+        entry.refreshing.set(false);
+        LOGGER.log(Level.FINE, "Group refresh queue full, skipping refresh of {0}", key);
+      }
+    }
+    return entry.groups;
+  }
+
+  /**
+   * Loads the groups of a user who isn't cached, joining a load for the same user already in progress.
+   */
+  private Entry loadShared(final GoogleUserInfo googleUserInfo) throws AuthException {
+    try {
+      return misses.execute(googleUserInfo.getEmail(), new Callable<Entry>() {
+        @Override
+        public Entry call() {
+          try {
+            return load(googleUserInfo);
+          } catch (AuthException ex) {
+            throw new LoadFailure(ex);
+          }
+        }
+      });
+    } catch (LoadFailure ex) {
+      throw ex.getAuthException();
+    }
+  }
+
+  private Entry load(final GoogleUserInfo googleUserInfo) throws AuthException {
+    final long start = currentTimeNanos();
+    final List<String> groups;
+    try {
+      groups = loader.load(googleUserInfo);
+    } catch (AuthException ex) {
+      loadFailures.incrementAndGet();
+      throw ex;
+    } catch (RuntimeException ex) {
+      loadFailures.incrementAndGet();
+      throw ex;
+    } finally {
+      loads.incrementAndGet();
+      loadTimeNanos.addAndGet(currentTimeNanos() - start);
+    }
+    final Entry entry = new Entry(Collections.unmodifiableList(groups), currentTimeNanos());
+    cache.put(googleUserInfo.getEmail(), entry);
+    return entry;
+  }
+
+  /**
+   * Forgets the groups of one user, the next login resolves them again.
+   */
+  void invalidate(final String email) {
+    cache.invalidate(email);
+  }
+
+  void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  void shutdown() {
+    refresher.shutdownNow();
+  }
+
+  int size() {
+    return cache.size();
+  }
+
+  long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  long getMissCount() {
+    return cache.getMissCount();
+  }
+
+  /**
+   * @return hits / lookups, or 0 before the first lookup
+   */
+  double getHitRate() {
+    final long hits = getHitCount();
+    final long lookups = hits + getMissCount();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  /**
+   * @return number of loads, including background refreshes and failures
+   */
+  long getLoadCount() {
+    return loads.get();
+  }
+
+  long getLoadFailureCount() {
+    return loadFailures.get();
+  }
+
+  long getRefreshCount() {
+    return refreshes.get();
+  }
+
+  /**
+   * @return total time spent loading groups, in milliseconds
+   */
+  long getTotalLoadTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(loadTimeNanos.get());
+  }
+
+  /**
+   * @return average time of a load in milliseconds, or 0 before the first load
+   */
+  double getAverageLoadTimeMillis() {
+    final long count = loads.get();
+    return count == 0 ? 0 : loadTimeNanos.get() / 1000000.0 / count;
+  }
+
+  /**
+   * Publishes the hit rate and load time, and lets the MBean invalidate users.
+   */
+  void publishMetrics(final AuthMetrics metrics) {
+    metrics.publish("GroupCacheHitRate", new AuthMetrics.Attribute<Double>() {
+      @Override
+      public Double get() {
+        return getHitRate();
+      }
+    });
+    metrics.publish("GroupCacheAverageLoadTimeMillis", new AuthMetrics.Attribute<Double>() {
+      @Override
+      public Double get() {
+        return getAverageLoadTimeMillis();
+      }
+    });
+    metrics.publishGroupInvalidation(new AuthMetrics.GroupInvalidation() {
+      @Override
+      public void invalidate(final String email) {
+        GroupCache.this.invalidate(email);
+      }
+    });
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().append("{").append(GroupCache.class.getSimpleName())
+            .append(":size=").append(size())
+            .append(",hitRate=").append(getHitRate())
+            .append(",loads=").append(getLoadCount())
+            .append(",averageLoadTimeMillis=").append(getAverageLoadTimeMillis())
+            .append("}").toString();
+  }
+}
@@ -0,0 +1,157 @@
+package com.idmworks.security.google;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maps users to groups with {@link GroupRules} compiled from the default groups and an optional rules file. <br> The
+ * file can be reloaded while logins are in progress: it is compiled on the reloading thread and the new rules replace
+ * the old ones in a single step, so a lookup sees either the old or the new rules, never a mix, and never waits. A file
+ * which doesn't compile is logged and the previous rules are kept.
+ *
+ * @author pdgreen
+ */
+class GroupMapper {
+
+  private static final Logger LOGGER = Logger.getLogger(GroupMapper.class.getName());
+  private final String defaultGroups;
+  private final boolean domainAsGroup;
+  private final File rulesFile;
+  private final AtomicReference<GroupRules> rules = new AtomicReference<GroupRules>();
+  private final AtomicLong reloads = new AtomicLong();
+  private long lastModified;
+  private long lastLength;
+  private ScheduledExecutorService reloader;
+
+  /**
+   * @param defaultGroups comma separated groups of every user
+   * @param domainAsGroup whether the domain of the email is a group
+   * @param rulesFile rules file or null
+   * @throws IOException if the rules file can't be read
+   * @throws IllegalArgumentException if a rule is malformed
+   */
+  GroupMapper(final String defaultGroups, final boolean domainAsGroup, final File rulesFile) throws IOException {
+    this.defaultGroups = defaultGroups;
+    this.domainAsGroup = domainAsGroup;
+    this.rulesFile = rulesFile;
+    if (rulesFile == null) {
+      rules.set(GroupRules.compile(defaultGroups, domainAsGroup, null));
+    } else {
+      load();
+    }
+  }
+
+  /**
+   * Adds the groups of email to groups.
+   */
+  void addGroups(final String email, final Collection<String> groups) {
+    rules.get().addGroups(email, groups);
+  }
+
+  /**
+   * Compiles the rules file if it changed since it was last loaded.
+   *
+   * @return true if the rules were replaced
+   */
+  synchronized boolean reload() {
+    if (rulesFile == null || (rulesFile.lastModified() == lastModified && rulesFile.length() == lastLength)) {
+      return false;
+    }
+    try {
+      load();
+      reloads.incrementAndGet();
+      return true;
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Unable to read group rules " + rulesFile + ", keeping the previous rules", ex);
+    } catch (IllegalArgumentException ex) {
+      LOGGER.log(Level.WARNING, "Invalid group rules " + rulesFile + ", keeping the previous rules: {0}", ex.getMessage());
+    }
+    return false;
+  }
+
+  private synchronized void load() throws IOException {
+    //taken before reading, so a change made during the read is picked up by the next reload
+    final long modified = rulesFile.lastModified();
+    final long length = rulesFile.length();
+    final Reader reader = new InputStreamReader(new FileInputStream(rulesFile), HttpClient.UTF8);
+    try {
+      final GroupRules compiled = GroupRules.compile(defaultGroups, domainAsGroup, reader);
+      rules.set(compiled);
+      LOGGER.log(Level.INFO, "Loaded {0} group rules from {1}", new Object[]{compiled.getRuleCount(), rulesFile});
+    } finally {
+      reader.close();
+      //a file which failed isn't retried until it changes again
+      lastModified = modified;
+      lastLength = length;
+    }
+  }
+
+  /**
+   * Checks the rules file for changes every interval seconds on a daemon thread.
+   */
+  synchronized void startBackgroundReload(final int interval) {
+    stopBackgroundReload();
+    reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, "google-oauth-group-rules");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    reloader.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        reload();
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  synchronized void stopBackgroundReload() {
+    if (reloader != null) {
+      reloader.shutdownNow();
+      reloader = null;
+    }
+  }
+
+  int getRuleCount() {
+    return rules.get().getRuleCount();
+  }
+
+  /**
+   * @return number of times changed rules were loaded after the first load
+   */
+  long getReloadCount() {
+    return reloads.get();
+  }
+
+  /**
+   * Publishes the number of rules and reloads.
+   */
+  void publishMetrics(final AuthMetrics metrics) {
+    metrics.publish("GroupRuleCount", new AuthMetrics.Attribute<Integer>() {
+      @Override
+      public Integer get() {
+        return getRuleCount();
+      }
+    });
+    metrics.publish("GroupRulesReloadCount", new AuthMetrics.Attribute<Long>() {
+      @Override
+      public Long get() {
+        return getReloadCount();
+      }
+    });
+  }
+}
@@ -0,0 +1,251 @@
+package com.idmworks.security.google;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled rules mapping a user's email address to group names. <br> Rules are {@code pattern = group, group} lines;
+ * a pattern is an email address ({@code alice@example.com}), a domain ({@code example.com} or {@code @example.com}),
+ * a subdomain suffix ({@code *.example.com}), a glob with {@code *} and {@code ?} ({@code admin-*@example.org}) or
+ * {@code *} for every user. Every matching rule adds its groups. <br> Email addresses and domains are looked up in hash
+ * maps. Globs are kept in a trie of the reversed text following their last wildcard: the email is walked backwards
+ * from its last character and only globs whose literal suffix it ends with are tried, so the cost of a lookup depends
+ * on the length of the email, not on the number of rules. Only globs ending with a wildcard can't be indexed and are
+ * tried for every email. <br> Instances are immutable and can be shared by any number of threads.
+ *
+ * @author pdgreen
+ */
+final class GroupRules {
+
+  private static final String[] NO_GROUPS = new String[0];
+  private static final String ALL = "*";
+  private final String[] all;
+  private final boolean domainAsGroup;
+  private final Map<String, String[]> emails;
+  private final Map<String, String[]> domains;
+  private final Node suffixes;
+  private final Glob[] unanchored;
+  private final int ruleCount;
+
+  private GroupRules(final Map<String, Set<String>> rules, final boolean domainAsGroup) {
+    final Map<String, String[]> compiledEmails = new HashMap<String, String[]>();
+    final Map<String, String[]> compiledDomains = new HashMap<String, String[]>();
+    final Node root = new Node();
+    final List<Glob> unanchoredGlobs = new ArrayList<Glob>();
+    String[] allGroups = NO_GROUPS;
+    for (final Map.Entry<String, Set<String>> rule : rules.entrySet()) {
+      final String pattern = rule.getKey();
+      final String[] groups = rule.getValue().toArray(new String[rule.getValue().size()]);
+      final int lastWildcard = Math.max(pattern.lastIndexOf('*'), pattern.lastIndexOf('?'));
+      if (ALL.equals(pattern)) {
+        allGroups = groups;
+      } else if (lastWildcard < 0 && pattern.indexOf('@') > 0) {
+        compiledEmails.put(pattern, groups);
+      } else if (lastWildcard < 0) {
+        compiledDomains.put(pattern.startsWith("@") ? pattern.substring(1) : pattern, groups);
+      } else if (lastWildcard == pattern.length() - 1) {
+        unanchoredGlobs.add(new Glob(pattern, groups));
+      } else {
+        root.insert(pattern, lastWildcard + 1, new Glob(pattern, groups));
+      }
+    }
+    this.all = allGroups;
+    this.domainAsGroup = domainAsGroup;
+    this.emails = compiledEmails;
+    this.domains = compiledDomains;
+    this.suffixes = root;
+    this.unanchored = unanchoredGlobs.toArray(new Glob[unanchoredGlobs.size()]);
+    this.ruleCount = rules.size();
+  }
+
+  /**
+   * @param defaultGroups groups of every user, the {@code default_groups} option
+   * @param domainAsGroup whether the domain of the email is a group, the {@code add_domain_as_group} option
+   * @param rules rules file or null
+   * @return compiled rules
+   * @throws IOException if the rules can't be read
+   * @throws IllegalArgumentException if a rule is malformed
+   */
+  static GroupRules compile(final String defaultGroups, final boolean domainAsGroup, final Reader rules) throws IOException {
+    final Map<String, Set<String>> parsed = new LinkedHashMap<String, Set<String>>();
+    if (!defaultGroups.isEmpty()) {
+      addRule(parsed, ALL, defaultGroups);
+    }
+    if (rules != null) {
+      final BufferedReader reader = new BufferedReader(rules);
+      int lineNumber = 0;
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        final int equals = line.indexOf('=');
+        final String pattern = equals < 0 ? "" : line.substring(0, equals).trim().toLowerCase(Locale.ENGLISH);
+        if (pattern.isEmpty() || pattern.indexOf('@') != pattern.lastIndexOf('@') || pattern.endsWith("@")) {
+          throw new IllegalArgumentException("line " + lineNumber + ": expected <pattern> = <group>[, <group>]: " + line);
+        }
+        addRule(parsed, pattern, line.substring(equals + 1));
+      }
+    }
+    return new GroupRules(parsed, domainAsGroup);
+  }
+
+  private static void addRule(final Map<String, Set<String>> rules, final String pattern, final String groups) {
+    Set<String> patternGroups = rules.get(pattern);
+    if (patternGroups == null) {
+      patternGroups = new LinkedHashSet<String>();
+      rules.put(pattern, patternGroups);
+    }
+    for (final String group : groups.split(",")) {
+      if (!group.trim().isEmpty()) {
+        patternGroups.add(group.trim());
+      }
+    }
+  }
+
+  /**
+   * Adds the groups of every rule matching email to groups.
+   */
+  void addGroups(final String email, final Collection<String> groups) {
+    groups.addAll(Arrays.asList(all));
+    final String address = email.toLowerCase(Locale.ENGLISH);
+    final int at = address.indexOf('@');
+    if (at >= 0) {
+      final String domain = address.substring(at + 1);
+      if (domainAsGroup) {
+        //as given, not lower cased
+        groups.add(email.substring(at + 1));
+      }
+      add(emails.get(address), groups);
+      add(domains.get(domain), groups);
+    }
+    Node node = suffixes;
+    for (int i = address.length() - 1; i >= 0 && node != null; i--) {
+      node = node.child(address.charAt(i));
+      if (node != null) {
+        for (final Glob glob : node.globs) {
+          if (glob.matches(address)) {
+            add(glob.groups, groups);
+          }
+        }
+      }
+    }
+    for (final Glob glob : unanchored) {
+      if (glob.matches(address)) {
+        add(glob.groups, groups);
+      }
+    }
+  }
+
+  private static void add(final String[] matched, final Collection<String> groups) {
+    if (matched != null) {
+      groups.addAll(Arrays.asList(matched));
+    }
+  }
+
+  /**
+   * @return number of patterns, default groups included
+   */
+  int getRuleCount() {
+    return ruleCount;
+  }
+
+  /**
+   * Trie node, children are kept in arrays sorted by character.
+   */
+  private static final class Node {
+
+    private char[] keys = new char[0];
+    private Node[] children = new Node[0];
+    private Glob[] globs = new Glob[0];
+
+    Node child(final char key) {
+      final int index = Arrays.binarySearch(keys, key);
+      return index < 0 ? null : children[index];
+    }
+
+    /**
+     * Adds glob under the reversed text of pattern from start.
+     */
+    void insert(final String pattern, final int start, final Glob glob) {
+      Node node = this;
+      for (int i = pattern.length() - 1; i >= start; i--) {
+        final char key = pattern.charAt(i);
+        Node child = node.child(key);
+        if (child == null) {
+          child = new Node();
+          final int insertAt = -Arrays.binarySearch(node.keys, key) - 1;
+          final char[] keys = new char[node.keys.length + 1];
+          final Node[] children = new Node[node.children.length + 1];
+          System.arraycopy(node.keys, 0, keys, 0, insertAt);
+          System.arraycopy(node.children, 0, children, 0, insertAt);
+          keys[insertAt] = key;
+          children[insertAt] = child;
+          System.arraycopy(node.keys, insertAt, keys, insertAt + 1, node.keys.length - insertAt);
+          System.arraycopy(node.children, insertAt, children, insertAt + 1, node.children.length - insertAt);
+          node.keys = keys;
+          node.children = children;
+        }
+        node = child;
+      }
+      node.globs = Arrays.copyOf(node.globs, node.globs.length + 1);
+      node.globs[node.globs.length - 1] = glob;
+    }
+  }
+
+  private static final class Glob {
+
+    private final String pattern;
+    private final String[] groups;
+    /**
+     * pattern is a {@code *} followed by literal text, reaching its trie node is a match
+     */
+    private final boolean suffixOnly;
+
+    Glob(final String pattern, final String[] groups) {
+      this.pattern = pattern;
+      this.groups = groups;
+      this.suffixOnly = pattern.lastIndexOf('*') == 0 && pattern.indexOf('?') < 0;
+    }
+
+    boolean matches(final String text) {
+      if (suffixOnly) {
+        return true;
+      }
+      int p = 0;
+      int t = 0;
+      int star = -1;
+      int starText = 0;
+      while (t < text.length()) {
+        if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == text.charAt(t))) {
+          p++;
+          t++;
+        } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+          star = p++;
+          starText = t;
+        } else if (star >= 0) {
+          p = star + 1;
+          t = ++starText;
+        } else {
+          return false;
+        }
+      }
+      while (p < pattern.length() && pattern.charAt(p) == '*') {
+        p++;
+      }
+      return p == pattern.length();
+    }
+  }
+}
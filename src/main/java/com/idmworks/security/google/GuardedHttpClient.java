@@ -0,0 +1,99 @@
+package com.idmworks.security.google;
+
+import java.net.URI;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link HttpClient} decorator protecting the container from a slow or failing Google. <br> A bulkhead bounds how many
+ * calls run at once; when it is full calls are rejected immediately instead of waiting, so container threads are not
+ * piled up behind slow calls. A {@link CircuitBreaker} rejects calls while Google is failing. Rejections are thrown as
+ * {@link RejectedExecutionException}. Exceptions and 5xx responses count as failures.
+ *
+ * @author pdgreen
+ */
+class GuardedHttpClient implements HttpClient {
+
+  private final HttpClient delegate;
+  private final CircuitBreaker circuitBreaker;
+  private final Semaphore bulkhead;
+  private final AtomicLong bulkheadRejected = new AtomicLong();
+
+  /**
+   * @param delegate client making the calls
+   * @param circuitBreaker breaker for the calls
+   * @param maxConcurrentCalls bulkhead size
+   */
+  GuardedHttpClient(final HttpClient delegate, final CircuitBreaker circuitBreaker, final int maxConcurrentCalls) {
+    this.delegate = delegate;
+    this.circuitBreaker = circuitBreaker;
+    this.bulkhead = new Semaphore(maxConcurrentCalls);
+  }
+
+  @Override
+  public Response GET(final URI destination) {
+    return execute(destination, null);
+  }
+
+  @Override
+  public Response POST(final URI destination, final String body) {
+    return execute(destination, body);
+  }
+
+  private Response execute(final URI destination, final String body) {
+    if (!bulkhead.tryAcquire()) {
+      bulkheadRejected.incrementAndGet();
+      throw new RejectedExecutionException("Too many concurrent calls, rejecting call to " + destination.getHost());
+    }
+    try {
+      if (!circuitBreaker.tryAcquirePermission()) {
+        throw new RejectedExecutionException("Circuit breaker open, rejecting call to " + destination.getHost());
+      }
+      final long start = System.nanoTime();
+      final Response response;
+      try {
+        response = body == null ? delegate.GET(destination) : delegate.POST(destination, body);
+      } catch (RuntimeException ex) {
+        circuitBreaker.record(true, System.nanoTime() - start);
+        throw ex;
+      }
+      circuitBreaker.record(response.getStatus() >= 500, System.nanoTime() - start);
+      return response;
+    } finally {
+      bulkhead.release();
+    }
+  }
+
+  CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  long getBulkheadRejectedCount() {
+    return bulkheadRejected.get();
+  }
+
+  /**
+   * Publishes the state of the circuit breaker and the calls it and the bulkhead rejected.
+   */
+  void publishMetrics(final AuthMetrics metrics) {
+    metrics.publish("CircuitBreakerState", new AuthMetrics.Attribute<String>() {
+      @Override
+      public String get() {
+        return circuitBreaker.getState().name();
+      }
+    });
+    metrics.publish("CircuitBreakerRejectedCount", new AuthMetrics.Attribute<Long>() {
+      @Override
+      public Long get() {
+        return circuitBreaker.getRejectedCount();
+      }
+    });
+    metrics.publish("BulkheadRejectedCount", new AuthMetrics.Attribute<Long>() {
+      @Override
+      public Long get() {
+        return getBulkheadRejectedCount();
+      }
+    });
+  }
+}
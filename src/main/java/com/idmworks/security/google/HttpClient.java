@@ -0,0 +1,68 @@
+package com.idmworks.security.google;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal HTTP client used to call the Google APIs.
+ *
+ * @author pdgreen
+ */
+public interface HttpClient {
+
+  Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Sends a GET request.
+   *
+   * @param destination uri to request
+   * @return response, never null
+   * @throws IllegalStateException if the request could not be completed
+   */
+  Response GET(URI destination);
+
+  /**
+   * Sends a POST request with a form encoded body.
+   *
+   * @param destination uri to request
+   * @param body form encoded body
+   * @return response, never null
+   * @throws IllegalStateException if the request could not be completed
+   */
+  Response POST(URI destination, String body);
+
+  /**
+   * Status and body of a completed request.
+   */
+  class Response {
+
+    private final int status;
+    private final byte[] body;
+
+    public Response(int status, byte[] body) {
+      this.status = status;
+      this.body = body;
+    }
+
+    public Response(int status, String body) {
+      this(status, body == null ? null : body.getBytes(UTF8));
+    }
+
+    /**
+     * @return body decoded as UTF-8 or null if there was no body
+     */
+    public String getBody() {
+      return body == null ? null : new String(body, UTF8);
+    }
+
+    public InputStream getBodyStream() {
+      return new ByteArrayInputStream(body == null ? new byte[0] : body);
+    }
+
+    public int getStatus() {
+      return status;
+    }
+  }
+}
@@ -0,0 +1,349 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.idmworks.security.google.GoogleApiUtils.*;
+
+/**
+ * Verifies Google id_tokens locally so the user can be identified from the token response alone, without calling the
+ * userinfo API. <br> The signing keys (a JWK set) are cached and refreshed on a background thread. A token signed with
+ * a key that isn't cached causes an immediate refresh, at most once per {@link #MIN_REFRESH_INTERVAL_MILLIS}, so
+ * Google's key rotation is picked up without letting bogus tokens trigger a fetch per request. That refresh runs on its
+ * own thread; request threads wait for it at most {@link #KEY_WAIT_MILLIS}, so a slow key endpoint doesn't hold them.
+ *
+ * @author pdgreen
+ */
+class IdTokenVerifier {
+
+  private static final Logger LOGGER = Logger.getLogger(IdTokenVerifier.class.getName());
+  static final long MIN_REFRESH_INTERVAL_MILLIS = 30000L;
+  static final long CLOCK_SKEW_MILLIS = 60000L;
+  static final long KEY_WAIT_MILLIS = 2000L;
+  private static final ExecutorService FETCHER = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "google-oauth-id-token-keys-fetch");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+  private final URI keysUri;
+  private final String audience;
+  private final Object refreshLock = new Object();
+  private volatile HttpClient httpClient;
+  private volatile Map<String, PublicKey> keys = Collections.emptyMap();
+  private volatile long lastRefresh;
+  /**
+   * refresh started by a request, guarded by refreshLock
+   */
+  private Future<?> fetch;
+  private ScheduledExecutorService refresher;
+
+  /**
+   * @param httpClient client used to retrieve the keys
+   * @param keysUri JWK set uri
+   * @param audience expected aud claim, the OAuth client id
+   */
+  IdTokenVerifier(final HttpClient httpClient, final URI keysUri, final String audience) {
+    this.httpClient = httpClient;
+    this.keysUri = keysUri;
+    this.audience = audience;
+  }
+
+  void setHttpClient(final HttpClient httpClient) {
+    this.httpClient = httpClient;
+  }
+
+  /**
+   * Loads the keys now and then every refreshInterval seconds on a daemon thread.
+   */
+  synchronized void startBackgroundRefresh(final int refreshInterval) {
+    stopBackgroundRefresh();
+    refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, "google-oauth-id-token-keys");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    refresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refreshKeys();
+        } catch (RuntimeException ex) {
+          LOGGER.log(Level.WARNING, "Unable to refresh id_token keys", ex);
+        }
+      }
+    }, 0, refreshInterval, TimeUnit.SECONDS);
+  }
+
+  synchronized void stopBackgroundRefresh() {
+    if (refresher != null) {
+      refresher.shutdownNow();
+      refresher = null;
+    }
+  }
+
+  /**
+   * @return true if the keys were replaced
+   */
+  boolean refreshKeys() {
+    final Map<String, PublicKey> retrieved;
+    try {
+      retrieved = retrieveIdTokenKeys(httpClient, keysUri);
+    } finally {
+      //a failed fetch counts too, or every request would retry it while Google is unreachable
+      lastRefresh = currentTimeMillis();
+    }
+    if (retrieved == null || retrieved.isEmpty()) {
+      return false;
+    }
+    keys = Collections.unmodifiableMap(retrieved);
+    LOGGER.log(Level.FINE, "Loaded id_token keys {0}", retrieved.keySet());
+    return true;
+  }
+
+  /**
+   * Loads the keys if none are cached yet, at most once per {@link #MIN_REFRESH_INTERVAL_MILLIS}.
+   *
+   * @return true if keys are available to verify id_tokens with
+   */
+  boolean hasKeys() {
+    if (!keys.isEmpty()) {
+      return true;
+    }
+    final Future<?> refresh = requestRefresh();
+    if (refresh != null) {
+      LOGGER.log(Level.FINE, "No id_token keys, refreshing keys");
+      awaitRefresh(refresh);
+    }
+    return !keys.isEmpty();
+  }
+
+  PublicKey findKey(final String kid) {
+    final PublicKey key = keys.get(kid);
+    if (key != null) {
+      return key;
+    }
+    final Future<?> refresh = requestRefresh();
+    if (refresh != null) {
+      LOGGER.log(Level.FINE, "Unknown id_token key {0}, refreshing keys", kid);
+      awaitRefresh(refresh);
+    }
+    //another thread may have refreshed in the meantime
+    return keys.get(kid);
+  }
+
+  /**
+   * Starts a refresh on another thread unless one is running already or the last one was less than
+   * {@link #MIN_REFRESH_INTERVAL_MILLIS} ago.
+   *
+   * @return the running refresh or null
+   */
+  private Future<?> requestRefresh() {
+    synchronized (refreshLock) {
+      if (fetch == null || fetch.isDone()) {
+        if (currentTimeMillis() - lastRefresh < MIN_REFRESH_INTERVAL_MILLIS) {
+          return null;
+        }
+        fetch = FETCHER.submit(new Runnable() {
+          @Override
+          public void run() {
+            tryRefreshKeys();
+          }
+        });
+      }
+      return fetch;
+    }
+  }
+
+  /**
+   * Waits for refresh at most {@link #keyWaitMillis()}, it carries on in the background if that isn't enough.
+   */
+  private void awaitRefresh(final Future<?> refresh) {
+    try {
+      refresh.get(keyWaitMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException ex) {
+      LOGGER.log(Level.WARNING, "id_token keys not loaded within {0}ms", keyWaitMillis());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ex) {
+      LOGGER.log(Level.WARNING, "Unable to refresh id_token keys", ex.getCause());
+    }
+  }
+
+  /**
+   * {@link #refreshKeys()} for request threads, an unreachable key endpoint leaves the cached keys in place.
+   */
+  private void tryRefreshKeys() {
+    try {
+      refreshKeys();
+    } catch (RuntimeException ex) {
+      LOGGER.log(Level.WARNING, "Unable to refresh id_token keys", ex);
+    }
+  }
+
+  /**
+   * Checks the signature, issuer, audience and expiration of idToken.
+   *
+   * @param idToken id_token from the token API
+   * @return user info built from the claims or null if the id_token is not valid
+   */
+  GoogleUserInfo verify(final String idToken) {
+    final int headerEnd = idToken.indexOf('.');
+    final int payloadEnd = idToken.indexOf('.', headerEnd + 1);
+    if (headerEnd <= 0 || payloadEnd < 0 || idToken.indexOf('.', payloadEnd + 1) >= 0) {
+      return invalid("malformed", null);
+    }
+    try {
+      final Claims header = Claims.parse(Base64Url.decode(idToken.substring(0, headerEnd)));
+      if (!JWT_ALG_RS256_VALUE.equals(header.alg)) {
+        return invalid("unsupported alg " + header.alg, null);
+      }
+      final PublicKey key = findKey(header.kid);
+      if (key == null) {
+        return invalid("unknown key " + header.kid, null);
+      }
+      final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+      signature.initVerify(key);
+      signature.update(idToken.substring(0, payloadEnd).getBytes(HttpClient.UTF8));
+      if (!signature.verify(Base64Url.decode(idToken.substring(payloadEnd + 1)))) {
+        return invalid("bad signature", null);
+      }
+
+      final Claims claims = Claims.parse(Base64Url.decode(idToken.substring(headerEnd + 1, payloadEnd)));
+      if (!ID_TOKEN_ISSUER_VALUE.equals(claims.iss) && !ID_TOKEN_HTTPS_ISSUER_VALUE.equals(claims.iss)) {
+        return invalid("issuer " + claims.iss, null);
+      }
+      if (!claims.aud.contains(audience)) {
+        return invalid("audience " + claims.aud, null);
+      }
+      if (claims.exp == null || Long.parseLong(claims.exp) * 1000L + CLOCK_SKEW_MILLIS < currentTimeMillis()) {
+        return invalid("expired", null);
+      }
+      if (claims.sub == null || claims.email == null) {
+        return invalid("sub or email missing", null);
+      }
+      return new GoogleUserInfo(claims.sub, claims.email, Boolean.parseBoolean(claims.emailVerified), claims.name,
+              claims.givenName, claims.familyName, null, null, claims.picture, claims.locale);
+    } catch (IOException ex) {
+      return invalid("malformed", ex);
+    } catch (IllegalArgumentException ex) {
+      return invalid("malformed", ex);
+    } catch (GeneralSecurityException ex) {
+      return invalid("unable to verify", ex);
+    }
+  }
+
+  /**
+   * Overridden by tests.
+   */
+  long keyWaitMillis() {
+    return KEY_WAIT_MILLIS;
+  }
+
+  /**
+   * Overridden by tests.
+   */
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  private static GoogleUserInfo invalid(final String reason, final Exception cause) {
+    LOGGER.log(Level.WARNING, "Rejecting id_token: " + reason, cause);
+    return null;
+  }
+
+  /**
+   * The JWT header and claims this class uses.
+   */
+  private static class Claims {
+
+    String alg;
+    String kid;
+    String iss;
+    String sub;
+    String exp;
+    String email;
+    String emailVerified;
+    String name;
+    String givenName;
+    String familyName;
+    String picture;
+    String locale;
+    final List<String> aud = new ArrayList<String>(1);
+
+    static Claims parse(final byte[] json) throws IOException {
+      final Claims claims = new Claims();
+      final JsonReader reader = new JsonReader(new ByteArrayInputStream(json));
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String name = reader.nextName();
+        if (JWT_ALG_PARAMETER.equals(name)) {
+          claims.alg = ParseUtils.nextScalar(reader);
+        } else if (JWK_KID_PARAMETER.equals(name)) {
+          claims.kid = ParseUtils.nextScalar(reader);
+        } else if (ID_TOKEN_ISSUER_CLAIM.equals(name)) {
+          claims.iss = ParseUtils.nextScalar(reader);
+        } else if (ID_TOKEN_SUBJECT_CLAIM.equals(name)) {
+          claims.sub = ParseUtils.nextScalar(reader);
+        } else if (ID_TOKEN_EXPIRATION_CLAIM.equals(name)) {
+          claims.exp = ParseUtils.nextScalar(reader);
+        } else if (ID_TOKEN_EMAIL_CLAIM.equals(name)) {
+          claims.email = ParseUtils.nextScalar(reader);
+        } else if (ID_TOKEN_EMAIL_VERIFIED_CLAIM.equals(name)) {
+          claims.emailVerified = ParseUtils.nextScalar(reader);
+        } else if (USERINFO_API_NAME_PARAMETER.equals(name)) {
+          claims.name = ParseUtils.nextScalar(reader);
+        } else if (USERINFO_API_GIVEN_NAME_PARAMETER.equals(name)) {
+          claims.givenName = ParseUtils.nextScalar(reader);
+        } else if (USERINFO_API_FAMILY_NAME_PARAMETER.equals(name)) {
+          claims.familyName = ParseUtils.nextScalar(reader);
+        } else if (USERINFO_API_PICTURE_PARAMETER.equals(name)) {
+          claims.picture = ParseUtils.nextScalar(reader);
+        } else if (USERINFO_API_LOCALE_PARAMETER.equals(name)) {
+          claims.locale = ParseUtils.nextScalar(reader);
+        } else if (ID_TOKEN_AUDIENCE_CLAIM.equals(name)) {
+          //a single audience or an array of them
+          if (reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+              claims.aud.add(ParseUtils.nextScalar(reader));
+            }
+            reader.endArray();
+          } else {
+            claims.aud.add(ParseUtils.nextScalar(reader));
+          }
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      reader.endDocument();
+      return claims;
+    }
+  }
+}
@@ -0,0 +1,558 @@
+package com.idmworks.security.google;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Small streaming (pull) JSON reader which decodes UTF-8 directly from an {@link InputStream}. <br> Like
+ * {@link ParseUtils}, this exists so that no JSON library is needed. It understands all of JSON (escapes, nesting,
+ * numbers and literals) but only offers what is needed to read the Google API responses: callers walk the document
+ * with {@link #peek()}, read the values they want and {@link #skipValue()} the rest. Nothing is buffered besides the
+ * current value, so no intermediate maps or strings are created for values that are skipped.
+ *
+ * @author pdgreen
+ */
+final class JsonReader {
+
+  enum Token {
+
+    BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+  }
+  /*
+   * scopes
+   */
+  private static final int EMPTY_DOCUMENT = 0;
+  private static final int NONEMPTY_DOCUMENT = 1;
+  private static final int EMPTY_OBJECT = 2;
+  private static final int DANGLING_NAME = 3;
+  private static final int NONEMPTY_OBJECT = 4;
+  private static final int EMPTY_ARRAY = 5;
+  private static final int NONEMPTY_ARRAY = 6;
+  /**
+   * states of {@link #isNumber(String)}
+   */
+  private static final int NUMBER_START = 0;
+  private static final int NUMBER_SIGN = 1;
+  private static final int NUMBER_ZERO = 2;
+  private static final int NUMBER_INTEGER = 3;
+  private static final int NUMBER_POINT = 4;
+  private static final int NUMBER_FRACTION = 5;
+  private static final int NUMBER_EXPONENT_MARK = 6;
+  private static final int NUMBER_EXPONENT_SIGN = 7;
+  private static final int NUMBER_EXPONENT = 8;
+  private final InputStream in;
+  private final byte[] buffer = new byte[1024];
+  private int pos;
+  private int limit;
+  private long offset;
+  private int[] stack = new int[16];
+  private int stackSize;
+  private Token peeked;
+  private char[] chars = new char[64];
+  private int charCount;
+
+  JsonReader(final InputStream in) {
+    this.in = in;
+    stack[stackSize++] = EMPTY_DOCUMENT;
+  }
+
+  Token peek() throws IOException {
+    if (peeked == null) {
+      peeked = doPeek();
+    }
+    return peeked;
+  }
+
+  void beginObject() throws IOException {
+    expect(Token.BEGIN_OBJECT);
+    push(EMPTY_OBJECT);
+  }
+
+  void endObject() throws IOException {
+    expect(Token.END_OBJECT);
+    stackSize--;
+  }
+
+  void beginArray() throws IOException {
+    expect(Token.BEGIN_ARRAY);
+    push(EMPTY_ARRAY);
+  }
+
+  void endArray() throws IOException {
+    expect(Token.END_ARRAY);
+    stackSize--;
+  }
+
+  /**
+   * Checks that nothing but whitespace follows the top level value.
+   */
+  void endDocument() throws IOException {
+    expect(Token.END_DOCUMENT);
+  }
+
+  /**
+   * @return true if the current object or array has another element
+   */
+  boolean hasNext() throws IOException {
+    final Token token = peek();
+    return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+  }
+
+  String nextName() throws IOException {
+    expect(Token.NAME);
+    return readString();
+  }
+
+  /**
+   * Reads a string. Numbers and booleans are returned as their JSON text.
+   *
+   * @return the value
+   * @throws IOException if the next value is not a string, number or boolean
+   */
+  String nextString() throws IOException {
+    final Token token = peek();
+    peeked = null;
+    switch (token) {
+      case STRING:
+        return readString();
+      case NUMBER:
+        return readNumber();
+      case BOOLEAN:
+        return readLiteral();
+      default:
+        throw syntaxError("Expected a string but was " + token);
+    }
+  }
+
+  boolean nextBoolean() throws IOException {
+    final Token token = peek();
+    if (token == Token.BOOLEAN) {
+      peeked = null;
+      return Boolean.parseBoolean(readLiteral());
+    } else if (token == Token.STRING) {
+      peeked = null;
+      return Boolean.parseBoolean(readString());
+    }
+    throw syntaxError("Expected a boolean but was " + token);
+  }
+
+  /**
+   * Reads a number, or a string holding a JSON number. A fraction or exponent is truncated towards zero.
+   *
+   * @return the value
+   * @throws IOException if the next value is not a number or is out of the range of a long
+   */
+  long nextLong() throws IOException {
+    final Token token = peek();
+    if (token != Token.NUMBER && token != Token.STRING) {
+      throw syntaxError("Expected a number but was " + token);
+    }
+    final String value = nextString();
+    //numbers were checked by readNumber
+    if (token == Token.STRING && !isNumber(value)) {
+      throw syntaxError("Expected a long but was '" + value + "'");
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException ex) {
+      final double number = Double.parseDouble(value);
+      if (number >= Long.MIN_VALUE && number < Long.MAX_VALUE) {
+        return (long) number;
+      }
+      throw syntaxError("Expected a long but was '" + value + "'");
+    }
+  }
+
+  void nextNull() throws IOException {
+    expect(Token.NULL);
+    readLiteral();
+  }
+
+  /**
+   * Skips the next value, including nested objects and arrays.
+   */
+  void skipValue() throws IOException {
+    int depth = 0;
+    do {
+      final Token token = peek();
+      switch (token) {
+        case BEGIN_OBJECT:
+          beginObject();
+          depth++;
+          break;
+        case BEGIN_ARRAY:
+          beginArray();
+          depth++;
+          break;
+        case END_OBJECT:
+          endObject();
+          depth--;
+          break;
+        case END_ARRAY:
+          endArray();
+          depth--;
+          break;
+        case NAME:
+          nextName();
+          break;
+        case NULL:
+          nextNull();
+          break;
+        case END_DOCUMENT:
+          throw syntaxError("Unexpected end of document");
+        default:
+          nextString();
+          break;
+      }
+    } while (depth > 0);
+  }
+
+  private void expect(final Token expected) throws IOException {
+    final Token token = peek();
+    if (token != expected) {
+      throw syntaxError("Expected " + expected + " but was " + token);
+    }
+    peeked = null;
+  }
+
+  private void push(final int scope) {
+    if (stackSize == stack.length) {
+      final int[] newStack = new int[stackSize * 2];
+      System.arraycopy(stack, 0, newStack, 0, stackSize);
+      stack = newStack;
+    }
+    stack[stackSize++] = scope;
+  }
+
+  private Token doPeek() throws IOException {
+    final int scope = stack[stackSize - 1];
+    if (scope == EMPTY_ARRAY) {
+      stack[stackSize - 1] = NONEMPTY_ARRAY;
+      final int c = nextNonWhitespace();
+      if (c == ']') {
+        return Token.END_ARRAY;
+      } else if (c != -1) {
+        pos--;
+      }
+    } else if (scope == NONEMPTY_ARRAY) {
+      final int c = nextNonWhitespace();
+      if (c == ']') {
+        return Token.END_ARRAY;
+      } else if (c != ',') {
+        throw syntaxError("Unterminated array");
+      }
+    } else if (scope == EMPTY_OBJECT || scope == NONEMPTY_OBJECT) {
+      stack[stackSize - 1] = DANGLING_NAME;
+      if (scope == NONEMPTY_OBJECT) {
+        final int c = nextNonWhitespace();
+        if (c == '}') {
+          return Token.END_OBJECT;
+        } else if (c != ',') {
+          throw syntaxError("Unterminated object");
+        }
+      }
+      final int c = nextNonWhitespace();
+      if (c == '"') {
+        return Token.NAME;
+      } else if (c == '}' && scope == EMPTY_OBJECT) {
+        return Token.END_OBJECT;
+      }
+      throw syntaxError("Expected name");
+    } else if (scope == DANGLING_NAME) {
+      stack[stackSize - 1] = NONEMPTY_OBJECT;
+      if (nextNonWhitespace() != ':') {
+        throw syntaxError("Expected ':'");
+      }
+    } else if (scope == EMPTY_DOCUMENT) {
+      stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+    } else if (scope == NONEMPTY_DOCUMENT) {
+      if (nextNonWhitespace() == -1) {
+        return Token.END_DOCUMENT;
+      }
+      throw syntaxError("Unexpected data after document");
+    }
+
+    final int c = nextNonWhitespace();
+    switch (c) {
+      case '{':
+        return Token.BEGIN_OBJECT;
+      case '[':
+        return Token.BEGIN_ARRAY;
+      case '"':
+        return Token.STRING;
+      case 't':
+      case 'f':
+        pos--;
+        return Token.BOOLEAN;
+      case 'n':
+        pos--;
+        return Token.NULL;
+      case -1:
+        throw syntaxError("Unexpected end of document");
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          pos--;
+          return Token.NUMBER;
+        }
+        throw syntaxError("Unexpected character '" + (char) c + "'");
+    }
+  }
+
+  private boolean fill() throws IOException {
+    offset += limit;
+    pos = 0;
+    limit = 0;
+    final int read = in.read(buffer, 0, buffer.length);
+    if (read <= 0) {
+      return false;
+    }
+    limit = read;
+    return true;
+  }
+
+  private int read() throws IOException {
+    if (pos == limit && !fill()) {
+      return -1;
+    }
+    return buffer[pos++] & 0xff;
+  }
+
+  private int nextNonWhitespace() throws IOException {
+    int c;
+    do {
+      c = read();
+    } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+    return c;
+  }
+
+  private void append(final char c) {
+    if (charCount == chars.length) {
+      final char[] newChars = new char[charCount * 2];
+      System.arraycopy(chars, 0, newChars, 0, charCount);
+      chars = newChars;
+    }
+    chars[charCount++] = c;
+  }
+
+  /**
+   * Reads the rest of a string whose opening quote has been consumed.
+   */
+  private String readString() throws IOException {
+    charCount = 0;
+    while (true) {
+      final int c = read();
+      if (c == '"') {
+        return new String(chars, 0, charCount);
+      } else if (c == '\\') {
+        readEscape();
+      } else if (c == -1) {
+        throw syntaxError("Unterminated string");
+      } else if (c < 0x80) {
+        append((char) c);
+      } else {
+        appendCodePoint(readUtf8(c));
+      }
+    }
+  }
+
+  private void readEscape() throws IOException {
+    final int c = read();
+    switch (c) {
+      case '"':
+      case '\\':
+      case '/':
+        append((char) c);
+        break;
+      case 'b':
+        append('\b');
+        break;
+      case 'f':
+        append('\f');
+        break;
+      case 'n':
+        append('\n');
+        break;
+      case 'r':
+        append('\r');
+        break;
+      case 't':
+        append('\t');
+        break;
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          final int digit = Character.digit(read(), 16);
+          if (digit < 0) {
+            throw syntaxError("Invalid unicode escape");
+          }
+          value = (value << 4) | digit;
+        }
+        append((char) value);
+        break;
+      default:
+        throw syntaxError("Invalid escape");
+    }
+  }
+
+  private int readUtf8(final int first) throws IOException {
+    final int extra;
+    int codePoint;
+    if ((first & 0xe0) == 0xc0) {
+      extra = 1;
+      codePoint = first & 0x1f;
+    } else if ((first & 0xf0) == 0xe0) {
+      extra = 2;
+      codePoint = first & 0x0f;
+    } else if ((first & 0xf8) == 0xf0) {
+      extra = 3;
+      codePoint = first & 0x07;
+    } else {
+      throw syntaxError("Invalid UTF-8");
+    }
+    for (int i = 0; i < extra; i++) {
+      final int c = read();
+      if ((c & 0xc0) != 0x80) {
+        throw syntaxError("Invalid UTF-8");
+      }
+      codePoint = (codePoint << 6) | (c & 0x3f);
+    }
+    return codePoint;
+  }
+
+  private void appendCodePoint(final int codePoint) {
+    if (Character.isSupplementaryCodePoint(codePoint)) {
+      append((char) ((codePoint >>> 10) + (Character.MIN_HIGH_SURROGATE - (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10))));
+      append((char) ((codePoint & 0x3ff) + Character.MIN_LOW_SURROGATE));
+    } else {
+      append((char) codePoint);
+    }
+  }
+
+  private String readNumber() throws IOException {
+    charCount = 0;
+    while (true) {
+      final int c = read();
+      if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+        append((char) c);
+      } else {
+        if (c != -1) {
+          pos--;
+        }
+        final String number = new String(chars, 0, charCount);
+        if (!isNumber(number)) {
+          throw syntaxError("Malformed number " + number);
+        }
+        return number;
+      }
+    }
+  }
+
+  /**
+   * @return true if value follows the JSON number grammar, {@code -?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?}
+   */
+  static boolean isNumber(final String value) {
+    int state = NUMBER_START;
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      final boolean digit = c >= '0' && c <= '9';
+      switch (state) {
+        case NUMBER_START:
+          if (c == '-') {
+            state = NUMBER_SIGN;
+            break;
+          }
+        //fall through, the sign is optional
+        case NUMBER_SIGN:
+          if (c == '0') {
+            state = NUMBER_ZERO;
+          } else if (digit) {
+            state = NUMBER_INTEGER;
+          } else {
+            return false;
+          }
+          break;
+        case NUMBER_INTEGER:
+          if (digit) {
+            break;
+          }
+        //fall through
+        case NUMBER_ZERO:
+          if (c == '.') {
+            state = NUMBER_POINT;
+          } else if (c == 'e' || c == 'E') {
+            state = NUMBER_EXPONENT_MARK;
+          } else {
+            return false;
+          }
+          break;
+        case NUMBER_POINT:
+          if (!digit) {
+            return false;
+          }
+          state = NUMBER_FRACTION;
+          break;
+        case NUMBER_FRACTION:
+          if (c == 'e' || c == 'E') {
+            state = NUMBER_EXPONENT_MARK;
+          } else if (!digit) {
+            return false;
+          }
+          break;
+        case NUMBER_EXPONENT_MARK:
+          if (c == '+' || c == '-') {
+            state = NUMBER_EXPONENT_SIGN;
+            break;
+          }
+        //fall through, the sign is optional
+        case NUMBER_EXPONENT_SIGN:
+        case NUMBER_EXPONENT:
+          if (!digit) {
+            return false;
+          }
+          state = NUMBER_EXPONENT;
+          break;
+        default:
+          throw new IllegalStateException("number state " + state);
+      }
+    }
+    return state == NUMBER_ZERO || state == NUMBER_INTEGER || state == NUMBER_FRACTION || state == NUMBER_EXPONENT;
+  }
+
+  private String readLiteral() throws IOException {
+    charCount = 0;
+    while (true) {
+      final int c = read();
+      if (c >= 'a' && c <= 'z') {
+        append((char) c);
+      } else {
+        if (c != -1) {
+          pos--;
+        }
+        if (charsEqual("true")) {
+          return "true";
+        } else if (charsEqual("false")) {
+          return "false";
+        } else if (charsEqual("null")) {
+          return "null";
+        }
+        throw syntaxError("Invalid literal " + new String(chars, 0, charCount));
+      }
+    }
+  }
+
+  private boolean charsEqual(final String value) {
+    if (value.length() != charCount) {
+      return false;
+    }
+    for (int i = 0; i < charCount; i++) {
+      if (chars[i] != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private IOException syntaxError(final String message) {
+    return new IOException(message + " at byte " + (offset + pos));
+  }
+}
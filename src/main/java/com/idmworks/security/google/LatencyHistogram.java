@@ -0,0 +1,80 @@
+package com.idmworks.security.google;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock free latency histogram with power of two microsecond buckets: bucket 0 holds durations under 1µs and bucket
+ * {@code i} durations from 2<sup>i-1</sup> up to 2<sup>i</sup>µs. Percentiles are reported as the upper bound of the
+ * bucket they fall in, so they are accurate to within a factor of two, which is enough to see where time goes.
+ *
+ * @author pdgreen
+ */
+final class LatencyHistogram {
+
+  static final int BUCKETS = 32;
+  private static final int TOTAL_NANOS = BUCKETS;
+  private final StripedCounters counters = new StripedCounters(BUCKETS + 1);
+
+  static int bucket(final long nanos) {
+    final long micros = nanos / 1000L;
+    final int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    return bucket < BUCKETS ? bucket : BUCKETS - 1;
+  }
+
+  /**
+   * @return upper bound of bucket in milliseconds
+   */
+  static double upperBoundMillis(final int bucket) {
+    return (1L << bucket) / 1000.0;
+  }
+
+  void record(final long nanos) {
+    if (nanos < 0) {
+      return;
+    }
+    counters.increment(bucket(nanos));
+    counters.add(TOTAL_NANOS, nanos);
+  }
+
+  /**
+   * Records the time since startNanos, a value from {@link System#nanoTime()}.
+   */
+  void recordSince(final long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  LatencySnapshot snapshot() {
+    final long[] buckets = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = counters.sum(i);
+      count += buckets[i];
+    }
+    final long totalNanos = counters.sum(TOTAL_NANOS);
+    return new LatencySnapshot(count,
+            count == 0 ? 0 : totalNanos / (double) count / TimeUnit.MILLISECONDS.toNanos(1),
+            percentile(buckets, count, 0.50),
+            percentile(buckets, count, 0.90),
+            percentile(buckets, count, 0.99),
+            percentile(buckets, count, 1.0));
+  }
+
+  private static double percentile(final long[] buckets, final long count, final double fraction) {
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = (long) Math.ceil(count * fraction);
+    long seen = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      seen += buckets[i];
+      if (seen >= rank) {
+        return upperBoundMillis(i);
+      }
+    }
+    return upperBoundMillis(buckets.length - 1);
+  }
+
+  void reset() {
+    counters.reset();
+  }
+}
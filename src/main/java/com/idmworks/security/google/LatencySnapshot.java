@@ -0,0 +1,65 @@
+package com.idmworks.security.google;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of a latency histogram at one point in time, exposed through JMX as composite data. Percentiles are the
+ * upper bound of a power of two bucket.
+ *
+ * @author pdgreen
+ */
+public class LatencySnapshot {
+
+  private final long count;
+  private final double meanMillis;
+  private final double p50Millis;
+  private final double p90Millis;
+  private final double p99Millis;
+  private final double maxMillis;
+
+  @ConstructorProperties({"count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis"})
+  public LatencySnapshot(final long count, final double meanMillis, final double p50Millis, final double p90Millis, final double p99Millis, final double maxMillis) {
+    this.count = count;
+    this.meanMillis = meanMillis;
+    this.p50Millis = p50Millis;
+    this.p90Millis = p90Millis;
+    this.p99Millis = p99Millis;
+    this.maxMillis = maxMillis;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMeanMillis() {
+    return meanMillis;
+  }
+
+  public double getP50Millis() {
+    return p50Millis;
+  }
+
+  public double getP90Millis() {
+    return p90Millis;
+  }
+
+  public double getP99Millis() {
+    return p99Millis;
+  }
+
+  public double getMaxMillis() {
+    return maxMillis;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().append("{").append(LatencySnapshot.class.getSimpleName())
+            .append(":count=").append(count)
+            .append(",mean=").append(meanMillis)
+            .append(",p50=").append(p50Millis)
+            .append(",p90=").append(p90Millis)
+            .append(",p99=").append(p99Millis)
+            .append(",max=").append(maxMillis)
+            .append("}").toString();
+  }
+}
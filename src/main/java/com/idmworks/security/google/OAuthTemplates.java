@@ -0,0 +1,62 @@
+package com.idmworks.security.google;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * The redirect uri, authorization request uri and token request body for one scheme/host/port/context path. They only
+ * depend on the configuration and where the application is reached, so they are built once and then reused; only the
+ * authorization code is added per request.
+ *
+ * @author pdgreen
+ */
+final class OAuthTemplates {
+
+  private final String scheme;
+  private final String serverName;
+  private final int serverPort;
+  private final String contextPath;
+  private final String redirectUri;
+  private final String authorizationUri;
+  private final String tokenRequestBodySuffix;
+
+  OAuthTemplates(final String scheme, final String serverName, final int serverPort, final String contextPath,
+          final String callbackUri, final URI endpoint, final String clientid, final String clientSecret, final String scope,
+          final String accessType, final String approvalPrompt) {
+    this.scheme = scheme;
+    this.serverName = serverName;
+    this.serverPort = serverPort;
+    this.contextPath = contextPath;
+    try {
+      this.redirectUri = new URI(scheme, null, serverName, serverPort, contextPath + callbackUri, null, null).toString();
+    } catch (URISyntaxException ex) {
+      throw new IllegalStateException("Unable to build redirectUri", ex);
+    }
+    this.authorizationUri = GoogleApiUtils.buildOauthUriString(redirectUri, endpoint, clientid, scope, accessType, approvalPrompt);
+    this.tokenRequestBodySuffix = GoogleApiUtils.buildTokenRequestBodySuffix(redirectUri, clientid, clientSecret);
+  }
+
+  boolean matches(final String scheme, final String serverName, final int serverPort, final String contextPath) {
+    return this.serverPort == serverPort && this.serverName.equals(serverName)
+            && this.scheme.equals(scheme) && this.contextPath.equals(contextPath);
+  }
+
+  /**
+   * @return key identifying where the application is reached
+   */
+  static String key(final String scheme, final String serverName, final int serverPort, final String contextPath) {
+    return scheme + "://" + serverName + ":" + serverPort + contextPath;
+  }
+
+  String getRedirectUri() {
+    return redirectUri;
+  }
+
+  String getAuthorizationUri() {
+    return authorizationUri;
+  }
+
+  String buildTokenRequestBody(final String authorizationCode) {
+    return GoogleApiUtils.buildTokenRequestBody(authorizationCode, tokenRequestBodySuffix);
+  }
+}
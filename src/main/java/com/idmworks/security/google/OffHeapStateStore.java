@@ -0,0 +1,391 @@
+package com.idmworks.security.google;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Keeps the authentication state in direct memory, outside the Java heap, so that a large number of authenticated
+ * users doesn't grow the old generation. <br> The client is identified by a random 128 bit id in a cookie, a new id is
+ * issued whenever a client authenticates. Each client takes one fixed size record holding its id, expiration and the
+ * {@link AuthenticationSnapshot#toBytes() compact form} of its snapshot (or its original request path). Records live
+ * in an open addressed table split in segments with a lock each; a record is looked up in a short probe window and,
+ * when the window is full, the record expiring soonest is replaced, so the store never holds more than
+ * {@code capacity} records. An original request path only replaces another path or an expired record, never a live
+ * snapshot, so unauthenticated requests can't push authenticated clients out. <br> Snapshots are serialized, so
+ * retrieved snapshots don't hold the subject and the module derives the principals on every request, as in cookie
+ * mode. State too large for a record, or a path without a free slot, is kept in the session instead.
+ *
+ * @author pdgreen
+ */
+public class OffHeapStateStore implements StateStore {
+
+  private static final Logger LOGGER = Logger.getLogger(OffHeapStateStore.class.getName());
+  /*
+   * Record layout
+   */
+  private static final int KEY_HI = 0;
+  private static final int KEY_LO = 8;
+  private static final int EXPIRES_AT = 16;
+  private static final int KIND = 24;
+  private static final int LENGTH = 25;
+  static final int HEADER_SIZE = 27;
+  private static final byte KIND_SNAPSHOT = 1;
+  private static final byte KIND_PATH = 2;
+  private static final int SEGMENTS = 16;
+  private static final int PROBES = 8;
+  private static final int ID_LENGTH = 16;
+  /*
+   * Segment.put results
+   */
+  private static final int STORED = 0;
+  private static final int EVICTED = 1;
+  private static final int FULL = 2;
+  /**
+   * a client which was sent to Google has this long to come back
+   */
+  private static final long PATH_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  private static final SecureRandom RANDOM = new SecureRandom();
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final int maxPayload;
+  private final String cookieName;
+  private final int maxAge;
+  private final StateStore overflow = new SessionStateStore();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong overflows = new AtomicLong();
+
+  /**
+   * @param capacity maximum number of clients kept
+   * @param recordSize bytes per client, including a header of {@value #HEADER_SIZE} bytes
+   * @param cookieName name of the cookie carrying the client id
+   * @param maxAge seconds an authentication is kept
+   */
+  public OffHeapStateStore(final int capacity, final int recordSize, final String cookieName, final int maxAge) {
+    if (capacity <= 0 || recordSize <= HEADER_SIZE || maxAge <= 0) {
+      throw new IllegalArgumentException("capacity and maxAge must be positive, recordSize larger than " + HEADER_SIZE);
+    }
+    final int slots = Math.max(PROBES, (capacity + SEGMENTS - 1) / SEGMENTS);
+    if ((long) slots * recordSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("capacity * recordSize too large: " + capacity + " * " + recordSize);
+    }
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(slots, recordSize);
+    }
+    this.maxPayload = Math.min(recordSize - HEADER_SIZE, 0xFFFF);
+    this.cookieName = cookieName;
+    this.maxAge = maxAge;
+    LOGGER.log(Level.INFO, "Allocated {0} MiB off heap for {1} clients", new Object[]{(long) SEGMENTS * slots * recordSize >> 20, SEGMENTS * slots});
+  }
+
+  /**
+   * @return current time in milliseconds, overridable for tests
+   */
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public void saveSnapshot(final HttpServletRequest request, final HttpServletResponse response, final AuthenticationSnapshot snapshot) {
+    final long now = currentTimeMillis();
+    final byte[] previous = findId(request);
+    if (previous != null) {
+      //the original request path is still to be extracted with the previous id
+      segment(previous).remove(hi(previous), lo(previous), KIND_SNAPSHOT, now);
+    }
+    //a new id each time a client authenticates, an id known before can't be used to take over the authentication
+    final byte[] id = newId();
+    final byte[] payload = snapshot.toBytes();
+    if (!put(id, KIND_SNAPSHOT, Math.min(snapshot.getExpiresAt(), now + TimeUnit.SECONDS.toMillis(maxAge)), payload, now)) {
+      overflow.saveSnapshot(request, response, snapshot);
+    }
+    addCookie(request, response, Base64Url.encode(id), maxAge);
+  }
+
+  @Override
+  public AuthenticationSnapshot retrieveSnapshot(final HttpServletRequest request) {
+    final byte[] id = findId(request);
+    if (id != null) {
+      final byte[] payload = segment(id).get(hi(id), lo(id), KIND_SNAPSHOT, currentTimeMillis());
+      if (payload != null) {
+        return AuthenticationSnapshot.fromBytes(payload);
+      }
+    }
+    return request.getSession(false) == null ? null : overflow.retrieveSnapshot(request);
+  }
+
+  @Override
+  public void removeSnapshot(final HttpServletRequest request, final HttpServletResponse response) {
+    final byte[] id = findId(request);
+    if (id != null) {
+      segment(id).remove(hi(id), lo(id), KIND_SNAPSHOT, currentTimeMillis());
+      if (response != null) {
+        addCookie(request, response, "", 0);
+      }
+    }
+    if (request.getSession(false) != null) {
+      overflow.removeSnapshot(request, response);
+    }
+  }
+
+  @Override
+  public boolean keepsSubject() {
+    return false;
+  }
+
+  @Override
+  public void saveOriginalRequestPath(final HttpServletRequest request, final HttpServletResponse response, final String path) {
+    final long now = currentTimeMillis();
+    final byte[] previous = findId(request);
+    if (previous != null) {
+      segment(previous).remove(hi(previous), lo(previous), KIND_PATH, now);
+    }
+    //never store under an id chosen by the client, it could be the id of an authenticated client
+    final byte[] id = newId();
+    addCookie(request, response, Base64Url.encode(id), -1);
+    if (!put(id, KIND_PATH, now + PATH_TTL_MILLIS, path.getBytes(HttpClient.UTF8), now)) {
+      overflow.saveOriginalRequestPath(request, response, path);
+    }
+  }
+
+  @Override
+  public String removeOriginalRequestPath(final HttpServletRequest request, final HttpServletResponse response) {
+    final byte[] id = findId(request);
+    if (id != null) {
+      final byte[] payload = segment(id).remove(hi(id), lo(id), KIND_PATH, currentTimeMillis());
+      if (payload != null) {
+        return new String(payload, HttpClient.UTF8);
+      }
+    }
+    return request.getSession(false) == null ? null : overflow.removeOriginalRequestPath(request, response);
+  }
+
+  /**
+   * @return false if payload doesn't fit in a record or no record could be replaced
+   */
+  private boolean put(final byte[] id, final byte kind, final long expiresAt, final byte[] payload, final long now) {
+    if (payload.length > maxPayload) {
+      LOGGER.log(Level.FINE, "State of {0} bytes kept in the session", payload.length);
+      overflows.incrementAndGet();
+      return false;
+    }
+    final int result = segment(id).put(hi(id), lo(id), kind, expiresAt, payload, now);
+    if (result == FULL) {
+      LOGGER.log(Level.FINE, "No record to replace, state kept in the session");
+      overflows.incrementAndGet();
+      return false;
+    } else if (result == EVICTED) {
+      evictions.incrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * @return id of the client, as sent in its cookie, or null
+   */
+  String findClientId(final HttpServletRequest request) {
+    final byte[] id = findId(request);
+    return id == null ? null : Base64Url.encode(id);
+  }
+
+  private byte[] findId(final HttpServletRequest request) {
+    final Cookie[] cookies = request.getCookies();
+    if (cookies != null) {
+      for (final Cookie cookie : cookies) {
+        if (cookieName.equals(cookie.getName())) {
+          try {
+            final byte[] id = Base64Url.decode(cookie.getValue());
+            return id.length == ID_LENGTH ? id : null;
+          } catch (IllegalArgumentException ex) {
+            return null;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private static byte[] newId() {
+    final byte[] id = new byte[ID_LENGTH];
+    RANDOM.nextBytes(id);
+    return id;
+  }
+
+  private void addCookie(final HttpServletRequest request, final HttpServletResponse response, final String value, final int cookieMaxAge) {
+    final Cookie cookie = new Cookie(cookieName, value);
+    final String contextPath = request.getContextPath();
+    cookie.setPath(contextPath == null || contextPath.isEmpty() ? "/" : contextPath);
+    cookie.setHttpOnly(true);
+    cookie.setSecure(request.isSecure());
+    cookie.setMaxAge(cookieMaxAge);
+    response.addCookie(cookie);
+  }
+
+  private Segment segment(final byte[] id) {
+    return segments[(int) (hi(id) & (SEGMENTS - 1))];
+  }
+
+  private static long hi(final byte[] id) {
+    return ByteBuffer.wrap(id, 0, 8).getLong();
+  }
+
+  private static long lo(final byte[] id) {
+    return ByteBuffer.wrap(id, 8, 8).getLong();
+  }
+
+  /**
+   * @return number of records in use, including expired records not replaced yet
+   */
+  int size() {
+    int size = 0;
+    for (final Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return live records replaced because the store was full
+   */
+  long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * @return records kept in the session instead, because they were too large or had no free slot
+   */
+  long getOverflowCount() {
+    return overflows.get();
+  }
+
+  private static final class Segment {
+
+    private final ByteBuffer buffer;
+    private final int slots;
+    private final int recordSize;
+    private final int probes;
+    private int size;
+
+    Segment(final int slots, final int recordSize) {
+      this.buffer = ByteBuffer.allocateDirect(slots * recordSize);
+      this.slots = slots;
+      this.recordSize = recordSize;
+      this.probes = Math.min(PROBES, slots);
+    }
+
+    private int start(final long lo) {
+      return (int) ((lo ^ (lo >>> 32)) & Integer.MAX_VALUE) % slots;
+    }
+
+    private int offset(final int start, final int probe) {
+      return ((start + probe) % slots) * recordSize;
+    }
+
+    /**
+     * @return offset of the record of the key or -1
+     */
+    private int find(final long hi, final long lo) {
+      final int start = start(lo);
+      for (int i = 0; i < probes; i++) {
+        final int offset = offset(start, i);
+        if (buffer.getLong(offset + EXPIRES_AT) != 0 && buffer.getLong(offset + KEY_HI) == hi && buffer.getLong(offset + KEY_LO) == lo) {
+          return offset;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * A path record never replaces a live snapshot record.
+     *
+     * @return {@link #STORED}, {@link #EVICTED} if a live record of another key was replaced or {@link #FULL} if
+     * nothing could be replaced
+     */
+    synchronized int put(final long hi, final long lo, final byte kind, final long expiresAt, final byte[] payload, final long now) {
+      int offset = find(hi, lo);
+      int result = STORED;
+      if (offset >= 0 && !replaceable(offset, kind, now)) {
+        return FULL;
+      } else if (offset < 0) {
+        final int start = start(lo);
+        long soonest = Long.MAX_VALUE;
+        for (int i = 0; i < probes; i++) {
+          final int candidate = offset(start, i);
+          final long candidateExpiresAt = buffer.getLong(candidate + EXPIRES_AT);
+          if (candidateExpiresAt == 0) {
+            offset = candidate;
+            size++;
+            soonest = 0;
+            break;
+          } else if (candidateExpiresAt < soonest && replaceable(candidate, kind, now)) {
+            offset = candidate;
+            soonest = candidateExpiresAt;
+          }
+        }
+        if (offset < 0) {
+          return FULL;
+        }
+        result = soonest > now ? EVICTED : STORED;
+      }
+      buffer.putLong(offset + KEY_HI, hi);
+      buffer.putLong(offset + KEY_LO, lo);
+      buffer.putLong(offset + EXPIRES_AT, expiresAt);
+      buffer.put(offset + KIND, kind);
+      buffer.putShort(offset + LENGTH, (short) payload.length);
+      final ByteBuffer record = buffer.duplicate();
+      record.position(offset + HEADER_SIZE);
+      record.put(payload);
+      return result;
+    }
+
+    /**
+     * @return true if the record at offset may be overwritten by a record of kind
+     */
+    private boolean replaceable(final int offset, final byte kind, final long now) {
+      return kind != KIND_PATH || buffer.get(offset + KIND) != KIND_SNAPSHOT || buffer.getLong(offset + EXPIRES_AT) <= now;
+    }
+
+    /**
+     * @return payload of the unexpired record of the key and kind or null
+     */
+    synchronized byte[] get(final long hi, final long lo, final byte kind, final long now) {
+      final int offset = find(hi, lo);
+      if (offset < 0 || buffer.get(offset + KIND) != kind || buffer.getLong(offset + EXPIRES_AT) <= now) {
+        return null;
+      }
+      final byte[] payload = new byte[buffer.getShort(offset + LENGTH) & 0xFFFF];
+      final ByteBuffer record = buffer.duplicate();
+      record.position(offset + HEADER_SIZE);
+      record.get(payload);
+      return payload;
+    }
+
+    /**
+     * Removes the record of the key and kind.
+     *
+     * @return payload of the record if it was unexpired or null
+     */
+    synchronized byte[] remove(final long hi, final long lo, final byte kind, final long now) {
+      final byte[] payload = get(hi, lo, kind, now);
+      final int offset = find(hi, lo);
+      if (offset >= 0 && buffer.get(offset + KIND) == kind) {
+        clear(offset);
+      }
+      return payload;
+    }
+
+    private void clear(final int offset) {
+      buffer.putLong(offset + EXPIRES_AT, 0);
+      size--;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+  }
+}
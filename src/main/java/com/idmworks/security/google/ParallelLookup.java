@@ -0,0 +1,219 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.security.auth.message.AuthException;
+
+/**
+ * Runs the userinfo fetch and the group resolution of a callback at the same time, once the id_token has identified the
+ * user, so the callback takes as long as the slower of the two instead of both. <br> Both run on a bounded pool of
+ * daemon threads; a lookup reserves two threads before running anything, when there aren't two free nothing is run and
+ * {@link #lookup} returns null, the caller then does both itself one after the other. The threads are only given back
+ * once both calls have returned, a cancelled userinfo call may still be blocked in HTTP. As soon as either fails the other is cancelled and the failure is
+ * thrown, the calling thread doesn't wait for the other to finish.
+ *
+ * @author pdgreen
+ */
+class ParallelLookup {
+
+  private final ThreadPoolExecutor executor;
+  /**
+   * one permit per pair of threads
+   */
+  private final Semaphore slots;
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Userinfo and groups of a user.
+   */
+  static class Result {
+
+    private final GoogleUserInfo googleUserInfo;
+    private final List<String> groups;
+
+    Result(final GoogleUserInfo googleUserInfo, final List<String> groups) {
+      this.googleUserInfo = googleUserInfo;
+      this.groups = groups;
+    }
+
+    /**
+     * @return user info or null if Google didn't return it
+     */
+    GoogleUserInfo getGoogleUserInfo() {
+      return googleUserInfo;
+    }
+
+    /**
+     * @return groups or null if the user info is null
+     */
+    List<String> getGroups() {
+      return groups;
+    }
+  }
+
+  /**
+   * @param threads number of threads, each lookup takes two
+   */
+  ParallelLookup(final int threads) {
+    if (threads < 2) {
+      throw new IllegalArgumentException("threads must be at least 2");
+    }
+    this.slots = new Semaphore(threads / 2);
+    final AtomicInteger count = new AtomicInteger();
+    //slots keeps the tasks within the threads, the queue only holds one while its thread returns to the pool
+    this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, "google-oauth-lookup-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @param userInfo fetches the user info, null if Google refused
+   * @param groups resolves the groups of the user identified by the id_token
+   * @return userinfo and groups or null if there weren't threads to run them
+   * @throws AuthException thrown by groups
+   * @throws RuntimeException thrown by userInfo or groups
+   */
+  Result lookup(final Callable<GoogleUserInfo> userInfo, final Callable<List<String>> groups) throws AuthException {
+    if (!slots.tryAcquire()) {
+      rejected.incrementAndGet();
+      return null;
+    }
+    final AtomicInteger running = new AtomicInteger(2);
+    final BlockingQueue<Future<Object>> completion = new LinkedBlockingQueue<Future<Object>>();
+    final Task userInfoFuture = new Task(userInfo, running, completion);
+    final Task groupsFuture = new Task(groups, running, completion);
+    try {
+      executor.execute(userInfoFuture);
+      executor.execute(groupsFuture);
+    } catch (RejectedExecutionException ex) {
+      //shut down
+      userInfoFuture.cancel(true);
+      groupsFuture.cancel(true);
+      rejected.incrementAndGet();
+      return null;
+    }
+    lookups.incrementAndGet();
+    boolean completed = false;
+    try {
+      for (int i = 0; i < 2; i++) {
+        final Future<Object> done = completion.take();
+        final Object value = done.get();
+        if (done == userInfoFuture && value == null) {
+          //Google refused, the groups aren't needed
+          return new Result(null, null);
+        }
+      }
+      completed = true;
+      @SuppressWarnings("unchecked")
+      final List<String> groupNames = (List<String>) groupsFuture.get();
+      return new Result((GoogleUserInfo) userInfoFuture.get(), groupNames);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while looking up the user", ex);
+    } catch (ExecutionException ex) {
+      final Throwable cause = ex.getCause();
+      if (cause instanceof AuthException) {
+        throw (AuthException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException("Unable to look up the user", cause);
+    } finally {
+      if (!completed) {
+        userInfoFuture.cancel(true);
+        groupsFuture.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Call of a lookup, the slot of the lookup is released once both calls have run or were cancelled before running.
+   */
+  private final class Task extends FutureTask<Object> {
+
+    private final AtomicInteger running;
+    private final BlockingQueue<Future<Object>> completion;
+
+    @SuppressWarnings("unchecked")
+    Task(final Callable<?> callable, final AtomicInteger running, final BlockingQueue<Future<Object>> completion) {
+      super((Callable<Object>) callable);
+      this.running = running;
+      this.completion = completion;
+    }
+
+    @Override
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        if (running.decrementAndGet() == 0) {
+          slots.release();
+        }
+      }
+    }
+
+    @Override
+    protected void done() {
+      completion.add(this);
+    }
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return lookups run in parallel
+   */
+  long getLookupCount() {
+    return lookups.get();
+  }
+
+  /**
+   * @return lookups done one after the other because all threads were busy
+   */
+  long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * Publishes the lookups run in parallel and those which weren't.
+   */
+  void publishMetrics(final AuthMetrics metrics) {
+    metrics.publish("ParallelLookupCount", new AuthMetrics.Attribute<Long>() {
+      @Override
+      public Long get() {
+        return getLookupCount();
+      }
+    });
+    metrics.publish("ParallelLookupRejectedCount", new AuthMetrics.Attribute<Long>() {
+      @Override
+      public Long get() {
+        return getRejectedCount();
+      }
+    });
+  }
+}
@@ -1,6 +1,14 @@
 package com.idmworks.security.google;
 
 import com.idmworks.security.google.api.GoogleUserInfo;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -10,51 +18,340 @@ import static com.idmworks.security.google.GoogleApiUtils.*;
 /**
  * Methods of this class parse JSON responses. <br> Instead of including an external library to handle JSON, and making
  * installation/packaging more difficult, I created a couple small methods to handle it. There is only a couple response
- * to parse, so I felt I could by pass a full JSON parse for the sake of easier installation.
+ * to parse, so I felt I could by pass a full JSON parse for the sake of easier installation. <br> The responses are
+ * read with {@link JsonReader} straight from the response bytes into the result objects.
  *
  * @author pdgreen
  */
 public class ParseUtils {
 
-  static Map<String, String> parseSimpleJson(final String json) {
-    final String[] parts = json.substring(json.indexOf("{") + 1, json.lastIndexOf("}")).split(",");
+  static InputStream toStream(final String json) {
+    return new ByteArrayInputStream(json.getBytes(HttpClient.UTF8));
+  }
 
-    final Map<String, String> values = new HashMap<String, String>();
-    for (final String part : parts) {
-      final String[] vparts = part.replaceAll("\"", "").split(":", 2);
-      values.put(vparts[0].trim(), vparts[1].trim());
+  /**
+   * Reads a scalar value as a String. Objects and arrays are skipped and null is returned for them and for null.
+   */
+  static String nextScalar(final JsonReader reader) throws IOException {
+    switch (reader.peek()) {
+      case NULL:
+        reader.nextNull();
+        return null;
+      case BEGIN_OBJECT:
+      case BEGIN_ARRAY:
+        reader.skipValue();
+        return null;
+      default:
+        return reader.nextString();
     }
-    return values;
+  }
+
+  static IllegalArgumentException parseFailure(final IOException ex) {
+    return new IllegalArgumentException("Unable to parse JSON: " + ex.getMessage(), ex);
   }
 
   public static AccessTokenInfo parseAccessTokenJson(final String json) {
+    return parseAccessTokenJson(toStream(json));
+  }
 
-    final Map<String, String> values = parseSimpleJson(json);
+  public static AccessTokenInfo parseAccessTokenJson(final InputStream json) {
+    String accessToken = null;
+    String tokenType = null;
+    String idToken = null;
+    String refreshToken = null;
+    long expiresIn = -1;
+    try {
+      final JsonReader reader = new JsonReader(json);
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String name = reader.nextName();
+        if (TOKEN_API_ACCESS_TOKEN_PARAMETER.equals(name)) {
+          accessToken = nextScalar(reader);
+        } else if (TOKEN_API_EXPIRES_IN_PARAMETER.equals(name)) {
+          expiresIn = reader.nextLong();
+        } else if (TOKEN_API_TOKEN_TYPE_PARAMETER.equals(name)) {
+          tokenType = nextScalar(reader);
+        } else if (TOKEN_API_ID_TOKEN_PARAMETER.equals(name)) {
+          idToken = nextScalar(reader);
+        } else if (TOKEN_API_REFRESH_TOKEN_PARAMETER.equals(name)) {
+          refreshToken = nextScalar(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      reader.endDocument();
+    } catch (IOException ex) {
+      throw parseFailure(ex);
+    }
 
-    final String accessToken = values.get(TOKEN_API_ACCESS_TOKEN_PARAMETER);
-    final String expiresInAsString = values.get(TOKEN_API_EXPIRES_IN_PARAMETER);
-    final String tokenType = values.get(TOKEN_API_TOKEN_TYPE_PARAMETER);
+    final Date expiration = expiresIn < 0 ? null : new Date(System.currentTimeMillis() + expiresIn * 1000L);
+    return new AccessTokenInfo(accessToken, expiration, tokenType, idToken, refreshToken);
+  }
 
-    final int expiresIn = Integer.parseInt(expiresInAsString);
+  /**
+   * Reads the subject (Google account id) from the claims of an id_token. The signature is not checked, so this must
+   * only be used for id_tokens received directly from the token API over TLS.
+   *
+   * @param idToken id_token (JWT)
+   * @return sub claim or null if idToken is null or malformed
+   */
+  public static String parseIdTokenSubject(final String idToken) {
+    final JsonReader reader = idTokenClaims(idToken);
+    if (reader == null) {
+      return null;
+    }
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (ID_TOKEN_SUBJECT_CLAIM.equals(reader.nextName())) {
+          return nextScalar(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+      return null;
+    } catch (IOException ex) {
+      return null;
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
 
-    return new AccessTokenInfo(accessToken, new Date(new Date().getTime() + expiresIn * 1000), tokenType);
+  /**
+   * Reads the user from the claims of an id_token. The signature is not checked, so this must only be used for
+   * id_tokens received directly from the token API over TLS.
+   *
+   * @param idToken id_token (JWT)
+   * @return user with the id, email and profile claims, or null if idToken is null, malformed or has no sub or email
+   */
+  static GoogleUserInfo parseIdTokenUserInfo(final String idToken) {
+    final JsonReader reader = idTokenClaims(idToken);
+    if (reader == null) {
+      return null;
+    }
+    String id = null;
+    String email = null;
+    boolean verifiedEmail = false;
+    String name = null;
+    String givenName = null;
+    String familyName = null;
+    String picture = null;
+    String locale = null;
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String claim = reader.nextName();
+        if (ID_TOKEN_SUBJECT_CLAIM.equals(claim)) {
+          id = nextScalar(reader);
+        } else if (ID_TOKEN_EMAIL_CLAIM.equals(claim)) {
+          email = nextScalar(reader);
+        } else if (ID_TOKEN_EMAIL_VERIFIED_CLAIM.equals(claim)) {
+          verifiedEmail = Boolean.parseBoolean(nextScalar(reader));
+        } else if (USERINFO_API_NAME_PARAMETER.equals(claim)) {
+          name = nextScalar(reader);
+        } else if (USERINFO_API_GIVEN_NAME_PARAMETER.equals(claim)) {
+          givenName = nextScalar(reader);
+        } else if (USERINFO_API_FAMILY_NAME_PARAMETER.equals(claim)) {
+          familyName = nextScalar(reader);
+        } else if (USERINFO_API_PICTURE_PARAMETER.equals(claim)) {
+          picture = nextScalar(reader);
+        } else if (USERINFO_API_LOCALE_PARAMETER.equals(claim)) {
+          locale = nextScalar(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+    } catch (IOException ex) {
+      return null;
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+    if (id == null || email == null) {
+      return null;
+    }
+    return new GoogleUserInfo(id, email, verifiedEmail, name, givenName, familyName, null, null, picture, locale);
   }
 
-  public static GoogleUserInfo parseGoogleUserInfoJson(final String json) {
+  /**
+   * @return reader of the claims (payload) of idToken or null if idToken is null or malformed
+   */
+  private static JsonReader idTokenClaims(final String idToken) {
+    if (idToken == null) {
+      return null;
+    }
+    final int start = idToken.indexOf('.');
+    final int end = idToken.indexOf('.', start + 1);
+    if (start < 0 || end < 0) {
+      return null;
+    }
+    try {
+      return new JsonReader(new ByteArrayInputStream(Base64Url.decode(idToken.substring(start + 1, end))));
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
 
-    final Map<String, String> values = parseSimpleJson(json);
+  public static GoogleUserInfo parseGoogleUserInfoJson(final String json) {
+    return parseGoogleUserInfoJson(toStream(json));
+  }
 
-    final String id = values.get(USERINFO_API_ID_PARAMETER);
-    final String email = values.get(USERINFO_API_EMAIL_PARAMETER);
-    final boolean verifiedEmail = values.containsKey(USERINFO_API_VERIFIED_EMAIL_PARAMETER) && Boolean.parseBoolean(values.get(USERINFO_API_VERIFIED_EMAIL_PARAMETER));
-    final String name = values.get(USERINFO_API_NAME_PARAMETER);
-    final String givenName = values.get(USERINFO_API_GIVEN_NAME_PARAMETER);
-    final String familyName = values.get(USERINFO_API_FAMILY_NAME_PARAMETER);
-    final String gender = values.get(USERINFO_API_GENDER_PARAMETER);
-    final String link = values.get(USERINFO_API_LINK_PARAMETER);
-    final String picture = values.get(USERINFO_API_PICTURE_PARAMETER);
-    final String locale = values.get(USERINFO_API_LOCALE_PARAMETER);
+  public static GoogleUserInfo parseGoogleUserInfoJson(final InputStream json) {
+    String id = null;
+    String email = null;
+    boolean verifiedEmail = false;
+    String name = null;
+    String givenName = null;
+    String familyName = null;
+    String gender = null;
+    String link = null;
+    String picture = null;
+    String locale = null;
+    try {
+      final JsonReader reader = new JsonReader(json);
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String field = reader.nextName();
+        if (USERINFO_API_ID_PARAMETER.equals(field)) {
+          id = nextScalar(reader);
+        } else if (USERINFO_API_EMAIL_PARAMETER.equals(field)) {
+          email = nextScalar(reader);
+        } else if (USERINFO_API_VERIFIED_EMAIL_PARAMETER.equals(field)) {
+          verifiedEmail = Boolean.parseBoolean(nextScalar(reader));
+        } else if (USERINFO_API_NAME_PARAMETER.equals(field)) {
+          name = nextScalar(reader);
+        } else if (USERINFO_API_GIVEN_NAME_PARAMETER.equals(field)) {
+          givenName = nextScalar(reader);
+        } else if (USERINFO_API_FAMILY_NAME_PARAMETER.equals(field)) {
+          familyName = nextScalar(reader);
+        } else if (USERINFO_API_GENDER_PARAMETER.equals(field)) {
+          gender = nextScalar(reader);
+        } else if (USERINFO_API_LINK_PARAMETER.equals(field)) {
+          link = nextScalar(reader);
+        } else if (USERINFO_API_PICTURE_PARAMETER.equals(field)) {
+          picture = nextScalar(reader);
+        } else if (USERINFO_API_LOCALE_PARAMETER.equals(field)) {
+          locale = nextScalar(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      reader.endDocument();
+    } catch (IOException ex) {
+      throw parseFailure(ex);
+    }
 
     return new GoogleUserInfo(id, email, verifiedEmail, name, givenName, familyName, gender, link, picture, locale);
   }
+
+  public static TokenInfo parseTokenInfoJson(final String json) {
+    return parseTokenInfoJson(toStream(json));
+  }
+
+  /**
+   * Reads a tokeninfo response. Google returns the numbers and booleans of it as strings, both forms are accepted.
+   */
+  public static TokenInfo parseTokenInfoJson(final InputStream json) {
+    String audience = null;
+    String authorizedParty = null;
+    String subject = null;
+    String email = null;
+    boolean verifiedEmail = false;
+    long expiration = -1;
+    String scope = null;
+    try {
+      final JsonReader reader = new JsonReader(json);
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String name = reader.nextName();
+        if (TOKENINFO_API_AUDIENCE_PARAMETER.equals(name)) {
+          audience = nextScalar(reader);
+        } else if (TOKENINFO_API_AUTHORIZED_PARTY_PARAMETER.equals(name)) {
+          authorizedParty = nextScalar(reader);
+        } else if (TOKENINFO_API_SUBJECT_PARAMETER.equals(name)) {
+          subject = nextScalar(reader);
+        } else if (TOKENINFO_API_EMAIL_PARAMETER.equals(name)) {
+          email = nextScalar(reader);
+        } else if (TOKENINFO_API_EMAIL_VERIFIED_PARAMETER.equals(name)) {
+          verifiedEmail = Boolean.parseBoolean(nextScalar(reader));
+        } else if (TOKENINFO_API_EXPIRATION_PARAMETER.equals(name)) {
+          final String value = nextScalar(reader);
+          expiration = value == null ? -1 : Long.parseLong(value);
+        } else if (TOKENINFO_API_SCOPE_PARAMETER.equals(name)) {
+          scope = nextScalar(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      reader.endDocument();
+    } catch (IOException ex) {
+      throw parseFailure(ex);
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Unable to parse JSON: " + ex.getMessage(), ex);
+    }
+
+    return new TokenInfo(audience, authorizedParty, subject, email, verifiedEmail,
+            expiration < 0 ? null : new Date(expiration * 1000L), scope);
+  }
+
+  /**
+   * Reads the RS256 keys of a JSON Web Key Set. Keys of other types or algorithms and keys without a kid are skipped.
+   *
+   * @param json JWK set, e.g. from {@link GoogleApiUtils#ID_TOKEN_KEYS_URI}
+   * @return public keys by kid
+   */
+  public static Map<String, PublicKey> parseJwkSet(final InputStream json) {
+    final Map<String, PublicKey> keys = new HashMap<String, PublicKey>();
+    try {
+      final JsonReader reader = new JsonReader(json);
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (!JWK_SET_KEYS_PARAMETER.equals(reader.nextName())) {
+          reader.skipValue();
+          continue;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+          String kid = null;
+          String kty = null;
+          String alg = null;
+          String modulus = null;
+          String exponent = null;
+          reader.beginObject();
+          while (reader.hasNext()) {
+            final String field = reader.nextName();
+            if (JWK_KID_PARAMETER.equals(field)) {
+              kid = nextScalar(reader);
+            } else if (JWK_KTY_PARAMETER.equals(field)) {
+              kty = nextScalar(reader);
+            } else if (JWK_ALG_PARAMETER.equals(field)) {
+              alg = nextScalar(reader);
+            } else if (JWK_MODULUS_PARAMETER.equals(field)) {
+              modulus = nextScalar(reader);
+            } else if (JWK_EXPONENT_PARAMETER.equals(field)) {
+              exponent = nextScalar(reader);
+            } else {
+              reader.skipValue();
+            }
+          }
+          reader.endObject();
+          if (kid != null && JWK_KTY_RSA_VALUE.equals(kty) && (alg == null || JWT_ALG_RS256_VALUE.equals(alg))
+                  && modulus != null && exponent != null) {
+            keys.put(kid, KeyFactory.getInstance(JWK_KTY_RSA_VALUE).generatePublic(new RSAPublicKeySpec(
+                    new BigInteger(1, Base64Url.decode(modulus)), new BigInteger(1, Base64Url.decode(exponent)))));
+          }
+        }
+        reader.endArray();
+      }
+      reader.endObject();
+      reader.endDocument();
+    } catch (IOException ex) {
+      throw parseFailure(ex);
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalArgumentException("Invalid key: " + ex.getMessage(), ex);
+    }
+    return keys;
+  }
 }
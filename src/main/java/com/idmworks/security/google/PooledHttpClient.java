@@ -0,0 +1,234 @@
+package com.idmworks.security.google;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link HttpClient} built on {@link HttpURLConnection} with bounded concurrency and timeouts. <br> Responses are
+ * always read completely and closed (never disconnected) so the JDK can keep the connection alive and reuse it; idle
+ * connections are kept by the JDK keep-alive cache (see the {@code http.maxConnections} system property). All https
+ * connections share one {@link SSLSocketFactory}, so TLS sessions are resumed instead of renegotiated. <br> The
+ * connect and read timeouts are shortened to what is left of the total timeout when the connection is opened, which
+ * is the only time {@link HttpURLConnection} applies them to the socket. Until the response arrives, a connection
+ * still busy at the deadline is disconnected from a shared watchdog thread; this also ends a blocked write of the
+ * request body, which has no timeout of its own. Once the body of the response is being read the JDK doesn't let
+ * another thread abort the read, so each read is bounded by the read timeout and no read starts after the deadline.
+ *
+ * @author pdgreen
+ */
+public class PooledHttpClient implements HttpClient {
+
+  public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+  public static final int DEFAULT_READ_TIMEOUT = 10000;
+  public static final int DEFAULT_TOTAL_TIMEOUT = 15000;
+  public static final int DEFAULT_MAX_CONNECTIONS = 20;
+  private static final Logger LOGGER = Logger.getLogger(PooledHttpClient.class.getName());
+  private static final int BUFFER_SIZE = 4096;
+  private static final int MAX_INITIAL_BUFFER_SIZE = 64 * 1024;
+  private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "google-oauth-http-deadline");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private final int connectTimeout;
+  private final int readTimeout;
+  private final int totalTimeout;
+  private final Semaphore connections;
+  private final SSLSocketFactory sslSocketFactory;
+
+  public PooledHttpClient() {
+    this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_TOTAL_TIMEOUT, DEFAULT_MAX_CONNECTIONS);
+  }
+
+  /**
+   * @param connectTimeout maximum milliseconds to establish a connection
+   * @param readTimeout maximum milliseconds to wait for data on an established connection
+   * @param totalTimeout maximum milliseconds for the whole request, including waiting for a free connection; no
+   * connect or read waits past it
+   * @param maxConnections maximum number of requests in progress at once
+   * @throws IllegalArgumentException if a timeout or maxConnections isn't positive
+   */
+  public PooledHttpClient(final int connectTimeout, final int readTimeout, final int totalTimeout, final int maxConnections) {
+    if (connectTimeout <= 0 || readTimeout <= 0 || totalTimeout <= 0 || maxConnections <= 0) {
+      throw new IllegalArgumentException("timeouts and maxConnections must be positive");
+    }
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.totalTimeout = totalTimeout;
+    this.connections = new Semaphore(maxConnections, true);
+    this.sslSocketFactory = createSslSocketFactory();
+  }
+
+  static SSLSocketFactory createSslSocketFactory() {
+    try {
+      final SSLContext sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(null, null, null);
+      return sslContext.getSocketFactory();
+    } catch (GeneralSecurityException ex) {
+      LOGGER.log(Level.WARNING, "Unable to create SSLContext, using default SSLSocketFactory", ex);
+      return HttpsURLConnection.getDefaultSSLSocketFactory();
+    }
+  }
+
+  @Override
+  public Response GET(final URI destination) {
+    return sendRequest("GET", destination, null);
+  }
+
+  @Override
+  public Response POST(final URI destination, final String body) {
+    return sendRequest("POST", destination, body);
+  }
+
+  Response sendRequest(final String method, final URI destination, final String body) {
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.log(Level.FINER, "sendRequest({0},{1},{2})", new Object[]{method, destination, "hasBody?" + (body != null)});
+    }
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(totalTimeout);
+
+    try {
+      if (!connections.tryAcquire(totalTimeout, TimeUnit.MILLISECONDS)) {
+        throw new IllegalStateException("No connection available within " + totalTimeout + "ms");
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted waiting for a connection", ex);
+    }
+    try {
+      return exchange(method, destination, body, deadline);
+    } finally {
+      connections.release();
+    }
+  }
+
+  private Response exchange(final String method, final URI destination, final String body, final long deadline) {
+    final HttpURLConnection connection;
+    try {
+      connection = (HttpURLConnection) destination.toURL().openConnection();
+      if (connection instanceof HttpsURLConnection) {
+        ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+      }
+      connection.setRequestMethod(method);
+      connection.setUseCaches(false);
+      connection.setInstanceFollowRedirects(false);
+      connection.setConnectTimeout(remaining(connectTimeout, deadline));
+      connection.setReadTimeout(remaining(readTimeout, deadline));
+    } catch (IOException ex) {
+      throw new IllegalStateException("Unable to create connection", ex);
+    }
+
+    final AtomicBoolean expired = new AtomicBoolean();
+    final Future<?> watchdog = WATCHDOG.schedule(new Runnable() {
+      @Override
+      public void run() {
+        expired.set(true);
+        connection.disconnect();
+      }
+    }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    try {
+      return transfer(connection, body, deadline, expired);
+    } finally {
+      watchdog.cancel(false);
+    }
+  }
+
+  private Response transfer(final HttpURLConnection connection, final String body, final long deadline, final AtomicBoolean expired) {
+    try {
+      if (body != null) {
+        final byte[] bodyBytes = body.getBytes(UTF8);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(bodyBytes.length);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        final OutputStream out = connection.getOutputStream();
+        try {
+          out.write(bodyBytes);
+        } finally {
+          out.close();
+        }
+      }
+    } catch (IOException ex) {
+      connection.disconnect();
+      throw failure("Unable to write body", ex, expired);
+    }
+
+    try {
+      final int status = connection.getResponseCode();
+      LOGGER.log(Level.FINER, "response code: {0}", status);
+      final InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+      return new Response(status, in == null ? null : readFully(in, connection, deadline));
+    } catch (IOException ex) {
+      connection.disconnect();
+      throw failure("Unable to read response", ex, expired);
+    }
+  }
+
+  private IllegalStateException failure(final String message, final IOException ex, final AtomicBoolean expired) {
+    return new IllegalStateException(expired.get() ? "Request exceeded total timeout of " + totalTimeout + "ms" : message, ex);
+  }
+
+  /**
+   * Reads and closes the stream. Reading to the end is what lets the connection return to the keep-alive cache.
+   */
+  private byte[] readFully(final InputStream in, final HttpURLConnection connection, final long deadline) throws IOException {
+    try {
+      final int contentLength = connection.getContentLength();
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(contentLength > 0 ? Math.min(contentLength, MAX_INITIAL_BUFFER_SIZE) : BUFFER_SIZE);
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        if (System.nanoTime() - deadline > 0) {
+          connection.disconnect();
+          throw new IllegalStateException("Request exceeded total timeout of " + totalTimeout + "ms");
+        }
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static int remaining(final int timeout, final long deadline) {
+    final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    if (remaining <= 0) {
+      throw new IllegalStateException("Request exceeded total timeout");
+    }
+    return (int) Math.min(timeout, remaining);
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  public int getTotalTimeout() {
+    return totalTimeout;
+  }
+
+  public int getAvailableConnections() {
+    return connections.availablePermits();
+  }
+}
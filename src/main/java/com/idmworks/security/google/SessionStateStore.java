@@ -0,0 +1,72 @@
+package com.idmworks.security.google;
+
+import java.net.URI;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Keeps the authentication state in the {@link HttpSession}, the default {@link StateStore}. <br> Only small, compactly
+ * serialized values are put in the session (an {@link AuthenticationSnapshot} and the original request path as a
+ * String), so replicating it is cheap.
+ *
+ * @author pdgreen
+ */
+public class SessionStateStore implements StateStore {
+
+  /*
+   * Session Parameters
+   */
+  private static final String SESSION_PREFIX = StateHelper.class.getName() + ".";
+  private static final String ORIGINAL_REQUEST_PATH = SESSION_PREFIX + "original_request_path";
+  private static final String SAVED_SNAPSHOT = SESSION_PREFIX + "saved_snapshot";
+
+  @Override
+  public void saveSnapshot(final HttpServletRequest request, final HttpServletResponse response, final AuthenticationSnapshot snapshot) {
+    request.getSession(true).setAttribute(SAVED_SNAPSHOT, snapshot);
+  }
+
+  @Override
+  public AuthenticationSnapshot retrieveSnapshot(final HttpServletRequest request) {
+    final HttpSession session = request.getSession(false);
+    if (session != null) {
+      return (AuthenticationSnapshot) session.getAttribute(SAVED_SNAPSHOT);
+    } else {
+      return null;
+    }
+  }
+
+  @Override
+  public void removeSnapshot(final HttpServletRequest request, final HttpServletResponse response) {
+    final HttpSession session = request.getSession(false);
+    if (session != null) {
+      session.removeAttribute(SAVED_SNAPSHOT);
+    }
+  }
+
+  @Override
+  public boolean keepsSubject() {
+    return true;
+  }
+
+  @Override
+  public void saveOriginalRequestPath(final HttpServletRequest request, final HttpServletResponse response, final String path) {
+    request.getSession(true).setAttribute(ORIGINAL_REQUEST_PATH, path);
+  }
+
+  @Override
+  public String removeOriginalRequestPath(final HttpServletRequest request, final HttpServletResponse response) {
+    final HttpSession session = request.getSession(false);
+    if (session != null) {
+      final Object originalRequestPath = session.getAttribute(ORIGINAL_REQUEST_PATH);
+      if (originalRequestPath == null) {
+        return null;
+      }
+      session.removeAttribute(ORIGINAL_REQUEST_PATH);
+      //sessions saved by earlier versions hold a URI
+      return originalRequestPath instanceof URI ? originalRequestPath.toString() : (String) originalRequestPath;
+    } else {
+      return null;
+    }
+  }
+}
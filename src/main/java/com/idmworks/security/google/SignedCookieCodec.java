@@ -0,0 +1,172 @@
+package com.idmworks.security.google;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs (HMAC-SHA256) and optionally encrypts (AES-128-CBC, encrypt-then-MAC) cookie values. <br> Values look like
+ * {@code kid.payload.mac}, all base64url. The name of the cookie is signed too, so a value only verifies under the
+ * name it was issued for and e.g. a path cookie can't be replayed as an authentication cookie. Several keys can be
+ * configured: the first one signs new values and all of them are accepted when verifying, so keys can be rotated by
+ * adding the new key first and removing the old key once its cookies have expired.
+ *
+ * @author pdgreen
+ */
+class SignedCookieCodec {
+
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+  private static final int IV_LENGTH = 16;
+  private final Map<String, Key> keys = new LinkedHashMap<String, Key>();
+  private final String activeKid;
+  private final boolean encrypt;
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * @param keySpec comma separated list of {@code kid:base64-secret}, the first is used for new values
+   * @param encrypt whether to encrypt the payload
+   * @throws IllegalArgumentException if keySpec is invalid
+   */
+  SignedCookieCodec(final String keySpec, final boolean encrypt) {
+    this.encrypt = encrypt;
+    String first = null;
+    for (final String entry : keySpec.split(",")) {
+      final String trimmed = entry.trim();
+      if (trimmed.isEmpty()) {
+        continue;
+      }
+      final int colon = trimmed.indexOf(':');
+      if (colon <= 0) {
+        throw new IllegalArgumentException("Key must be kid:secret");
+      }
+      final String kid = trimmed.substring(0, colon);
+      if (!kid.matches("[A-Za-z0-9_-]+")) {
+        throw new IllegalArgumentException("Invalid key id " + kid);
+      }
+      final byte[] secret = Base64Url.decode(trimmed.substring(colon + 1));
+      if (secret.length < 16) {
+        throw new IllegalArgumentException("Key " + kid + " must be at least 128 bits");
+      }
+      keys.put(kid, new Key(secret));
+      if (first == null) {
+        first = kid;
+      }
+    }
+    if (first == null) {
+      throw new IllegalArgumentException("No keys");
+    }
+    this.activeKid = first;
+  }
+
+  /**
+   * @param name name of the cookie which will carry the value
+   * @param payload value to sign
+   * @return cookie value
+   */
+  String encode(final String name, final byte[] payload) {
+    try {
+      final Key key = keys.get(activeKid);
+      final byte[] body;
+      if (encrypt) {
+        final byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, key.encryptionKey, new IvParameterSpec(iv));
+        final byte[] encrypted = cipher.doFinal(payload);
+        body = new byte[IV_LENGTH + encrypted.length];
+        System.arraycopy(iv, 0, body, 0, IV_LENGTH);
+        System.arraycopy(encrypted, 0, body, IV_LENGTH, encrypted.length);
+      } else {
+        body = payload;
+      }
+      final String signed = activeKid + "." + Base64Url.encode(body);
+      return signed + "." + Base64Url.encode(key.mac(name, signed));
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalStateException("Unable to encode cookie", ex);
+    }
+  }
+
+  /**
+   * @param name name of the cookie which carried the value
+   * @param value cookie value
+   * @return payload or null if the value is malformed, signed with an unknown key or for another cookie, or has been
+   * tampered with
+   */
+  byte[] decode(final String name, final String value) {
+    if (value == null) {
+      return null;
+    }
+    final int firstDot = value.indexOf('.');
+    final int lastDot = value.lastIndexOf('.');
+    if (firstDot <= 0 || lastDot <= firstDot) {
+      return null;
+    }
+    final Key key = keys.get(value.substring(0, firstDot));
+    if (key == null) {
+      return null;
+    }
+    try {
+      final String signed = value.substring(0, lastDot);
+      if (!MessageDigest.isEqual(key.mac(name, signed), Base64Url.decode(value.substring(lastDot + 1)))) {
+        return null;
+      }
+      final byte[] body = Base64Url.decode(value.substring(firstDot + 1, lastDot));
+      if (!encrypt) {
+        return body;
+      }
+      if (body.length <= IV_LENGTH) {
+        return null;
+      }
+      final Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+      cipher.init(Cipher.DECRYPT_MODE, key.encryptionKey, new IvParameterSpec(body, 0, IV_LENGTH));
+      return cipher.doFinal(body, IV_LENGTH, body.length - IV_LENGTH);
+    } catch (IllegalArgumentException ex) {
+      return null;
+    } catch (GeneralSecurityException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * @return true if value was signed with a key other than the one used for new values
+   */
+  boolean isSignedWithOldKey(final String value) {
+    return !value.startsWith(activeKid + ".");
+  }
+
+  private static class Key {
+
+    private final SecretKeySpec macKey;
+    private final SecretKeySpec encryptionKey;
+
+    Key(final byte[] secret) {
+      try {
+        //derive separate keys for signing and encryption
+        final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+        this.macKey = new SecretKeySpec(mac.doFinal("mac".getBytes(HttpClient.UTF8)), MAC_ALGORITHM);
+        final byte[] encryption = new byte[16];
+        System.arraycopy(mac.doFinal("encryption".getBytes(HttpClient.UTF8)), 0, encryption, 0, encryption.length);
+        this.encryptionKey = new SecretKeySpec(encryption, "AES");
+      } catch (GeneralSecurityException ex) {
+        throw new IllegalStateException("Unable to derive keys", ex);
+      }
+    }
+
+    byte[] mac(final String name, final String value) throws GeneralSecurityException {
+      final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(macKey);
+      //'=' can't appear in a cookie name
+      mac.update(name.getBytes(HttpClient.UTF8));
+      mac.update((byte) '=');
+      return mac.doFinal(value.getBytes(HttpClient.UTF8));
+    }
+  }
+}
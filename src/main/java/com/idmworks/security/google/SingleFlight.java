@@ -0,0 +1,184 @@
+package com.idmworks.security.google;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key into one. <br> The first caller for a key runs the call on its own
+ * thread; callers arriving while it runs wait for it and get the same result (or exception). A non null result is
+ * also handed out for a short window after it completes, so a call repeated right afterwards doesn't run again.
+ * Exceptions and null results are not remembered past the callers already waiting.
+ *
+ * @param <K> key type
+ * @param <V> result type
+ * @author pdgreen
+ */
+class SingleFlight<K, V> {
+
+  /**
+   * completed entries are purged once the map holds more than this many, at most once per window
+   */
+  private static final int PURGE_THRESHOLD = 64;
+  private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<K, Flight<V>>();
+  private final long windowNanos;
+  private final AtomicLong executions = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong lastPurge = new AtomicLong();
+  private final AtomicLong purges = new AtomicLong();
+
+  /**
+   * @param window how long a completed result is shared
+   * @param unit unit of window
+   */
+  SingleFlight(final long window, final TimeUnit unit) {
+    this.windowNanos = unit.toNanos(window);
+    this.lastPurge.set(currentTimeNanos() - windowNanos);
+  }
+
+  /**
+   * @return current time in nanoseconds, overridable for tests
+   */
+  long currentTimeNanos() {
+    return System.nanoTime();
+  }
+
+  /**
+   * @param key identifies the call
+   * @param callable the call, only run if no call for key is in flight or recently completed
+   * @return result of the call
+   */
+  V execute(final K key, final Callable<V> callable) {
+    final long now = currentTimeNanos();
+    Flight<V> flight = flights.get(key);
+    if (flight == null || flight.isExpired(now, windowNanos)) {
+      if (flight != null) {
+        flights.remove(key, flight);
+      }
+      final Flight<V> created = new Flight<V>(callable);
+      flight = flights.putIfAbsent(key, created);
+      if (flight == null) {
+        flight = created;
+        executions.incrementAndGet();
+        if (flights.size() > PURGE_THRESHOLD) {
+          purge(now);
+        }
+        created.run(this, key);
+      } else {
+        coalesced.incrementAndGet();
+      }
+    } else {
+      coalesced.incrementAndGet();
+    }
+    return flight.await();
+  }
+
+  private void completed(final K key, final Flight<V> flight, final boolean failed) {
+    if (failed || windowNanos <= 0) {
+      flights.remove(key, flight);
+    }
+  }
+
+  /**
+   * Drops the expired entries, at most once per window so a busy map isn't scanned on every call.
+   */
+  private void purge(final long now) {
+    final long last = lastPurge.get();
+    if (now - last < windowNanos || !lastPurge.compareAndSet(last, now)) {
+      return;
+    }
+    purges.incrementAndGet();
+    for (final Iterator<Map.Entry<K, Flight<V>>> it = flights.entrySet().iterator(); it.hasNext();) {
+      if (it.next().getValue().isExpired(now, windowNanos)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return number of calls actually run
+   */
+  long getExecutionCount() {
+    return executions.get();
+  }
+
+  /**
+   * @return number of scans for expired entries
+   */
+  long getPurgeCount() {
+    return purges.get();
+  }
+
+  int size() {
+    return flights.size();
+  }
+
+  /**
+   * @return number of calls answered by a call already in flight or recently completed
+   */
+  long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  private static final class Flight<V> {
+
+    private final FutureTask<V> task;
+    private volatile long completedAt;
+    private volatile boolean done;
+
+    Flight(final Callable<V> callable) {
+      this.task = new FutureTask<V>(callable);
+    }
+
+    <K> void run(final SingleFlight<K, V> owner, final K key) {
+      task.run();
+      boolean failed = false;
+      try {
+        failed = task.get() == null;
+      } catch (ExecutionException ex) {
+        failed = true;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        failed = true;
+      }
+      completedAt = owner.currentTimeNanos();
+      done = true;
+      owner.completed(key, this, failed);
+    }
+
+    boolean isExpired(final long now, final long windowNanos) {
+      return done && now - completedAt >= windowNanos;
+    }
+
+    V await() {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          try {
+            return task.get();
+          } catch (InterruptedException ex) {
+            interrupted = true;
+          }
+        }
+      } catch (ExecutionException ex) {
+        final Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
@@ -4,67 +4,80 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.security.auth.Subject;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpServletResponse;
 
 /**
- * Provides methods for saving and retrieving state.
+ * Provides methods for saving and retrieving state of the current request in a {@link StateStore}, by default the
+ * session.
  *
  * @author pdgreen
  */
 public class StateHelper {
 
   private static Logger LOGGER = Logger.getLogger(GoogleOAuthServerAuthModule.class.getName());
-  /*
-   * Session Parameters
-   */
-  private static final String SESSION_PREFIX = StateHelper.class.getName() + ".";
-  private static final String ORIGINAL_REQUEST_PATH = SESSION_PREFIX + "original_request_path";
-  private static final String SAVED_SUBJECT = SESSION_PREFIX + "saved_subject";
+  private static final StateStore SESSION_STATE_STORE = new SessionStateStore();
   private final HttpServletRequest request;
+  private final HttpServletResponse response;
+  private final StateStore stateStore;
 
   public StateHelper(HttpServletRequest request) {
+    this(request, null, SESSION_STATE_STORE);
+  }
+
+  /**
+   * @param request current request
+   * @param response current response, a store may add a cookie to it
+   * @param stateStore where the state is kept
+   */
+  public StateHelper(HttpServletRequest request, HttpServletResponse response, StateStore stateStore) {
     this.request = request;
+    this.response = response;
+    this.stateStore = stateStore;
   }
 
-  public void saveSubject(final Subject subject) {
-    if (subject == null) {
-      return;
-    }
-    final HttpSession session = request.getSession(true);
+  public void saveSnapshot(final AuthenticationSnapshot snapshot) {
+    stateStore.saveSnapshot(request, response, snapshot);
+    LOGGER.log(Level.FINE, "Saved snapshot {0}", snapshot);
+  }
 
-    session.setAttribute(SAVED_SUBJECT, subject);
-    LOGGER.log(Level.FINE, "Saved subject {0}", subject);
+  public AuthenticationSnapshot retrieveSnapshot() {
+    return stateStore.retrieveSnapshot(request);
   }
 
-  public Subject retrieveSavedSubject() {
-    final HttpSession session = request.getSession(false);
-    if (session != null) {
-      return (Subject) session.getAttribute(SAVED_SUBJECT);
-    } else {
-      return null;
-    }
+  public void removeSnapshot() {
+    stateStore.removeSnapshot(request, response);
+    LOGGER.log(Level.FINE, "Removed snapshot");
+  }
+
+  /**
+   * @return true if a retrieved snapshot may still hold the subject it was saved with
+   */
+  public boolean keepsSubject() {
+    return stateStore.keepsSubject();
   }
 
   public void saveOriginalRequestPath() {
-    final HttpSession session = request.getSession(true);
+    final String orignalRequestPath = request.getRequestURI();
     try {
-      final URI orignalRequestUri = new URI(request.getRequestURI());
-      session.setAttribute(ORIGINAL_REQUEST_PATH, orignalRequestUri);
-      LOGGER.log(Level.FINE, "Saved original request path {0}", orignalRequestUri);
+      new URI(orignalRequestPath);
     } catch (URISyntaxException ex) {
       LOGGER.log(Level.WARNING, "Unable to save original request path", ex);
+      return;
     }
+    stateStore.saveOriginalRequestPath(request, response, orignalRequestPath);
+    LOGGER.log(Level.FINE, "Saved original request path {0}", orignalRequestPath);
   }
 
   public URI extractOriginalRequestPath() {
-    final HttpSession session = request.getSession(false);
-    if (session != null) {
-      final URI originalRequestPath = (URI) session.getAttribute(ORIGINAL_REQUEST_PATH);
-      session.removeAttribute(ORIGINAL_REQUEST_PATH);
-      return originalRequestPath;
-    } else {
+    final String originalRequestPath = stateStore.removeOriginalRequestPath(request, response);
+    if (originalRequestPath == null) {
+      return null;
+    }
+    try {
+      return new URI(originalRequestPath);
+    } catch (URISyntaxException ex) {
+      LOGGER.log(Level.WARNING, "Unable to restore original request path", ex);
       return null;
     }
   }
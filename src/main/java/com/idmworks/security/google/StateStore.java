@@ -0,0 +1,61 @@
+package com.idmworks.security.google;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Where {@link StateHelper} keeps the authentication state of a client between requests: the saved
+ * {@link AuthenticationSnapshot} and the path of the request which started the authentication. <br> Implementations
+ * are shared by all requests of a module and have to be thread safe. The default keeps the state in the
+ * {@link javax.servlet.http.HttpSession} ({@link SessionStateStore}); {@link OffHeapStateStore} keeps it outside the
+ * Java heap. A custom implementation needs a public no argument constructor and is configured with the
+ * {@code state_store_class} option.
+ *
+ * @author pdgreen
+ */
+public interface StateStore {
+
+  /**
+   * @param request current request
+   * @param response current response, the store may add a cookie identifying the client
+   * @param snapshot authentication to keep for the client
+   */
+  void saveSnapshot(HttpServletRequest request, HttpServletResponse response, AuthenticationSnapshot snapshot);
+
+  /**
+   * @param request current request
+   * @return snapshot saved for the client or null
+   */
+  AuthenticationSnapshot retrieveSnapshot(HttpServletRequest request);
+
+  /**
+   * Forgets the snapshot saved for the client when it logs out, so whatever identified the client no longer
+   * authenticates it.
+   *
+   * @param request current request
+   * @param response current response, the store may expire the cookie identifying the client
+   */
+  void removeSnapshot(HttpServletRequest request, HttpServletResponse response);
+
+  /**
+   * @return true if saved snapshots are kept as objects, so a snapshot still holds the subject it was created with
+   * (see {@link AuthenticationSnapshot#holdsSubject()}) until the store has to serialize it
+   */
+  boolean keepsSubject();
+
+  /**
+   * @param request current request
+   * @param response current response, the store may add a cookie identifying the client
+   * @param path path the client is sent back to once authenticated
+   */
+  void saveOriginalRequestPath(HttpServletRequest request, HttpServletResponse response, String path);
+
+  /**
+   * Returns and forgets the path saved for the client.
+   *
+   * @param request current request
+   * @param response current response
+   * @return saved path or null
+   */
+  String removeOriginalRequestPath(HttpServletRequest request, HttpServletResponse response);
+}
@@ -0,0 +1,71 @@
+package com.idmworks.security.google;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of long counters which can be added to from many threads without contention. <br> Each counter is
+ * split over several stripes, a thread always adds to the stripe picked by its id and reads sum all stripes. The
+ * stripes are padded apart so threads on different stripes don't share cache lines. Adds are lock free; reads are not
+ * an atomic snapshot across counters, which is fine for statistics.
+ *
+ * @author pdgreen
+ */
+final class StripedCounters {
+
+  /**
+   * longs per 64 byte cache line
+   */
+  private static final int PADDING = 8;
+  private static final int STRIPES = stripes();
+  private final AtomicLongArray values;
+  private final int counters;
+  private final int stride;
+
+  /**
+   * @param counters number of counters
+   */
+  StripedCounters(final int counters) {
+    this.counters = counters;
+    this.stride = ((counters + PADDING - 1) / PADDING + 1) * PADDING;
+    this.values = new AtomicLongArray(STRIPES * stride);
+  }
+
+  private static int stripes() {
+    final int processors = Runtime.getRuntime().availableProcessors();
+    int stripes = 1;
+    while (stripes < processors && stripes < 64) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+
+  private int offset() {
+    return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * stride;
+  }
+
+  void add(final int counter, final long delta) {
+    values.addAndGet(offset() + counter, delta);
+  }
+
+  void increment(final int counter) {
+    values.incrementAndGet(offset() + counter);
+  }
+
+  long sum(final int counter) {
+    long sum = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      sum += values.get(stripe * stride + counter);
+    }
+    return sum;
+  }
+
+  int size() {
+    return counters;
+  }
+
+  void reset() {
+    for (int i = 0; i < values.length(); i++) {
+      values.set(i, 0);
+    }
+  }
+}
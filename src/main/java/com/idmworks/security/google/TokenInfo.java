@@ -0,0 +1,72 @@
+package com.idmworks.security.google;
+
+import java.util.Date;
+
+/**
+ * Information about an access token from the tokeninfo API.
+ *
+ * @author pdgreen
+ */
+public class TokenInfo {
+
+  private final String audience;
+  private final String authorizedParty;
+  private final String subject;
+  private final String email;
+  private final boolean verifiedEmail;
+  private final Date expiration;
+  private final String scope;
+
+  public TokenInfo(String audience, String authorizedParty, String subject, String email, boolean verifiedEmail, Date expiration, String scope) {
+    this.audience = audience;
+    this.authorizedParty = authorizedParty;
+    this.subject = subject;
+    this.email = email;
+    this.verifiedEmail = verifiedEmail;
+    this.expiration = expiration;
+    this.scope = scope;
+  }
+
+  /**
+   * @return client id the token was issued to
+   */
+  public String getAudience() {
+    return audience;
+  }
+
+  /**
+   * @return client id which requested the token
+   */
+  public String getAuthorizedParty() {
+    return authorizedParty;
+  }
+
+  /**
+   * @return Google account id
+   */
+  public String getSubject() {
+    return subject;
+  }
+
+  public String getEmail() {
+    return email;
+  }
+
+  public boolean isVerifiedEmail() {
+    return verifiedEmail;
+  }
+
+  public Date getExpiration() {
+    return expiration;
+  }
+
+  public String getScope() {
+    return scope;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder().append("{").append(TokenInfo.class.getSimpleName()).append(":").append(email)
+            .append(",aud=").append(audience).append("}").toString();
+  }
+}
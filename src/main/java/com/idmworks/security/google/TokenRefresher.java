@@ -0,0 +1,255 @@
+package com.idmworks.security.google;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the refresh tokens of authenticated principals and refreshes their access tokens before they expire. <br> A
+ * single daemon thread runs every {@code interval} seconds and refreshes, soonest expiring first, at most
+ * {@code batchSize} of the credentials expiring within {@code refreshAhead} seconds; the rest are left for the next
+ * run. Request threads only read the current token, they never wait for a refresh. A credential is dropped when its
+ * refresh token is revoked or when its principal hasn't authenticated for {@code retention} seconds.
+ *
+ * @author pdgreen
+ */
+class TokenRefresher {
+
+  private static final Logger LOGGER = Logger.getLogger(TokenRefresher.class.getName());
+  private static final Comparator<GoogleCredential> BY_EXPIRATION = new Comparator<GoogleCredential>() {
+    @Override
+    public int compare(final GoogleCredential c1, final GoogleCredential c2) {
+      return c1.getExpiresAt() < c2.getExpiresAt() ? -1 : (c1.getExpiresAt() == c2.getExpiresAt() ? 0 : 1);
+    }
+  };
+  private final ConcurrentMap<String, GoogleCredential> credentials = new ConcurrentHashMap<String, GoogleCredential>();
+  private final URI tokenUri;
+  private final String refreshRequestBodySuffix;
+  private final long refreshAheadMillis;
+  private final int batchSize;
+  private final long retentionMillis;
+  private final LatencyHistogram latency;
+  private final AtomicLong refreshes = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile HttpClient httpClient;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param httpClient client calling the token API
+   * @param tokenUri token API uri
+   * @param refreshAhead seconds before expiration a token is refreshed
+   * @param batchSize maximum number of tokens refreshed per run
+   * @param retention seconds a credential is kept after its principal last authenticated
+   * @param latency records how long each refresh takes
+   */
+  TokenRefresher(final HttpClient httpClient, final URI tokenUri, final String clientid, final String clientSecret, final long refreshAhead,
+          final int batchSize, final long retention, final LatencyHistogram latency) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+    this.httpClient = httpClient;
+    this.tokenUri = tokenUri;
+    this.refreshRequestBodySuffix = GoogleApiUtils.buildRefreshRequestBodySuffix(clientid, clientSecret);
+    this.refreshAheadMillis = TimeUnit.SECONDS.toMillis(refreshAhead);
+    this.batchSize = batchSize;
+    this.retentionMillis = TimeUnit.SECONDS.toMillis(retention);
+    this.latency = latency;
+  }
+
+  /**
+   * @return current time in milliseconds, overridable for tests
+   */
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  void setHttpClient(final HttpClient httpClient) {
+    this.httpClient = httpClient;
+  }
+
+  /**
+   * Stores the tokens from a login. Google only returns a refresh token the first time a user consents, later logins
+   * update the access token of the credential already kept.
+   *
+   * @param name principal name
+   * @param accessTokenInfo tokens from the token API
+   * @return credential to add to the subject or null if there is no refresh token for name
+   */
+  GoogleCredential register(final String name, final AccessTokenInfo accessTokenInfo) {
+    final long now = currentTimeMillis();
+    final long expiresAt = accessTokenInfo.getExpiration() == null ? now : accessTokenInfo.getExpiration().getTime();
+    final GoogleCredential existing = credentials.get(name);
+    if (existing != null) {
+      existing.update(accessTokenInfo.getAccessToken(), expiresAt, accessTokenInfo.getRefreshToken());
+      existing.authenticated(now);
+      return existing;
+    } else if (accessTokenInfo.getRefreshToken() == null) {
+      return null;
+    }
+    final GoogleCredential created = new GoogleCredential(name, accessTokenInfo.getAccessToken(), expiresAt,
+            accessTokenInfo.getRefreshToken(), now);
+    final GoogleCredential raced = credentials.putIfAbsent(name, created);
+    return raced == null ? created : raced;
+  }
+
+  /**
+   * @return credential kept for name or null
+   */
+  GoogleCredential getCredential(final String name) {
+    return credentials.get(name);
+  }
+
+  /**
+   * Runs one batch: drops stale credentials and refreshes those due soonest.
+   *
+   * @return number of tokens refreshed
+   */
+  int refreshDue() {
+    final List<GoogleCredential> due = collectDue();
+    Collections.sort(due, BY_EXPIRATION);
+    int refreshed = 0;
+    for (int i = 0; i < due.size() && i < batchSize; i++) {
+      if (refresh(due.get(i))) {
+        refreshed++;
+      }
+    }
+    if (due.size() > batchSize) {
+      LOGGER.log(Level.FINE, "{0} access tokens left for the next refresh run", due.size() - batchSize);
+    }
+    return refreshed;
+  }
+
+  private List<GoogleCredential> collectDue() {
+    final long now = currentTimeMillis();
+    final List<GoogleCredential> due = new ArrayList<GoogleCredential>();
+    for (final Iterator<GoogleCredential> it = credentials.values().iterator(); it.hasNext();) {
+      final GoogleCredential credential = it.next();
+      if (now - credential.getAuthenticatedAt() >= retentionMillis) {
+        it.remove();
+      } else if (credential.getExpiresAt() - now <= refreshAheadMillis) {
+        due.add(credential);
+      }
+    }
+    return due;
+  }
+
+  private boolean refresh(final GoogleCredential credential) {
+    final long start = System.nanoTime();
+    try {
+      final AccessTokenInfo accessTokenInfo = GoogleApiUtils.refreshAccessToken(httpClient, tokenUri, credential.getRefreshToken(), refreshRequestBodySuffix);
+      if (accessTokenInfo == null) {
+        LOGGER.log(Level.INFO, "Refresh token of {0} is no longer valid", credential.getName());
+        credentials.remove(credential.getName(), credential);
+        failures.incrementAndGet();
+        return false;
+      }
+      final long expiresAt = accessTokenInfo.getExpiration() == null ? currentTimeMillis() : accessTokenInfo.getExpiration().getTime();
+      credential.update(accessTokenInfo.getAccessToken(), expiresAt, accessTokenInfo.getRefreshToken());
+      refreshes.incrementAndGet();
+      return true;
+    } catch (RuntimeException ex) {
+      //kept, it is retried on the next run
+      LOGGER.log(Level.WARNING, "Unable to refresh access token of " + credential.getName(), ex);
+      failures.incrementAndGet();
+      return false;
+    } finally {
+      latency.recordSince(start);
+    }
+  }
+
+  /**
+   * @param intervalSeconds time between refresh runs
+   */
+  synchronized void start(final long intervalSeconds) {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "google-oauth-token-refresh");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refreshDue();
+        } catch (RuntimeException ex) {
+          LOGGER.log(Level.WARNING, "Token refresh run failed", ex);
+        }
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  synchronized void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * @return number of credentials currently due for a refresh
+   */
+  int getQueueDepth() {
+    final long now = currentTimeMillis();
+    int depth = 0;
+    for (final GoogleCredential credential : credentials.values()) {
+      if (credential.getExpiresAt() - now <= refreshAheadMillis) {
+        depth++;
+      }
+    }
+    return depth;
+  }
+
+  int getCredentialCount() {
+    return credentials.size();
+  }
+
+  long getRefreshCount() {
+    return refreshes.get();
+  }
+
+  long getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * Publishes the refresh queue, the credentials kept and the failed refreshes.
+   */
+  void publishMetrics(final AuthMetrics metrics) {
+    metrics.publish("TokenRefreshQueueDepth", new AuthMetrics.Attribute<Integer>() {
+      @Override
+      public Integer get() {
+        return getQueueDepth();
+      }
+    });
+    metrics.publish("RefreshableCredentialCount", new AuthMetrics.Attribute<Integer>() {
+      @Override
+      public Integer get() {
+        return getCredentialCount();
+      }
+    });
+    metrics.publish("TokenRefreshFailureCount", new AuthMetrics.Attribute<Long>() {
+      @Override
+      public Long get() {
+        return getFailureCount();
+      }
+    });
+  }
+}
@@ -0,0 +1,175 @@
+package com.idmworks.security.google;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Warms the module up after it is initialized so the first users after a deployment don't pay for it. <br> On a
+ * daemon thread, the host of each Google endpoint is resolved and connected to once (the connection and TLS session are
+ * then reused by the first real calls) and the code of a login which doesn't depend on Google (building the URIs,
+ * parsing the responses, mapping groups, serializing the state) is run with synthetic input until the JIT has compiled
+ * it. Initialization doesn't wait for any of it; {@link #getState()} tells whether it is done.
+ *
+ * @author pdgreen
+ */
+class Warmup implements Runnable {
+
+  private static final Logger LOGGER = Logger.getLogger(Warmup.class.getName());
+  static final String PENDING = "PENDING";
+  static final String RUNNING = "RUNNING";
+  /**
+   * every step succeeded
+   */
+  static final String READY = "READY";
+  /**
+   * finished, but some endpoint couldn't be resolved or reached; logins work as without warm-up
+   */
+  static final String INCOMPLETE = "INCOMPLETE";
+  private final List<URI> endpoints;
+  private final int iterations;
+  private final Target target;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile String state = PENDING;
+  private volatile long durationMillis;
+  private Thread thread;
+
+  /**
+   * What is warmed up.
+   */
+  interface Target {
+
+    /**
+     * @return client the module calls Google with
+     */
+    HttpClient httpClient();
+
+    /**
+     * Runs the code paths of a login with synthetic input.
+     *
+     * @param iteration number of the iteration, e.g. to vary the input
+     */
+    void prime(int iteration);
+  }
+
+  /**
+   * @param endpoints Google endpoints, only the first one of each scheme, host and port is connected to
+   * @param iterations number of times the code paths are run
+   * @param target module warmed up
+   */
+  Warmup(final List<URI> endpoints, final int iterations, final Target target) {
+    final Map<String, URI> hosts = new LinkedHashMap<String, URI>();
+    for (final URI endpoint : endpoints) {
+      final String key = endpoint.getScheme() + "://" + endpoint.getHost() + ":" + endpoint.getPort();
+      if (!hosts.containsKey(key)) {
+        hosts.put(key, endpoint);
+      }
+    }
+    this.endpoints = new ArrayList<URI>(hosts.values());
+    this.iterations = iterations;
+    this.target = target;
+  }
+
+  synchronized void start() {
+    thread = new Thread(this, "google-oauth-warmup");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  synchronized void stop() {
+    if (thread != null) {
+      thread.interrupt();
+      thread = null;
+    }
+  }
+
+  @Override
+  public void run() {
+    state = RUNNING;
+    final long start = System.nanoTime();
+    boolean complete = true;
+    try {
+      for (final URI endpoint : endpoints) {
+        complete &= connect(endpoint);
+      }
+      for (int i = 0; i < iterations && !Thread.currentThread().isInterrupted(); i++) {
+        target.prime(i);
+      }
+    } catch (RuntimeException ex) {
+      LOGGER.log(Level.WARNING, "Warm-up failed", ex);
+      complete = false;
+    } finally {
+      durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      state = complete && !Thread.currentThread().isInterrupted() ? READY : INCOMPLETE;
+      done.countDown();
+    }
+    LOGGER.log(Level.INFO, "Warm-up {0} after {1}ms", new Object[]{state, durationMillis});
+  }
+
+  /**
+   * Resolves the host and makes one request, whatever its status, so a kept-alive connection is left in the pool.
+   */
+  private boolean connect(final URI endpoint) {
+    try {
+      InetAddress.getAllByName(endpoint.getHost());
+    } catch (UnknownHostException ex) {
+      LOGGER.log(Level.WARNING, "Warm-up unable to resolve {0}", endpoint.getHost());
+      return false;
+    }
+    try {
+      final HttpClient.Response response = target.httpClient().GET(endpoint);
+      LOGGER.log(Level.FINE, "Warm-up connected to {0}: {1}", new Object[]{endpoint, response.getStatus()});
+      return true;
+    } catch (IllegalStateException ex) {
+      LOGGER.log(Level.WARNING, "Warm-up unable to connect to {0}: {1}", new Object[]{endpoint, ex.getMessage()});
+      return false;
+    }
+  }
+
+  /**
+   * @return {@value #PENDING}, {@value #RUNNING}, {@value #READY} or {@value #INCOMPLETE}
+   */
+  String getState() {
+    return state;
+  }
+
+  /**
+   * @return time the warm-up took or 0 if it isn't done
+   */
+  long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /**
+   * Publishes the state and duration of the warm-up.
+   */
+  void publishMetrics(final AuthMetrics metrics) {
+    metrics.publish("WarmupState", new AuthMetrics.Attribute<String>() {
+      @Override
+      public String get() {
+        return getState();
+      }
+    });
+    metrics.publish("WarmupMillis", new AuthMetrics.Attribute<Long>() {
+      @Override
+      public Long get() {
+        return getDurationMillis();
+      }
+    });
+  }
+
+  /**
+   * @return true if the warm-up finished within the timeout
+   */
+  boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+    return done.await(timeout, unit);
+  }
+}
@@ -1,14 +1,30 @@
 package com.idmworks.security.google.api;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 
 /**
- * User information from google account.
+ * User information from google account. <br> It is serialized through {@link SerialProxy} in a compact, versioned
+ * form: a bit mask of the fields present followed by their values, so replicating it with the session doesn't carry
+ * class descriptors for each field. The default form written by earlier versions can still be read. Containers writing
+ * the user info inline use the same form through {@link #writeCompact(DataOutput)} and {@link #readCompact(DataInput)}.
  *
  * @author pdgreen
  */
 public class GoogleUserInfo implements Serializable {
 
+  /**
+   * computed for the default form of earlier versions, which didn't declare it
+   */
+  private static final long serialVersionUID = -575441973128032489L;
+  private static final byte COMPACT_VERSION = 1;
+  private static final int COMPACT_FIELDS = 9;
   private final String id;
   private final String email;
   private final boolean verifiedEmail;
@@ -72,4 +88,87 @@ public class GoogleUserInfo implements Serializable {
   public boolean isVerifiedEmail() {
     return verifiedEmail;
   }
+
+  /**
+   * Writes the compact form: a version, a bit mask of the fields present and their values.
+   *
+   * @param out where to write
+   * @throws IOException thrown by out
+   */
+  public void writeCompact(final DataOutput out) throws IOException {
+    final String[] values = {id, email, name, givenName, familyName, gender, link, picture, locale};
+    int present = verifiedEmail ? 1 : 0;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        present |= 2 << i;
+      }
+    }
+    out.writeByte(COMPACT_VERSION);
+    out.writeShort(present);
+    for (final String value : values) {
+      if (value != null) {
+        out.writeUTF(value);
+      }
+    }
+  }
+
+  /**
+   * Reads the form written by {@link #writeCompact(DataOutput)}.
+   *
+   * @param in where to read from
+   * @return a new instance
+   * @throws IOException thrown by in or if the version is not supported
+   */
+  public static GoogleUserInfo readCompact(final DataInput in) throws IOException {
+    final byte version = in.readByte();
+    if (version != COMPACT_VERSION) {
+      throw new InvalidObjectException("Unsupported " + GoogleUserInfo.class.getSimpleName() + " version " + version);
+    }
+    final int present = in.readUnsignedShort();
+    final String[] values = new String[COMPACT_FIELDS];
+    for (int i = 0; i < values.length; i++) {
+      if ((present & (2 << i)) != 0) {
+        values[i] = in.readUTF();
+      }
+    }
+    return new GoogleUserInfo(values[0], values[1], (present & 1) != 0, values[2], values[3], values[4], values[5],
+            values[6], values[7], values[8]);
+  }
+
+  private Object writeReplace() {
+    return new SerialProxy(this);
+  }
+
+  /**
+   * Compact serialized form of a {@link GoogleUserInfo}, read back as a new instance.
+   */
+  private static final class SerialProxy implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+    private GoogleUserInfo userInfo;
+
+    /**
+     * For deserialization only.
+     */
+    public SerialProxy() {
+    }
+
+    SerialProxy(final GoogleUserInfo userInfo) {
+      this.userInfo = userInfo;
+    }
+
+    @Override
+    public void writeExternal(final ObjectOutput out) throws IOException {
+      userInfo.writeCompact(out);
+    }
+
+    @Override
+    public void readExternal(final ObjectInput in) throws IOException {
+      userInfo = readCompact(in);
+    }
+
+    private Object readResolve() {
+      return userInfo;
+    }
+  }
 }
@@ -0,0 +1,118 @@
+package com.idmworks.security.google;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * {@link FlightEvents} recorded with the JDK Flight Recorder. <br> Compiled for JDK 11 by the {@code jfr} profile and
+ * only loaded, reflectively, when {@code jdk.jfr} is present. An event disabled in the recording settings (or with no
+ * recording running) is dropped in {@link #begin} before an event object is even allocated.
+ *
+ * @author pdgreen
+ */
+final class JfrFlightEvents extends FlightEvents {
+
+  private static final String CATEGORY = "Google OAuth SAM";
+  /**
+   * event type of each phase, indexed by phase
+   */
+  private static final EventType[] TYPES = {
+    EventType.getEventType(RedirectEvent.class),
+    EventType.getEventType(TokenExchangeEvent.class),
+    EventType.getEventType(UserInfoEvent.class),
+    EventType.getEventType(LoginContextEvent.class),
+    EventType.getEventType(SessionSaveEvent.class)};
+
+  @Override
+  Object begin(final int phase) {
+    if (phase >= 0 && phase < TYPES.length && !TYPES[phase].isEnabled()) {
+      return null;
+    }
+    final PhaseEvent event;
+    switch (phase) {
+      case REDIRECT:
+        event = new RedirectEvent();
+        break;
+      case TOKEN_EXCHANGE:
+        event = new TokenExchangeEvent();
+        break;
+      case USERINFO:
+        event = new UserInfoEvent();
+        break;
+      case LOGIN_CONTEXT:
+        event = new LoginContextEvent();
+        break;
+      case SESSION_SAVE:
+        event = new SessionSaveEvent();
+        break;
+      default:
+        throw new IllegalArgumentException("unknown phase " + phase);
+    }
+    event.begin();
+    return event;
+  }
+
+  @Override
+  void end(final Object event, final int httpStatus, final String outcome) {
+    if (event != null) {
+      final PhaseEvent phaseEvent = (PhaseEvent) event;
+      phaseEvent.end();
+      if (phaseEvent.shouldCommit()) {
+        phaseEvent.httpStatus = httpStatus;
+        phaseEvent.outcome = outcome;
+        phaseEvent.commit();
+      }
+    }
+  }
+
+  @Override
+  boolean isAvailable() {
+    return true;
+  }
+
+  @Category(CATEGORY)
+  @StackTrace(false)
+  abstract static class PhaseEvent extends Event {
+
+    @Label("HTTP Status")
+    @Description("Status of Google's response, 0 if there was none")
+    int httpStatus;
+    @Label("Outcome")
+    String outcome;
+  }
+
+  @Name("com.idmworks.security.google.Redirect")
+  @Label("Redirect to Google")
+  @Description("Authorization request URI built and the client redirected to Google")
+  static final class RedirectEvent extends PhaseEvent {
+  }
+
+  @Name("com.idmworks.security.google.TokenExchange")
+  @Label("Token Exchange")
+  @Description("Authorization code exchanged for an access token at Google's token endpoint")
+  static final class TokenExchangeEvent extends PhaseEvent {
+  }
+
+  @Name("com.idmworks.security.google.UserInfo")
+  @Label("Userinfo Fetch")
+  @Description("User's id and email retrieved from Google's userinfo endpoint")
+  static final class UserInfoEvent extends PhaseEvent {
+  }
+
+  @Name("com.idmworks.security.google.LoginContext")
+  @Label("LoginContext Login")
+  @Description("LoginModules run for the user to resolve the groups")
+  static final class LoginContextEvent extends PhaseEvent {
+  }
+
+  @Name("com.idmworks.security.google.SessionSave")
+  @Label("Session Save")
+  @Description("Authentication saved to the session, cookie or state store")
+  static final class SessionSaveEvent extends PhaseEvent {
+  }
+}
@@ -0,0 +1,138 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.*;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for {@link AsyncCallbackProcessor}.
+ *
+ * @author pdgreen
+ */
+public class AsyncCallbackProcessorTest {
+
+  private AsyncCallbackProcessor processor;
+
+  @Before
+  public void createProcessor() {
+    //one thread, callbacks run in the order they are started
+    processor = new AsyncCallbackProcessor(1, 10, 1000);
+  }
+
+  @After
+  public void shutdownProcessor() {
+    processor.shutdown();
+  }
+
+  private static HttpServletRequest asyncRequest(final HttpServletResponse response, final AsyncContext asyncContext) {
+    final HttpServletRequest request = GoogleOAuthServerAuthModuleTest.callbackRequest("4/code");
+    when(request.startAsync(request, response)).thenReturn(asyncContext);
+    return request;
+  }
+
+  /**
+   * Keeps the result it is given.
+   */
+  private static class RecordingFinisher implements AsyncCallbackProcessor.Finisher {
+
+    private volatile AsyncCallbackProcessor.Result result;
+
+    @Override
+    public void finish(final HttpServletRequest request, final HttpServletResponse response, final AsyncCallbackProcessor.Result result) {
+      this.result = result;
+    }
+  }
+
+  @Test
+  public void testTimedOutCallbackFinishedWithTimeout() throws Exception {
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    final AsyncContext timedOut = mock(AsyncContext.class);
+    final CountDownLatch release = new CountDownLatch(1);
+    final RecordingFinisher timedOutFinisher = new RecordingFinisher();
+    processor.start(asyncRequest(response, timedOut), response, new Callable<GoogleUserInfo>() {
+      @Override
+      public GoogleUserInfo call() throws InterruptedException {
+        release.await(5, TimeUnit.SECONDS);
+        return GoogleOAuthServerAuthModuleTest.userInfo("1", "a@example.com");
+      }
+    }, timedOutFinisher);
+    final ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+    verify(timedOut).addListener(listener.capture());
+    listener.getValue().onTimeout(new AsyncEvent(timedOut));
+    verify(timedOut).complete();
+    final AsyncCallbackProcessor.Result timeoutResult = timedOutFinisher.result;
+    try {
+      timeoutResult.get();
+      fail("expected ExecutionException");
+    } catch (ExecutionException ex) {
+      assertThat(ex.getCause(), is(instanceOf(TimeoutException.class)));
+    }
+    release.countDown();
+
+    //runs once the timed out callback's work is done
+    final AsyncContext next = mock(AsyncContext.class);
+    processor.start(asyncRequest(response, next), response, new Callable<GoogleUserInfo>() {
+      @Override
+      public GoogleUserInfo call() {
+        return null;
+      }
+    }, new RecordingFinisher());
+    verify(next, timeout(5000)).complete();
+    verify(timedOut).complete();
+    //the late result is dropped
+    assertThat(timedOutFinisher.result, is(sameInstance(timeoutResult)));
+  }
+
+  @Test
+  public void testErrorStillFinished() throws Exception {
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    final AsyncContext asyncContext = mock(AsyncContext.class);
+    final Error error = new AssertionError("boom");
+    final RecordingFinisher finisher = new RecordingFinisher();
+    processor.start(asyncRequest(response, asyncContext), response, new Callable<GoogleUserInfo>() {
+      @Override
+      public GoogleUserInfo call() {
+        throw error;
+      }
+    }, finisher);
+    verify(asyncContext, timeout(5000)).complete();
+    try {
+      finisher.result.get();
+      fail("expected ExecutionException");
+    } catch (ExecutionException ex) {
+      assertThat(ex.getCause(), is(sameInstance((Throwable) error)));
+    }
+  }
+
+  @Test
+  public void testFailedFinisherAnsweredWith500() throws Exception {
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    final AsyncContext asyncContext = mock(AsyncContext.class);
+    processor.start(asyncRequest(response, asyncContext), response, new Callable<GoogleUserInfo>() {
+      @Override
+      public GoogleUserInfo call() {
+        return null;
+      }
+    }, new AsyncCallbackProcessor.Finisher() {
+      @Override
+      public void finish(final HttpServletRequest request, final HttpServletResponse response, final AsyncCallbackProcessor.Result result) {
+        throw new IllegalStateException("Unable to redirect");
+      }
+    });
+    verify(asyncContext, timeout(5000)).complete();
+    verify(response).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+  }
+}
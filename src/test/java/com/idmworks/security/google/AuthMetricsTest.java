@@ -0,0 +1,176 @@
+package com.idmworks.security.google;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.security.auth.Subject;
+import javax.security.auth.message.AuthStatus;
+import javax.security.auth.message.MessageInfo;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for {@link AuthMetrics}, {@link LatencyHistogram} and {@link StripedCounters}.
+ *
+ * @author pdgreen
+ */
+public class AuthMetricsTest {
+
+  @Test
+  public void testHistogramBuckets() {
+    assertThat(LatencyHistogram.bucket(0), is(0));
+    assertThat(LatencyHistogram.bucket(999), is(0));
+    assertThat(LatencyHistogram.bucket(1000), is(1));
+    assertThat(LatencyHistogram.bucket(3999), is(2));
+    assertThat(LatencyHistogram.bucket(TimeUnit.MILLISECONDS.toNanos(1)), is(10));
+    assertThat(LatencyHistogram.bucket(Long.MAX_VALUE), is(LatencyHistogram.BUCKETS - 1));
+  }
+
+  @Test
+  public void testHistogramSnapshot() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+    }
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+    final LatencySnapshot snapshot = histogram.snapshot();
+
+    assertThat(snapshot.getCount(), is(100L));
+    assertThat(snapshot.getMeanMillis(), is(0.599));
+    assertThat(snapshot.getP50Millis(), is(0.128));
+    assertThat(snapshot.getP99Millis(), is(0.128));
+    assertThat(snapshot.getMaxMillis(), is(65.536));
+  }
+
+  @Test
+  public void testStripedCountersFromManyThreads() throws Exception {
+    final StripedCounters counters = new StripedCounters(2);
+    final ExecutorService executor = Executors.newFixedThreadPool(16);
+    try {
+      final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int t = 0; t < 16; t++) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            for (int i = 0; i < 10000; i++) {
+              counters.increment(0);
+              counters.add(1, 2);
+            }
+            return null;
+          }
+        }));
+      }
+      for (final Future<Void> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(counters.sum(0), is(160000L));
+    assertThat(counters.sum(1), is(320000L));
+  }
+
+  @Test
+  public void testNotRegisteredByDefault() throws Exception {
+    final Map<String, String> options = GoogleOAuthServerAuthModuleTest.requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("jmx_name", "AuthMetricsTestDefault");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new GoogleOAuthServerAuthModuleTest.ContainerCallbackHandler(), options);
+    assertThat(module.getMetrics().getObjectName(), is(nullValue()));
+    assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(
+            new ObjectName(AuthMetrics.OBJECT_NAME_PREFIX + ObjectName.quote("AuthMetricsTestDefault"))), is(false));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testModuleOutcomesExposedThroughJmx() throws Exception {
+    final Map<String, String> options = GoogleOAuthServerAuthModuleTest.requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("jmx", "true");
+    options.put("jmx_name", "AuthMetricsTest");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new GoogleOAuthServerAuthModuleTest.ContainerCallbackHandler(), options);
+    module.setHttpClient(StubHttpClient.google());
+    try {
+      final HttpServletRequest request = GoogleOAuthServerAuthModuleTest.callbackRequest("4/code");
+      final MessageInfo messageInfo = GoogleOAuthServerAuthModuleTest.messageInfo();
+      when(messageInfo.getRequestMessage()).thenReturn(request);
+      when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+      assertThat(module.validateRequest(messageInfo, new Subject(), null), is(AuthStatus.SEND_CONTINUE));
+      final HttpServletRequest publicRequest = mock(HttpServletRequest.class);
+      when(publicRequest.getRequestURI()).thenReturn("/app/index.html");
+      final MessageInfo publicMessageInfo = GoogleOAuthServerAuthModuleTest.messageInfo();
+      when(publicMessageInfo.getRequestMessage()).thenReturn(publicRequest);
+      assertThat(module.validateRequest(publicMessageInfo, new Subject(), null), is(AuthStatus.SUCCESS));
+
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(AuthMetrics.OBJECT_NAME_PREFIX + ObjectName.quote("AuthMetricsTest"));
+      assertThat((Long) server.getAttribute(name, "SendContinueCount"), is(1L));
+      assertThat((Long) server.getAttribute(name, "SuccessCount"), is(1L));
+      assertThat((Long) ((CompositeData) server.getAttribute(name, "TokenExchangeLatency")).get("count"), is(1L));
+      assertThat((Long) ((CompositeData) server.getAttribute(name, "UserInfoLatency")).get("count"), is(1L));
+      assertThat((Long) ((CompositeData) server.getAttribute(name, "LoginContextLatency")).get("count"), is(1L));
+      assertThat((Long) ((CompositeData) server.getAttribute(name, "SessionSaveLatency")).get("count"), is(1L));
+
+      server.invoke(name, "reset", null, null);
+      assertThat(module.getMetrics().getSendContinueCount(), is(0L));
+    } finally {
+      module.getMetrics().unregister();
+    }
+  }
+
+  @Test
+  public void testFailedTokenExchangeRecorded() throws Exception {
+    final Map<String, String> options = GoogleOAuthServerAuthModuleTest.requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new GoogleOAuthServerAuthModuleTest.ContainerCallbackHandler(), options);
+    module.setHttpClient(new StubHttpClient().respond("/o/oauth2/token", 500, "{}"));
+    final HttpServletRequest request = GoogleOAuthServerAuthModuleTest.callbackRequest("4/code");
+    final MessageInfo messageInfo = GoogleOAuthServerAuthModuleTest.messageInfo();
+    when(messageInfo.getRequestMessage()).thenReturn(request);
+    when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+
+    assertThat(module.validateRequest(messageInfo, new Subject(), null), is(AuthStatus.SEND_FAILURE));
+    assertThat(module.getMetrics().getTokenExchangeLatency().getCount(), is(1L));
+  }
+
+  @Test
+  public void testPublishedAttributes() {
+    final AuthMetrics metrics = new AuthMetrics();
+    assertThat(metrics.getCallbackLimit(), is(0));
+    assertThat(metrics.getCircuitBreakerState(), is("DISABLED"));
+
+    new CallbackAdmission(1, 4, 8, 1000, 1000).publishMetrics(metrics);
+    metrics.publish("CircuitBreakerState", new AuthMetrics.Attribute<String>() {
+      @Override
+      public String get() {
+        return "CLOSED";
+      }
+    });
+    assertThat(metrics.getCallbackLimit(), is(4));
+    assertThat(metrics.getCircuitBreakerState(), is("CLOSED"));
+
+    metrics.withdraw("CircuitBreakerState");
+    assertThat(metrics.getCircuitBreakerState(), is("DISABLED"));
+    assertThat(metrics.getCallbackLimit(), is(4));
+    metrics.withdrawAll();
+    assertThat(metrics.getCallbackLimit(), is(0));
+  }
+}
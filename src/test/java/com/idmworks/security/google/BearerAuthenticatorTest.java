@@ -0,0 +1,288 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleOAuthPrincipal;
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.Subject;
+import javax.security.auth.message.AuthException;
+import javax.security.auth.message.AuthStatus;
+import javax.security.auth.message.MessageInfo;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for {@link BearerAuthenticator} and the bearer mode of {@link GoogleOAuthServerAuthModule}.
+ *
+ * @author pdgreen
+ */
+public class BearerAuthenticatorTest {
+
+  private static final String TOKENINFO_PATH = "/oauth2/v3/tokeninfo";
+  private final AtomicInteger groupLoads = new AtomicInteger();
+  private long now = 1700000000000L - TimeUnit.MINUTES.toMillis(30);
+  private StubHttpClient httpClient;
+  private BearerAuthenticator authenticator;
+
+  static String tokenInfo(final String audience, final long expSeconds) {
+    return "{\"aud\":\"" + audience + "\",\"sub\":\"1074968992519869407200\",\"exp\":\"" + expSeconds
+            + "\",\"email\":\"fake.name@gmail.com\",\"email_verified\":\"true\"}";
+  }
+
+  @Before
+  public void createAuthenticator() {
+    httpClient = new StubHttpClient().respond(TOKENINFO_PATH, 200, tokenInfo("web-client-id", 1700000000L));
+    authenticator = new BearerAuthenticator(httpClient, URI.create(GoogleApiUtils.TOKENINFO_API_URI),
+            new HashSet<String>(Arrays.asList("web-client-id", "mobile-client-id")), 100, TimeUnit.SECONDS.toMillis(60), new GroupCache.GroupLoader() {
+      @Override
+      public List<String> load(final GoogleUserInfo googleUserInfo) throws AuthException {
+        groupLoads.incrementAndGet();
+        return Collections.singletonList("users");
+      }
+    }, new LatencyHistogram()) {
+      @Override
+      long currentTimeMillis() {
+        return now;
+      }
+    };
+  }
+
+  @Test
+  public void testExtractToken() {
+    assertThat(BearerAuthenticator.extractToken("Bearer ya29.abc"), is("ya29.abc"));
+    assertThat(BearerAuthenticator.extractToken("bearer ya29.abc "), is("ya29.abc"));
+    assertThat(BearerAuthenticator.extractToken("Basic dXNlcjpwYXNz"), is(nullValue()));
+    assertThat(BearerAuthenticator.extractToken("Bearer "), is(nullValue()));
+    assertThat(BearerAuthenticator.extractToken(null), is(nullValue()));
+  }
+
+  @Test
+  public void testValidationCachedUntilExpiry() throws Exception {
+    assertThat(authenticator.cached("ya29.abc"), is(nullValue()));
+    final AuthenticationSnapshot snapshot = authenticator.validate("ya29.abc");
+    assertThat(snapshot.getEmail(), is("fake.name@gmail.com"));
+    assertThat(snapshot.getGroups(), is(Collections.singletonList("users")));
+    assertThat(authenticator.cached("ya29.abc"), is(sameInstance(snapshot)));
+    now += TimeUnit.MINUTES.toMillis(29);
+    assertThat(authenticator.cached("ya29.abc"), is(sameInstance(snapshot)));
+    assertThat(httpClient.getRequests(), is(1));
+    assertThat(groupLoads.get(), is(1));
+
+    now += TimeUnit.MINUTES.toMillis(1);
+    assertThat(authenticator.cached("ya29.abc"), is(nullValue()));
+    httpClient.respond(TOKENINFO_PATH, 400, "{\"error_description\":\"Invalid Value\"}");
+    assertThat(BearerAuthenticator.isInvalid(authenticator.validate("ya29.abc")), is(true));
+    assertThat(httpClient.getRequests(), is(2));
+  }
+
+  @Test
+  public void testOtherAudienceRejectedAndRemembered() throws Exception {
+    httpClient.respond(TOKENINFO_PATH, 200, tokenInfo("someone-elses-client-id", 1700000000L));
+
+    assertThat(BearerAuthenticator.isInvalid(authenticator.validate("ya29.abc")), is(true));
+    final AuthenticationSnapshot remembered = authenticator.cached("ya29.abc");
+    assertThat(remembered, is(notNullValue()));
+    assertThat(BearerAuthenticator.isInvalid(remembered), is(true));
+    assertThat(httpClient.getRequests(), is(1));
+    assertThat(groupLoads.get(), is(0));
+  }
+
+  @Test
+  public void testAdditionalAudienceAccepted() throws Exception {
+    httpClient.respond(TOKENINFO_PATH, 200, tokenInfo("mobile-client-id", 1700000000L));
+
+    assertThat(authenticator.validate("ya29.abc").getEmail(), is("fake.name@gmail.com"));
+  }
+
+  @Test
+  public void testExpiredTokenRejected() throws Exception {
+    httpClient.respond(TOKENINFO_PATH, 200, tokenInfo("web-client-id", now / 1000L - 1));
+
+    assertThat(BearerAuthenticator.isInvalid(authenticator.validate("ya29.abc")), is(true));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testServerErrorNotTreatedAsInvalid() throws Exception {
+    httpClient.respond(TOKENINFO_PATH, 503, "{}");
+    authenticator.validate("ya29.abc");
+  }
+
+  @Test
+  public void testModuleBearerMode() throws Exception {
+    final Map<String, String> options = GoogleOAuthServerAuthModuleTest.requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("bearer_tokens", "true");
+    options.put("oauth.clientid", "web-client-id");
+    options.put("tokeninfo_uri", "http://localhost:8089" + TOKENINFO_PATH);
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new GoogleOAuthServerAuthModuleTest.ContainerCallbackHandler(), options);
+    final StubHttpClient stub = new StubHttpClient()
+            .respond(TOKENINFO_PATH, 200, tokenInfo("web-client-id", System.currentTimeMillis() / 1000L + 3600));
+    module.setHttpClient(stub);
+
+    final HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn("/app/api/items");
+    when(request.getHeader("Authorization")).thenReturn("Bearer ya29.abc");
+    for (int i = 0; i < 3; i++) {
+      final MessageInfo messageInfo = GoogleOAuthServerAuthModuleTest.messageInfo();
+      messageInfo.getMap().put("javax.security.auth.message.MessagePolicy.isMandatory", "true");
+      when(messageInfo.getRequestMessage()).thenReturn(request);
+      when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+      final Subject subject = new Subject();
+      assertThat(module.validateRequest(messageInfo, subject, null), is(AuthStatus.SUCCESS));
+      assertThat(subject.getPrincipals(GoogleOAuthPrincipal.class).iterator().next().getName(), is("fake.name@gmail.com"));
+    }
+    assertThat(stub.getRequests(), is(1));
+    assertThat(module.getMetrics().getBearerCacheHitRate(), is(2.0 / 3));
+
+    when(request.getHeader("Authorization")).thenReturn("Bearer forged");
+    stub.respond(TOKENINFO_PATH, 400, "{}");
+    final MessageInfo messageInfo = GoogleOAuthServerAuthModuleTest.messageInfo();
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    when(messageInfo.getRequestMessage()).thenReturn(request);
+    when(messageInfo.getResponseMessage()).thenReturn(response);
+    assertThat(module.validateRequest(messageInfo, new Subject(), null), is(AuthStatus.SEND_FAILURE));
+    verify(response).setStatus(401);
+    verify(response).setHeader("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+    verify(response, never()).sendRedirect(anyString());
+  }
+
+  private static GoogleOAuthServerAuthModule bearerModule(final Map<String, String> options, final StubHttpClient stub) throws AuthException {
+    options.put("ignore_missing_login_context", "true");
+    options.put("bearer_tokens", "true");
+    options.put("oauth.clientid", "web-client-id");
+    options.put("tokeninfo_uri", "http://localhost:8089" + TOKENINFO_PATH);
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new GoogleOAuthServerAuthModuleTest.ContainerCallbackHandler(), options);
+    module.setHttpClient(stub);
+    return module;
+  }
+
+  private static HttpServletRequest bearerRequest(final String token) {
+    final HttpServletRequest request = GoogleOAuthServerAuthModuleTest.callbackRequest(null);
+    when(request.getRequestURI()).thenReturn("/app/api/items");
+    when(request.getRemoteAddr()).thenReturn("192.0.2.1");
+    when(request.getHeader("Authorization")).thenReturn("Bearer " + token);
+    return request;
+  }
+
+  private static MessageInfo messageInfo(final HttpServletRequest request, final HttpServletResponse response, final boolean mandatory) {
+    final MessageInfo messageInfo = GoogleOAuthServerAuthModuleTest.messageInfo();
+    if (mandatory) {
+      messageInfo.getMap().put("javax.security.auth.message.MessagePolicy.isMandatory", "true");
+    }
+    when(messageInfo.getRequestMessage()).thenReturn(request);
+    when(messageInfo.getResponseMessage()).thenReturn(response);
+    return messageInfo;
+  }
+
+  @Test
+  public void testModuleInvalidTokenAnswered401() throws Exception {
+    final GoogleOAuthServerAuthModule module = bearerModule(GoogleOAuthServerAuthModuleTest.requiredOptions(),
+            new StubHttpClient().respond(TOKENINFO_PATH, 400, "{}"));
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    final Subject subject = new Subject();
+    assertThat(module.validateRequest(messageInfo(bearerRequest("forged"), response, true), subject, null), is(AuthStatus.SEND_FAILURE));
+    verify(response).setStatus(401);
+    verify(response).setHeader("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+    verify(response, never()).sendRedirect(anyString());
+    assertThat(subject.getPrincipals().isEmpty(), is(true));
+  }
+
+  @Test
+  public void testModuleInvalidTokenAnswered401ForResourceNotMandatory() throws Exception {
+    final GoogleOAuthServerAuthModule module = bearerModule(GoogleOAuthServerAuthModuleTest.requiredOptions(),
+            new StubHttpClient().respond(TOKENINFO_PATH, 400, "{}"));
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    assertThat(module.validateRequest(messageInfo(bearerRequest("forged"), response, false), new Subject(), null), is(AuthStatus.SEND_FAILURE));
+    verify(response).setStatus(401);
+    verify(response).setHeader("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+  }
+
+  @Test
+  public void testModuleOnlyValidationChargedToRateLimit() throws Exception {
+    final Map<String, String> options = GoogleOAuthServerAuthModuleTest.requiredOptions();
+    options.put("rate_limit", "1");
+    options.put("rate_limit_burst", "1");
+    final StubHttpClient stub = new StubHttpClient()
+            .respond(TOKENINFO_PATH, 200, tokenInfo("web-client-id", System.currentTimeMillis() / 1000L + 3600));
+    final GoogleOAuthServerAuthModule module = bearerModule(options, stub);
+
+    for (int i = 0; i < 3; i++) {
+      //validated once, then cached
+      assertThat(module.validateRequest(messageInfo(bearerRequest("ya29.abc"), mock(HttpServletResponse.class), true), new Subject(), null),
+              is(AuthStatus.SUCCESS));
+    }
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    assertThat(module.validateRequest(messageInfo(bearerRequest("ya29.other"), response, true), new Subject(), null), is(AuthStatus.SEND_FAILURE));
+    verify(response).setStatus(429);
+    verify(response).setHeader(eq("Retry-After"), anyString());
+    assertThat(stub.getRequests(), is(1));
+  }
+
+  @Test
+  public void testModuleBearerSubjectWithoutBrowserCredential() throws Exception {
+    final Map<String, String> options = GoogleOAuthServerAuthModuleTest.requiredOptions();
+    options.put("offline_access", "true");
+    options.put("token_refresh_interval", "0");
+    final StubHttpClient stub = StubHttpClient.google()
+            .respond("/o/oauth2/token", 200, "{\"access_token\":\"browser\",\"expires_in\":3600,\"refresh_token\":\"1/refresh\"}")
+            .respond(TOKENINFO_PATH, 200, tokenInfo("web-client-id", System.currentTimeMillis() / 1000L + 3600));
+    final GoogleOAuthServerAuthModule module = bearerModule(options, stub);
+    //the same user logs in with the browser first
+    final Subject browserSubject = new Subject();
+    assertThat(module.validateRequest(messageInfo(GoogleOAuthServerAuthModuleTest.callbackRequest("4/code"), mock(HttpServletResponse.class), true),
+            browserSubject, null), is(AuthStatus.SEND_CONTINUE));
+    assertThat(browserSubject.getPrivateCredentials(GoogleCredential.class).size(), is(1));
+
+    final Subject subject = new Subject();
+    assertThat(module.validateRequest(messageInfo(bearerRequest("ya29.abc"), mock(HttpServletResponse.class), true), subject, null),
+            is(AuthStatus.SUCCESS));
+    assertThat(subject.getPrincipals(GoogleOAuthPrincipal.class).iterator().next().getName(), is("fake.name@gmail.com"));
+    assertThat(subject.getPrivateCredentials(GoogleCredential.class).isEmpty(), is(true));
+  }
+
+  @Test
+  public void testModuleReloadedGroupRulesApplyToCachedToken() throws Exception {
+    final File rulesFile = File.createTempFile("group-rules", ".txt");
+    try {
+      FileOutputStream out = new FileOutputStream(rulesFile);
+      out.write("gmail.com = staff\n".getBytes(HttpClient.UTF8));
+      out.close();
+      final Map<String, String> options = GoogleOAuthServerAuthModuleTest.requiredOptions();
+      options.put("group_rules", rulesFile.getPath());
+      final StubHttpClient stub = new StubHttpClient()
+              .respond(TOKENINFO_PATH, 200, tokenInfo("web-client-id", System.currentTimeMillis() / 1000L + 3600));
+      final GoogleOAuthServerAuthModule module = bearerModule(options, stub);
+
+      Subject subject = new Subject();
+      module.validateRequest(messageInfo(bearerRequest("ya29.abc"), mock(HttpServletResponse.class), true), subject, null);
+      assertThat(GoogleOAuthServerAuthModuleTest.groupNames(subject), is(Collections.singleton("staff")));
+
+      out = new FileOutputStream(rulesFile);
+      out.write("gmail.com = admins\n".getBytes(HttpClient.UTF8));
+      out.close();
+      rulesFile.setLastModified(rulesFile.lastModified() + 2000);
+      assertThat(module.getGroupMapper().reload(), is(true));
+
+      subject = new Subject();
+      module.validateRequest(messageInfo(bearerRequest("ya29.abc"), mock(HttpServletResponse.class), true), subject, null);
+      assertThat(GoogleOAuthServerAuthModuleTest.groupNames(subject), is(Collections.singleton("admins")));
+      assertThat(stub.getRequests(), is(1));
+    } finally {
+      rulesFile.delete();
+    }
+  }
+}
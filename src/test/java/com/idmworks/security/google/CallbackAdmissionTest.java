@@ -0,0 +1,102 @@
+package com.idmworks.security.google;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link CallbackAdmission}.
+ *
+ * @author pdgreen
+ */
+public class CallbackAdmissionTest {
+
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(5000);
+
+  @Test
+  public void testRefusesOverLimitWithoutQueue() {
+    final CallbackAdmission admission = new CallbackAdmission(1, 2, 0, 0, 1000);
+    assertTrue(admission.acquire());
+    assertTrue(admission.acquire());
+    assertFalse(admission.acquire());
+    assertThat(admission.getInProgress(), is(2));
+    assertThat(admission.getRejectedCount(), is(1L));
+
+    admission.release();
+    assertTrue(admission.acquire());
+  }
+
+  @Test
+  public void testQueuedCallbackAdmittedWhenSlotReleased() throws Exception {
+    final CallbackAdmission admission = new CallbackAdmission(1, 1, 1, 5000, 1000);
+    assertTrue(admission.acquire());
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<Boolean> queued = executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return admission.acquire();
+        }
+      });
+      while (admission.getQueued() == 0) {
+        Thread.sleep(1);
+      }
+      //the queue is full
+      assertFalse(admission.acquire());
+
+      admission.release();
+      assertThat(queued.get(5, TimeUnit.SECONDS), is(true));
+      assertThat(admission.getInProgress(), is(1));
+      assertThat(admission.getQueued(), is(0));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testQueuedCallbackRefusedAfterTimeout() {
+    final CallbackAdmission admission = new CallbackAdmission(1, 1, 1, 20, 1000);
+    assertTrue(admission.acquire());
+    final long start = System.nanoTime();
+    assertFalse(admission.acquire());
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    assertThat(admission.getQueued(), is(0));
+    assertThat(admission.getRejectedCount(), is(1L));
+  }
+
+  @Test
+  public void testLimitShrinksOnSlowExchangesAndRecovers() {
+    final CallbackAdmission admission = new CallbackAdmission(2, 10, 0, 0, 1000);
+    admission.recordExchange(SLOW, true);
+    assertThat(admission.getLimit(), is(9));
+    //the calls already in flight when Google slowed down don't count again
+    for (int i = 0; i < 8; i++) {
+      admission.recordExchange(SLOW, true);
+    }
+    assertThat(admission.getLimit(), is(9));
+    for (int i = 0; i < 20; i++) {
+      admission.recordExchange(SLOW, false);
+    }
+    assertThat(admission.getLimit(), is(6));
+    for (int i = 0; i < 100; i++) {
+      admission.recordExchange(0, false);
+    }
+    assertThat(admission.getLimit(), is(2));
+
+    for (int i = 0; i < 1000; i++) {
+      admission.recordExchange(FAST, true);
+    }
+    assertThat(admission.getLimit(), is(10));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMinimumOverMaximum() {
+    new CallbackAdmission(5, 4, 0, 0, 1000);
+  }
+}
@@ -0,0 +1,178 @@
+package com.idmworks.security.google;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link CircuitBreaker} and {@link GuardedHttpClient}.
+ *
+ * @author pdgreen
+ */
+public class CircuitBreakerTest {
+
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW = TimeUnit.SECONDS.toNanos(6);
+  private long now = 0;
+  private CircuitBreaker breaker;
+
+  @Before
+  public void createBreaker() {
+    breaker = new CircuitBreaker("test", 10, 4, 50, 80, 5000, 30, 2) {
+      @Override
+      long currentTimeNanos() {
+        return now;
+      }
+    };
+  }
+
+  private void call(final boolean failed, final long nanos) {
+    assertTrue(breaker.tryAcquirePermission());
+    breaker.record(failed, nanos);
+  }
+
+  @Test
+  public void testThresholdsOutsidePercentRejected() {
+    final int[][] invalid = {{0, 80}, {101, 80}, {50, 0}, {50, 101}};
+    for (final int[] thresholds : invalid) {
+      try {
+        new CircuitBreaker("test", 10, 4, thresholds[0], thresholds[1], 5000, 30, 2);
+        fail("expected IllegalArgumentException for " + thresholds[0] + "/" + thresholds[1]);
+      } catch (IllegalArgumentException ex) {
+        assertThat(ex.getMessage(), containsString("from 1 to 100"));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMinimumCallsLargerThanWindowRejected() {
+    new CircuitBreaker("test", 10, 11, 50, 80, 5000, 30, 2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNonPositiveOpenDurationRejected() {
+    new CircuitBreaker("test", 10, 4, 50, 80, 5000, 0, 2);
+  }
+
+  @Test
+  public void testStaysClosedBelowMinimumCalls() {
+    call(true, FAST);
+    call(true, FAST);
+    call(true, FAST);
+    assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+  }
+
+  @Test
+  public void testOpensOnFailureRate() {
+    call(false, FAST);
+    call(false, FAST);
+    call(true, FAST);
+    call(true, FAST);
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    assertFalse(breaker.tryAcquirePermission());
+    assertThat(breaker.getRejectedCount(), is(1L));
+  }
+
+  @Test
+  public void testOpensOnSlowCallRate() {
+    call(false, FAST);
+    for (int i = 0; i < 4; i++) {
+      call(false, SLOW);
+    }
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+  }
+
+  @Test
+  public void testOnlyLastWindowCounts() {
+    for (int i = 0; i < 6; i++) {
+      call(false, FAST);
+    }
+    for (int i = 0; i < 4; i++) {
+      call(true, FAST);
+    }
+    assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    //oldest success leaves the window: 5 of the last 10 failed
+    call(true, FAST);
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+  }
+
+  @Test
+  public void testHalfOpenProbesClose() {
+    testOpensOnFailureRate();
+    now += TimeUnit.SECONDS.toNanos(30);
+
+    call(false, FAST);
+    assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+    assertTrue(breaker.tryAcquirePermission());
+    assertFalse("only two probes", breaker.tryAcquirePermission());
+    breaker.record(false, FAST);
+    assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+  }
+
+  @Test
+  public void testHalfOpenFailureReopens() {
+    testOpensOnFailureRate();
+    now += TimeUnit.SECONDS.toNanos(30);
+
+    call(true, FAST);
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    now += TimeUnit.SECONDS.toNanos(29);
+    assertFalse(breaker.tryAcquirePermission());
+  }
+
+  @Test
+  public void testGuardedClientRecordsServerErrors() {
+    final GuardedHttpClient client = new GuardedHttpClient(new StubHttpClient().respond("/token", 503, "{}"), breaker, 10);
+    final URI uri = URI.create("https://accounts.google.com/token");
+    for (int i = 0; i < 4; i++) {
+      assertThat(client.POST(uri, "code=x").getStatus(), is(503));
+    }
+    try {
+      client.POST(uri, "code=x");
+      fail("circuit breaker should be open");
+    } catch (RejectedExecutionException ex) {
+      assertThat(breaker.getRejectedCount(), is(1L));
+    }
+  }
+
+  @Test
+  public void testBulkheadRejectsWhenFull() throws Exception {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final GuardedHttpClient client = new GuardedHttpClient(new StubHttpClient() {
+      @Override
+      HttpClient.Response handle(final URI destination) {
+        entered.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        return super.handle(destination);
+      }
+    }, breaker, 1);
+    final URI uri = URI.create("https://www.googleapis.com/oauth2/v1/userinfo");
+    final Thread blocked = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        client.GET(uri);
+      }
+    });
+    blocked.start();
+    assertTrue(entered.await(10, TimeUnit.SECONDS));
+    try {
+      client.GET(uri);
+      fail("bulkhead should be full");
+    } catch (RejectedExecutionException ex) {
+      assertThat(client.getBulkheadRejectedCount(), is(1L));
+    } finally {
+      release.countDown();
+      blocked.join();
+    }
+    assertThat(client.GET(uri).getStatus(), is(404));
+  }
+}
@@ -0,0 +1,82 @@
+package com.idmworks.security.google;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link ClientRateLimiter}.
+ *
+ * @author pdgreen
+ */
+public class ClientRateLimiterTest {
+
+  private long now = TimeUnit.HOURS.toNanos(1);
+
+  private ClientRateLimiter limiter(final int rate, final int burst, final int maxClients) {
+    return new ClientRateLimiter(rate, burst, maxClients) {
+      @Override
+      long currentTimeNanos() {
+        return now;
+      }
+    };
+  }
+
+  @Test
+  public void testBurstThenRate() {
+    final ClientRateLimiter limiter = limiter(2, 3, 10);
+    for (int i = 0; i < 3; i++) {
+      assertThat(limiter.tryAcquire("10.0.0.1"), is(0L));
+    }
+    assertThat(limiter.tryAcquire("10.0.0.1"), is(1L));
+
+    now += TimeUnit.MILLISECONDS.toNanos(500);
+    assertThat(limiter.tryAcquire("10.0.0.1"), is(0L));
+    assertThat(limiter.tryAcquire("10.0.0.1"), is(1L));
+    assertThat(limiter.getRejectedCount(), is(2L));
+  }
+
+  @Test
+  public void testClientsLimitedSeparately() {
+    final ClientRateLimiter limiter = limiter(1, 1, 10);
+    assertThat(limiter.tryAcquire("10.0.0.1"), is(0L));
+    assertThat(limiter.tryAcquire("10.0.0.1"), is(1L));
+    assertThat(limiter.tryAcquire("10.0.0.2"), is(0L));
+    assertThat(limiter.getClientCount(), is(2));
+  }
+
+  @Test
+  public void testRetryAfterRoundsUp() {
+    final ClientRateLimiter limiter = limiter(1, 1, 10);
+    limiter.tryAcquire("10.0.0.1");
+    now += TimeUnit.MILLISECONDS.toNanos(100);
+    assertThat(limiter.tryAcquire("10.0.0.1"), is(1L));
+
+    final ClientRateLimiter slow = new ClientRateLimiter(0.2, 1, 10) {
+      @Override
+      long currentTimeNanos() {
+        return now;
+      }
+    };
+    slow.tryAcquire("10.0.0.1");
+    assertThat(slow.tryAcquire("10.0.0.1"), is(5L));
+  }
+
+  @Test
+  public void testRefilledClientsForgottenWhenFull() {
+    final ClientRateLimiter limiter = limiter(1, 2, 2);
+    limiter.tryAcquire("10.0.0.1");
+    limiter.tryAcquire("10.0.0.2");
+    limiter.tryAcquire("10.0.0.2");
+    //neither has refilled
+    assertThat(limiter.tryAcquire("10.0.0.3"), is(1L));
+
+    now += TimeUnit.SECONDS.toNanos(1);
+    //10.0.0.1 is full again and dropped, 10.0.0.2 isn't
+    assertThat(limiter.tryAcquire("10.0.0.3"), is(0L));
+    assertThat(limiter.getClientCount(), is(2));
+    assertThat(limiter.tryAcquire("10.0.0.2"), is(0L));
+    assertThat(limiter.tryAcquire("10.0.0.2"), is(1L));
+  }
+}
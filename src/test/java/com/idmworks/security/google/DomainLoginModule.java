@@ -0,0 +1,67 @@
+package com.idmworks.security.google;
+
+import java.util.Map;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+/**
+ * Test LoginModule which adds the domain of the user's email as a principal. Users of the reserved {@code .invalid}
+ * domains fail to login.
+ *
+ * @author pdgreen
+ */
+public class DomainLoginModule implements LoginModule {
+
+  private Subject subject;
+  private CallbackHandler callbackHandler;
+  private SimplePrincipal domainPrincipal;
+
+  @Override
+  public void initialize(Subject subject, CallbackHandler callbackHandler, Map<String, ?> sharedState, Map<String, ?> options) {
+    this.subject = subject;
+    this.callbackHandler = callbackHandler;
+  }
+
+  @Override
+  public boolean login() throws LoginException {
+    final NameCallback nameCallback = new NameCallback("email");
+    try {
+      callbackHandler.handle(new Callback[]{nameCallback});
+    } catch (Exception ex) {
+      final LoginException loginException = new LoginException("unable to retrieve email");
+      loginException.initCause(ex);
+      throw loginException;
+    }
+    final String email = nameCallback.getName();
+    if (email.endsWith(".invalid")) {
+      throw new FailedLoginException("unknown user " + email);
+    }
+    domainPrincipal = new SimplePrincipal(email.substring(email.indexOf('@') + 1));
+    return true;
+  }
+
+  @Override
+  public boolean commit() {
+    subject.getPrincipals().add(domainPrincipal);
+    return true;
+  }
+
+  @Override
+  public boolean abort() {
+    domainPrincipal = null;
+    return true;
+  }
+
+  @Override
+  public boolean logout() {
+    if (domainPrincipal != null) {
+      subject.getPrincipals().remove(domainPrincipal);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,96 @@
+package com.idmworks.security.google;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link ExpiringCache}.
+ *
+ * @author pdgreen
+ */
+public class ExpiringCacheTest {
+
+  private long now;
+
+  private ExpiringCache<String, String> cache(final int maxSize, final long ttlSeconds) {
+    return new ExpiringCache<String, String>(maxSize, ttlSeconds, TimeUnit.SECONDS) {
+      @Override
+      long currentTimeNanos() {
+        return now;
+      }
+    };
+  }
+
+  @Test
+  public void testHitAndMiss() {
+    final ExpiringCache<String, String> cache = cache(10, 60);
+    cache.put("a", "1");
+
+    assertThat(cache.get("a"), is("1"));
+    assertThat(cache.get("b"), is(nullValue()));
+    assertThat(cache.getHitCount(), is(1L));
+    assertThat(cache.getMissCount(), is(1L));
+  }
+
+  @Test
+  public void testExpiry() {
+    final ExpiringCache<String, String> cache = cache(10, 60);
+    cache.put("a", "1");
+    now += TimeUnit.SECONDS.toNanos(61);
+
+    assertThat(cache.get("a"), is(nullValue()));
+    assertThat(cache.getEvictionCount(), is(1L));
+    assertThat(cache.size(), is(0));
+  }
+
+  @Test
+  public void testShorterTtlPerEntry() {
+    final ExpiringCache<String, String> cache = cache(10, 60);
+    cache.put("a", "1", 5, TimeUnit.SECONDS);
+    now += TimeUnit.SECONDS.toNanos(6);
+
+    assertThat(cache.get("a"), is(nullValue()));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    final ExpiringCache<String, String> cache = cache(3, 60);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.put("c", "3");
+    cache.get("a");
+    cache.put("d", "4");
+
+    assertThat(cache.size(), is(3));
+    assertThat(cache.get("b"), is(nullValue()));
+    assertThat(cache.get("a"), is("1"));
+    assertThat(cache.get("d"), is("4"));
+    assertThat(cache.getEvictionCount(), is(1L));
+  }
+
+  @Test
+  public void testSizeIsBoundedAcrossSegments() {
+    final ExpiringCache<String, String> cache = cache(1000, 60);
+    for (int i = 0; i < 10000; i++) {
+      cache.put("key" + i, "value" + i);
+    }
+
+    assertThat(cache.size() <= 1000, is(true));
+  }
+
+  @Test
+  public void testInvalidate() {
+    final ExpiringCache<String, String> cache = cache(10, 60);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.invalidate("a");
+
+    assertThat(cache.get("a"), is(nullValue()));
+    assertThat(cache.get("b"), is("2"));
+
+    cache.invalidateAll();
+    assertThat(cache.size(), is(0));
+  }
+}
@@ -0,0 +1,315 @@
+package com.idmworks.security.google;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Local stand-in for Google's authorization, token and userinfo endpoints, for end to end tests and the load driver
+ * in {@code benchmarks/}. <br> The authorization endpoint signs in a user right away: the one named by
+ * {@code login_hint}, or a new {@code user<n>@example.com}, and redirects back to {@code redirect_uri} with a code.
+ * Codes can be redeemed once, as with Google; the access token names the user, so the server keeps nothing per
+ * token. Every call can be delayed ({@link #latency}) and token and userinfo calls can fail with 503
+ * ({@link #errorRate}).
+ *
+ * @author pdgreen
+ */
+public class FakeGoogleServer {
+
+  static final String AUTHORIZATION_PATH = "/o/oauth2/auth";
+  static final String TOKEN_PATH = "/o/oauth2/token";
+  static final String USERINFO_PATH = "/oauth2/v1/userinfo";
+  private static final String ACCESS_TOKEN_PREFIX = "ya29.";
+  private static final String REFRESH_TOKEN_PREFIX = "1/";
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final String baseUri;
+  private final ConcurrentMap<String, String> codes = new ConcurrentHashMap<String, String>();
+  private final AtomicLong users = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final Random random = new Random();
+  private volatile long latencyMillis;
+  private volatile long jitterMillis;
+  private volatile double errorRate;
+
+  static {
+    //the JDK server writes headers and body separately, with Nagle's algorithm every response with a body would wait
+    //for the client's delayed ACK, some 40ms, and the latencies measured would be the server's
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+  }
+
+  private FakeGoogleServer(final HttpServer server, final String scheme) {
+    this.server = server;
+    this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "fake-google");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    server.setExecutor(executor);
+    server.createContext(AUTHORIZATION_PATH, new AuthorizationHandler());
+    server.createContext(TOKEN_PATH, new TokenHandler());
+    server.createContext(USERINFO_PATH, new UserInfoHandler());
+    server.start();
+    this.baseUri = scheme + "://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * @return server listening on a free local port over http
+   */
+  public static FakeGoogleServer start() throws IOException {
+    return new FakeGoogleServer(HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0), "http");
+  }
+
+  /**
+   * @param sslContext context holding the server's key, clients have to trust its certificate
+   * @return server listening on a free local port over https
+   */
+  public static FakeGoogleServer start(final SSLContext sslContext) throws IOException {
+    final HttpsServer server = HttpsServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+    server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+    return new FakeGoogleServer(server, "https");
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Delays every response by millis plus up to jitter milliseconds.
+   */
+  public FakeGoogleServer latency(final long millis, final long jitter) {
+    this.latencyMillis = millis;
+    this.jitterMillis = jitter;
+    return this;
+  }
+
+  /**
+   * @param rate fraction of token and userinfo calls answered with 503
+   */
+  public FakeGoogleServer errorRate(final double rate) {
+    this.errorRate = rate;
+    return this;
+  }
+
+  public URI getAuthorizationUri() {
+    return URI.create(baseUri + AUTHORIZATION_PATH);
+  }
+
+  public URI getTokenUri() {
+    return URI.create(baseUri + TOKEN_PATH);
+  }
+
+  public URI getUserInfoUri() {
+    return URI.create(baseUri + USERINFO_PATH);
+  }
+
+  /**
+   * @return module options pointing the authorization, token and userinfo endpoints at this server
+   */
+  public Map<String, String> endpointOptions() {
+    final Map<String, String> options = new HashMap<String, String>();
+    options.put("oauth.endpoint", getAuthorizationUri().toString());
+    options.put("token_uri", getTokenUri().toString());
+    options.put("userinfo_uri", getUserInfoUri().toString());
+    return options;
+  }
+
+  /**
+   * @return requests answered, including injected errors
+   */
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  /**
+   * @return requests answered with an injected error
+   */
+  public long getErrorCount() {
+    return errors.get();
+  }
+
+  private void delay() {
+    final long jitter = jitterMillis;
+    final long millis = latencyMillis + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+    if (millis > 0) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(millis);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private boolean injectError(final HttpExchange exchange) throws IOException {
+    if (errorRate > 0 && random.nextDouble() < errorRate) {
+      errors.incrementAndGet();
+      respond(exchange, 503, "{\"error\":\"backend_error\"}");
+      return true;
+    }
+    return false;
+  }
+
+  private static void respond(final HttpExchange exchange, final int status, final String json) throws IOException {
+    final byte[] body = json.getBytes(HttpClient.UTF8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, body.length);
+    final OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  private static Map<String, String> parseForm(final String form) throws UnsupportedEncodingException {
+    final Map<String, String> parameters = new HashMap<String, String>();
+    if (form != null) {
+      for (final String pair : form.split("&")) {
+        final int equals = pair.indexOf('=');
+        if (equals > 0) {
+          parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+      }
+    }
+    return parameters;
+  }
+
+  private static String readBody(final HttpExchange exchange) throws IOException {
+    final InputStream in = exchange.getRequestBody();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+      body.write(buffer, 0, read);
+    }
+    in.close();
+    return new String(body.toByteArray(), HttpClient.UTF8);
+  }
+
+  private static String tokenResponse(final String email, final boolean offline) {
+    final String user = Base64Url.encode(email.getBytes(HttpClient.UTF8));
+    return "{\"access_token\":\"" + ACCESS_TOKEN_PREFIX + user + "\",\"expires_in\":3600,\"token_type\":\"Bearer\""
+            + (offline ? ",\"refresh_token\":\"" + REFRESH_TOKEN_PREFIX + user + "\"" : "") + "}";
+  }
+
+  private static String decodeUser(final String token, final String prefix) {
+    if (token == null || !token.startsWith(prefix)) {
+      return null;
+    }
+    try {
+      return new String(Base64Url.decode(token.substring(prefix.length())), HttpClient.UTF8);
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  private abstract class Handler implements HttpHandler {
+
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+      requests.incrementAndGet();
+      delay();
+      try {
+        handle(exchange, parseForm(exchange.getRequestURI().getRawQuery()));
+      } finally {
+        exchange.close();
+      }
+    }
+
+    abstract void handle(HttpExchange exchange, Map<String, String> query) throws IOException;
+  }
+
+  private class AuthorizationHandler extends Handler {
+
+    @Override
+    void handle(final HttpExchange exchange, final Map<String, String> query) throws IOException {
+      final String redirectUri = query.get("redirect_uri");
+      if (redirectUri == null) {
+        respond(exchange, 400, "{\"error\":\"invalid_request\"}");
+        return;
+      }
+      final String email = query.containsKey("login_hint") ? query.get("login_hint") : "user" + users.incrementAndGet() + "@example.com";
+      final String code = "4/" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+      codes.put(code, ("offline".equals(query.get("access_type")) ? "offline:" : "online:") + email);
+      final StringBuilder location = new StringBuilder(redirectUri).append(redirectUri.indexOf('?') < 0 ? '?' : '&')
+              .append("code=").append(GoogleApiUtils.formEncode(code));
+      if (query.containsKey("state")) {
+        location.append("&state=").append(GoogleApiUtils.formEncode(query.get("state")));
+      }
+      exchange.getResponseHeaders().set("Location", location.toString());
+      //with a body: a response without one is finished twice by the JDK server, which then resets the kept-alive
+      //connection under the next client to use it
+      respond(exchange, 302, "{}");
+    }
+  }
+
+  private class TokenHandler extends Handler {
+
+    @Override
+    void handle(final HttpExchange exchange, final Map<String, String> query) throws IOException {
+      final Map<String, String> form = parseForm(readBody(exchange));
+      if (injectError(exchange)) {
+        return;
+      }
+      if ("refresh_token".equals(form.get("grant_type"))) {
+        final String email = decodeUser(form.get("refresh_token"), REFRESH_TOKEN_PREFIX);
+        if (email == null) {
+          respond(exchange, 400, "{\"error\":\"invalid_grant\"}");
+        } else {
+          respond(exchange, 200, tokenResponse(email, false));
+        }
+        return;
+      }
+      final String grant = form.get("code") == null ? null : codes.remove(form.get("code"));
+      if (grant == null) {
+        respond(exchange, 400, "{\"error\":\"invalid_grant\"}");
+        return;
+      }
+      final int colon = grant.indexOf(':');
+      respond(exchange, 200, tokenResponse(grant.substring(colon + 1), grant.startsWith("offline")));
+    }
+  }
+
+  private class UserInfoHandler extends Handler {
+
+    @Override
+    void handle(final HttpExchange exchange, final Map<String, String> query) throws IOException {
+      if (injectError(exchange)) {
+        return;
+      }
+      final String email = decodeUser(query.get("access_token"), ACCESS_TOKEN_PREFIX);
+      if (email == null) {
+        respond(exchange, 401, "{\"error\":\"invalid_token\"}");
+        return;
+      }
+      final String name = email.substring(0, email.indexOf('@') < 0 ? email.length() : email.indexOf('@'));
+      respond(exchange, 200, "{\"id\":\"" + (email.hashCode() & Integer.MAX_VALUE) + "\",\"email\":\"" + email
+              + "\",\"verified_email\":true,\"name\":\"" + name + "\"}");
+    }
+  }
+}
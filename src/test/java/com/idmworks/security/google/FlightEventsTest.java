@@ -0,0 +1,23 @@
+package com.idmworks.security.google;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link FlightEvents}.
+ *
+ * @author pdgreen
+ */
+public class FlightEventsTest {
+
+  @Test
+  public void testNothingIsTimedWithoutRecording() {
+    //with or without the Flight Recorder events, no recording is running in the tests
+    for (int phase = FlightEvents.REDIRECT; phase <= FlightEvents.SESSION_SAVE; phase++) {
+      final Object event = FlightEvents.INSTANCE.begin(phase);
+      assertThat(event, is(nullValue()));
+      FlightEvents.INSTANCE.end(event, 200, FlightEvents.SUCCESS);
+    }
+  }
+}
@@ -0,0 +1,1156 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleOAuthPrincipal;
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Principal;
+import java.security.URIParameter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.message.AuthStatus;
+import javax.security.auth.message.MessageInfo;
+import javax.security.auth.message.callback.CallerPrincipalCallback;
+import javax.security.auth.message.callback.GroupPrincipalCallback;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.junit.*;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for {@link GoogleOAuthServerAuthModule}.
+ *
+ * @author pdgreen
+ */
+public class GoogleOAuthServerAuthModuleTest {
+
+  private static Configuration originalConfiguration;
+
+  @BeforeClass
+  public static void installLoginConfiguration() throws Exception {
+    originalConfiguration = Configuration.getConfiguration();
+    Configuration.setConfiguration(Configuration.getInstance("JavaLoginConfig",
+            new URIParameter(GoogleOAuthServerAuthModuleTest.class.getResource("/test.config").toURI())));
+  }
+
+  @AfterClass
+  public static void restoreLoginConfiguration() {
+    Configuration.setConfiguration(originalConfiguration);
+  }
+
+  static Map<String, String> requiredOptions() {
+    final Map<String, String> options = new HashMap<String, String>();
+    options.put("oauth.clientid", "test-client-id");
+    options.put("oauth.clientsecret", "test-client-secret");
+    return options;
+  }
+
+  static GoogleUserInfo userInfo(final String id, final String email) {
+    return new GoogleUserInfo(id, email, true, null, null, null, null, null, null, null);
+  }
+
+  static Set<String> groupNames(final Subject subject) {
+    final Set<String> names = new HashSet<String>();
+    for (final SimplePrincipal principal : subject.getPrincipals(SimplePrincipal.class)) {
+      names.add(principal.getName());
+    }
+    return names;
+  }
+
+  /**
+   * Container stand-in which adds the caller and group principals to the subject.
+   */
+  static class ContainerCallbackHandler implements CallbackHandler {
+
+    @Override
+    public void handle(final Callback[] callbacks) throws UnsupportedCallbackException {
+      for (final Callback callback : callbacks) {
+        if (callback instanceof CallerPrincipalCallback) {
+          final CallerPrincipalCallback cpc = (CallerPrincipalCallback) callback;
+          cpc.getSubject().getPrincipals().add(cpc.getPrincipal());
+        } else if (callback instanceof GroupPrincipalCallback) {
+          final GroupPrincipalCallback gpc = (GroupPrincipalCallback) callback;
+          for (final String group : gpc.getGroups()) {
+            gpc.getSubject().getPrincipals().add(new SimplePrincipal(group));
+          }
+        } else {
+          throw new UnsupportedCallbackException(callback);
+        }
+      }
+    }
+  }
+
+  static MessageInfo messageInfo() {
+    final MessageInfo messageInfo = mock(MessageInfo.class);
+    when(messageInfo.getMap()).thenReturn(Collections.synchronizedMap(new HashMap()));
+    return messageInfo;
+  }
+
+  static HttpServletRequest requestWithSession() {
+    final HttpServletRequest request = mock(HttpServletRequest.class);
+    final HttpSession session = mock(HttpSession.class);
+    when(request.getSession()).thenReturn(session);
+    when(request.getSession(anyBoolean())).thenReturn(session);
+    return request;
+  }
+
+  /**
+   * Request mock which keeps attributes, like a real request.
+   */
+  static HttpServletRequest callbackRequest(final String code) {
+    final HttpServletRequest request = requestWithSession();
+    final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+    when(request.getRequestURI()).thenReturn("/app/j_oauth_callback");
+    when(request.getContextPath()).thenReturn("/app");
+    when(request.getScheme()).thenReturn("https");
+    when(request.getServerName()).thenReturn("www.example.com");
+    when(request.getServerPort()).thenReturn(443);
+    when(request.getParameter("code")).thenReturn(code);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+        return null;
+      }
+    }).when(request).setAttribute(anyString(), any());
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        attributes.remove((String) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(request).removeAttribute(anyString());
+    when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        return attributes.get((String) invocation.getArguments()[0]);
+      }
+    });
+    return request;
+  }
+
+  @Test
+  public void testAsyncCallbackFinishedOnWorker() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("async_callback", "true");
+    options.put("callback_limit", "1");
+    options.put("default_groups", "users");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final StubHttpClient httpClient = StubHttpClient.google();
+    module.setHttpClient(httpClient);
+
+    final HttpServletRequest request = callbackRequest("4/code");
+    final HttpSession session = request.getSession();
+    when(session.getAttribute(StateHelper.class.getName() + ".original_request_path")).thenReturn("/app/protected");
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    final AsyncContext asyncContext = mock(AsyncContext.class);
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.startAsync(request, response)).thenReturn(asyncContext);
+    final MessageInfo messageInfo = messageInfo();
+    when(messageInfo.getRequestMessage()).thenReturn(request);
+    when(messageInfo.getResponseMessage()).thenReturn(response);
+
+    final Subject suspendedSubject = new Subject();
+    assertThat(module.validateRequest(messageInfo, suspendedSubject, null), is(AuthStatus.SEND_CONTINUE));
+    verify(asyncContext, timeout(5000)).complete();
+    verify(asyncContext, never()).dispatch();
+    verify(response).sendRedirect("/app/protected");
+    //authenticated on the worker, like a synchronous callback
+    assertThat(suspendedSubject.getPrincipals(GoogleOAuthPrincipal.class).iterator().next().getName(), is("fake.name@gmail.com"));
+    assertThat(groupNames(suspendedSubject), is(Collections.singleton("users")));
+    assertThat(messageInfo.getMap().get("javax.servlet.http.authType"), is((Object) "Google-OAuth"));
+    assertThat(httpClient.getRequests(), is(2));
+    //counted once, when finished, and its admission slot given back
+    assertThat(module.getMetrics().getSendContinueCount(), is(1L));
+    assertThat(module.getMetrics().getCallbacksInProgress(), is(0));
+
+    //the next request is authenticated from the saved snapshot
+    final ArgumentCaptor<Object> snapshot = ArgumentCaptor.forClass(Object.class);
+    verify(session).setAttribute(eq(StateHelper.class.getName() + ".saved_snapshot"), snapshot.capture());
+    final HttpServletRequest protectedRequest = requestWithSession();
+    when(protectedRequest.getRequestURI()).thenReturn("/app/protected");
+    when(protectedRequest.getSession(false).getAttribute(StateHelper.class.getName() + ".saved_snapshot")).thenReturn(snapshot.getValue());
+    final MessageInfo protectedInfo = messageInfo();
+    protectedInfo.getMap().put("javax.security.auth.message.MessagePolicy.isMandatory", "true");
+    when(protectedInfo.getRequestMessage()).thenReturn(protectedRequest);
+    when(protectedInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+    final Subject subject = new Subject();
+    assertThat(module.validateRequest(protectedInfo, subject, null), is(AuthStatus.SUCCESS));
+    assertThat(subject.getPrincipals(GoogleOAuthPrincipal.class).iterator().next().getName(), is("fake.name@gmail.com"));
+    assertThat(httpClient.getRequests(), is(2));
+  }
+
+  @Test
+  public void testOfflineAccessAddsRefreshedCredential() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("offline_access", "true");
+    options.put("token_refresh_interval", "0");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final StubHttpClient httpClient = StubHttpClient.google()
+            .respond("/o/oauth2/token", 200, "{\"access_token\":\"first\",\"expires_in\":60,\"refresh_token\":\"1/refresh\"}");
+    module.setHttpClient(httpClient);
+
+    assertThat(module.templatesFor("https", "www.example.com", 443, "/app").getAuthorizationUri(), containsString("&access_type=offline"));
+
+    final HttpServletRequest request = callbackRequest("4/code");
+    final MessageInfo messageInfo = messageInfo();
+    when(messageInfo.getRequestMessage()).thenReturn(request);
+    when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+    final Subject subject = new Subject();
+    assertThat(module.validateRequest(messageInfo, subject, null), is(AuthStatus.SEND_CONTINUE));
+    final GoogleCredential credential = subject.getPrivateCredentials(GoogleCredential.class).iterator().next();
+    assertThat(credential.getName(), is("fake.name@gmail.com"));
+    assertThat(credential.getAccessToken(), is("first"));
+
+    httpClient.respond("/o/oauth2/token", 200, TokenRefresherTest.REFRESHED_JSON);
+    assertThat(module.getTokenRefresher().refreshDue(), is(1));
+    assertThat(credential.getAccessToken(), is("refreshed"));
+    assertThat(module.getMetrics().getRefreshableCredentialCount(), is(1));
+  }
+
+  @Test
+  public void testRepeatedCallbackSharesCompletedExchange() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final StubHttpClient httpClient = StubHttpClient.google();
+    module.setHttpClient(httpClient);
+
+    final HttpServletRequest request = callbackRequest("4/code");
+    when(request.getSession(false).getId()).thenReturn("session");
+    final MessageInfo messageInfo = messageInfo();
+    when(messageInfo.getRequestMessage()).thenReturn(request);
+    when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+    assertThat(module.validateRequest(messageInfo, new Subject(), null), is(AuthStatus.SEND_CONTINUE));
+    assertThat(httpClient.getRequests(), is(2));
+
+    //the same session repeats the callback once the exchange completed, Google would refuse the used code
+    httpClient.respond("/o/oauth2/token", 400, "{\"error\":\"invalid_grant\"}");
+    final Subject subject = new Subject();
+    assertThat(module.validateRequest(messageInfo, subject, null), is(AuthStatus.SEND_CONTINUE));
+    assertThat(subject.getPrincipals(GoogleOAuthPrincipal.class).iterator().next().getName(), is("fake.name@gmail.com"));
+    assertThat(httpClient.getRequests(), is(2));
+    assertThat(module.getMetrics().getCoalescedCallbackCount(), is(1L));
+    assertThat(module.getMetrics().getRejectedCodeCount(), is(0L));
+
+    //another session replaying the code doesn't get the user
+    final HttpServletRequest replayed = callbackRequest("4/code");
+    when(replayed.getSession(false).getId()).thenReturn("other");
+    final MessageInfo replayedInfo = messageInfo();
+    when(replayedInfo.getRequestMessage()).thenReturn(replayed);
+    when(replayedInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+    final Subject replayedSubject = new Subject();
+    assertThat(module.validateRequest(replayedInfo, replayedSubject, null), is(AuthStatus.SEND_FAILURE));
+    assertThat(replayedSubject.getPrincipals().isEmpty(), is(true));
+    assertThat(httpClient.getRequests(), is(3));
+  }
+
+  @Test
+  public void testCookieModeRepeatedCallbackSharesCompletedExchange() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("state_mode", "cookie");
+    options.put("cookie_keys", SignedCookieCodecTest.KEY_1);
+    assertRepeatedCallbackWithoutSessionShared(options);
+  }
+
+  @Test
+  public void testOffHeapModeRepeatedCallbackSharesCompletedExchange() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("state_mode", "offheap");
+    options.put("offheap_capacity", "1000");
+    assertRepeatedCallbackWithoutSessionShared(options);
+  }
+
+  /**
+   * The cookie set when the client was sent to Google ties its callbacks together.
+   */
+  private static void assertRepeatedCallbackWithoutSessionShared(final Map<String, String> options) throws Exception {
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final StubHttpClient httpClient = StubHttpClient.google();
+    module.setHttpClient(httpClient);
+
+    final HttpServletRequest protectedRequest = mock(HttpServletRequest.class);
+    when(protectedRequest.getRequestURI()).thenReturn("/app/protected");
+    final HttpServletResponse redirectResponse = mock(HttpServletResponse.class);
+    assertThat(module.handleMandatoryRequest(messageInfo(), protectedRequest, redirectResponse, new Subject()), is(AuthStatus.SEND_CONTINUE));
+    final ArgumentCaptor<Cookie> pathCookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(redirectResponse).addCookie(pathCookie.capture());
+
+    //the browser sends the callback twice, the second after the first completed
+    for (int i = 0; i < 2; i++) {
+      final HttpServletRequest callback = callbackRequest("4/code");
+      when(callback.getSession(false)).thenReturn(null);
+      when(callback.getCookies()).thenReturn(new Cookie[]{pathCookie.getValue()});
+      final HttpServletResponse response = mock(HttpServletResponse.class);
+      final MessageInfo messageInfo = messageInfo();
+      when(messageInfo.getRequestMessage()).thenReturn(callback);
+      when(messageInfo.getResponseMessage()).thenReturn(response);
+      final Subject subject = new Subject();
+      assertThat(module.validateRequest(messageInfo, subject, null), is(AuthStatus.SEND_CONTINUE));
+      assertThat(subject.getPrincipals(GoogleOAuthPrincipal.class).iterator().next().getName(), is("fake.name@gmail.com"));
+      if (i == 0) {
+        verify(response).sendRedirect("/app/protected");
+      }
+    }
+    assertThat(httpClient.getRequests(), is(2));
+    assertThat(module.getMetrics().getCoalescedCallbackCount(), is(1L));
+
+    //a client without the cookie of this login isn't coalesced with it
+    httpClient.respond("/o/oauth2/token", 400, "{\"error\":\"invalid_grant\"}");
+    final HttpServletRequest replayedRequest = callbackRequest("4/code");
+    when(replayedRequest.getSession(false)).thenReturn(null);
+    final MessageInfo replayed = messageInfo();
+    when(replayed.getRequestMessage()).thenReturn(replayedRequest);
+    when(replayed.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+    assertThat(module.validateRequest(replayed, new Subject(), null), is(AuthStatus.SEND_FAILURE));
+    assertThat(httpClient.getRequests(), is(3));
+  }
+
+  @Test
+  public void testOpenCircuitBreakerFailsCallbackWithoutCallingGoogle() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("circuit_breaker", "true");
+    options.put("circuit_breaker_minimum_calls", "2");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final StubHttpClient httpClient = new StubHttpClient().respond("/o/oauth2/token", 503, "{}");
+    module.setHttpClient(httpClient);
+
+    HttpServletResponse response = null;
+    for (int i = 0; i < 3; i++) {
+      final HttpServletRequest request = callbackRequest("4/code");
+      response = mock(HttpServletResponse.class);
+      final MessageInfo messageInfo = messageInfo();
+      when(messageInfo.getRequestMessage()).thenReturn(request);
+      when(messageInfo.getResponseMessage()).thenReturn(response);
+      assertThat(module.validateRequest(messageInfo, new Subject(), null), is(AuthStatus.SEND_FAILURE));
+    }
+    assertThat(httpClient.getRequests(), is(2));
+    verify(response).setStatus(503);
+    verify(response).setHeader("Retry-After", "2");
+    assertThat(module.getMetrics().getCircuitBreakerState(), is("OPEN"));
+    assertThat(module.getMetrics().getCircuitBreakerRejectedCount(), is(1L));
+  }
+
+  @Test
+  public void testInvalidCircuitBreakerOptionNamed() throws Exception {
+    final String[][] invalid = {
+      {"circuit_breaker_half_open_calls", "0"},
+      {"circuit_breaker_failure_rate", "0"},
+      {"circuit_breaker_slow_call_rate", "101"},
+      {"circuit_breaker_minimum_calls", "21"},
+      {"circuit_breaker_slow_call_duration", "-1"},
+      {"circuit_breaker_open_duration", "0"}};
+    for (final String[] option : invalid) {
+      final Map<String, String> options = requiredOptions();
+      options.put("ignore_missing_login_context", "true");
+      options.put("circuit_breaker", "true");
+      options.put(option[0], option[1]);
+      try {
+        new GoogleOAuthServerAuthModule().initialize(null, null, new ContainerCallbackHandler(), options);
+        fail("expected AuthException for " + option[0]);
+      } catch (javax.security.auth.message.AuthException ex) {
+        assertThat(ex.getMessage(), is("Invalid field '" + option[0] + "'"));
+      }
+    }
+  }
+
+  @Test
+  public void testCallbackLimitOffByDefault() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    assertThat(module.getCallbackAdmission(), is(nullValue()));
+  }
+
+  @Test
+  public void testCircuitBreakerOffByDefault() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final StubHttpClient httpClient = new StubHttpClient().respond("/o/oauth2/token", 503, "{}");
+    module.setHttpClient(httpClient);
+
+    for (int i = 0; i < 12; i++) {
+      final MessageInfo messageInfo = messageInfo();
+      final HttpServletRequest request = callbackRequest("4/code" + i);
+      when(messageInfo.getRequestMessage()).thenReturn(request);
+      when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+      assertThat(module.validateRequest(messageInfo, new Subject(), null), is(AuthStatus.SEND_FAILURE));
+    }
+    assertThat(httpClient.getRequests(), is(12));
+    assertThat(module.getMetrics().getCircuitBreakerRejectedCount(), is(0L));
+  }
+
+  @Test
+  public void testLoginAgainstFakeGoogleServer() throws Exception {
+    final FakeGoogleServer google = FakeGoogleServer.start();
+    try {
+      final Map<String, String> options = requiredOptions();
+      options.putAll(google.endpointOptions());
+      options.put("ignore_missing_login_context", "true");
+      final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+      module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+      final HttpServletRequest protectedRequest = callbackRequest(null);
+      when(protectedRequest.getRequestURI()).thenReturn("/app/protected");
+      final MessageInfo protectedInfo = messageInfo();
+      protectedInfo.getMap().put("javax.security.auth.message.MessagePolicy.isMandatory", "true");
+      final HttpServletResponse redirectResponse = mock(HttpServletResponse.class);
+      when(protectedInfo.getRequestMessage()).thenReturn(protectedRequest);
+      when(protectedInfo.getResponseMessage()).thenReturn(redirectResponse);
+      assertThat(module.validateRequest(protectedInfo, new Subject(), null), is(AuthStatus.SEND_CONTINUE));
+      final ArgumentCaptor<String> authorizationUri = ArgumentCaptor.forClass(String.class);
+      verify(redirectResponse).sendRedirect(authorizationUri.capture());
+      assertThat(authorizationUri.getValue(), org.hamcrest.CoreMatchers.startsWith(google.getAuthorizationUri().toString()));
+
+      final HttpURLConnection authorization = (HttpURLConnection) new URL(authorizationUri.getValue()).openConnection();
+      authorization.setInstanceFollowRedirects(false);
+      assertThat(authorization.getResponseCode(), is(302));
+      final String location = authorization.getHeaderField("Location");
+      assertThat(location, org.hamcrest.CoreMatchers.startsWith("https://www.example.com:443/app/j_oauth_callback?code="));
+      final String code = URLDecoder.decode(location.substring(location.indexOf("code=") + 5), "UTF-8");
+
+      final HttpServletRequest callback = callbackRequest(code);
+      final MessageInfo callbackInfo = messageInfo();
+      when(callbackInfo.getRequestMessage()).thenReturn(callback);
+      when(callbackInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+      final Subject subject = new Subject();
+      assertThat(module.validateRequest(callbackInfo, subject, null), is(AuthStatus.SEND_CONTINUE));
+      assertThat(subject.getPrincipals(GoogleOAuthPrincipal.class).iterator().next().getName(), is("user1@example.com"));
+      assertThat(google.getRequestCount(), is(3L));
+
+      google.errorRate(1);
+      final HttpServletRequest failing = callbackRequest("4/another");
+      final MessageInfo failingInfo = messageInfo();
+      when(failingInfo.getRequestMessage()).thenReturn(failing);
+      when(failingInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+      assertThat(module.validateRequest(failingInfo, new Subject(), null), is(AuthStatus.SEND_FAILURE));
+      assertThat(google.getErrorCount(), is(1L));
+    } finally {
+      google.stop();
+    }
+  }
+
+  @Test
+  public void testRejectedCodeNotExchangedAgain() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final StubHttpClient httpClient = new StubHttpClient().respond("/o/oauth2/token", 400, "{\"error\":\"invalid_grant\"}");
+    module.setHttpClient(httpClient);
+
+    for (final String code : new String[]{"garbage", "garbage", "garbage", ""}) {
+      final HttpServletRequest request = callbackRequest(code);
+      final MessageInfo messageInfo = messageInfo();
+      when(messageInfo.getRequestMessage()).thenReturn(request);
+      when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+      assertThat(module.validateRequest(messageInfo, new Subject(), null), is(AuthStatus.SEND_FAILURE));
+    }
+    assertThat(httpClient.getRequests(), is(1));
+    assertThat(module.getMetrics().getRejectedCodeCount(), is(2L));
+  }
+
+  @Test
+  public void testFailedCallbackAfterTokenExchangeNotRejected() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    //a malformed token response, then a userinfo server error
+    final StubHttpClient httpClient = new StubHttpClient().respond("/o/oauth2/token", 200, "{\"expires_in\":true}")
+            .respond("/oauth2/v1/userinfo", 500, "{}");
+    module.setHttpClient(httpClient);
+
+    for (int i = 0; i < 2; i++) {
+      final HttpServletRequest request = callbackRequest("4/code" + i);
+      final MessageInfo messageInfo = messageInfo();
+      when(messageInfo.getRequestMessage()).thenReturn(request);
+      when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+      assertThat(module.validateRequest(messageInfo, new Subject(), null), is(AuthStatus.SEND_FAILURE));
+      httpClient.respond("/o/oauth2/token", 200, StubHttpClient.TOKEN_JSON);
+    }
+    assertThat(httpClient.getRequests(), is(3));
+    assertThat(module.getMetrics().getRejectedCodeCount(), is(0L));
+    assertThat(module.getMetrics().getExceptionCount(), is(0L));
+
+    //the code is still valid, retrying it calls Google
+    httpClient.respond("/oauth2/v1/userinfo", 200, StubHttpClient.USERINFO_JSON);
+    final HttpServletRequest retried = callbackRequest("4/code1");
+    final MessageInfo messageInfo = messageInfo();
+    when(messageInfo.getRequestMessage()).thenReturn(retried);
+    when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+    assertThat(module.validateRequest(messageInfo, new Subject(), null), is(AuthStatus.SEND_CONTINUE));
+  }
+
+  @Test
+  public void testCallbacksRateLimitedPerClient() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("rate_limit", "1");
+    options.put("rate_limit_burst", "2");
+    options.put("rate_limit_header", "X-Forwarded-For");
+    options.put("rate_limit_trusted_proxies", "10.0.0.1");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final StubHttpClient httpClient = new StubHttpClient().respond("/o/oauth2/token", 400, "{\"error\":\"invalid_grant\"}");
+    module.setHttpClient(httpClient);
+
+    HttpServletResponse response = null;
+    for (int i = 0; i < 3; i++) {
+      final HttpServletRequest request = callbackRequest("garbage" + i);
+      //a client chosen entry on the left doesn't change the key
+      when(request.getHeader("X-Forwarded-For")).thenReturn("192.0.2." + i + ", 203.0.113.7, 10.0.0.1");
+      response = mock(HttpServletResponse.class);
+      final MessageInfo messageInfo = messageInfo();
+      when(messageInfo.getRequestMessage()).thenReturn(request);
+      when(messageInfo.getResponseMessage()).thenReturn(response);
+      assertThat(module.validateRequest(messageInfo, new Subject(), null), is(AuthStatus.SEND_FAILURE));
+    }
+    assertThat(httpClient.getRequests(), is(2));
+    verify(response).setStatus(429);
+    verify(response).setHeader("Retry-After", "1");
+    assertThat(module.getMetrics().getRateLimitedCount(), is(1L));
+
+    final HttpServletRequest other = callbackRequest("garbage3");
+    when(other.getHeader("X-Forwarded-For")).thenReturn("198.51.100.2");
+    final MessageInfo messageInfo = messageInfo();
+    when(messageInfo.getRequestMessage()).thenReturn(other);
+    when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+    module.validateRequest(messageInfo, new Subject(), null);
+    assertThat(httpClient.getRequests(), is(3));
+  }
+
+  @Test
+  public void testCallbacksOverLimitRefusedWithRetryAfter() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("callback_limit", "1");
+    options.put("callback_queue", "0");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final CountDownLatch exchanging = new CountDownLatch(1);
+    final CountDownLatch google = new CountDownLatch(1);
+    final StubHttpClient httpClient = new StubHttpClient() {
+      @Override
+      public Response POST(final URI destination, final String body) {
+        exchanging.countDown();
+        try {
+          google.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        return super.POST(destination, body);
+      }
+    }.respond("/o/oauth2/token", 200, StubHttpClient.TOKEN_JSON).respond("/oauth2/v1/userinfo", 200, StubHttpClient.USERINFO_JSON);
+    module.setHttpClient(httpClient);
+
+    final MessageInfo first = messageInfo();
+    final HttpServletRequest firstRequest = callbackRequest("4/first");
+    when(first.getRequestMessage()).thenReturn(firstRequest);
+    when(first.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<AuthStatus> firstStatus = executor.submit(new Callable<AuthStatus>() {
+        @Override
+        public AuthStatus call() throws Exception {
+          return module.validateRequest(first, new Subject(), null);
+        }
+      });
+      assertTrue(exchanging.await(5, TimeUnit.SECONDS));
+      assertThat(module.getMetrics().getCallbacksInProgress(), is(1));
+
+      final MessageInfo second = messageInfo();
+      final HttpServletRequest secondRequest = callbackRequest("4/second");
+      final HttpServletResponse response = mock(HttpServletResponse.class);
+      when(second.getRequestMessage()).thenReturn(secondRequest);
+      when(second.getResponseMessage()).thenReturn(response);
+      assertThat(module.validateRequest(second, new Subject(), null), is(AuthStatus.SEND_FAILURE));
+      verify(response).setStatus(503);
+      verify(response).setHeader("Retry-After", "2");
+      assertThat(module.getMetrics().getCallbacksRefusedCount(), is(1L));
+
+      google.countDown();
+      assertThat(firstStatus.get(5, TimeUnit.SECONDS), is(AuthStatus.SEND_CONTINUE));
+    } finally {
+      google.countDown();
+      executor.shutdownNow();
+    }
+    assertThat(httpClient.getRequests(), is(2));
+    assertThat(module.getMetrics().getCallbacksInProgress(), is(0));
+    assertThat(module.getMetrics().getCallbackLimit(), is(1));
+  }
+
+  @Test
+  public void testUserInfoCacheSkipsUserInfoForKnownAccount() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("userinfo_cache_size", "100");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final String idToken = "eyJhbGciOiJSUzI1NiJ9." + Base64Url.encode("{\"sub\":\"1074968992519869407200\"}".getBytes("UTF-8")) + ".c2ln";
+    final StubHttpClient httpClient = StubHttpClient.google()
+            .respond("/o/oauth2/token", 200, "{\"access_token\":\"t\",\"expires_in\":60,\"id_token\":\"" + idToken + "\"}");
+    module.setHttpClient(httpClient);
+
+    final GoogleUserInfo first = module.exchangeAuthorizationCode(module.templatesFor("https", "www.example.com", 443, "/app"), "code1");
+    final GoogleUserInfo second = module.exchangeAuthorizationCode(module.templatesFor("https", "www.example.com", 443, "/app"), "code2");
+
+    assertThat(first.getEmail(), is("fake.name@gmail.com"));
+    assertThat(second, is(sameInstance(first)));
+    assertThat(httpClient.getRequests(), is(3));
+    assertThat(module.getUserInfoCache().getHitCount(), is(1L));
+    assertThat(module.getUserInfoCache().getMissCount(), is(1L));
+  }
+
+  @Test
+  public void testIdTokenVerificationSkipsUserInfo() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("id_token_verification", "true");
+    options.put("id_token_keys_refresh", "0");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    final KeyPair keyPair = generator.generateKeyPair();
+    final String idToken = IdTokenVerifierTest.idToken("k1", keyPair.getPrivate(), IdTokenVerifierTest.validClaims());
+    final StubHttpClient httpClient = StubHttpClient.google()
+            .respond("/o/oauth2/token", 200, "{\"access_token\":\"t\",\"expires_in\":60,\"id_token\":\"" + idToken + "\"}")
+            .respond(IdTokenVerifierTest.KEYS_PATH, 200, IdTokenVerifierTest.jwks("k1", keyPair));
+    module.setHttpClient(httpClient);
+
+    final GoogleUserInfo first = module.exchangeAuthorizationCode(module.templatesFor("https", "www.example.com", 443, "/app"), "code1");
+    assertThat(first.getEmail(), is("fake.name@gmail.com"));
+    assertThat(httpClient.getRequests(), is(2));
+
+    final GoogleUserInfo second = module.exchangeAuthorizationCode(module.templatesFor("https", "www.example.com", 443, "/app"), "code2");
+    assertThat(second.getId(), is("1074968992519869407200"));
+    assertThat(httpClient.getRequests(), is(3));
+  }
+
+  @Test
+  public void testIdTokenVerificationWithoutKeysUsesUserInfo() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("id_token_verification", "true");
+    options.put("id_token_keys_refresh", "0");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final StubHttpClient httpClient = StubHttpClient.google()
+            .respond("/o/oauth2/token", 200, tokenJsonWithIdToken("fake.name@gmail.com"))
+            .respond(IdTokenVerifierTest.KEYS_PATH, 503, "");
+    module.setHttpClient(httpClient);
+
+    final GoogleUserInfo first = module.exchangeAuthorizationCode(module.templatesFor("https", "www.example.com", 443, "/app"), "code1");
+    assertThat(first.getEmail(), is("fake.name@gmail.com"));
+    //token, keys and userinfo
+    assertThat(httpClient.getRequests(), is(3));
+
+    //the failed fetch isn't retried on every login
+    module.exchangeAuthorizationCode(module.templatesFor("https", "www.example.com", 443, "/app"), "code2");
+    assertThat(httpClient.getRequests(), is(5));
+  }
+
+  @Test
+  public void testGroupCacheSkipsLoginContextForKnownUser() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("javax.security.auth.login.LoginContext", "test-DomainLoginModule");
+    options.put("group_cache_size", "100");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    for (int i = 0; i < 3; i++) {
+      final Subject subject = new Subject();
+      module.authenticate(messageInfo(), requestWithSession(), mock(HttpServletResponse.class), subject, userInfo("1", "a@one.example.com"));
+      assertThat(groupNames(subject), is(Collections.singleton("one.example.com")));
+    }
+
+    assertThat(module.getGroupCache().getLoadCount(), is(1L));
+    assertThat(module.getGroupCache().getHitCount(), is(2L));
+  }
+
+  @Test
+  public void testReloadedGroupRulesApplyToCachedUser() throws Exception {
+    final File rulesFile = File.createTempFile("group-rules", ".txt");
+    try {
+      FileOutputStream out = new FileOutputStream(rulesFile);
+      out.write("one.example.com = staff\n".getBytes(HttpClient.UTF8));
+      out.close();
+      final Map<String, String> options = requiredOptions();
+      options.put("javax.security.auth.login.LoginContext", "test-DomainLoginModule");
+      options.put("group_cache_size", "100");
+      options.put("group_rules", rulesFile.getPath());
+      final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+      module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+      Subject subject = new Subject();
+      module.authenticate(messageInfo(), requestWithSession(), mock(HttpServletResponse.class), subject, userInfo("1", "a@one.example.com"));
+      assertThat(groupNames(subject), is((Set<String>) new HashSet<String>(Arrays.asList("staff", "one.example.com"))));
+
+      out = new FileOutputStream(rulesFile);
+      out.write("one.example.com = admins\n".getBytes(HttpClient.UTF8));
+      out.close();
+      rulesFile.setLastModified(rulesFile.lastModified() + 2000);
+      assertThat(module.getGroupMapper().reload(), is(true));
+
+      subject = new Subject();
+      module.authenticate(messageInfo(), requestWithSession(), mock(HttpServletResponse.class), subject, userInfo("1", "a@one.example.com"));
+      assertThat(groupNames(subject), is((Set<String>) new HashSet<String>(Arrays.asList("admins", "one.example.com"))));
+      assertThat(module.getGroupCache().getLoadCount(), is(1L));
+    } finally {
+      rulesFile.delete();
+    }
+  }
+
+  static String tokenJsonWithIdToken(final String email) throws Exception {
+    final String idToken = "eyJhbGciOiJSUzI1NiJ9."
+            + Base64Url.encode(("{\"sub\":\"1074968992519869407200\",\"email\":\"" + email + "\"}").getBytes("UTF-8")) + ".c2ln";
+    return "{\"access_token\":\"t\",\"expires_in\":60,\"id_token\":\"" + idToken + "\"}";
+  }
+
+  @Test
+  public void testParallelGroupsResolvedWhileUserInfoFetched() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("javax.security.auth.login.LoginContext", "test-DomainLoginModule");
+    options.put("parallel_groups", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final StubHttpClient httpClient = new StubHttpClient()
+            .respond("/o/oauth2/token", 200, tokenJsonWithIdToken("fake.name@gmail.com"))
+            .respond("/oauth2/v1/userinfo", 200, StubHttpClient.USERINFO_JSON);
+    module.setHttpClient(httpClient);
+
+    final HttpServletRequest request = callbackRequest("4/code");
+    final MessageInfo messageInfo = messageInfo();
+    when(messageInfo.getRequestMessage()).thenReturn(request);
+    when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+    final Subject subject = new Subject();
+    assertThat(module.validateRequest(messageInfo, subject, null), is(AuthStatus.SEND_CONTINUE));
+
+    assertThat(groupNames(subject), is(Collections.singleton("gmail.com")));
+    assertThat(httpClient.getRequests(), is(2));
+    assertThat(module.getMetrics().getParallelLookupCount(), is(1L));
+    assertThat(module.getMetrics().getLoginContextLatency().getCount(), is(1L));
+  }
+
+  @Test
+  public void testParallelGroupsFailurePropagated() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("javax.security.auth.login.LoginContext", "test-DomainLoginModule");
+    options.put("parallel_groups", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    module.setHttpClient(new StubHttpClient()
+            .respond("/o/oauth2/token", 200, tokenJsonWithIdToken("fake.name@example.invalid"))
+            .respond("/oauth2/v1/userinfo", 200, StubHttpClient.USERINFO_JSON));
+
+    final HttpServletRequest request = callbackRequest("4/code");
+    final MessageInfo messageInfo = messageInfo();
+    when(messageInfo.getRequestMessage()).thenReturn(request);
+    when(messageInfo.getResponseMessage()).thenReturn(mock(HttpServletResponse.class));
+    try {
+      module.validateRequest(messageInfo, new Subject(), null);
+      fail("expected AuthException");
+    } catch (javax.security.auth.message.AuthException ex) {
+      assertThat(ex.getMessage(), is("Unable to login with LoginContext"));
+    }
+    assertThat(module.getMetrics().getParallelLookupCount(), is(1L));
+  }
+
+  @Test
+  public void testIsOauthResponseMatchesCallbackPathExactly() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    final HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getContextPath()).thenReturn("/app");
+    when(request.getRequestURI()).thenReturn("/app/j_oauth_callback", "/app/j_oauth_callback;jsessionid=1",
+            "/app/secure/j_oauth_callback", "/app/j_oauth_callbacks", "/other/j_oauth_callback");
+
+    assertThat(module.isOauthResponse(request), is(true));
+    assertThat(module.isOauthResponse(request), is(true));
+    assertThat(module.isOauthResponse(request), is(false));
+    assertThat(module.isOauthResponse(request), is(false));
+    assertThat(module.isOauthResponse(request), is(false));
+  }
+
+  @Test
+  public void testSessionSnapshotAppliedToClientSubject() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("javax.security.auth.login.LoginContext", "test-DomainLoginModule");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+    final HttpServletRequest request = requestWithSession();
+    final HttpSession session = request.getSession();
+    final Subject subject = new Subject();
+    module.authenticate(messageInfo(), request, mock(HttpServletResponse.class), subject, userInfo("1", "a@one.example.com"));
+    final ArgumentCaptor<Object> snapshot = ArgumentCaptor.forClass(Object.class);
+    verify(session).setAttribute(anyString(), snapshot.capture());
+    when(session.getAttribute(anyString())).thenReturn(snapshot.getValue());
+
+    final Subject clientSubject = new Subject();
+    assertThat(module.handleMandatoryRequest(messageInfo(), request, mock(HttpServletResponse.class), clientSubject), is(AuthStatus.SUCCESS));
+
+    assertThat(clientSubject.getPrincipals(), is(subject.getPrincipals()));
+    assertThat(groupNames(clientSubject), is(Collections.singleton("one.example.com")));
+  }
+
+  @Test
+  public void testTemplatesReusedForSameHost() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    final OAuthTemplates first = module.templatesFor(callbackRequest(null));
+    final OAuthTemplates other = module.templatesFor("https", "other.example.com", 443, "/app");
+
+    assertThat(module.templatesFor(callbackRequest(null)), is(sameInstance(first)));
+    assertThat(module.templatesFor("https", "other.example.com", 443, "/app"), is(sameInstance(other)));
+    assertThat(other.getRedirectUri(), is("https://other.example.com:443/app/j_oauth_callback"));
+  }
+
+  @Test
+  public void testConcurrentAuthenticationsOnlyReceiveTheirOwnGroups() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("javax.security.auth.login.LoginContext", "test-DomainLoginModule");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    final int users = 200;
+    final List<Callable<Subject>> logins = new ArrayList<Callable<Subject>>();
+    final CountDownLatch start = new CountDownLatch(1);
+    for (int i = 0; i < users; i++) {
+      final GoogleUserInfo googleUserInfo = userInfo(Integer.toString(i), "user" + i + "@domain" + i + ".example.com");
+      final MessageInfo messageInfo = messageInfo();
+      final HttpServletRequest request = requestWithSession();
+      final HttpServletResponse response = mock(HttpServletResponse.class);
+      logins.add(new Callable<Subject>() {
+        @Override
+        public Subject call() throws Exception {
+          final Subject subject = new Subject();
+          start.await();
+          module.authenticate(messageInfo, request, response, subject, googleUserInfo);
+          return subject;
+        }
+      });
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(32);
+    try {
+      final List<Future<Subject>> futures = new ArrayList<Future<Subject>>();
+      for (final Callable<Subject> login : logins) {
+        futures.add(executor.submit(login));
+      }
+      start.countDown();
+      for (int i = 0; i < users; i++) {
+        final Subject subject = futures.get(i).get(30, TimeUnit.SECONDS);
+        final Set<GoogleOAuthPrincipal> callers = subject.getPrincipals(GoogleOAuthPrincipal.class);
+        assertThat(callers.size(), is(1));
+        assertThat(callers.iterator().next().getName(), is("user" + i + "@domain" + i + ".example.com"));
+        assertThat(groupNames(subject), is(Collections.singleton("domain" + i + ".example.com")));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testLoginWithLoginContextUsesNewSubjectEachTime() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("javax.security.auth.login.LoginContext", "test-DomainLoginModule");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    final Subject first = module.loginWithLoginContext(userInfo("1", "a@one.example.com"));
+    final Subject second = module.loginWithLoginContext(userInfo("2", "b@two.example.com"));
+
+    assertThat(first, is(not(sameInstance(second))));
+    assertThat(groupNames(first), is(Collections.singleton("one.example.com")));
+    assertThat(groupNames(second), is(Collections.singleton("two.example.com")));
+  }
+
+  @Test
+  public void testMissingLoginContextIgnored() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("javax.security.auth.login.LoginContext", "test-NotConfigured");
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    final Subject subject = module.loginWithLoginContext(userInfo("1", "a@one.example.com"));
+
+    assertThat(subject.getPrincipals().isEmpty(), is(true));
+  }
+
+  @Test
+  public void testCookieModeRestoresAuthenticationWithoutSession() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("default_groups", "users");
+    options.put("state_mode", "cookie");
+    options.put("cookie_keys", SignedCookieCodecTest.KEY_1);
+    options.put("cookie_encrypt", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    final HttpServletRequest loginRequest = mock(HttpServletRequest.class);
+    final HttpServletResponse loginResponse = mock(HttpServletResponse.class);
+    module.authenticate(messageInfo(), loginRequest, loginResponse, new Subject(), userInfo("1", "a@one.example.com"));
+    final ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(loginResponse).addCookie(cookie.capture());
+    assertThat(cookie.getValue().getName(), is("GOOGLE_OAUTH"));
+    assertThat(cookie.getValue().isHttpOnly(), is(true));
+    verify(loginRequest, never()).getSession();
+    verify(loginRequest, never()).getSession(anyBoolean());
+
+    final HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getCookies()).thenReturn(new Cookie[]{cookie.getValue()});
+    final MessageInfo messageInfo = messageInfo();
+    final Subject subject = new Subject();
+    assertThat(module.handleMandatoryRequest(messageInfo, request, mock(HttpServletResponse.class), subject), is(AuthStatus.SUCCESS));
+    assertThat(subject.getPrincipals(GoogleOAuthPrincipal.class).iterator().next().getName(), is("a@one.example.com"));
+    assertThat(groupNames(subject), is(Collections.singleton("users")));
+    verify(request, never()).getSession();
+    verify(request, never()).getSession(anyBoolean());
+  }
+
+  @Test
+  public void testOffHeapModeKeepsAuthenticationOutOfSession() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("default_groups", "users");
+    options.put("state_mode", "offheap");
+    options.put("offheap_capacity", "1000");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    final HttpServletRequest protectedRequest = mock(HttpServletRequest.class);
+    when(protectedRequest.getRequestURI()).thenReturn("/app/protected");
+    final HttpServletResponse redirectResponse = mock(HttpServletResponse.class);
+    assertThat(module.handleMandatoryRequest(messageInfo(), protectedRequest, redirectResponse, new Subject()), is(AuthStatus.SEND_CONTINUE));
+    final ArgumentCaptor<Cookie> pathCookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(redirectResponse).addCookie(pathCookie.capture());
+
+    final HttpServletRequest loginRequest = mock(HttpServletRequest.class);
+    when(loginRequest.getCookies()).thenReturn(new Cookie[]{pathCookie.getValue()});
+    final HttpServletResponse loginResponse = mock(HttpServletResponse.class);
+    module.authenticate(messageInfo(), loginRequest, loginResponse, new Subject(), userInfo("1", "a@one.example.com"));
+    verify(loginResponse).sendRedirect("/app/protected");
+    final ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(loginResponse).addCookie(cookie.capture());
+    assertThat(cookie.getValue().getName(), is("GOOGLE_OAUTH"));
+    assertThat(cookie.getValue().getValue(), is(not(pathCookie.getValue().getValue())));
+
+    final HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getCookies()).thenReturn(new Cookie[]{cookie.getValue()});
+    final Subject subject = new Subject();
+    assertThat(module.handleMandatoryRequest(messageInfo(), request, mock(HttpServletResponse.class), subject), is(AuthStatus.SUCCESS));
+    assertThat(subject.getPrincipals(GoogleOAuthPrincipal.class).iterator().next().getName(), is("a@one.example.com"));
+    assertThat(groupNames(subject), is(Collections.singleton("users")));
+    for (final HttpServletRequest each : Arrays.asList(protectedRequest, loginRequest, request)) {
+      verify(each, never()).getSession();
+      verify(each, never()).getSession(true);
+    }
+  }
+
+  @Test
+  public void testOffHeapLogoutEndsAuthentication() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("state_mode", "offheap");
+    options.put("offheap_capacity", "1000");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    final HttpServletResponse loginResponse = mock(HttpServletResponse.class);
+    module.authenticate(messageInfo(), mock(HttpServletRequest.class), loginResponse, new Subject(), userInfo("1", "a@one.example.com"));
+    final ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(loginResponse).addCookie(cookie.capture());
+
+    final HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn("/app/protected");
+    when(request.getCookies()).thenReturn(new Cookie[]{cookie.getValue()});
+    final Subject subject = new Subject();
+    assertThat(module.handleMandatoryRequest(messageInfo(), request, mock(HttpServletResponse.class), subject), is(AuthStatus.SUCCESS));
+
+    final HttpServletResponse logoutResponse = mock(HttpServletResponse.class);
+    final MessageInfo logout = messageInfo();
+    when(logout.getRequestMessage()).thenReturn(request);
+    when(logout.getResponseMessage()).thenReturn(logoutResponse);
+    module.cleanSubject(logout, subject);
+    final ArgumentCaptor<Cookie> expired = ArgumentCaptor.forClass(Cookie.class);
+    verify(logoutResponse).addCookie(expired.capture());
+    assertThat(expired.getValue().getName(), is("GOOGLE_OAUTH"));
+    assertThat(expired.getValue().getMaxAge(), is(0));
+
+    //the logged out client still sends the cookie it had
+    assertThat(module.handleMandatoryRequest(messageInfo(), request, mock(HttpServletResponse.class), new Subject()), is(AuthStatus.SEND_CONTINUE));
+  }
+
+  @Test
+  public void testCookieLogoutExpiresCookie() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("state_mode", "cookie");
+    options.put("cookie_keys", SignedCookieCodecTest.KEY_1);
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    final HttpServletResponse loginResponse = mock(HttpServletResponse.class);
+    module.authenticate(messageInfo(), mock(HttpServletRequest.class), loginResponse, new Subject(), userInfo("1", "a@one.example.com"));
+    final ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(loginResponse).addCookie(cookie.capture());
+
+    final HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRequestURI()).thenReturn("/app/protected");
+    when(request.getCookies()).thenReturn(new Cookie[]{cookie.getValue()});
+    final HttpServletResponse logoutResponse = mock(HttpServletResponse.class);
+    final MessageInfo logout = messageInfo();
+    when(logout.getRequestMessage()).thenReturn(request);
+    when(logout.getResponseMessage()).thenReturn(logoutResponse);
+    module.cleanSubject(logout, new Subject());
+    final ArgumentCaptor<Cookie> expired = ArgumentCaptor.forClass(Cookie.class);
+    verify(logoutResponse).addCookie(expired.capture());
+    assertThat(expired.getValue().getName(), is("GOOGLE_OAUTH"));
+    assertThat(expired.getValue().getMaxAge(), is(0));
+
+    //the browser sends the expired cookie's value until it drops it
+    final HttpServletRequest next = mock(HttpServletRequest.class);
+    when(next.getRequestURI()).thenReturn("/app/protected");
+    when(next.getCookies()).thenReturn(new Cookie[]{expired.getValue()});
+    assertThat(module.handleMandatoryRequest(messageInfo(), next, mock(HttpServletResponse.class), new Subject()), is(AuthStatus.SEND_CONTINUE));
+  }
+
+  @Test(expected = javax.security.auth.message.AuthException.class)
+  public void testUnknownStateStoreClass() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("state_store_class", "com.example.MissingStateStore");
+    new GoogleOAuthServerAuthModule().initialize(null, null, new ContainerCallbackHandler(), options);
+  }
+
+  @Test
+  public void testWarmupConnectsAndReportsReady() throws Exception {
+    final FakeGoogleServer google = FakeGoogleServer.start();
+    try {
+      final Map<String, String> options = requiredOptions();
+      options.put("ignore_missing_login_context", "true");
+      options.put("default_groups", "users");
+      options.put("warmup", "true");
+      options.put("warmup_iterations", "200");
+      options.putAll(google.endpointOptions());
+      final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+      module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+      assertThat(module.getWarmup().await(10, TimeUnit.SECONDS), is(true));
+      assertThat(module.getMetrics().getWarmupState(), is("READY"));
+      //the three endpoints share one host
+      assertThat(google.getRequestCount(), is(1L));
+    } finally {
+      google.stop();
+    }
+  }
+
+  @Test
+  public void testGroupRulesFile() throws Exception {
+    final File rulesFile = File.createTempFile("group-rules", ".txt");
+    try {
+      final FileOutputStream out = new FileOutputStream(rulesFile);
+      out.write("example.com = staff\n*.example.com = subsidiaries\nadmin-*@example.com = admins\n".getBytes(HttpClient.UTF8));
+      out.close();
+      final Map<String, String> options = requiredOptions();
+      options.put("ignore_missing_login_context", "true");
+      options.put("default_groups", "users");
+      options.put("group_rules", rulesFile.getPath());
+      final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+      module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+      final List<Principal> principals = Arrays.<Principal>asList(new SimplePrincipal("staff"), new SimplePrincipal("vpn"));
+      assertThat(module.buildGroupNames(userInfo("1", "admin-bob@example.com"), principals), is(Arrays.asList("users", "staff", "admins", "vpn")));
+      assertThat(module.buildGroupNames(userInfo("2", "bob@eu.example.com"), Collections.<Principal>emptyList()), is(Arrays.asList("users", "subsidiaries")));
+      assertThat(module.getMetrics().getGroupRuleCount(), is(4));
+    } finally {
+      rulesFile.delete();
+    }
+  }
+
+  @Test(expected = javax.security.auth.message.AuthException.class)
+  public void testMissingGroupRulesFile() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("group_rules", "/nonexistent/group-rules.txt");
+    new GoogleOAuthServerAuthModule().initialize(null, null, new ContainerCallbackHandler(), options);
+  }
+
+  @Test
+  public void testCookieModeRedirectsOnTamperedCookie() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    options.put("state_mode", "cookie");
+    options.put("cookie_keys", SignedCookieCodecTest.KEY_1);
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new ContainerCallbackHandler(), options);
+
+    final HttpServletRequest request = callbackRequest(null);
+    when(request.getRequestURI()).thenReturn("/app/secure");
+    when(request.getCookies()).thenReturn(new Cookie[]{new Cookie("GOOGLE_OAUTH", "k1.AAAA.AAAA")});
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+
+    assertThat(module.handleMandatoryRequest(messageInfo(), request, response, new Subject()), is(AuthStatus.SEND_CONTINUE));
+    verify(response).sendRedirect(org.mockito.Matchers.startsWith("https://accounts.google.com/o/oauth2/auth"));
+  }
+
+  @Test(expected = javax.security.auth.message.AuthException.class)
+  public void testCookieModeRequiresKeys() throws Exception {
+    final Map<String, String> options = requiredOptions();
+    options.put("state_mode", "cookie");
+    new GoogleOAuthServerAuthModule().initialize(null, null, new ContainerCallbackHandler(), options);
+  }
+}
@@ -0,0 +1,209 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.message.AuthException;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link GroupCache}.
+ *
+ * @author pdgreen
+ */
+public class GroupCacheTest {
+
+  private final AtomicInteger loads = new AtomicInteger();
+  private volatile List<String> groups = Arrays.asList("users");
+  private volatile boolean fail;
+  private volatile RuntimeException failWith;
+  private volatile CountDownLatch release = new CountDownLatch(0);
+  private volatile CountDownLatch loaded = new CountDownLatch(0);
+  private long now = 1000L;
+  private GroupCache cache;
+
+  @Before
+  public void createCache() {
+    cache = new GroupCache(10, 60, 30, new GroupCache.GroupLoader() {
+      @Override
+      public List<String> load(final GoogleUserInfo googleUserInfo) throws AuthException {
+        loads.incrementAndGet();
+        try {
+          if (fail) {
+            throw new AuthException("directory down");
+          } else if (failWith != null) {
+            throw failWith;
+          }
+          release.await();
+          return groups;
+        } catch (InterruptedException ex) {
+          throw new AuthException(ex.toString());
+        } finally {
+          loaded.countDown();
+        }
+      }
+    }) {
+      @Override
+      long currentTimeNanos() {
+        return now;
+      }
+    };
+  }
+
+  @After
+  public void shutdownCache() {
+    cache.shutdown();
+  }
+
+  static GoogleUserInfo user(final String email) {
+    return new GoogleUserInfo(null, email, true, null, null, null, null, null, null, null);
+  }
+
+  @Test
+  public void testHitSkipsLoader() throws Exception {
+    assertThat(cache.get(user("a@example.com")), is(Arrays.asList("users")));
+    assertThat(cache.get(user("a@example.com")), is(Arrays.asList("users")));
+    assertThat(cache.get(user("b@example.com")), is(Arrays.asList("users")));
+
+    assertThat(loads.get(), is(2));
+    assertThat(cache.getHitCount(), is(1L));
+    assertThat(cache.getMissCount(), is(2L));
+    assertThat(cache.getHitRate(), is(1.0 / 3));
+    assertThat(cache.getLoadCount(), is(2L));
+  }
+
+  @Test
+  public void testStaleEntryReturnedWhileRefreshing() throws Exception {
+    cache.get(user("a@example.com"));
+    groups = Arrays.asList("admins");
+    loaded = new CountDownLatch(1);
+    now += TimeUnit.SECONDS.toNanos(31);
+
+    assertThat(cache.get(user("a@example.com")), is(Arrays.asList("users")));
+    assertThat(loaded.await(5, TimeUnit.SECONDS), is(true));
+    for (int i = 0; i < 100 && cache.getRefreshCount() == 0; i++) {
+      Thread.sleep(10);
+    }
+
+    assertThat(cache.get(user("a@example.com")), is(Arrays.asList("admins")));
+    assertThat(loads.get(), is(2));
+    assertThat(cache.getRefreshCount(), is(1L));
+  }
+
+  @Test
+  public void testRefreshFailingWithRuntimeExceptionRetried() throws Exception {
+    cache.get(user("a@example.com"));
+    failWith = new IllegalStateException("directory client broken");
+    loaded = new CountDownLatch(1);
+    now += TimeUnit.SECONDS.toNanos(31);
+
+    assertThat(cache.get(user("a@example.com")), is(Arrays.asList("users")));
+    assertThat(loaded.await(5, TimeUnit.SECONDS), is(true));
+    failWith = null;
+    groups = Arrays.asList("admins");
+    //the failed refresh doesn't keep the entry from being refreshed again
+    for (int i = 0; i < 100 && loads.get() < 3; i++) {
+      cache.get(user("a@example.com"));
+      Thread.sleep(10);
+    }
+    for (int i = 0; i < 100 && cache.getRefreshCount() == 0; i++) {
+      Thread.sleep(10);
+    }
+
+    assertThat(loads.get(), is(3));
+    assertThat(cache.getRefreshCount(), is(1L));
+    assertThat(cache.getLoadFailureCount(), is(1L));
+    assertThat(cache.get(user("a@example.com")), is(Arrays.asList("admins")));
+  }
+
+  @Test
+  public void testConcurrentMissesShareOneLoad() throws Exception {
+    release = new CountDownLatch(1);
+    loaded = new CountDownLatch(1);
+    final List<String>[] results = new List[4];
+    final Thread[] threads = new Thread[results.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            results[index] = cache.get(user("a@example.com"));
+          } catch (AuthException ex) {
+            throw new IllegalStateException(ex);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    //all but the loading thread wait for its result
+    for (int i = 0; i < 500 && waiting(threads) < threads.length; i++) {
+      Thread.sleep(10);
+    }
+    release.countDown();
+    for (final Thread thread : threads) {
+      thread.join(5000);
+    }
+
+    assertThat(loads.get(), is(1));
+    for (final List<String> result : results) {
+      assertThat(result, is(Arrays.asList("users")));
+    }
+    assertThat(cache.getMissCount(), is(4L));
+    assertThat(cache.get(user("a@example.com")), is(Arrays.asList("users")));
+    assertThat(loads.get(), is(1));
+  }
+
+  private static int waiting(final Thread[] threads) {
+    int waiting = 0;
+    for (final Thread thread : threads) {
+      if (thread.getState() == Thread.State.WAITING) {
+        waiting++;
+      }
+    }
+    return waiting;
+  }
+
+  @Test
+  public void testExpiredEntryLoadedAgain() throws Exception {
+    cache.get(user("a@example.com"));
+    now += TimeUnit.SECONDS.toNanos(61);
+
+    cache.get(user("a@example.com"));
+
+    assertThat(loads.get(), is(2));
+  }
+
+  @Test
+  public void testLoadFailureNotCached() throws Exception {
+    fail = true;
+    try {
+      cache.get(user("a@example.com"));
+      fail("expected AuthException");
+    } catch (AuthException ex) {
+      assertThat(ex.getMessage(), is("directory down"));
+    }
+    fail = false;
+
+    assertThat(cache.get(user("a@example.com")), is(Arrays.asList("users")));
+    assertThat(cache.getLoadFailureCount(), is(1L));
+    assertThat(cache.getLoadCount(), is(2L));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    cache.get(user("a@example.com"));
+    groups = Collections.<String>emptyList();
+
+    cache.invalidate("a@example.com");
+
+    assertThat(cache.get(user("a@example.com")).isEmpty(), is(true));
+    assertThat(loads.get(), is(2));
+  }
+}
@@ -0,0 +1,80 @@
+package com.idmworks.security.google;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link GroupMapper}.
+ *
+ * @author pdgreen
+ */
+public class GroupMapperTest {
+
+  private File rulesFile;
+
+  @Before
+  public void createRulesFile() throws IOException {
+    rulesFile = File.createTempFile("group-rules", ".txt");
+    write("example.com = staff\n", 1000);
+  }
+
+  @After
+  public void deleteRulesFile() {
+    rulesFile.delete();
+  }
+
+  private void write(final String rules, final long modified) throws IOException {
+    final FileOutputStream out = new FileOutputStream(rulesFile);
+    try {
+      out.write(rules.getBytes(HttpClient.UTF8));
+    } finally {
+      out.close();
+    }
+    rulesFile.setLastModified(modified);
+  }
+
+  private static List<String> groups(final GroupMapper mapper, final String email) {
+    final List<String> groups = new ArrayList<String>();
+    mapper.addGroups(email, groups);
+    return groups;
+  }
+
+  @Test
+  public void testReloadReplacesRules() throws IOException {
+    final GroupMapper mapper = new GroupMapper("users", false, rulesFile);
+    assertThat(groups(mapper, "bob@example.com"), is(Arrays.asList("users", "staff")));
+    assertThat(mapper.reload(), is(false));
+
+    write("example.com = staff, vpn\n", 2000);
+    assertThat(mapper.reload(), is(true));
+    assertThat(groups(mapper, "bob@example.com"), is(Arrays.asList("users", "staff", "vpn")));
+    assertThat(mapper.getReloadCount(), is(1L));
+  }
+
+  @Test
+  public void testInvalidRulesKeepPreviousRules() throws IOException {
+    final GroupMapper mapper = new GroupMapper("", false, rulesFile);
+    write("example.com\n", 2000);
+    assertThat(mapper.reload(), is(false));
+    assertThat(groups(mapper, "bob@example.com"), is(Arrays.asList("staff")));
+    //not retried until the file changes again
+    assertThat(mapper.reload(), is(false));
+
+    write("example.com = vpn\n", 3000);
+    assertThat(mapper.reload(), is(true));
+    assertThat(groups(mapper, "bob@example.com"), is(Arrays.asList("vpn")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidRulesRejectedAtStart() throws IOException {
+    write("example.com\n", 2000);
+    new GroupMapper("", false, rulesFile);
+  }
+}
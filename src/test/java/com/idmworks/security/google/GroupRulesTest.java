@@ -0,0 +1,114 @@
+package com.idmworks.security.google;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link GroupRules}.
+ *
+ * @author pdgreen
+ */
+public class GroupRulesTest {
+
+  private static final String RULES = "# admins\n"
+          + "alice@example.com = admins, staff\n"
+          + "\n"
+          + "example.com = staff\n"
+          + "@example.org = partners\n"
+          + "*.example.com = subsidiaries\n"
+          + "admin-*@example.org = admins\n"
+          + "*@*.test = testers\n"
+          + "build?@example.com = robots\n"
+          + "ops-* = ops\n";
+
+  private static List<String> groups(final GroupRules rules, final String email) {
+    final Set<String> groups = new LinkedHashSet<String>();
+    rules.addGroups(email, groups);
+    return new ArrayList<String>(groups);
+  }
+
+  private static GroupRules rules(final String text) throws IOException {
+    return GroupRules.compile("", false, new StringReader(text));
+  }
+
+  @Test
+  public void testEmailAndDomain() throws IOException {
+    final GroupRules rules = rules(RULES);
+    assertThat(groups(rules, "alice@example.com"), is(Arrays.asList("admins", "staff")));
+    assertThat(groups(rules, "bob@example.com"), is(Arrays.asList("staff")));
+    assertThat(groups(rules, "bob@example.org"), is(Arrays.asList("partners")));
+    assertThat(groups(rules, "bob@example.net").isEmpty(), is(true));
+  }
+
+  @Test
+  public void testSubdomainSuffix() throws IOException {
+    final GroupRules rules = rules(RULES);
+    assertThat(groups(rules, "bob@eu.example.com"), is(Arrays.asList("subsidiaries")));
+    assertThat(groups(rules, "bob@a.b.example.com"), is(Arrays.asList("subsidiaries")));
+    assertThat(groups(rules, "bob@notexample.com").isEmpty(), is(true));
+  }
+
+  @Test
+  public void testGlobs() throws IOException {
+    final GroupRules rules = rules(RULES);
+    assertThat(groups(rules, "admin-bob@example.org"), is(Arrays.asList("partners", "admins")));
+    assertThat(groups(rules, "bob@qa.test"), is(Arrays.asList("testers")));
+    assertThat(groups(rules, "bob@test").isEmpty(), is(true));
+    assertThat(groups(rules, "build1@example.com"), is(Arrays.asList("staff", "robots")));
+    assertThat(groups(rules, "build12@example.com"), is(Arrays.asList("staff")));
+    assertThat(groups(rules, "ops-bob@example.net"), is(Arrays.asList("ops")));
+  }
+
+  @Test
+  public void testCaseInsensitive() throws IOException {
+    final GroupRules rules = rules("Alice@Example.COM = admins\n*.EXAMPLE.com = subsidiaries\n");
+    assertThat(groups(rules, "ALICE@example.com"), is(Arrays.asList("admins")));
+    assertThat(groups(rules, "bob@EU.Example.Com"), is(Arrays.asList("subsidiaries")));
+  }
+
+  @Test
+  public void testDefaultGroupsAndDomainAsGroup() throws IOException {
+    final GroupRules rules = GroupRules.compile("users, employees", true, new StringReader("example.com = staff\n* = everyone\n"));
+    assertThat(groups(rules, "bob@Example.com"), is(Arrays.asList("users", "employees", "everyone", "Example.com", "staff")));
+    assertThat(GroupRules.compile("users", false, null).getRuleCount(), is(1));
+  }
+
+  @Test
+  public void testRepeatedPatternsMerged() throws IOException {
+    final GroupRules rules = rules("example.com = staff\nexample.com = staff, vpn\n");
+    assertThat(groups(rules, "bob@example.com"), is(Arrays.asList("staff", "vpn")));
+    assertThat(rules.getRuleCount(), is(1));
+  }
+
+  @Test
+  public void testLookupIndependentOfRuleCount() throws IOException {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      text.append("user").append(i).append("@example.com = g").append(i).append('\n');
+      text.append("*.d").append(i).append(".example.net = s").append(i).append('\n');
+    }
+    final GroupRules rules = rules(text.toString());
+    assertThat(rules.getRuleCount(), is(40000));
+    assertThat(groups(rules, "user19999@example.com"), is(Arrays.asList("g19999")));
+    assertThat(groups(rules, "bob@x.d123.example.net"), is(Arrays.asList("s123")));
+    assertThat(groups(rules, "bob@d123.example.net").isEmpty(), is(true));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingEquals() throws IOException {
+    rules("example.com staff\n");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTwoAtSigns() throws IOException {
+    rules("a@b@example.com = staff\n");
+  }
+}
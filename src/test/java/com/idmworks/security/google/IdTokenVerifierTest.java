@@ -0,0 +1,222 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link IdTokenVerifier}, signing id_tokens with locally generated RSA keys.
+ *
+ * @author pdgreen
+ */
+public class IdTokenVerifierTest {
+
+  static final String CLIENT_ID = "test-client-id";
+  static final String KEYS_PATH = "/oauth2/v3/certs";
+  private static KeyPair key1;
+  private static KeyPair key2;
+  private StubHttpClient httpClient;
+  private IdTokenVerifier verifier;
+  private long now;
+  private long keyWait = IdTokenVerifier.KEY_WAIT_MILLIS;
+
+  @BeforeClass
+  public static void generateKeys() throws Exception {
+    final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    key1 = generator.generateKeyPair();
+    key2 = generator.generateKeyPair();
+  }
+
+  @Before
+  public void createVerifier() throws Exception {
+    httpClient = new StubHttpClient().respond(KEYS_PATH, 200, jwks("k1", key1));
+    now = System.currentTimeMillis();
+    verifier = new IdTokenVerifier(httpClient, new URI(GoogleApiUtils.ID_TOKEN_KEYS_URI), CLIENT_ID) {
+      @Override
+      long keyWaitMillis() {
+        return keyWait;
+      }
+
+      @Override
+      long currentTimeMillis() {
+        return now;
+      }
+    };
+  }
+
+  static String unsigned(final BigInteger value) {
+    final byte[] bytes = value.toByteArray();
+    return Base64Url.encode(bytes[0] == 0 ? Arrays.copyOfRange(bytes, 1, bytes.length) : bytes);
+  }
+
+  static String jwks(final String kid, final KeyPair keyPair) {
+    final RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+    return "{\"keys\":[{\"kty\":\"RSA\",\"alg\":\"RS256\",\"use\":\"sig\",\"kid\":\"" + kid + "\",\"n\":\""
+            + unsigned(publicKey.getModulus()) + "\",\"e\":\"" + unsigned(publicKey.getPublicExponent()) + "\"}]}";
+  }
+
+  static String claims(final String aud, final long exp) {
+    return "{\"iss\":\"https://accounts.google.com\",\"aud\":\"" + aud + "\",\"sub\":\"1074968992519869407200\","
+            + "\"email\":\"fake.name@gmail.com\",\"email_verified\":true,\"name\":\"Fake Name\",\"exp\":" + exp + "}";
+  }
+
+  static String validClaims() {
+    return claims(CLIENT_ID, System.currentTimeMillis() / 1000L + 3600L);
+  }
+
+  static String idToken(final String kid, final PrivateKey privateKey, final String claims) throws Exception {
+    final String signed = Base64Url.encode(("{\"alg\":\"RS256\",\"kid\":\"" + kid + "\"}").getBytes(HttpClient.UTF8))
+            + "." + Base64Url.encode(claims.getBytes(HttpClient.UTF8));
+    final Signature signature = Signature.getInstance("SHA256withRSA");
+    signature.initSign(privateKey);
+    signature.update(signed.getBytes(HttpClient.UTF8));
+    return signed + "." + Base64Url.encode(signature.sign());
+  }
+
+  @Test
+  public void testValidToken() throws Exception {
+    final GoogleUserInfo googleUserInfo = verifier.verify(idToken("k1", key1.getPrivate(), validClaims()));
+
+    assertThat(googleUserInfo.getId(), is("1074968992519869407200"));
+    assertThat(googleUserInfo.getEmail(), is("fake.name@gmail.com"));
+    assertThat(googleUserInfo.isVerifiedEmail(), is(true));
+    assertThat(googleUserInfo.getName(), is("Fake Name"));
+    assertThat(httpClient.getRequests(), is(1));
+
+    verifier.verify(idToken("k1", key1.getPrivate(), validClaims()));
+    assertThat(httpClient.getRequests(), is(1));
+  }
+
+  @Test
+  public void testWrongKeyRejected() throws Exception {
+    assertThat(verifier.verify(idToken("k1", key2.getPrivate(), validClaims())), is(nullValue()));
+  }
+
+  @Test
+  public void testTamperedClaimsRejected() throws Exception {
+    final String idToken = idToken("k1", key1.getPrivate(), validClaims());
+    final String[] parts = idToken.split("\\.");
+    final String tampered = parts[0] + "." + Base64Url.encode(validClaims().replace("fake.name", "other.name").getBytes(HttpClient.UTF8)) + "." + parts[2];
+
+    assertThat(verifier.verify(tampered), is(nullValue()));
+  }
+
+  @Test
+  public void testWrongAudienceRejected() throws Exception {
+    final String claims = claims("other-client-id", System.currentTimeMillis() / 1000L + 3600L);
+
+    assertThat(verifier.verify(idToken("k1", key1.getPrivate(), claims)), is(nullValue()));
+  }
+
+  @Test
+  public void testExpiredRejected() throws Exception {
+    final String claims = claims(CLIENT_ID, System.currentTimeMillis() / 1000L - 3600L);
+
+    assertThat(verifier.verify(idToken("k1", key1.getPrivate(), claims)), is(nullValue()));
+  }
+
+  @Test
+  public void testExpiresByVerifierClock() throws Exception {
+    final String idToken = idToken("k1", key1.getPrivate(), claims(CLIENT_ID, now / 1000L + 60L));
+    assertThat(verifier.verify(idToken), is(notNullValue()));
+
+    now += TimeUnit.SECONDS.toMillis(60) + IdTokenVerifier.CLOCK_SKEW_MILLIS + 1000L;
+    assertThat(verifier.verify(idToken), is(nullValue()));
+  }
+
+  @Test
+  public void testMalformedRejected() throws Exception {
+    assertThat(verifier.verify("not-a-jwt"), is(nullValue()));
+    assertThat(verifier.verify("a.b.c"), is(nullValue()));
+  }
+
+  @Test
+  public void testUnknownKidRefreshesKeys() throws Exception {
+    assertThat(verifier.refreshKeys(), is(true));
+    httpClient.respond(KEYS_PATH, 200, jwks("k2", key2));
+    now += IdTokenVerifier.MIN_REFRESH_INTERVAL_MILLIS;
+
+    final GoogleUserInfo googleUserInfo = verifier.verify(idToken("k2", key2.getPrivate(), validClaims()));
+
+    assertThat(googleUserInfo, is(notNullValue()));
+    assertThat(httpClient.getRequests(), is(2));
+  }
+
+  @Test
+  public void testUnknownKidRefreshIsRateLimited() throws Exception {
+    assertThat(verifier.verify(idToken("bogus", key1.getPrivate(), validClaims())), is(nullValue()));
+    assertThat(verifier.verify(idToken("bogus", key1.getPrivate(), validClaims())), is(nullValue()));
+
+    assertThat(httpClient.getRequests(), is(1));
+  }
+
+  @Test
+  public void testFailedRefreshKeepsKeys() throws Exception {
+    assertThat(verifier.refreshKeys(), is(true));
+    httpClient.respond(KEYS_PATH, 500, "");
+
+    assertThat(verifier.refreshKeys(), is(false));
+    assertThat(verifier.verify(idToken("k1", key1.getPrivate(), validClaims())), is(notNullValue()));
+  }
+
+  @Test
+  public void testUnreachableKeysRefreshIsRateLimited() throws Exception {
+    final StubHttpClient unreachable = new StubHttpClient() {
+      @Override
+      public Response GET(final URI destination) {
+        handle(destination);
+        throw new IllegalStateException("connection pool exhausted");
+      }
+    };
+    verifier.setHttpClient(unreachable);
+
+    assertThat(verifier.hasKeys(), is(false));
+    assertThat(verifier.verify(idToken("k1", key1.getPrivate(), validClaims())), is(nullValue()));
+    assertThat(unreachable.getRequests(), is(1));
+
+    now += IdTokenVerifier.MIN_REFRESH_INTERVAL_MILLIS;
+    verifier.setHttpClient(httpClient);
+    assertThat(verifier.hasKeys(), is(true));
+  }
+
+  @Test(timeout = 10000)
+  public void testSlowKeysRefreshDoesNotHoldRequests() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final StubHttpClient slow = new StubHttpClient() {
+      @Override
+      public Response GET(final URI destination) {
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        return httpClient.GET(destination);
+      }
+    };
+    verifier.setHttpClient(slow);
+    keyWait = 100L;
+    try {
+      assertThat(verifier.hasKeys(), is(false));
+      assertThat(verifier.verify(idToken("k1", key1.getPrivate(), validClaims())), is(nullValue()));
+      assertThat(verifier.hasKeys(), is(false));
+    } finally {
+      release.countDown();
+    }
+
+    keyWait = IdTokenVerifier.KEY_WAIT_MILLIS;
+    assertThat(verifier.hasKeys(), is(true));
+    assertThat(httpClient.getRequests(), is(1));
+  }
+}
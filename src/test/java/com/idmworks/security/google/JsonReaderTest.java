@@ -0,0 +1,153 @@
+package com.idmworks.security.google;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link JsonReader}.
+ *
+ * @author pdgreen
+ */
+public class JsonReaderTest {
+
+  private static JsonReader reader(final String json) {
+    return new JsonReader(new ByteArrayInputStream(json.getBytes(Charset.forName("UTF-8"))));
+  }
+
+  private static long readLong(final String json) throws IOException {
+    final JsonReader reader = reader("{\"value\":" + json + "}");
+    reader.beginObject();
+    assertThat(reader.nextName(), is("value"));
+    return reader.nextLong();
+  }
+
+  private static void assertMalformedLong(final String json) {
+    try {
+      readLong(json);
+      fail("expected IOException for " + json);
+    } catch (IOException ex) {
+      assertThat(ex.getMessage(), containsString(" at byte "));
+    }
+  }
+
+  @Test
+  public void testNextLong() throws IOException {
+    assertThat(readLong("3920"), is(3920L));
+    assertThat(readLong("-1"), is(-1L));
+    assertThat(readLong("\"1700000000\""), is(1700000000L));
+    assertThat(readLong("3599.9"), is(3599L));
+    assertThat(readLong("1e3"), is(1000L));
+  }
+
+  @Test
+  public void testNextLongRejectsBoolean() {
+    assertMalformedLong("true");
+    assertMalformedLong("false");
+  }
+
+  @Test
+  public void testNextLongRejectsNonNumericString() {
+    assertMalformedLong("\"soon\"");
+    assertMalformedLong("\"\"");
+    assertMalformedLong("\"NaN\"");
+    assertMalformedLong("\"Infinity\"");
+    assertMalformedLong("\"0x10\"");
+    assertMalformedLong("\"10d\"");
+  }
+
+  @Test
+  public void testNextLongRejectsMalformedNumber() {
+    assertMalformedLong("1-2");
+    assertMalformedLong("1e");
+    assertMalformedLong("--1");
+  }
+
+  @Test
+  public void testNextLongRejectsOutOfRange() {
+    assertMalformedLong("1e19");
+    assertMalformedLong("\"-1e300\"");
+  }
+
+  @Test
+  public void testNextLongRejectsNullAndContainers() {
+    assertMalformedLong("null");
+    assertMalformedLong("{}");
+    assertMalformedLong("[1]");
+  }
+
+  @Test
+  public void testMalformedNumberRejectedAsString() throws IOException {
+    for (final String number : new String[]{"--1e", "01", "1.", "1e+", "-", "1.2.3", "1e5e5"}) {
+      final JsonReader reader = reader("[" + number + "]");
+      reader.beginArray();
+      try {
+        reader.nextString();
+        fail("expected IOException for " + number);
+      } catch (IOException ex) {
+        assertThat(ex.getMessage(), containsString("Malformed number"));
+      }
+    }
+  }
+
+  @Test
+  public void testIsNumber() {
+    for (final String number : new String[]{"0", "-0", "7", "-120", "0.5", "3599.9", "1e3", "1E+3", "-2.5e-10"}) {
+      assertThat(number, JsonReader.isNumber(number), is(true));
+    }
+    for (final String number : new String[]{"", "-", "+1", "01", "1.", "1e", "0x10", "NaN", "1 "}) {
+      assertThat(number, JsonReader.isNumber(number), is(false));
+    }
+  }
+
+  @Test
+  public void testUnterminatedString() throws IOException {
+    final JsonReader reader = reader("{\"value\":\"abc");
+    reader.beginObject();
+    reader.nextName();
+    try {
+      reader.nextString();
+      fail("expected IOException");
+    } catch (IOException ex) {
+      assertThat(ex.getMessage(), containsString("Unterminated string"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidLiteral() throws IOException {
+    final JsonReader reader = reader("[trve]");
+    reader.beginArray();
+    reader.nextBoolean();
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingColon() throws IOException {
+    final JsonReader reader = reader("{\"value\" 1}");
+    reader.beginObject();
+    reader.nextName();
+    reader.nextLong();
+  }
+
+  @Test(expected = IOException.class)
+  public void testTrailingData() throws IOException {
+    final JsonReader reader = reader("{} {}");
+    reader.beginObject();
+    reader.endObject();
+    reader.endDocument();
+  }
+
+  @Test
+  public void testSkipValueSkipsNested() throws IOException {
+    final JsonReader reader = reader("{\"skip\":{\"a\":[1,true,null,{\"b\":\"c\"}]},\"value\":42}");
+    reader.beginObject();
+    assertThat(reader.nextName(), is("skip"));
+    reader.skipValue();
+    assertThat(reader.nextName(), is("value"));
+    assertThat(reader.nextLong(), is(42L));
+    reader.endObject();
+    reader.endDocument();
+  }
+}
@@ -0,0 +1,64 @@
+package com.idmworks.security.google;
+
+import java.net.URI;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link OAuthTemplates}.
+ *
+ * @author pdgreen
+ */
+public class OAuthTemplatesTest {
+
+  static OAuthTemplates templates(final URI endpoint) {
+    return new OAuthTemplates("https", "www.example.com", 443, "/app", "/j_oauth_callback", endpoint,
+            "client id", "secret&+=", GoogleApiUtils.TOKEN_API_DEFAULT_SCOPE_VALUE, null, null);
+  }
+
+  @Test
+  public void testRedirectUri() throws Exception {
+    final OAuthTemplates templates = templates(new URI(GoogleApiUtils.TOKEN_API_URI_DEFAULT_ENDPOINT));
+
+    assertThat(templates.getRedirectUri(), is("https://www.example.com:443/app/j_oauth_callback"));
+  }
+
+  @Test
+  public void testAuthorizationUriIsEncoded() throws Exception {
+    final OAuthTemplates templates = templates(new URI(GoogleApiUtils.TOKEN_API_URI_DEFAULT_ENDPOINT));
+
+    final URI uri = new URI(templates.getAuthorizationUri());
+
+    assertThat(uri.getPath(), is("/o/oauth2/auth"));
+    assertThat(uri.getRawQuery(), is("scope=https%3A%2F%2Fwww.googleapis.com%2Fauth%2Fuserinfo.email+https%3A%2F%2Fwww.googleapis.com%2Fauth%2Fuserinfo.profile"
+            + "&redirect_uri=https%3A%2F%2Fwww.example.com%3A443%2Fapp%2Fj_oauth_callback&response_type=code&client_id=client+id"));
+  }
+
+  @Test
+  public void testAuthorizationUriKeepsEndpointQuery() throws Exception {
+    final OAuthTemplates templates = templates(new URI("https://accounts.google.com/o/oauth2/auth?hd=example.com#ignored"));
+
+    assertThat(templates.getAuthorizationUri().startsWith("https://accounts.google.com/o/oauth2/auth?hd=example.com&scope="), is(true));
+    assertThat(templates.getAuthorizationUri().contains("#"), is(false));
+  }
+
+  @Test
+  public void testTokenRequestBodyIsEncoded() throws Exception {
+    final OAuthTemplates templates = templates(new URI(GoogleApiUtils.TOKEN_API_URI_DEFAULT_ENDPOINT));
+
+    assertThat(templates.buildTokenRequestBody("4/a+b&c"), is("code=4%2Fa%2Bb%26c&client_id=client+id&client_secret=secret%26%2B%3D"
+            + "&redirect_uri=https%3A%2F%2Fwww.example.com%3A443%2Fapp%2Fj_oauth_callback&grant_type=authorization_code"));
+  }
+
+  @Test
+  public void testMatches() throws Exception {
+    final OAuthTemplates templates = templates(new URI(GoogleApiUtils.TOKEN_API_URI_DEFAULT_ENDPOINT));
+
+    assertThat(templates.matches("https", "www.example.com", 443, "/app"), is(true));
+    assertThat(templates.matches("http", "www.example.com", 443, "/app"), is(false));
+    assertThat(templates.matches("https", "example.com", 443, "/app"), is(false));
+    assertThat(templates.matches("https", "www.example.com", 8443, "/app"), is(false));
+    assertThat(templates.matches("https", "www.example.com", 443, ""), is(false));
+  }
+}
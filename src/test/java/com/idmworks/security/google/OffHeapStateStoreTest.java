@@ -0,0 +1,237 @@
+package com.idmworks.security.google;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.junit.*;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for {@link OffHeapStateStore}.
+ *
+ * @author pdgreen
+ */
+public class OffHeapStateStoreTest {
+
+  private long now = 1400000000000L;
+
+  private OffHeapStateStore store(final int capacity, final int recordSize) {
+    return new OffHeapStateStore(capacity, recordSize, "STATE", 3600) {
+      @Override
+      long currentTimeMillis() {
+        return now;
+      }
+    };
+  }
+
+  private static AuthenticationSnapshot snapshot(final String email) {
+    return new AuthenticationSnapshot("1", email, true, Arrays.asList("users", "admins"), Long.MAX_VALUE);
+  }
+
+  private static HttpServletRequest request(final Cookie cookie) {
+    final HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getContextPath()).thenReturn("/app");
+    if (cookie != null) {
+      when(request.getCookies()).thenReturn(new Cookie[]{cookie});
+    }
+    return request;
+  }
+
+  private static Cookie save(final StateStore store, final HttpServletRequest request, final AuthenticationSnapshot snapshot) {
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    store.saveSnapshot(request, response, snapshot);
+    final ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(response).addCookie(cookie.capture());
+    return cookie.getValue();
+  }
+
+  @Test
+  public void testSnapshotRoundTrip() {
+    final OffHeapStateStore store = store(100, 256);
+    final Cookie cookie = save(store, request(null), snapshot("a@example.com"));
+    assertThat(cookie.getName(), is("STATE"));
+    assertThat(cookie.getPath(), is("/app"));
+    assertThat(cookie.isHttpOnly(), is(true));
+    assertThat(cookie.getMaxAge(), is(3600));
+
+    final AuthenticationSnapshot retrieved = store.retrieveSnapshot(request(cookie));
+    assertThat(retrieved.getEmail(), is("a@example.com"));
+    assertThat(retrieved.getGroups(), is(Arrays.asList("users", "admins")));
+    assertThat(retrieved.holdsSubject(), is(false));
+    assertThat(store.size(), is(1));
+  }
+
+  @Test
+  public void testExpires() {
+    final OffHeapStateStore store = store(100, 256);
+    final Cookie cookie = save(store, request(null), snapshot("a@example.com"));
+    now += TimeUnit.SECONDS.toMillis(3600);
+    assertThat(store.retrieveSnapshot(request(cookie)), is(nullValue()));
+  }
+
+  @Test
+  public void testRemovedSnapshotExpiresCookie() {
+    final OffHeapStateStore store = store(100, 256);
+    final Cookie cookie = save(store, request(null), snapshot("a@example.com"));
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    store.removeSnapshot(request(cookie), response);
+    final ArgumentCaptor<Cookie> expired = ArgumentCaptor.forClass(Cookie.class);
+    verify(response).addCookie(expired.capture());
+    assertThat(expired.getValue().getName(), is("STATE"));
+    assertThat(expired.getValue().getMaxAge(), is(0));
+
+    //a copy of the cookie kept by someone else doesn't authenticate either
+    assertThat(store.retrieveSnapshot(request(cookie)), is(nullValue()));
+    assertThat(store.size(), is(0));
+  }
+
+  @Test
+  public void testUnknownOrMalformedIdIgnored() {
+    final OffHeapStateStore store = store(100, 256);
+    save(store, request(null), snapshot("a@example.com"));
+    assertThat(store.retrieveSnapshot(request(new Cookie("STATE", "AAAAAAAAAAAAAAAAAAAAAA"))), is(nullValue()));
+    assertThat(store.retrieveSnapshot(request(new Cookie("STATE", "not*base64"))), is(nullValue()));
+    assertThat(store.retrieveSnapshot(request(new Cookie("STATE", "c2hvcnQ"))), is(nullValue()));
+  }
+
+  @Test
+  public void testNewIdOnAuthenticationKeepsOriginalPath() {
+    final OffHeapStateStore store = store(100, 256);
+    final HttpServletResponse redirectResponse = mock(HttpServletResponse.class);
+    store.saveOriginalRequestPath(request(null), redirectResponse, "/app/protected");
+    final ArgumentCaptor<Cookie> pathCookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(redirectResponse).addCookie(pathCookie.capture());
+    assertThat(pathCookie.getValue().getMaxAge(), is(-1));
+
+    final HttpServletRequest callback = request(pathCookie.getValue());
+    final Cookie cookie = save(store, callback, snapshot("a@example.com"));
+    assertThat(cookie.getValue(), is(not(pathCookie.getValue().getValue())));
+    assertThat(store.removeOriginalRequestPath(callback, mock(HttpServletResponse.class)), is("/app/protected"));
+    assertThat(store.removeOriginalRequestPath(callback, mock(HttpServletResponse.class)), is(nullValue()));
+    //the id known before authenticating doesn't authenticate
+    assertThat(store.retrieveSnapshot(callback), is(nullValue()));
+    assertThat(store.retrieveSnapshot(request(cookie)).getEmail(), is("a@example.com"));
+    assertThat(store.size(), is(1));
+  }
+
+  @Test
+  public void testOriginalPathNeverStoredUnderClientId() {
+    final OffHeapStateStore store = store(100, 256);
+    final Cookie authenticated = save(store, request(null), snapshot("a@example.com"));
+
+    final HttpServletResponse redirectResponse = mock(HttpServletResponse.class);
+    store.saveOriginalRequestPath(request(authenticated), redirectResponse, "/app/protected");
+    final ArgumentCaptor<Cookie> pathCookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(redirectResponse).addCookie(pathCookie.capture());
+    assertThat(pathCookie.getValue().getValue(), is(not(authenticated.getValue())));
+    //the snapshot of the id sent by the client isn't overwritten
+    assertThat(store.retrieveSnapshot(request(authenticated)).getEmail(), is("a@example.com"));
+    assertThat(store.removeOriginalRequestPath(request(authenticated), mock(HttpServletResponse.class)), is(nullValue()));
+    assertThat(store.removeOriginalRequestPath(request(pathCookie.getValue()), mock(HttpServletResponse.class)), is("/app/protected"));
+  }
+
+  @Test
+  public void testRepeatedOriginalPathReplacesPrevious() {
+    final OffHeapStateStore store = store(100, 256);
+    final HttpServletResponse first = mock(HttpServletResponse.class);
+    store.saveOriginalRequestPath(request(null), first, "/app/first");
+    final ArgumentCaptor<Cookie> firstCookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(first).addCookie(firstCookie.capture());
+
+    final HttpServletResponse second = mock(HttpServletResponse.class);
+    store.saveOriginalRequestPath(request(firstCookie.getValue()), second, "/app/second");
+    final ArgumentCaptor<Cookie> secondCookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(second).addCookie(secondCookie.capture());
+
+    assertThat(secondCookie.getValue().getValue(), is(not(firstCookie.getValue().getValue())));
+    assertThat(store.size(), is(1));
+    assertThat(store.removeOriginalRequestPath(request(secondCookie.getValue()), mock(HttpServletResponse.class)), is("/app/second"));
+  }
+
+  @Test
+  public void testOriginalPathNeverEvictsSnapshot() {
+    final OffHeapStateStore store = store(16, 128);
+    final Cookie[] cookies = new Cookie[1000];
+    for (int i = 0; i < cookies.length && store.size() < 16 * 8; i++) {
+      now += 1;
+      cookies[i] = save(store, request(null), snapshot("user" + i + "@example.com"));
+    }
+    assertThat(store.size(), is(16 * 8));
+    final long evictions = store.getEvictionCount();
+    final long overflows = store.getOverflowCount();
+
+    for (int i = 0; i < 50; i++) {
+      final HttpServletRequest request = request(null);
+      final HttpSession session = mock(HttpSession.class);
+      when(request.getSession(true)).thenReturn(session);
+      store.saveOriginalRequestPath(request, mock(HttpServletResponse.class), "/app/" + i);
+      verify(session).setAttribute(anyString(), eq("/app/" + i));
+    }
+    assertThat(store.getEvictionCount(), is(evictions));
+    assertThat(store.getOverflowCount(), is(overflows + 50));
+    int retrievable = 0;
+    for (final Cookie cookie : cookies) {
+      if (cookie != null && store.retrieveSnapshot(request(cookie)) != null) {
+        retrievable++;
+      }
+    }
+    assertThat(retrievable, is(16 * 8));
+  }
+
+  @Test
+  public void testOriginalPathReplacesExpiredSnapshot() {
+    final OffHeapStateStore store = store(16, 128);
+    for (int i = 0; i < 1000 && store.size() < 16 * 8; i++) {
+      save(store, request(null), snapshot("user" + i + "@example.com"));
+    }
+    now += TimeUnit.SECONDS.toMillis(3600);
+    final long evictions = store.getEvictionCount();
+    final HttpServletResponse response = mock(HttpServletResponse.class);
+    store.saveOriginalRequestPath(request(null), response, "/app/protected");
+    final ArgumentCaptor<Cookie> pathCookie = ArgumentCaptor.forClass(Cookie.class);
+    verify(response).addCookie(pathCookie.capture());
+    assertThat(store.removeOriginalRequestPath(request(pathCookie.getValue()), mock(HttpServletResponse.class)), is("/app/protected"));
+    assertThat(store.getEvictionCount(), is(evictions));
+    assertThat(store.getOverflowCount(), is(0L));
+  }
+
+  @Test
+  public void testBoundedCapacityReplacesSoonestExpiring() {
+    final OffHeapStateStore store = store(16, 128);
+    final Cookie[] cookies = new Cookie[200];
+    for (int i = 0; i < cookies.length; i++) {
+      now += 1;
+      cookies[i] = save(store, request(null), snapshot("user" + i + "@example.com"));
+    }
+    assertThat(store.size() <= 16 * 8, is(true));
+    assertThat(store.getEvictionCount() > 0, is(true));
+    //the most recent authentication expires last and is kept
+    assertThat(store.retrieveSnapshot(request(cookies[199])).getEmail(), is("user199@example.com"));
+  }
+
+  @Test
+  public void testLargeSnapshotKeptInSession() {
+    final OffHeapStateStore store = store(100, 64);
+    final HttpServletRequest request = request(null);
+    final HttpSession session = mock(HttpSession.class);
+    when(request.getSession(true)).thenReturn(session);
+    final AuthenticationSnapshot large = new AuthenticationSnapshot("1", "a@example.com", true,
+            Collections.nCopies(20, "a-rather-long-group-name"), Long.MAX_VALUE);
+    save(store, request, large);
+    verify(session).setAttribute(anyString(), same(large));
+    assertThat(store.getOverflowCount(), is(1L));
+    assertThat(store.size(), is(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRecordSizeMustExceedHeader() {
+    store(100, OffHeapStateStore.HEADER_SIZE);
+  }
+}
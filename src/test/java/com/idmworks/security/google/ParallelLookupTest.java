@@ -0,0 +1,210 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.message.AuthException;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link ParallelLookup}.
+ *
+ * @author pdgreen
+ */
+public class ParallelLookupTest {
+
+  private static final GoogleUserInfo USER = GoogleOAuthServerAuthModuleTest.userInfo("1", "a@example.com");
+  private ParallelLookup lookup;
+
+  @Before
+  public void createLookup() {
+    lookup = new ParallelLookup(2);
+  }
+
+  @After
+  public void shutdownLookup() {
+    lookup.shutdown();
+  }
+
+  private static Callable<GoogleUserInfo> userInfo(final GoogleUserInfo googleUserInfo) {
+    return new Callable<GoogleUserInfo>() {
+      @Override
+      public GoogleUserInfo call() {
+        return googleUserInfo;
+      }
+    };
+  }
+
+  private static Callable<List<String>> groups(final String... groups) {
+    return new Callable<List<String>>() {
+      @Override
+      public List<String> call() {
+        return Arrays.asList(groups);
+      }
+    };
+  }
+
+  /**
+   * @return callable blocked until it is interrupted, which counts cancelled down
+   */
+  private static <T> Callable<T> blocked(final CountDownLatch started, final CountDownLatch cancelled) {
+    return new Callable<T>() {
+      @Override
+      public T call() {
+        started.countDown();
+        try {
+          Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException ex) {
+          cancelled.countDown();
+        }
+        return null;
+      }
+    };
+  }
+
+  @Test
+  public void testBothResults() throws AuthException {
+    final ParallelLookup.Result result = lookup.lookup(userInfo(USER), groups("staff", "example.com"));
+    assertThat(result.getGoogleUserInfo(), is(sameInstance(USER)));
+    assertThat(result.getGroups(), is(Arrays.asList("staff", "example.com")));
+    assertThat(lookup.getLookupCount(), is(1L));
+  }
+
+  @Test
+  public void testRefusedUserInfoCancelsGroups() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    final ParallelLookup.Result result = lookup.lookup(new Callable<GoogleUserInfo>() {
+      @Override
+      public GoogleUserInfo call() throws Exception {
+        started.await();
+        return null;
+      }
+    }, ParallelLookupTest.<List<String>>blocked(started, cancelled));
+    assertThat(result.getGoogleUserInfo(), is(nullValue()));
+    assertThat(result.getGroups(), is(nullValue()));
+    assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testGroupFailureThrownWithoutWaitingForUserInfo() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    final AuthException failure = new AuthException("no groups");
+    try {
+      lookup.lookup(ParallelLookupTest.<GoogleUserInfo>blocked(started, cancelled), new Callable<List<String>>() {
+        @Override
+        public List<String> call() throws Exception {
+          started.await();
+          throw failure;
+        }
+      });
+      fail("expected AuthException");
+    } catch (AuthException ex) {
+      assertThat(ex, is(sameInstance(failure)));
+    }
+    assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testUserInfoFailureThrown() throws AuthException {
+    try {
+      lookup.lookup(new Callable<GoogleUserInfo>() {
+        @Override
+        public GoogleUserInfo call() {
+          throw new IllegalStateException("Google unavailable");
+        }
+      }, groups("staff"));
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException ex) {
+      assertThat(ex.getMessage(), is("Google unavailable"));
+    }
+  }
+
+  @Test
+  public void testNullWhenThreadsBusy() throws Exception {
+    final CountDownLatch started = new CountDownLatch(2);
+    final CountDownLatch cancelled = new CountDownLatch(2);
+    final ExecutorService caller = Executors.newSingleThreadExecutor();
+    try {
+      final Future<ParallelLookup.Result> busy = caller.submit(new Callable<ParallelLookup.Result>() {
+        @Override
+        public ParallelLookup.Result call() throws AuthException {
+          return lookup.lookup(ParallelLookupTest.<GoogleUserInfo>blocked(started, cancelled),
+                  ParallelLookupTest.<List<String>>blocked(started, cancelled));
+        }
+      });
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+
+      assertThat(lookup.lookup(userInfo(USER), groups("staff")), is(nullValue()));
+      assertThat(lookup.getRejectedCount(), is(1L));
+      busy.cancel(true);
+    } finally {
+      caller.shutdownNow();
+    }
+    assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testNothingStartedWhenOneThreadFree() throws Exception {
+    final CountDownLatch userInfoDone = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    final AtomicInteger userInfoCalls = new AtomicInteger();
+    final ExecutorService caller = Executors.newSingleThreadExecutor();
+    try {
+      final Future<ParallelLookup.Result> busy = caller.submit(new Callable<ParallelLookup.Result>() {
+        @Override
+        public ParallelLookup.Result call() throws AuthException {
+          return lookup.lookup(new Callable<GoogleUserInfo>() {
+            @Override
+            public GoogleUserInfo call() {
+              userInfoDone.countDown();
+              return USER;
+            }
+          }, ParallelLookupTest.<List<String>>blocked(started, cancelled));
+        }
+      });
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      assertTrue(userInfoDone.await(5, TimeUnit.SECONDS));
+      //let the userinfo thread go back to the pool, one of the two threads is free
+      Thread.sleep(100);
+
+      assertThat(lookup.lookup(new Callable<GoogleUserInfo>() {
+        @Override
+        public GoogleUserInfo call() {
+          userInfoCalls.incrementAndGet();
+          return USER;
+        }
+      }, groups("staff")), is(nullValue()));
+      assertThat(userInfoCalls.get(), is(0));
+      assertThat(lookup.getRejectedCount(), is(1L));
+      busy.cancel(true);
+    } finally {
+      caller.shutdownNow();
+    }
+    assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+
+    //the threads are given back once the cancelled call returns
+    ParallelLookup.Result result = null;
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (result == null && System.nanoTime() < deadline) {
+      result = lookup.lookup(userInfo(USER), groups("staff"));
+    }
+    assertThat(result.getGroups(), is(Arrays.asList("staff")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOneThread() {
+    new ParallelLookup(1);
+  }
+}
@@ -1,6 +1,7 @@
 package com.idmworks.security.google;
 
 import com.idmworks.security.google.api.GoogleUserInfo;
+import java.io.ByteArrayInputStream;
 import org.junit.*;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
@@ -28,6 +29,32 @@ public class ParseUtilsTest {
     assertThat(result.getType(), is("Bearer"));
   }
 
+  @Test
+  public void testParseTokenInfoJson() {
+    String json =
+            "{\n"
+            + "\"azp\": \"mobile-client-id\",\n"
+            + "\"aud\": \"web-client-id\",\n"
+            + "\"sub\": \"1074968992519869407200\",\n"
+            + "\"scope\": \"openid email\",\n"
+            + "\"exp\": \"1700000000\",\n"
+            + "\"expires_in\": \"3599\",\n"
+            + "\"email\": \"fake.name@gmail.com\",\n"
+            + "\"email_verified\": \"true\",\n"
+            + "\"access_type\": \"online\"\n"
+            + "}";
+
+    final TokenInfo result = ParseUtils.parseTokenInfoJson(json);
+
+    assertThat(result.getAudience(), is("web-client-id"));
+    assertThat(result.getAuthorizedParty(), is("mobile-client-id"));
+    assertThat(result.getSubject(), is("1074968992519869407200"));
+    assertThat(result.getEmail(), is("fake.name@gmail.com"));
+    assertThat(result.isVerifiedEmail(), is(true));
+    assertThat(result.getExpiration().getTime(), is(1700000000000L));
+    assertThat(result.getScope(), is("openid email"));
+  }
+
   @Test
   public void testParseGoogleUserInfoJson() {
     String json =
@@ -58,4 +85,117 @@ public class ParseUtilsTest {
     assertThat(result.getPicture(), is("https://lh4.googleusercontent.com/path/to/photo.jpg"));
     assertThat(result.getLocale(), is("en-US"));
   }
+
+  @Test
+  public void testParseGoogleUserInfoJsonWithCommasAndColonsInValues() {
+    String json = "{\"id\":\"42\",\"email\":\"a@b.com\",\"name\":\"Green, Phillip: Jr.\","
+            + "\"picture\":\"https://lh4.googleusercontent.com/a,b/photo.jpg?sz=50\"}";
+
+    final GoogleUserInfo result = ParseUtils.parseGoogleUserInfoJson(json);
+
+    assertThat(result.getName(), is("Green, Phillip: Jr."));
+    assertThat(result.getPicture(), is("https://lh4.googleusercontent.com/a,b/photo.jpg?sz=50"));
+  }
+
+  @Test
+  public void testParseGoogleUserInfoJsonWithEscapes() {
+    String json = "{\"id\":\"42\",\"name\":\"\\\"Q\\\" \\\\ \\/ \\u00e9\\ud83d\\ude00\\n\"}";
+
+    final GoogleUserInfo result = ParseUtils.parseGoogleUserInfoJson(json);
+
+    assertThat(result.getName(), is("\"Q\" \\ / \u00e9\ud83d\ude00\n"));
+  }
+
+  @Test
+  public void testParseGoogleUserInfoJsonWithUtf8() throws Exception {
+    final byte[] json = "{\"id\":\"42\",\"name\":\"Jos\u00e9 \u5f20 \ud83d\ude00\"}".getBytes("UTF-8");
+
+    final GoogleUserInfo result = ParseUtils.parseGoogleUserInfoJson(new ByteArrayInputStream(json));
+
+    assertThat(result.getName(), is("Jos\u00e9 \u5f20 \ud83d\ude00"));
+  }
+
+  @Test
+  public void testParseGoogleUserInfoJsonSkipsNestedAndNullValues() {
+    String json = "{\"id\":\"42\",\"emails\":[{\"value\":\"x@y.com\",\"type\":[1,2,{}]}],"
+            + "\"image\":{\"url\":\"a\",\"isDefault\":false},\"gender\":null,\"email\":\"a@b.com\",\"verified_email\":false}";
+
+    final GoogleUserInfo result = ParseUtils.parseGoogleUserInfoJson(json);
+
+    assertThat(result.getId(), is("42"));
+    assertThat(result.getEmail(), is("a@b.com"));
+    assertThat(result.getGender(), is(nullValue()));
+    assertThat(result.isVerifiedEmail(), is(false));
+  }
+
+  @Test
+  public void testParseAccessTokenJsonNumbers() {
+    final long before = System.currentTimeMillis();
+
+    final AccessTokenInfo result = ParseUtils.parseAccessTokenJson("{\"access_token\":\"t\",\"expires_in\":3.6e3,\"ratio\":-0.5E-2}");
+
+    assertThat(result.getAccessToken(), is("t"));
+    assertThat(result.getExpiration().getTime() >= before + 3600 * 1000L, is(true));
+  }
+
+  @Test
+  public void testParseAccessTokenJsonFromStream() {
+    final AccessTokenInfo result = ParseUtils.parseAccessTokenJson(
+            ParseUtils.toStream("  {\"access_token\" : \"1/abc\" , \"expires_in\" : 60 , \"token_type\" : \"Bearer\" }\n"));
+
+    assertThat(result.getAccessToken(), is("1/abc"));
+    assertThat(result.getType(), is("Bearer"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseMalformedJson() {
+    ParseUtils.parseGoogleUserInfoJson("{\"id\":\"42\",\"email\" \"a@b.com\"}");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseTruncatedJson() {
+    ParseUtils.parseGoogleUserInfoJson("{\"id\":\"42\",\"email\":\"a@b");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseTrailingGarbage() {
+    ParseUtils.parseAccessTokenJson("{\"access_token\":\"t\"} x");
+  }
+
+  @Test
+  public void testParseAccessTokenJsonWithIdToken() {
+    final AccessTokenInfo result = ParseUtils.parseAccessTokenJson("{\"access_token\":\"t\",\"expires_in\":60,\"id_token\":\"a.b.c\"}");
+
+    assertThat(result.getIdToken(), is("a.b.c"));
+  }
+
+  @Test
+  public void testParseIdTokenSubject() throws Exception {
+    final String idToken = "eyJhbGciOiJSUzI1NiJ9."
+            + Base64Url.encode("{\"iss\":\"accounts.google.com\",\"aud\":[\"x\"],\"sub\":\"110169484474386276334\"}".getBytes("UTF-8"))
+            + ".c2ln";
+
+    assertThat(ParseUtils.parseIdTokenSubject(idToken), is("110169484474386276334"));
+    assertThat(ParseUtils.parseIdTokenSubject(null), is(nullValue()));
+    assertThat(ParseUtils.parseIdTokenSubject("garbage"), is(nullValue()));
+    assertThat(ParseUtils.parseIdTokenSubject("a.!!!.c"), is(nullValue()));
+  }
+
+  @Test
+  public void testParseIdTokenUserInfo() throws Exception {
+    final String idToken = "eyJhbGciOiJSUzI1NiJ9."
+            + Base64Url.encode(("{\"iss\":\"accounts.google.com\",\"sub\":\"110169484474386276334\",\"email\":\"a@example.com\","
+            + "\"email_verified\":true,\"name\":\"A B\",\"aud\":[\"x\"]}").getBytes("UTF-8"))
+            + ".c2ln";
+
+    final GoogleUserInfo userInfo = ParseUtils.parseIdTokenUserInfo(idToken);
+    assertThat(userInfo.getId(), is("110169484474386276334"));
+    assertThat(userInfo.getEmail(), is("a@example.com"));
+    assertThat(userInfo.isVerifiedEmail(), is(true));
+    assertThat(userInfo.getName(), is("A B"));
+    final String withoutEmail = "eyJhbGciOiJSUzI1NiJ9." + Base64Url.encode("{\"sub\":\"1\"}".getBytes("UTF-8")) + ".c2ln";
+    assertThat(ParseUtils.parseIdTokenUserInfo(withoutEmail), is(nullValue()));
+    assertThat(ParseUtils.parseIdTokenUserInfo(null), is(nullValue()));
+    assertThat(ParseUtils.parseIdTokenUserInfo("a.!!!.c"), is(nullValue()));
+  }
 }
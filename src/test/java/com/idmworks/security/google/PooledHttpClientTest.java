@@ -0,0 +1,160 @@
+package com.idmworks.security.google;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link PooledHttpClient}.
+ *
+ * @author pdgreen
+ */
+public class PooledHttpClientTest {
+
+  private HttpServer server;
+  private URI baseUri;
+  private final AtomicReference<String> lastBody = new AtomicReference<String>();
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/echo", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        lastBody.set(new String(readAll(exchange.getRequestBody()), "UTF-8"));
+        respond(exchange, 200, "{\"method\":\"" + exchange.getRequestMethod() + "\"}");
+      }
+    });
+    server.createContext("/missing", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, 404, "not here");
+      }
+    });
+    server.createContext("/slow", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          Thread.sleep(2000);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        respond(exchange, 200, "late");
+      }
+    });
+    server.createContext("/stalled", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        //never reads the request body, the client's write blocks once the socket buffers are full
+        try {
+          Thread.sleep(3000);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        respond(exchange, 200, "late");
+      }
+    });
+    server.start();
+    baseUri = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  static byte[] readAll(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+    final byte[] bytes = body.getBytes("UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    final OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  @Test
+  public void testGet() {
+    final HttpClient.Response response = new PooledHttpClient().GET(baseUri.resolve("/echo"));
+
+    assertThat(response.getStatus(), is(200));
+    assertThat(response.getBody(), is("{\"method\":\"GET\"}"));
+  }
+
+  @Test
+  public void testPostSendsBody() {
+    final HttpClient.Response response = new PooledHttpClient().POST(baseUri.resolve("/echo"), "code=abc&grant_type=authorization_code");
+
+    assertThat(response.getStatus(), is(200));
+    assertThat(response.getBody(), is("{\"method\":\"POST\"}"));
+    assertThat(lastBody.get(), is("code=abc&grant_type=authorization_code"));
+  }
+
+  @Test
+  public void testErrorStatusIsReturned() {
+    final HttpClient.Response response = new PooledHttpClient().GET(baseUri.resolve("/missing"));
+
+    assertThat(response.getStatus(), is(404));
+  }
+
+  @Test
+  public void testReadTimeout() {
+    final PooledHttpClient client = new PooledHttpClient(1000, 200, 1000, 1);
+    final long start = System.currentTimeMillis();
+    try {
+      client.GET(baseUri.resolve("/slow"));
+      fail("expected timeout");
+    } catch (IllegalStateException expected) {
+      assertThat(System.currentTimeMillis() - start < 1500, is(true));
+    }
+    assertThat(client.getAvailableConnections(), is(1));
+  }
+
+  @Test
+  public void testBlockedWriteStopsAtTotalTimeout() {
+    final char[] body = new char[16 * 1024 * 1024];
+    Arrays.fill(body, 'a');
+    final PooledHttpClient client = new PooledHttpClient(1000, 1000, 500, 1);
+    final long start = System.currentTimeMillis();
+    try {
+      client.POST(baseUri.resolve("/stalled"), new String(body));
+      fail("expected timeout");
+    } catch (IllegalStateException expected) {
+      assertThat(expected.getMessage(), containsString("total timeout"));
+      assertThat(System.currentTimeMillis() - start < 1500, is(true));
+    }
+    assertThat(client.getAvailableConnections(), is(1));
+  }
+
+  @Test
+  public void testNonPositiveTimeoutsRejected() {
+    final int[][] invalid = {{0, 1000, 1000, 1}, {1000, 0, 1000, 1}, {1000, 1000, 0, 1}, {1000, 1000, -1, 1}, {1000, 1000, 1000, 0}};
+    for (final int[] arguments : invalid) {
+      try {
+        new PooledHttpClient(arguments[0], arguments[1], arguments[2], arguments[3]);
+        fail("expected IllegalArgumentException for " + Arrays.toString(arguments));
+      } catch (IllegalArgumentException expected) {
+        assertThat(expected.getMessage(), containsString("positive"));
+      }
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package com.idmworks.security.google;
+
+import com.idmworks.security.google.api.GoogleUserInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.security.auth.Subject;
+import javax.security.auth.message.AuthStatus;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the serialized form of {@link AuthenticationSnapshot} and {@link GoogleUserInfo} kept in the session.
+ *
+ * @author pdgreen
+ */
+public class SessionSerializationTest {
+
+  static final GoogleUserInfo FULL_USER_INFO = new GoogleUserInfo("1074968992519869407200", "fake.name@gmail.com", true,
+          "Fake Name", "Fake", "Name", "other", "https://plus.google.com/1074968992519869407200",
+          "https://lh3.googleusercontent.com/photo.jpg", "en");
+  static final List<String> GROUPS = Arrays.asList("users", "gmail.com", "admins");
+
+  static byte[] serialize(final Object... values) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final ObjectOutputStream out = new ObjectOutputStream(bytes);
+    for (final Object value : values) {
+      out.writeObject(value);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  static Object deserialize(final byte[] bytes) throws IOException, ClassNotFoundException {
+    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+  }
+
+  @Test
+  public void testUserInfoRoundTrip() throws Exception {
+    final GoogleUserInfo read = (GoogleUserInfo) deserialize(serialize(FULL_USER_INFO));
+
+    assertThat(read.getId(), is(FULL_USER_INFO.getId()));
+    assertThat(read.getEmail(), is(FULL_USER_INFO.getEmail()));
+    assertThat(read.isVerifiedEmail(), is(true));
+    assertThat(read.getName(), is("Fake Name"));
+    assertThat(read.getGivenName(), is("Fake"));
+    assertThat(read.getFamilyName(), is("Name"));
+    assertThat(read.getGender(), is("other"));
+    assertThat(read.getLink(), is(FULL_USER_INFO.getLink()));
+    assertThat(read.getPicture(), is(FULL_USER_INFO.getPicture()));
+    assertThat(read.getLocale(), is("en"));
+  }
+
+  @Test
+  public void testUserInfoRoundTripWithMissingFields() throws Exception {
+    final GoogleUserInfo read = (GoogleUserInfo) deserialize(serialize(
+            new GoogleUserInfo(null, "fake.name@gmail.com", false, null, null, null, null, null, null, "en")));
+
+    assertThat(read.getId(), is(nullValue()));
+    assertThat(read.getEmail(), is("fake.name@gmail.com"));
+    assertThat(read.isVerifiedEmail(), is(false));
+    assertThat(read.getName(), is(nullValue()));
+    assertThat(read.getLocale(), is("en"));
+  }
+
+  @Test
+  public void testUserInfoSerializedByEarlierVersionsStillRead() throws Exception {
+    //default serialized form, written before the compact form was introduced
+    final GoogleUserInfo read = (GoogleUserInfo) deserialize(Base64Url.decode(
+            "rO0ABXNyAC9jb20uaWRtd29ya3Muc2VjdXJpdHkuZ29vZ2xlLmFwaS5Hb29nbGVVc2VySW5mb_gDnpMC2o8XAgAKWgANdmVyaWZpZWRFbWFp"
+            + "bEwABWVtYWlsdAASTGphdmEvbGFuZy9TdHJpbmc7TAAKZmFtaWx5TmFtZXEAfgABTAAGZ2VuZGVycQB-AAFMAAlnaXZlbk5hbWVxAH4AAUwA"
+            + "AmlkcQB-AAFMAARsaW5rcQB-AAFMAAZsb2NhbGVxAH4AAUwABG5hbWVxAH4AAUwAB3BpY3R1cmVxAH4AAXhwAXQAE2Zha2UubmFtZUBnbWFp"
+            + "bC5jb21wcHB0ABYxMDc0OTY4OTkyNTE5ODY5NDA3MjAwcHQAAmVudAAJRmFrZSBOYW1lcA"));
+
+    assertThat(read.getId(), is("1074968992519869407200"));
+    assertThat(read.getEmail(), is("fake.name@gmail.com"));
+    assertThat(read.isVerifiedEmail(), is(true));
+    assertThat(read.getName(), is("Fake Name"));
+    assertThat(read.getGivenName(), is(nullValue()));
+    assertThat(read.getLocale(), is("en"));
+  }
+
+  @Test
+  public void testUserInfoWrittenInCompactForm() throws Exception {
+    final String written = new String(serialize(FULL_USER_INFO), "ISO-8859-1");
+    assertTrue(written.contains("SerialProxy"));
+    assertFalse(written.contains("verifiedEmail"));
+  }
+
+  @Test
+  public void testSnapshotRoundTripDropsSubject() throws Exception {
+    final Subject subject = new Subject();
+    subject.getPrincipals().add(new SimplePrincipal("fake.name@gmail.com"));
+    final AuthenticationSnapshot snapshot = new AuthenticationSnapshot(FULL_USER_INFO, GROUPS, subject);
+    assertThat(snapshot.holdsSubject(), is(true));
+
+    final AuthenticationSnapshot read = (AuthenticationSnapshot) deserialize(serialize(snapshot));
+
+    assertThat(read.holdsSubject(), is(false));
+    assertThat(read.getEmail(), is("fake.name@gmail.com"));
+    assertThat(read.getGroups(), is(GROUPS));
+    assertThat(read.getExpiresAt(), is(Long.MAX_VALUE));
+    assertThat(read.toGoogleUserInfo().getName(), is("Fake Name"));
+  }
+
+  /**
+   * Compares the session payload with what was stored before: the authenticated subject, holding a default serialized
+   * principal with the user info and a principal per group, and the original request path as a URI.
+   */
+  @Test
+  public void testSnapshotMuchSmallerThanSubject() throws Exception {
+    final Subject subject = new Subject();
+    subject.getPrincipals().add(new DefaultSerializedPrincipal(FULL_USER_INFO));
+    for (final String group : GROUPS) {
+      subject.getPrincipals().add(new SimplePrincipal(group));
+    }
+    final byte[] subjectBytes = serialize(subject, new URI("/app/secure/index.html"));
+    final byte[] snapshotBytes = serialize(new AuthenticationSnapshot(FULL_USER_INFO, GROUPS, subject), "/app/secure/index.html");
+
+    assertTrue(snapshotBytes.length + " bytes instead of " + subjectBytes.length, snapshotBytes.length * 3 < subjectBytes.length);
+  }
+
+  @Test
+  public void testCompactFormRoundTrip() throws Exception {
+    final GoogleUserInfo partial = new GoogleUserInfo("1", "a@example.com", false, null, "A", null, null, null, null, "fr");
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    partial.writeCompact(new DataOutputStream(bytes));
+
+    final GoogleUserInfo read = GoogleUserInfo.readCompact(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertThat(read.getId(), is("1"));
+    assertThat(read.getEmail(), is("a@example.com"));
+    assertThat(read.isVerifiedEmail(), is(false));
+    assertThat(read.getName(), is(nullValue()));
+    assertThat(read.getGivenName(), is("A"));
+    assertThat(read.getLocale(), is("fr"));
+  }
+
+  @Test(expected = InvalidObjectException.class)
+  public void testCompactFormUnknownVersion() throws Exception {
+    GoogleUserInfo.readCompact(new DataInputStream(new ByteArrayInputStream(new byte[]{9, 0, 0})));
+  }
+
+  @Test
+  public void testReplicatedSnapshotDerivesPrincipalsAgain() throws Exception {
+    final Map<String, String> options = GoogleOAuthServerAuthModuleTest.requiredOptions();
+    options.put("ignore_missing_login_context", "true");
+    final GoogleOAuthServerAuthModule module = new GoogleOAuthServerAuthModule();
+    module.initialize(null, null, new GoogleOAuthServerAuthModuleTest.ContainerCallbackHandler(), options);
+
+    final Subject authenticated = new Subject();
+    authenticated.getPrincipals().add(new SimplePrincipal("fake.name@gmail.com"));
+    final AuthenticationSnapshot replicated = (AuthenticationSnapshot) deserialize(serialize(
+            new AuthenticationSnapshot(FULL_USER_INFO, GROUPS, authenticated)));
+    final HttpServletRequest request = GoogleOAuthServerAuthModuleTest.requestWithSession();
+    when(request.getSession(false).getAttribute(StateHelper.class.getName() + ".saved_snapshot")).thenReturn(replicated);
+
+    final Subject subject = new Subject();
+    assertThat(module.handleMandatoryRequest(GoogleOAuthServerAuthModuleTest.messageInfo(), request, mock(HttpServletResponse.class), subject),
+            is(AuthStatus.SUCCESS));
+    assertThat(subject.getPrincipals(com.idmworks.security.google.api.GoogleOAuthPrincipal.class).iterator().next().getGoogleUserInfo().getName(),
+            is("Fake Name"));
+    assertThat(GoogleOAuthServerAuthModuleTest.groupNames(subject).containsAll(GROUPS), is(true));
+    verify(request.getSession(true)).setAttribute(eq(StateHelper.class.getName() + ".saved_snapshot"), org.mockito.Matchers.any(AuthenticationSnapshot.class));
+  }
+
+  static class DefaultSerializedPrincipal implements Principal, Serializable {
+
+    private final String id;
+    private final String email;
+    private final boolean verifiedEmail;
+    private final String name;
+    private final String givenName;
+    private final String familyName;
+    private final String gender;
+    private final String link;
+    private final String picture;
+    private final String locale;
+
+    DefaultSerializedPrincipal(final GoogleUserInfo userInfo) {
+      this.id = userInfo.getId();
+      this.email = userInfo.getEmail();
+      this.verifiedEmail = userInfo.isVerifiedEmail();
+      this.name = userInfo.getName();
+      this.givenName = userInfo.getGivenName();
+      this.familyName = userInfo.getFamilyName();
+      this.gender = userInfo.getGender();
+      this.link = userInfo.getLink();
+      this.picture = userInfo.getPicture();
+      this.locale = userInfo.getLocale();
+    }
+
+    @Override
+    public String getName() {
+      return email;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package com.idmworks.security.google;
+
+import java.util.Arrays;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link SignedCookieCodec} and {@link AuthenticationSnapshot} serialization.
+ *
+ * @author pdgreen
+ */
+public class SignedCookieCodecTest {
+
+  static final String KEY_1 = "k1:" + Base64Url.encode("0123456789abcdef0123456789abcdef".getBytes(HttpClient.UTF8));
+  static final String KEY_2 = "k2:" + Base64Url.encode("fedcba9876543210fedcba9876543210".getBytes(HttpClient.UTF8));
+
+  @Test
+  public void testRoundTrip() {
+    final SignedCookieCodec codec = new SignedCookieCodec(KEY_1, false);
+    final byte[] payload = "payload".getBytes(HttpClient.UTF8);
+
+    final String value = codec.encode("C", payload);
+
+    assertThat(value.startsWith("k1."), is(true));
+    assertThat(Arrays.equals(codec.decode("C", value), payload), is(true));
+  }
+
+  @Test
+  public void testEncryptedRoundTripHidesPayload() {
+    final SignedCookieCodec codec = new SignedCookieCodec(KEY_1, true);
+    final byte[] payload = "fake.name@gmail.com".getBytes(HttpClient.UTF8);
+
+    final String value = codec.encode("C", payload);
+
+    assertThat(value.contains(Base64Url.encode(payload)), is(false));
+    assertThat(Arrays.equals(codec.decode("C", value), payload), is(true));
+  }
+
+  @Test
+  public void testTamperedValueRejected() {
+    final SignedCookieCodec codec = new SignedCookieCodec(KEY_1, false);
+    final String value = codec.encode("C", "payload".getBytes(HttpClient.UTF8));
+    final int firstDot = value.indexOf('.');
+    final String tampered = value.substring(0, firstDot + 1) + Base64Url.encode("PAYLOAD".getBytes(HttpClient.UTF8))
+            + value.substring(value.lastIndexOf('.'));
+
+    assertThat(codec.decode("C", tampered), is(nullValue()));
+    assertThat(codec.decode("C", "garbage"), is(nullValue()));
+    assertThat(codec.decode("C", null), is(nullValue()));
+  }
+
+  @Test
+  public void testValueBoundToCookieName() {
+    final SignedCookieCodec codec = new SignedCookieCodec(KEY_1, true);
+    final byte[] payload = "payload".getBytes(HttpClient.UTF8);
+
+    final String value = codec.encode("C_PATH", payload);
+
+    assertThat(Arrays.equals(codec.decode("C_PATH", value), payload), is(true));
+    assertThat(codec.decode("C", value), is(nullValue()));
+  }
+
+  @Test
+  public void testKeyRotation() {
+    final SignedCookieCodec oldCodec = new SignedCookieCodec(KEY_1, false);
+    final SignedCookieCodec rotatedCodec = new SignedCookieCodec(KEY_2 + "," + KEY_1, false);
+    final SignedCookieCodec newCodec = new SignedCookieCodec(KEY_2, false);
+    final String value = oldCodec.encode("C", "payload".getBytes(HttpClient.UTF8));
+
+    assertThat(rotatedCodec.decode("C", value), is(notNullValue()));
+    assertThat(rotatedCodec.isSignedWithOldKey(value), is(true));
+    assertThat(rotatedCodec.isSignedWithOldKey(rotatedCodec.encode("C", "payload".getBytes(HttpClient.UTF8))), is(false));
+    assertThat(newCodec.decode("C", value), is(nullValue()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testShortKeyRejected() {
+    new SignedCookieCodec("k1:" + Base64Url.encode("short".getBytes(HttpClient.UTF8)), false);
+  }
+
+  @Test
+  public void testSnapshotRoundTrip() {
+    final AuthenticationSnapshot snapshot = new AuthenticationSnapshot("123", "fake.name@gmail.com", true,
+            Arrays.asList("gmail.com", "users"), 1234567890123L);
+
+    final AuthenticationSnapshot restored = AuthenticationSnapshot.fromBytes(snapshot.toBytes());
+
+    assertThat(restored.getId(), is("123"));
+    assertThat(restored.getEmail(), is("fake.name@gmail.com"));
+    assertThat(restored.isVerifiedEmail(), is(true));
+    assertThat(restored.getGroups(), is(Arrays.asList("gmail.com", "users")));
+    assertThat(restored.getExpiresAt(), is(1234567890123L));
+  }
+}
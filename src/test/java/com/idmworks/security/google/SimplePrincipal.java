@@ -0,0 +1,38 @@
+package com.idmworks.security.google;
+
+import java.io.Serializable;
+import java.security.Principal;
+
+/**
+ * Named principal used by tests.
+ *
+ * @author pdgreen
+ */
+public class SimplePrincipal implements Principal, Serializable {
+
+  private final String name;
+
+  public SimplePrincipal(final String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    return obj instanceof SimplePrincipal && ((SimplePrincipal) obj).name.equals(name);
+  }
+
+  @Override
+  public int hashCode() {
+    return name.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
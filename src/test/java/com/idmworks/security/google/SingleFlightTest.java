@@ -0,0 +1,150 @@
+package com.idmworks.security.google;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link SingleFlight}.
+ *
+ * @author pdgreen
+ */
+public class SingleFlightTest {
+
+  private final AtomicInteger calls = new AtomicInteger();
+  private long now = 1000L;
+  private SingleFlight<String, String> flights;
+
+  @Before
+  public void createFlights() {
+    flights = new SingleFlight<String, String>(10, TimeUnit.SECONDS) {
+      @Override
+      long currentTimeNanos() {
+        return now;
+      }
+    };
+  }
+
+  private Callable<String> counting(final String result) {
+    return new Callable<String>() {
+      @Override
+      public String call() {
+        calls.incrementAndGet();
+        return result;
+      }
+    };
+  }
+
+  @Test
+  public void testConcurrentCallsShareOneExecution() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final Future<String> first = executor.submit(new Callable<String>() {
+        @Override
+        public String call() {
+          return flights.execute("code", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+              calls.incrementAndGet();
+              started.countDown();
+              release.await(10, TimeUnit.SECONDS);
+              return "user";
+            }
+          });
+        }
+      });
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      final List<Future<String>> others = new ArrayList<Future<String>>();
+      for (int i = 0; i < 7; i++) {
+        others.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() {
+            return flights.execute("code", counting("other"));
+          }
+        }));
+      }
+      while (flights.getCoalescedCount() < 7) {
+        Thread.sleep(1);
+      }
+      release.countDown();
+      assertThat(first.get(10, TimeUnit.SECONDS), is("user"));
+      for (final Future<String> other : others) {
+        assertThat(other.get(10, TimeUnit.SECONDS), is("user"));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(calls.get(), is(1));
+    assertThat(flights.getExecutionCount(), is(1L));
+    assertThat(flights.getCoalescedCount(), is(7L));
+  }
+
+  @Test
+  public void testCompletedResultSharedWithinWindow() {
+    assertThat(flights.execute("code", counting("user")), is("user"));
+    now += TimeUnit.SECONDS.toNanos(9);
+    assertThat(flights.execute("code", counting("again")), is("user"));
+    assertThat(flights.execute("other", counting("other")), is("other"));
+    now += TimeUnit.SECONDS.toNanos(1);
+    assertThat(flights.execute("code", counting("again")), is("again"));
+    assertThat(calls.get(), is(3));
+    assertThat(flights.getCoalescedCount(), is(1L));
+  }
+
+  @Test
+  public void testNullResultNotRemembered() {
+    assertThat(flights.execute("code", counting(null)), is(nullValue()));
+    assertThat(flights.execute("code", counting("user")), is("user"));
+    assertThat(calls.get(), is(2));
+  }
+
+  @Test
+  public void testFailureNotRemembered() {
+    try {
+      flights.execute("code", new Callable<String>() {
+        @Override
+        public String call() {
+          calls.incrementAndGet();
+          throw new IllegalStateException("token endpoint down");
+        }
+      });
+      fail("exception should propagate");
+    } catch (IllegalStateException ex) {
+      assertThat(ex.getMessage(), is("token endpoint down"));
+    }
+    assertThat(flights.execute("code", counting("user")), is("user"));
+    assertThat(calls.get(), is(2));
+  }
+
+  @Test
+  public void testZeroWindowOnlyCoalescesInFlight() {
+    final SingleFlight<String, String> inFlightOnly = new SingleFlight<String, String>(0, TimeUnit.SECONDS);
+    assertThat(inFlightOnly.execute("code", counting("user")), is("user"));
+    assertThat(inFlightOnly.execute("code", counting("again")), is("again"));
+    assertThat(calls.get(), is(2));
+  }
+
+  @Test
+  public void testManyKeysPurgedOncePerWindow() {
+    //100 distinct codes a second for 30 seconds
+    for (int i = 0; i < 3000; i++) {
+      assertThat(flights.execute("code" + i, counting("user")), is("user"));
+      now += TimeUnit.MILLISECONDS.toNanos(10);
+      //results completed within the last window plus those expired since the last purge
+      assertThat(flights.size() <= 2000, is(true));
+    }
+    assertThat(calls.get(), is(3000));
+    assertThat(flights.getPurgeCount(), is(3L));
+  }
+}
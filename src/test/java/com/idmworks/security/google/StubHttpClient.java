@@ -0,0 +1,62 @@
+package com.idmworks.security.google;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link HttpClient} returning canned responses by path, used by tests instead of the Google APIs.
+ *
+ * @author pdgreen
+ */
+public class StubHttpClient implements HttpClient {
+
+  static final String TOKEN_JSON = "{\n"
+          + "\"access_token\":\"1/fFAGRNJru1FTz70BzhT3Zg\",\n"
+          + "\"expires_in\":3920,\n"
+          + "\"token_type\":\"Bearer\"\n"
+          + "}";
+  static final String USERINFO_JSON = "{\n"
+          + "\"id\": \"1074968992519869407200\",\n"
+          + "\"email\": \"fake.name@gmail.com\",\n"
+          + "\"verified_email\": true,\n"
+          + "\"name\": \"Fake Name\"\n"
+          + "}";
+  private final Map<String, Response> responses = new ConcurrentHashMap<String, Response>();
+  private final AtomicInteger requests = new AtomicInteger();
+
+  /**
+   * @return client answering the token and userinfo APIs successfully
+   */
+  static StubHttpClient google() {
+    return new StubHttpClient()
+            .respond("/o/oauth2/token", 200, TOKEN_JSON)
+            .respond("/oauth2/v1/userinfo", 200, USERINFO_JSON);
+  }
+
+  StubHttpClient respond(final String path, final int status, final String body) {
+    responses.put(path, new Response(status, body));
+    return this;
+  }
+
+  int getRequests() {
+    return requests.get();
+  }
+
+  Response handle(final URI destination) {
+    requests.incrementAndGet();
+    final Response response = responses.get(destination.getPath());
+    return response == null ? new Response(404, (byte[]) null) : response;
+  }
+
+  @Override
+  public Response GET(final URI destination) {
+    return handle(destination);
+  }
+
+  @Override
+  public Response POST(final URI destination, final String body) {
+    return handle(destination);
+  }
+}
@@ -0,0 +1,107 @@
+package com.idmworks.security.google;
+
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link TokenRefresher}.
+ *
+ * @author pdgreen
+ */
+public class TokenRefresherTest {
+
+  static final String REFRESHED_JSON = "{\"access_token\":\"refreshed\",\"expires_in\":3600,\"token_type\":\"Bearer\"}";
+  private long now = System.currentTimeMillis();
+  private StubHttpClient httpClient;
+  private LatencyHistogram latency;
+  private TokenRefresher refresher;
+
+  @Before
+  public void createRefresher() {
+    httpClient = new StubHttpClient().respond("/o/oauth2/token", 200, REFRESHED_JSON);
+    latency = new LatencyHistogram();
+    refresher = new TokenRefresher(httpClient, URI.create(GoogleApiUtils.TOKEN_API_URI), "client", "secret", 300, 2, 3600, latency) {
+      @Override
+      long currentTimeMillis() {
+        return now;
+      }
+    };
+  }
+
+  private AccessTokenInfo tokens(final String accessToken, final long expiresInSeconds, final String refreshToken) {
+    return new AccessTokenInfo(accessToken, new Date(now + TimeUnit.SECONDS.toMillis(expiresInSeconds)), "Bearer", null, refreshToken);
+  }
+
+  @Test
+  public void testWithoutRefreshTokenNothingKept() {
+    assertThat(refresher.register("a@example.com", tokens("access", 3600, null)), is(nullValue()));
+    assertThat(refresher.getCredentialCount(), is(0));
+  }
+
+  @Test
+  public void testLaterLoginUpdatesKeptCredential() {
+    final GoogleCredential credential = refresher.register("a@example.com", tokens("first", 3600, "refresh"));
+    assertThat(refresher.register("a@example.com", tokens("second", 3600, null)), is(sameInstance(credential)));
+    assertThat(credential.getAccessToken(), is("second"));
+    assertThat(credential.getRefreshToken(), is("refresh"));
+  }
+
+  @Test
+  public void testRefreshesSoonestExpiringInBatches() {
+    final GoogleCredential later = refresher.register("later@example.com", tokens("later", 200, "r1"));
+    final GoogleCredential soonest = refresher.register("soonest@example.com", tokens("soonest", 10, "r2"));
+    final GoogleCredential soon = refresher.register("soon@example.com", tokens("soon", 100, "r3"));
+    final GoogleCredential notDue = refresher.register("fresh@example.com", tokens("fresh", 3000, "r4"));
+    assertThat(refresher.getQueueDepth(), is(3));
+
+    assertThat(refresher.refreshDue(), is(2));
+    assertThat(soonest.getAccessToken(), is("refreshed"));
+    assertThat(soon.getAccessToken(), is("refreshed"));
+    assertThat(later.getAccessToken(), is("later"));
+    assertThat(refresher.getQueueDepth(), is(1));
+
+    assertThat(refresher.refreshDue(), is(1));
+    assertThat(later.getAccessToken(), is("refreshed"));
+    assertThat(notDue.getAccessToken(), is("fresh"));
+    assertThat(refresher.getQueueDepth(), is(0));
+    assertThat(httpClient.getRequests(), is(3));
+    assertThat(latency.snapshot().getCount(), is(3L));
+  }
+
+  @Test
+  public void testRevokedRefreshTokenDropped() {
+    httpClient.respond("/o/oauth2/token", 400, "{\"error\":\"invalid_grant\"}");
+    refresher.register("a@example.com", tokens("access", 10, "refresh"));
+
+    assertThat(refresher.refreshDue(), is(0));
+    assertThat(refresher.getCredential("a@example.com"), is(nullValue()));
+    assertThat(refresher.getFailureCount(), is(1L));
+  }
+
+  @Test
+  public void testServerErrorRetriedNextRun() {
+    httpClient.respond("/o/oauth2/token", 503, "{}");
+    final GoogleCredential credential = refresher.register("a@example.com", tokens("access", 10, "refresh"));
+
+    assertThat(refresher.refreshDue(), is(0));
+    assertThat(refresher.getCredential("a@example.com"), is(sameInstance(credential)));
+
+    httpClient.respond("/o/oauth2/token", 200, REFRESHED_JSON);
+    assertThat(refresher.refreshDue(), is(1));
+    assertThat(credential.getAccessToken(), is("refreshed"));
+  }
+
+  @Test
+  public void testCredentialDroppedAfterRetention() {
+    refresher.register("a@example.com", tokens("access", 10, "refresh"));
+    now += TimeUnit.SECONDS.toMillis(3600);
+
+    assertThat(refresher.refreshDue(), is(0));
+    assertThat(refresher.getCredentialCount(), is(0));
+    assertThat(httpClient.getRequests(), is(0));
+  }
+}
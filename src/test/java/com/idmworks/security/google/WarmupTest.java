@@ -0,0 +1,65 @@
+package com.idmworks.security.google;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link Warmup}.
+ *
+ * @author pdgreen
+ */
+public class WarmupTest {
+
+  private static Warmup.Target target(final HttpClient httpClient, final AtomicInteger primed) {
+    return new Warmup.Target() {
+      @Override
+      public HttpClient httpClient() {
+        return httpClient;
+      }
+
+      @Override
+      public void prime(final int iteration) {
+        primed.incrementAndGet();
+      }
+    };
+  }
+
+  @Test
+  public void testConnectsOncePerHostThenPrimes() throws InterruptedException {
+    final StubHttpClient httpClient = new StubHttpClient();
+    final AtomicInteger primed = new AtomicInteger();
+    final Warmup warmup = new Warmup(Arrays.asList(URI.create("https://localhost/o/oauth2/auth"),
+            URI.create("https://localhost/o/oauth2/token"), URI.create("https://127.0.0.1/oauth2/v1/userinfo")), 100,
+            target(httpClient, primed));
+    assertThat(warmup.getState(), is(Warmup.PENDING));
+
+    warmup.start();
+    assertThat(warmup.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(warmup.getState(), is(Warmup.READY));
+    //a 404 still leaves a connection behind
+    assertThat(httpClient.getRequests(), is(2));
+    assertThat(primed.get(), is(100));
+  }
+
+  @Test
+  public void testUnreachableEndpointIncomplete() throws InterruptedException {
+    final HttpClient failing = new StubHttpClient() {
+      @Override
+      Response handle(final URI destination) {
+        throw new IllegalStateException("Unable to create connection");
+      }
+    };
+    final AtomicInteger primed = new AtomicInteger();
+    final Warmup warmup = new Warmup(Arrays.asList(URI.create("https://localhost/o/oauth2/token")), 10, target(failing, primed));
+    warmup.start();
+    assertThat(warmup.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(warmup.getState(), is(Warmup.INCOMPLETE));
+    //the code paths are warmed up anyway
+    assertThat(primed.get(), is(10));
+  }
+}
@@ -0,0 +1,78 @@
+package com.idmworks.security.google;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ * Tests for {@link JfrFlightEvents}.
+ *
+ * @author pdgreen
+ */
+public class JfrFlightEventsTest {
+
+  private static final String TOKEN_EXCHANGE = "com.idmworks.security.google.TokenExchange";
+  private static final String USERINFO = "com.idmworks.security.google.UserInfo";
+
+  @Test
+  public void testLoaded() {
+    assertThat(FlightEvents.INSTANCE.isAvailable(), is(true));
+  }
+
+  @Test
+  public void testEnabledEventRecorded() throws Exception {
+    final FlightEvents events = new JfrFlightEvents();
+    final Path file = Files.createTempFile("flight-events", ".jfr");
+    try {
+      try (Recording recording = new Recording()) {
+        recording.enable(TOKEN_EXCHANGE);
+        recording.disable(USERINFO);
+        recording.start();
+        final Object tokenExchange = events.begin(FlightEvents.TOKEN_EXCHANGE);
+        assertThat(tokenExchange, is(notNullValue()));
+        events.end(tokenExchange, 400, FlightEvents.REFUSED);
+        //a disabled phase isn't timed
+        assertThat(events.begin(FlightEvents.USERINFO), is(nullValue()));
+        recording.stop();
+        recording.dump(file);
+      }
+
+      final List<RecordedEvent> recorded = new ArrayList<>();
+      for (final RecordedEvent event : RecordingFile.readAllEvents(file)) {
+        if (event.getEventType().getName().startsWith("com.idmworks.")) {
+          recorded.add(event);
+        }
+      }
+      assertThat(recorded.size(), is(1));
+      assertThat(recorded.get(0).getEventType().getName(), is(TOKEN_EXCHANGE));
+      assertThat(recorded.get(0).getInt("httpStatus"), is(400));
+      assertThat(recorded.get(0).getString("outcome"), is(FlightEvents.REFUSED));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testNothingAllocatedAfterRecordingStops() {
+    final FlightEvents events = new JfrFlightEvents();
+    try (Recording recording = new Recording()) {
+      recording.enable(TOKEN_EXCHANGE);
+      recording.start();
+      assertThat(events.begin(FlightEvents.TOKEN_EXCHANGE), is(notNullValue()));
+      recording.stop();
+    }
+    assertThat(events.begin(FlightEvents.TOKEN_EXCHANGE), is(nullValue()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownPhaseRejected() {
+    new JfrFlightEvents().begin(42);
+  }
+}